@@ -100,6 +100,23 @@ class Chart {
     const lm::ngram::ChartState &InterpretState(StateIndex index) const {
       return vec_[index - 1];
     }
+
+    // Forgets all states so the chart can be reused for another sentence.  The vector and the
+    // hash table's buckets keep their capacity, so a reused chart does not allocate again until
+    // it sees a larger sentence.
+    void Clear() {
+      lookup_.clear();
+      vec_.clear();
+    }
+
+    // Approximate number of bytes allocated by the chart.
+    size_t MemoryUsage() const {
+      return sizeof(Chart)
+          + vec_.capacity() * sizeof(lm::ngram::ChartState)
+          + lookup_.bucket_count() * sizeof(void*)
+          + lookup_.size() * (sizeof(StateIndex) + 2 * sizeof(void*));
+    }
+
     long* ngramBuffer_;
 
   private:
@@ -369,6 +386,16 @@ JNIEXPORT void JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_destroyPool(
   delete reinterpret_cast<Chart*>(pointer);
 }
 
+JNIEXPORT void JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_clearPool(
+    JNIEnv *env, jclass, jlong pointer) {
+  reinterpret_cast<Chart*>(pointer)->Clear();
+}
+
+JNIEXPORT jlong JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_poolBytes(
+    JNIEnv *env, jclass, jlong pointer) {
+  return reinterpret_cast<Chart*>(pointer)->MemoryUsage();
+}
+
 JNIEXPORT jint JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_order(
     JNIEnv *env, jclass, jlong pointer) {
   return reinterpret_cast<VirtualBase*>(pointer)->Order();
@@ -420,6 +447,20 @@ JNIEXPORT jfloat JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_probForStrin
       values + length);
 }
 
+JNIEXPORT jfloat JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_probNgrams(
+    JNIEnv *env, jclass, jlong pointer, jobject buffer, jint count, jint order) {
+  // The n-grams are stored back to back in a direct buffer owned by the calling thread, so we
+  // can map and reverse them in place.
+  jint *values = (jint*) env->GetDirectBufferAddress(buffer);
+  const VirtualBase* lm_base = reinterpret_cast<const VirtualBase*>(pointer);
+  float prob = 0.0;
+  for (jint n = 0; n < count; ++n) {
+    jint *begin = values + n * order;
+    prob += lm_base->Prob(begin, begin + order);
+  }
+  return prob;
+}
+
 JNIEXPORT jboolean JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_isLmOov(
     JNIEnv *env, jclass, jlong pointer, jint word) {
     const VirtualBase* lm_base = reinterpret_cast<const VirtualBase*>(pointer);
@@ -30,10 +30,9 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.locks.StampedLock;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.joshua.decoder.ff.lm.NGramLanguageModel;
 import org.apache.joshua.util.FormatUtils;
@@ -44,6 +43,13 @@ import org.slf4j.LoggerFactory;
  * Static singular vocabulary class.
  * Supports (de-)serialization into a vocabulary file.
  *
+ * Lookups never lock. Ids are mapped to strings with an array that grows by copying, and strings
+ * to ids with a {@link ConcurrentHashMap}. Only adding a new word takes a lock, since the word
+ * also has to be registered with every language model. Once the models are loaded, the vocabulary
+ * can be frozen ({@link #freeze()}): the words known at that point are copied into an immutable
+ * snapshot that is consulted first, so that lookups of model words are plain array and hash map
+ * reads. Words added after freezing (e.g., OOVs in the input) are still assigned ids.
+ *
  * @author Juri Ganitkevitch
  */
 
@@ -52,33 +58,49 @@ public class Vocabulary implements Externalizable {
   private static final Logger LOG = LoggerFactory.getLogger(Vocabulary.class);
   private final static ArrayList<NGramLanguageModel> LMs = new ArrayList<>();
 
-  private static List<String> idToString;
-  private static Map<String, Integer> stringToId;
-  private static final StampedLock lock = new StampedLock();
+  /*
+   * The id-to-string array and the number of ids in use. Writers store the new word, then publish
+   * the (possibly reallocated) array, then the size; readers read the size first, so that any id
+   * below it is guaranteed to be present in the array they then read.
+   */
+  private static volatile String[] idToString;
+  private static volatile int size;
+  private static volatile ConcurrentHashMap<String, Integer> stringToId;
+
+  /* The read-only snapshot taken by freeze(), or null */
+  private static volatile Frozen frozen;
 
   static final int UNKNOWN_ID = 0;
   static final String UNKNOWN_WORD = "<unk>";
 
+  /* Returned by lookup() for words that are not in the vocabulary; no real id is this small */
+  public static final int MISSING_ID = Integer.MIN_VALUE;
+
   public static final String START_SYM = "<s>";
   public static final String STOP_SYM = "</s>";
 
+  private static final class Frozen {
+    private final String[] words;
+    private final HashMap<String, Integer> ids;
+
+    private Frozen(String[] words, HashMap<String, Integer> ids) {
+      this.words = words;
+      this.ids = ids;
+    }
+  }
+
   static {
     clear();
   }
 
-  public static boolean registerLanguageModel(NGramLanguageModel lm) {
-    long lock_stamp = lock.writeLock();
-    try {
-      // Store the language model.
-      LMs.add(lm);
-      // Notify it of all the existing words.
-      boolean collision = false;
-      for (int i = idToString.size() - 1; i > 0; i--)
-        collision = collision || lm.registerWord(idToString.get(i), i);
-      return collision;
-    } finally {
-      lock.unlockWrite(lock_stamp);
-    }
+  public static synchronized boolean registerLanguageModel(NGramLanguageModel lm) {
+    // Store the language model.
+    LMs.add(lm);
+    // Notify it of all the existing words.
+    boolean collision = false;
+    for (int i = size - 1; i > 0; i--)
+      collision = collision || lm.registerWord(idToString[i], i);
+    return collision;
   }
 
   /**
@@ -104,90 +126,116 @@ public class Vocabulary implements Externalizable {
       }
     }
     vocab_stream.close();
-    return (size + 1 == idToString.size());
+    return (size + 1 == Vocabulary.size);
   }
 
-  public static void write(String file_name) throws IOException {
-    long lock_stamp =lock.readLock();
-    try {
-      File vocab_file = new File(file_name);
-      DataOutputStream vocab_stream =
-          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(vocab_file)));
-      vocab_stream.writeInt(idToString.size() - 1);
-      LOG.info("Writing vocabulary: {} tokens", idToString.size() - 1);
-      for (int i = 1; i < idToString.size(); i++) {
-        vocab_stream.writeInt(i);
-        vocab_stream.writeUTF(idToString.get(i));
+  /**
+   * Checks whether every word in a vocabulary file already has the id it has in the file, in which
+   * case reading the file would not change any ids. Unlike {@link #read(File)}, this neither clears
+   * nor extends the vocabulary, so it is safe while other threads are adding words.
+   *
+   * @param vocab_file path to a vocabulary file
+   * @return true if the vocabulary already contains the file's words, with the same ids
+   * @throws IOException of the file cannot be found or read properly
+   */
+  public static boolean contains(final File vocab_file) throws IOException {
+    try (DataInputStream vocab_stream =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(vocab_file)))) {
+      int size = vocab_stream.readInt();
+      for (int i = 0; i < size; i++) {
+        int id = vocab_stream.readInt();
+        Integer existing = stringToId.get(vocab_stream.readUTF());
+        if (existing == null || Math.abs(existing) != id)
+          return false;
       }
-      vocab_stream.close();
+      return true;
     }
-    finally{
-      lock.unlockRead(lock_stamp);
+  }
+
+  public static void write(String file_name) throws IOException {
+    // read the size before the array; see above
+    int size = Vocabulary.size;
+    String[] words = idToString;
+
+    File vocab_file = new File(file_name);
+    DataOutputStream vocab_stream =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(vocab_file)));
+    vocab_stream.writeInt(size - 1);
+    LOG.info("Writing vocabulary: {} tokens", size - 1);
+    for (int i = 1; i < size; i++) {
+      vocab_stream.writeInt(i);
+      vocab_stream.writeUTF(words[i]);
     }
+    vocab_stream.close();
   }
 
   /**
-   * Get the id of the token if it already exists, new id is created otherwise.
-   *
-   * TODO: currently locks for every call. Separate constant (frozen) ids from
-   * changing (e.g. OOV) ids. Constant ids could be immutable -&gt; no locking.
-   * Alternatively: could we use ConcurrentHashMap to not have to lock if
-   * actually contains it and only lock for modifications?
+   * Get the id of the token if it already exists, new id is created otherwise. This only locks
+   * when a new id has to be created.
    * 
    * @param token a token to obtain an id for
    * @return the token id
    */
   public static int id(String token) {
-    // First attempt an optimistic read
-    long attempt_read_lock = lock.tryOptimisticRead();
-    if (stringToId.containsKey(token)) {
-      int resultId = stringToId.get(token);
-      if (lock.validate(attempt_read_lock)) {
-        return resultId;
-      }
-    }
-
-    // The optimistic read failed, try a read with a stamped read lock
-    long read_lock_stamp = lock.readLock();
-    try {
-      if (stringToId.containsKey(token)) {
-        return stringToId.get(token);
-      }
-    } finally {
-      lock.unlockRead(read_lock_stamp);
+    Frozen snapshot = frozen;
+    if (snapshot != null) {
+      Integer id = snapshot.ids.get(token);
+      if (id != null)
+        return id;
     }
 
-    // Looks like the id we want is not there, let's get a write lock and add it
-    long write_lock_stamp = lock.writeLock();
-    try {
-      if (stringToId.containsKey(token)) {
-        return stringToId.get(token);
-      }
-      int id = idToString.size() * (FormatUtils.isNonterminal(token) ? -1 : 1);
+    Integer id = stringToId.get(token);
+    if (id != null)
+      return id;
 
-      // register this (token,id) mapping with each language
-      // model, so that they can map it to their own private
-      // vocabularies
-      for (NGramLanguageModel lm : LMs)
-        lm.registerWord(token, Math.abs(id));
+    return add(token);
+  }
 
-      idToString.add(token);
-      stringToId.put(token, id);
-      return id;
-    } finally {
-      lock.unlockWrite(write_lock_stamp);
+  /**
+   * Get the id of the token if it already exists, without creating one. This never locks.
+   *
+   * @param token a token to obtain an id for
+   * @return the token id, or {@link #MISSING_ID} if the token is not in the vocabulary
+   */
+  public static int lookup(String token) {
+    Frozen snapshot = frozen;
+    if (snapshot != null) {
+      Integer id = snapshot.ids.get(token);
+      if (id != null)
+        return id;
     }
+
+    Integer id = stringToId.get(token);
+    return (id != null) ? id : MISSING_ID;
+  }
+
+  private static synchronized int add(String token) {
+    Integer existing = stringToId.get(token);
+    if (existing != null)
+      return existing;
+
+    int index = size;
+    int id = index * (FormatUtils.isNonterminal(token) ? -1 : 1);
+
+    // register this (token,id) mapping with each language
+    // model, so that they can map it to their own private
+    // vocabularies
+    for (NGramLanguageModel lm : LMs)
+      lm.registerWord(token, index);
+
+    String[] words = idToString;
+    if (index == words.length)
+      words = Arrays.copyOf(words, 2 * words.length);
+    words[index] = token;
+    idToString = words;
+    size = index + 1;
+    stringToId.put(token, id);
+    return id;
   }
 
   public static boolean hasId(int id) {
-    long lock_stamp = lock.readLock();
-    try {
-      id = Math.abs(id);
-      return (id < idToString.size());
-    }
-    finally{
-      lock.unlockRead(lock_stamp);
-    }
+    id = Math.abs(id);
+    return (id < size);
   }
 
   public static int[] addAll(String sentence) {
@@ -202,14 +250,15 @@ public class Vocabulary implements Externalizable {
   }
 
   public static String word(int id) {
-    long lock_stamp = lock.readLock();
-    try {
-      id = Math.abs(id);
-      return idToString.get(id);
-    }
-    finally{
-      lock.unlockRead(lock_stamp);
-    }
+    id = Math.abs(id);
+
+    Frozen snapshot = frozen;
+    if (snapshot != null && id < snapshot.words.length)
+      return snapshot.words[id];
+
+    if (id >= size)
+      throw new IndexOutOfBoundsException(String.format("Vocabulary has no id %d", id));
+    return idToString[id];
   }
 
   public static String getWords(int[] ids) {
@@ -243,36 +292,45 @@ public class Vocabulary implements Externalizable {
   }
 
   public static int size() {
-    long lock_stamp = lock.readLock();
-    try {
-      return idToString.size();
-    } finally {
-      lock.unlockRead(lock_stamp);
-    }
+    return size;
   }
 
-  public static synchronized int getTargetNonterminalIndex(int id) {
+  public static int getTargetNonterminalIndex(int id) {
     return FormatUtils.getNonterminalIndex(word(id));
   }
 
+  /**
+   * Freezes the words currently in the vocabulary into a read-only snapshot that lookups consult
+   * before the concurrent maps. This is meant to be called once the grammars and language models
+   * have been loaded. New words can still be added afterwards.
+   */
+  public static synchronized void freeze() {
+    int frozenSize = size;
+    String[] words = Arrays.copyOf(idToString, frozenSize);
+    HashMap<String, Integer> ids = new HashMap<>(stringToId);
+    frozen = new Frozen(words, ids);
+    LOG.info("Froze vocabulary with {} entries", frozenSize);
+  }
+
+  public static boolean isFrozen() {
+    return frozen != null;
+  }
+
   /**
    * Clears the vocabulary and initializes it with an unknown word. Registered
-   * language models are left unchanged.
+   * language models are left unchanged. This also undoes {@link #freeze()}.
    */
-  public static void clear() {
-    long lock_stamp = lock.writeLock();
-    try {
-      idToString = new ArrayList<>();
-      stringToId = new HashMap<>();
-
-      idToString.add(UNKNOWN_ID, UNKNOWN_WORD);
-      stringToId.put(UNKNOWN_WORD, UNKNOWN_ID);
-    } finally {
-      lock.unlockWrite(lock_stamp);
-    }
+  public static synchronized void clear() {
+    frozen = null;
+    String[] words = new String[1024];
+    words[UNKNOWN_ID] = UNKNOWN_WORD;
+    stringToId = new ConcurrentHashMap<>();
+    stringToId.put(UNKNOWN_WORD, UNKNOWN_ID);
+    idToString = words;
+    size = 1;
   }
 
-  public static void unregisterLanguageModels() {
+  public static synchronized void unregisterLanguageModels() {
     LMs.clear();
   }
 
@@ -25,6 +25,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -32,16 +33,24 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.ff.FeatureFunction;
 import org.apache.joshua.decoder.ff.FeatureVector;
 import org.apache.joshua.decoder.ff.PhraseModel;
 import org.apache.joshua.decoder.ff.StatefulFF;
+import org.apache.joshua.decoder.ff.lm.CachingNGramLanguageModel;
 import org.apache.joshua.decoder.ff.lm.LanguageModelFF;
+import org.apache.joshua.decoder.ff.lm.StateMinimizingLanguageModel;
 import org.apache.joshua.decoder.ff.tm.Grammar;
 import org.apache.joshua.decoder.ff.tm.OwnerId;
 import org.apache.joshua.decoder.ff.tm.OwnerMap;
@@ -60,7 +69,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Strings;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.base.Throwables;
 
 /**
  * This class handles decoder initialization and the complication introduced by multithreading.
@@ -68,19 +77,16 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
  * After initialization, the main entry point to the Decoder object is
  * decodeAll(TranslationRequest), which returns a set of Translation objects wrapped in an iterable
  * TranslationResponseStream object. It is important that we support multithreading both (a) across the sentences
- * within a request and (b) across requests, in a round-robin fashion. This is done by maintaining a
- * fixed sized concurrent thread pool. When a new request comes in, a RequestParallelizer thread is
- * launched. This object iterates over the request's sentences, obtaining a thread from the
- * thread pool, and using that thread to decode the sentence. If a decoding thread is not available,
- * it will block until one is in a fair (FIFO) manner. RequestParallelizer thereby permits intra-request
- * parallelization by separating out reading the input stream from processing the translated sentences,
- * but also ensures that round-robin parallelization occurs, since RequestParallelizer uses the
- * thread pool before translating each request.
+ * within a request and (b) across requests. This is done by a single {@link DecoderScheduler}
+ * with num_parallel_decoders worker threads, shared by all requests. When a new request comes in,
+ * a reader task iterates over the request's sentences and submits each of them to the request's
+ * own queue in the scheduler. The scheduler serves the queues of all active requests in weighted
+ * round-robin order (weighted by the request's priority), so that a large request cannot starve
+ * small ones.
  *
- * A decoding thread is handled by DecoderTask and launched from DecoderThreadRunner. The purpose
- * of the runner is to record where to place the translated sentence when it is done (i.e., which
- * TranslationResponseStream object). TranslationResponseStream itself is an iterator whose next() call blocks until the next
- * translation is available.
+ * Each sentence is decoded by a DecoderTask. When it is done, the translation is recorded in the
+ * request's TranslationResponseStream, which is an iterator whose next() call blocks until the
+ * next translation is available.
  *
  * @author Matt Post post@cs.jhu.edu
  * @author Zhifei Li, zhifei.work@gmail.com
@@ -108,9 +114,19 @@ public class Decoder {
   private ArrayList<FeatureFunction> featureFunctions;
   private Grammar customPhraseTable;
 
+  /* The worker threads shared by all requests, started on first use */
+  private DecoderScheduler scheduler = null;
+
   /* The feature weights. */
   public static FeatureVector weights;
 
+  /*
+   * Guards the weights and the custom grammar: sentences are decoded under the read lock, and
+   * changes made while the decoder is running (see the server's metadata commands) take the write
+   * lock, so that no sentence sees a change half done.
+   */
+  private final ReadWriteLock modelLock = new ReentrantReadWriteLock();
+
   public static int VERBOSE = 1;
 
   // ===============================================================
@@ -169,28 +185,26 @@ public class Decoder {
   /**
    * This function is the main entry point into the decoder. It translates all the sentences in a
    * (possibly boundless) set of input sentences. Each request launches its own thread to read the
-   * sentences of the request.
+   * sentences of the request. That thread reads at most read_ahead sentences ahead of the
+   * translation the caller is waiting for, so a long (or endless) input is streamed through the
+   * decoder rather than read and queued all at once.
    *
    * @param request the populated {@link TranslationRequestStream}
    * @throws RuntimeException if any fatal errors occur during translation
    * @return an iterable, asynchronously-filled list of TranslationResponseStream
    */
   public TranslationResponseStream decodeAll(TranslationRequestStream request) {
-    TranslationResponseStream results = new TranslationResponseStream(request);
-    CompletableFuture.runAsync(() -> decodeAllAsync(request, results));
+    TranslationResponseStream results = new TranslationResponseStream(request, getReadAhead());
+    Thread reader = new Thread(() -> decodeAllAsync(request, results), "RequestReader");
+    reader.setDaemon(true);
+    reader.start();
     return results;
   }
 
   private void decodeAllAsync(TranslationRequestStream request,
                               TranslationResponseStream responseStream) {
 
-    // Give the threadpool a friendly name to help debuggers
-    final ThreadFactory threadFactory = new ThreadFactoryBuilder()
-            .setNameFormat("TranslationWorker-%d")
-            .setDaemon(true)
-            .build();
-    ExecutorService executor = Executors.newFixedThreadPool(this.joshuaConfiguration.num_parallel_decoders,
-            threadFactory);
+    DecoderScheduler.RequestQueue queue = getScheduler().newRequestQueue(request.getPriority());
     try {
       for (; ; ) {
         Sentence sentence = request.next();
@@ -199,7 +213,12 @@ public class Decoder {
           break;
         }
 
-        executor.execute(() -> {
+        // Blocks while the caller is too far behind; false if it has given up on the results
+        if (! responseStream.awaitCapacity(sentence.id())) {
+          break;
+        }
+
+        queue.submit(() -> {
           try {
             Translation result = decode(sentence);
             responseStream.record(result);
@@ -209,11 +228,30 @@ public class Decoder {
         });
       }
       responseStream.finish();
-    } finally {
-      executor.shutdown();
+    } catch (Throwable ex) {
+      // e.g., the decoder was shut down underneath us, or an input could not be parsed; either
+      // way the consumer must hear about it rather than wait for translations that never come
+      responseStream.propagate(ex);
     }
   }
 
+  /**
+   * Returns the number of sentences a request may read ahead of its output (see read_ahead).
+   */
+  private int getReadAhead() {
+    if (joshuaConfiguration.read_ahead > 0)
+      return joshuaConfiguration.read_ahead;
+    return Math.max(16, 4 * joshuaConfiguration.num_parallel_decoders);
+  }
+
+  /**
+   * Returns the scheduler shared by all requests, starting its worker threads if needed.
+   */
+  private synchronized DecoderScheduler getScheduler() {
+    if (scheduler == null)
+      scheduler = new DecoderScheduler(joshuaConfiguration.num_parallel_decoders);
+    return scheduler;
+  }
 
   /**
    * We can also just decode a single sentence in the same thread.
@@ -223,21 +261,51 @@ public class Decoder {
    * @return the sentence {@link org.apache.joshua.decoder.Translation}
    */
   public Translation decode(Sentence sentence) {
+    Lock lock = modelLock.readLock();
+    lock.lock();
     try {
       DecoderTask decoderTask = new DecoderTask(this.grammars, Decoder.weights, this.featureFunctions, joshuaConfiguration);
       return decoderTask.translate(sentence);
     } catch (IOException e) {
       throw new RuntimeException(String.format(
               "Input %d: FATAL UNCAUGHT EXCEPTION: %s", sentence.id(), e.getMessage()), e);
+    } finally {
+      lock.unlock();
     }
   }
 
+  /**
+   * Returns the lock that guards the weights and the custom grammar. Sentences are decoded while
+   * holding its read lock; code that changes the weights or the custom grammar while the decoder
+   * is running must hold its write lock, and code that reads them outside of decoding its read
+   * lock.
+   *
+   * @return the lock guarding the models
+   */
+  public ReadWriteLock getModelLock() {
+    return modelLock;
+  }
+
   /**
    * Clean shutdown of Decoder, resetting all
    * static variables, such that any other instance of Decoder
    * afterwards gets a fresh start.
    */
   public void cleanUp() {
+    synchronized (this) {
+      if (scheduler != null) {
+        scheduler.shutdown();
+        scheduler = null;
+      }
+    }
+
+    // Report how well the n-gram caches did
+    if (featureFunctions != null)
+      for (FeatureFunction feature : featureFunctions)
+        if (feature instanceof LanguageModelFF
+            && ((LanguageModelFF) feature).getLM() instanceof CachingNGramLanguageModel)
+          LOG.info("FEATURE: {}", feature.logString());
+
     resetGlobalState();
   }
 
@@ -384,14 +452,29 @@ public class Decoder {
       // Do this before loading the grammars and the LM.
       this.featureFunctions = new ArrayList<>();
 
-      // Initialize and load grammars. This must happen first, since the vocab gets defined by
-      // the packed grammar (if any)
-      this.initializeTranslationGrammars();
-      LOG.info("Grammar loading took: {} seconds.",
-          (System.currentTimeMillis() - pre_load_time) / 1000);
+      StartupTimer timer = new StartupTimer();
+      ExecutorService loaders = newLoaderPool();
+      try {
+        // Start loading the language models in the background
+        this.preloadLanguageModels(loaders, timer);
+
+        // Initialize and load grammars. This must happen first, since the vocab gets defined by
+        // the packed grammar (if any)
+        this.initializeTranslationGrammars(loaders, timer);
+        LOG.info("Grammar loading took: {} seconds.",
+            (System.currentTimeMillis() - pre_load_time) / 1000);
+
+        // Initialize the features: requires that LM model has been initialized.
+        this.initializeFeatureFunctions(timer);
+      } finally {
+        loaders.shutdownNow();
+        LanguageModelFF.discardPreloaded();
+      }
+      timer.log();
 
-      // Initialize the features: requires that LM model has been initialized.
-      this.initializeFeatureFunctions();
+      // All model words are known now
+      if (joshuaConfiguration.freeze_vocabulary)
+        Vocabulary.freeze();
 
       // This is mostly for compatibility with the Moses tuning script
       if (joshuaConfiguration.show_weights_and_quit) {
@@ -410,8 +493,13 @@ public class Decoder {
         LOG.info("Grammar sorting happening lazily on-demand.");
       } else {
         long pre_sort_time = System.currentTimeMillis();
-        for (Grammar grammar : this.grammars) {
-          grammar.sortGrammar(this.featureFunctions);
+        ForkJoinPool sorters = newSorterPool();
+        try {
+          for (Grammar grammar : this.grammars) {
+            grammar.sortGrammar(this.featureFunctions, sorters);
+          }
+        } finally {
+          sorters.shutdownNow();
         }
         LOG.info("Grammar sorting took {} seconds.",
             (System.currentTimeMillis() - pre_sort_time) / 1000);
@@ -426,64 +514,171 @@ public class Decoder {
     return this;
   }
 
+  /**
+   * Creates the pool of threads that sort the grammars at startup.
+   */
+  private ForkJoinPool newSorterPool() {
+    int threads = joshuaConfiguration.sorting_threads;
+    if (threads <= 0)
+      threads = Runtime.getRuntime().availableProcessors();
+
+    return new ForkJoinPool(threads, pool -> {
+      ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+      // Give the threads a friendly name to help debuggers
+      thread.setName("GrammarSorter-" + thread.getPoolIndex());
+      return thread;
+    }, null, false);
+  }
+
+  /**
+   * Creates the pool of threads that load the models at startup.
+   */
+  private ExecutorService newLoaderPool() {
+    int threads = joshuaConfiguration.loading_threads;
+    if (threads <= 0)
+      threads = Math.max(1, joshuaConfiguration.tms.size() + joshuaConfiguration.features.size());
+
+    AtomicInteger count = new AtomicInteger(0);
+    return Executors.newFixedThreadPool(threads, task -> {
+      // Give the threads a friendly name to help debuggers
+      Thread thread = new Thread(task, "ModelLoader-" + count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Starts loading the models of the language model feature functions in the background, while the
+   * grammars are loaded. The feature functions themselves are still created one at a time by
+   * initializeFeatureFunctions(), since their names (lm_0, lm_1, ...) and state indices depend on
+   * the order in which they are created; each of them picks up its model from here.
+   */
+  private void preloadLanguageModels(ExecutorService loaders, StartupTimer timer) {
+    for (String featureLine : joshuaConfiguration.features) {
+      String fields[] = featureLine.split("\\s+");
+      Class<?> clas = getFeatureFunctionClass(fields[0]);
+      if (clas == null || !LanguageModelFF.class.isAssignableFrom(clas))
+        continue;
+
+      HashMap<String, String> args = FeatureFunction.parseArgs(fields);
+      String type = (clas == StateMinimizingLanguageModel.class) ? "kenlm" : args.get("lm_type");
+      if (type == null || !args.containsKey("lm_order") || !args.containsKey("lm_file"))
+        continue;
+
+      int order = Integer.parseInt(args.get("lm_order"));
+      String path = joshuaConfiguration.getFilePath(args.get("lm_file"));
+      LanguageModelFF.preload(type, order, path, CompletableFuture.supplyAsync(
+          () -> timer.time(String.format("%s LM %s", type, path),
+              () -> LanguageModelFF.loadLanguageModel(type, order, path)), loaders));
+    }
+  }
+
   /**
    * Initializes translation grammars Retained for backward compatibility
    *
-   * @param ownersSeen Records which PhraseModelFF's have been instantiated (one is needed for each
-   *          owner)
+   * The grammars are loaded concurrently. Reading the vocabulary of a packed grammar replaces the
+   * vocabulary, so this is done first, for each packed grammar in turn. Then each packed grammar
+   * is loaded by a task of its own, while the text grammars, which add their words to the
+   * vocabulary as they are read, are loaded one after another by a single task, so that all words
+   * get the same ids as when loading sequentially. The grammars are kept in the order they are
+   * listed in, which the checks below depend on.
+   *
+   * @param loaders the threads to load the grammars with
+   * @param timer records the time it takes to load each grammar
    * @throws IOException
    */
-  private void initializeTranslationGrammars() throws IOException {
+  private void initializeTranslationGrammars(ExecutorService loaders, StartupTimer timer)
+      throws IOException {
 
     // collect packedGrammars to check if they use a shared vocabulary
     final List<PackedGrammar> packed_grammars = new ArrayList<>();
     
     // record the glue grammar so we can make sure there is one
     Grammar glueGrammar = null;
+    boolean glueListed = false;
 
-    // tm = {thrax/hiero,packed,samt,moses} OWNER LIMIT FILE
+    /* First pass: read the vocabularies of the packed grammars, before anything adds words */
+    for (String tmLine : joshuaConfiguration.tms) {
+      String type = tmLine.substring(0,  tmLine.indexOf(' '));
+      HashMap<String, String> parsedArgs = parseGrammarArgs(tmLine);
+      String path = joshuaConfiguration.getFilePath(parsedArgs.get("path"));
+
+      if (!type.equals("moses") && !type.equals("phrase") && new File(path).isDirectory()) {
+        /* Bug check. It is a problem if you load the glue grammar before a packed grammar, due to vocabulary
+         * issues. That should be fixed one day, but in the meantime, it is important to tell people about it.
+         */
+        if (glueListed) {
+          LOG.error("FATAL: the glue grammar must be listed AFTER any packed grammar.");
+          LOG.error("  Change the order in the config file so that your packed grammar is loaded first.");
+          throw new RuntimeException("Glue grammar loaded before a packed grammar.");
+        }
+
+        File vocabFile = new File(path, PackedGrammar.VOCABULARY_FILENAME);
+        if (vocabFile.exists() && !Vocabulary.contains(vocabFile)) {
+          LOG.info("Reading vocabulary: {}", vocabFile);
+          if (!Vocabulary.read(vocabFile))
+            throw new RuntimeException("mismatches or collisions while reading on-disk vocabulary");
+        }
+      }
+
+      if ("glue".equals(parsedArgs.get("owner")))
+        glueListed = true;
+    }
+
+    /* Second pass: load the grammars */
+    final List<CompletableFuture<Grammar>> loading = new ArrayList<>();
+    CompletableFuture<Grammar> textGrammars = CompletableFuture.completedFuture(null);
+
+    // tm = {thrax/hiero,packed,samt,moses} -owner OWNER -maxspan LIMIT -path FILE [-threads N]
     for (String tmLine : joshuaConfiguration.tms) {
 
       String type = tmLine.substring(0,  tmLine.indexOf(' '));
-      String[] args = tmLine.substring(tmLine.indexOf(' ')).trim().split("\\s+");
-      HashMap<String, String> parsedArgs = FeatureFunction.parseArgs(args);
+      HashMap<String, String> parsedArgs = parseGrammarArgs(tmLine);
 
       String owner = parsedArgs.get("owner");
       int span_limit = Integer.parseInt(parsedArgs.get("maxspan"));
       String path = joshuaConfiguration.getFilePath(parsedArgs.get("path"));
-      
-      Grammar grammar;
+      String component = String.format("%s grammar %s", type, path);
+      // Text grammars can be parsed on several threads ("-threads N")
+      int threads = parsedArgs.containsKey("threads")
+          ? Integer.parseInt(parsedArgs.get("threads"))
+          : 1;
+
+      // Owners get their ids in the order the grammars are listed in
+      OwnerMap.register(owner);
+
       if (type.equals("moses") || type.equals("phrase")) {
         joshuaConfiguration.search_algorithm = "stack";
-        grammar = new PhraseTable(path, owner, type, joshuaConfiguration);
-
-      } else {
-        if (new File(path).isDirectory()) {
-          /* Bug check. It is a problem if you load the glue grammar before a packed grammar, due to vocabulary
-           * issues. That should be fixed one day, but in the meantime, it is important to tell people about it.
-           */
-          if (glueGrammar != null) {
-            LOG.error("FATAL: the glue grammar must be listed AFTER any packed grammar.");
-            LOG.error("  Change the order in the config file so that your packed grammar is loaded first.");
-            throw new RuntimeException("Glue grammar loaded before a packed grammar.");
-          }
+        textGrammars = textGrammars.thenApplyAsync(previous -> timer.time(component,
+            () -> loadGrammar(() -> new PhraseTable(path, owner, type, joshuaConfiguration, threads))),
+            loaders);
+        loading.add(textGrammars);
 
+      } else if (new File(path).isDirectory()) {
+        loading.add(CompletableFuture.supplyAsync(() -> timer.time(component, () -> loadGrammar(() -> {
           try {
-            PackedGrammar packed_grammar = new PackedGrammar(path, span_limit, owner, type, joshuaConfiguration);
-            packed_grammars.add(packed_grammar);
-            grammar = packed_grammar;
+            return new PackedGrammar(path, span_limit, owner, type, joshuaConfiguration);
           } catch (FileNotFoundException e) {
             String msg = String.format("Couldn't load packed grammar from '%s'", path)
                 + "Perhaps it doesn't exist, or it may be an old packed file format.";
             throw new RuntimeException(msg);
           }
+        })), loaders));
 
-        } else {
-          // thrax, hiero, samt
-          grammar = new MemoryBasedBatchGrammar(type, path, owner,
-              joshuaConfiguration.default_non_terminal, span_limit, joshuaConfiguration);
-        }
+      } else {
+        // thrax, hiero, samt
+        textGrammars = textGrammars.thenApplyAsync(previous -> timer.time(component,
+            () -> loadGrammar(() -> new MemoryBasedBatchGrammar(type, path, owner,
+                joshuaConfiguration.default_non_terminal, span_limit, joshuaConfiguration, threads))),
+            loaders);
+        loading.add(textGrammars);
       }
+    }
+
+    for (CompletableFuture<Grammar> future : loading) {
+      Grammar grammar = await(future);
+      if (grammar instanceof PackedGrammar)
+        packed_grammars.add((PackedGrammar) grammar);
 
       this.grammars.add(grammar);
 
@@ -542,6 +737,40 @@ public class Decoder {
         ((Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1000000.0));
   }
 
+  private static HashMap<String, String> parseGrammarArgs(String tmLine) {
+    String[] args = tmLine.substring(tmLine.indexOf(' ')).trim().split("\\s+");
+    return FeatureFunction.parseArgs(args);
+  }
+
+  /**
+   * A grammar constructor, which may fail with an IOException.
+   */
+  private interface GrammarLoader {
+    Grammar load() throws IOException;
+  }
+
+  private static Grammar loadGrammar(GrammarLoader loader) {
+    try {
+      return loader.load();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Waits for a model that is being loaded, rethrowing whatever exception the loading failed with.
+   */
+  private static <T> T await(CompletableFuture<T> future) throws IOException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException)
+        throw ((UncheckedIOException) cause).getCause();
+      throw Throwables.propagate(cause);
+    }
+  }
+
   /**
    * Checks if multiple packedGrammars have the same vocabulary by comparing their vocabulary file checksums.
    */
@@ -621,7 +850,7 @@ public class Decoder {
    * @throws IOException
    *
    */
-  private void initializeFeatureFunctions() throws IOException {
+  private void initializeFeatureFunctions(StartupTimer timer) throws IOException {
 
     for (String featureLine : joshuaConfiguration.features) {
       // line starts with NAME, followed by args
@@ -630,17 +859,18 @@ public class Decoder {
       String fields[] = featureLine.split("\\s+");
       String featureName = fields[0];
 
-      try {
+      this.featureFunctions.add(timer.time("feature " + featureName, () -> {
+        try {
 
-        Class<?> clas = getFeatureFunctionClass(featureName);
-        Constructor<?> constructor = clas.getConstructor(FeatureVector.class,
-            String[].class, JoshuaConfiguration.class);
-        FeatureFunction feature = (FeatureFunction) constructor.newInstance(weights, fields, joshuaConfiguration);
-        this.featureFunctions.add(feature);
+          Class<?> clas = getFeatureFunctionClass(featureName);
+          Constructor<?> constructor = clas.getConstructor(FeatureVector.class,
+              String[].class, JoshuaConfiguration.class);
+          return (FeatureFunction) constructor.newInstance(weights, fields, joshuaConfiguration);
 
-      } catch (Exception e) {
-        throw new RuntimeException(String.format("Unable to instantiate feature function '%s'!", featureLine), e);
-      }
+        } catch (Exception e) {
+          throw new RuntimeException(String.format("Unable to instantiate feature function '%s'!", featureLine), e);
+        }
+      }));
     }
 
     for (FeatureFunction feature : featureFunctions) {
@@ -685,9 +915,15 @@ public class Decoder {
    */
   public void addCustomRule(Rule rule) {
     if (getCustomPhraseTable() != null) {
-      getCustomPhraseTable().addRule(rule);
-      rule.estimateRuleCost(featureFunctions);
-      getCustomPhraseTable().save();
+      Lock lock = modelLock.writeLock();
+      lock.lock();
+      try {
+        getCustomPhraseTable().addRule(rule);
+        rule.estimateRuleCost(featureFunctions);
+        getCustomPhraseTable().save();
+      } finally {
+        lock.unlock();
+      }
     }
   }
 
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed set of long-lived decoding threads shared by all requests made to a {@link Decoder}.
+ *
+ * Each request gets its own {@link RequestQueue}. Workers serve the requests that have pending
+ * sentences in weighted round-robin order: a request with priority p gets to decode up to p
+ * sentences before the next request gets its turn. A large batch request therefore cannot starve a
+ * small interactive one; the small one waits for at most one turn of each other active request.
+ */
+public class DecoderScheduler {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DecoderScheduler.class);
+
+  /* The default priority of a request */
+  public static final int DEFAULT_PRIORITY = 1;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition workAvailable = lock.newCondition();
+
+  /* Requests that have pending tasks, in the order they will be served */
+  private final ArrayDeque<RequestQueue> ready = new ArrayDeque<>();
+
+  private final List<Thread> workers;
+  private boolean shutdown = false;
+
+  /**
+   * The tasks of a single request. Tasks within a request are started in the order they were
+   * submitted.
+   */
+  public class RequestQueue {
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private final int priority;
+
+    /* The number of tasks this request may still start in its current turn */
+    private int credit;
+
+    private RequestQueue(int priority) {
+      this.priority = Math.max(1, priority);
+      this.credit = this.priority;
+    }
+
+    /**
+     * Queues a task to be run on one of the decoder's worker threads.
+     *
+     * @param task the task
+     */
+    public void submit(Runnable task) {
+      lock.lock();
+      try {
+        if (shutdown)
+          throw new IllegalStateException("The decoder has been shut down");
+
+        tasks.add(task);
+        if (tasks.size() == 1) {
+          ready.add(this);
+          workAvailable.signal();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public int getPriority() {
+      return priority;
+    }
+  }
+
+  /**
+   * Starts the worker threads.
+   *
+   * @param numThreads the number of sentences decoded concurrently
+   */
+  public DecoderScheduler(int numThreads) {
+    this.workers = new ArrayList<>(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      // Give the threads a friendly name to help debuggers
+      Thread worker = new Thread(this::work, "TranslationWorker-" + i);
+      worker.setDaemon(true);
+      worker.start();
+      workers.add(worker);
+    }
+  }
+
+  /**
+   * Creates the queue for a new request.
+   *
+   * @param priority the number of sentences the request may start per turn (at least 1)
+   * @return the {@link RequestQueue} to submit the request's sentences to
+   */
+  public RequestQueue newRequestQueue(int priority) {
+    return new RequestQueue(priority);
+  }
+
+  /**
+   * @return the number of requests that have sentences waiting for a worker
+   */
+  public int getWaitingRequests() {
+    lock.lock();
+    try {
+      return ready.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stops the worker threads once all queued tasks have been run. No new tasks are accepted.
+   */
+  public void shutdown() {
+    lock.lock();
+    try {
+      shutdown = true;
+      workAvailable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Blocks until a task is available and returns it, or returns null if the scheduler has been
+   * shut down and there is no work left.
+   */
+  private Runnable take() throws InterruptedException {
+    lock.lock();
+    try {
+      while (ready.isEmpty()) {
+        if (shutdown)
+          return null;
+        workAvailable.await();
+      }
+
+      RequestQueue queue = ready.peekFirst();
+      Runnable task = queue.tasks.poll();
+      queue.credit--;
+
+      if (queue.tasks.isEmpty()) {
+        // Out of work; it rejoins at the back when something new is submitted
+        ready.pollFirst();
+        queue.credit = queue.priority;
+      } else if (queue.credit == 0) {
+        // Its turn is over
+        ready.addLast(ready.pollFirst());
+        queue.credit = queue.priority;
+      }
+
+      return task;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void work() {
+    try {
+      for (Runnable task = take(); task != null; task = take()) {
+        try {
+          task.run();
+        } catch (Throwable t) {
+          // Tasks report their own failures to their requests; don't let one kill the worker
+          LOG.error(t.getMessage(), t);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      LanguageModelStateManager.releaseCurrentThread();
+    }
+  }
+}
@@ -92,6 +92,15 @@ public class DecoderTask {
    * @return the sentence {@link org.apache.joshua.decoder.Translation}
    */
   public Translation translate(Sentence sentence) {
+    try {
+      return decode(sentence);
+    } finally {
+      // The translation has been extracted, so this thread's KenLM states can be forgotten
+      LanguageModelStateManager.forCurrentThread().resetStatePools();
+    }
+  }
+
+  private Translation decode(Sentence sentence) {
 
     LOG.info("Input {}: {}", sentence.id(), sentence.fullSource());
 
@@ -122,12 +131,14 @@ public class DecoderTask {
      * used for further processing (e.g., k-best extraction).
      */
     HyperGraph hypergraph = null;
+    boolean degraded = false;
     try {
 
       if (joshuaConfiguration.search_algorithm.equals("stack")) {
         Stacks stacks = new Stacks(sentence, this.featureFunctions, grammars, joshuaConfiguration);
 
         hypergraph = stacks.search();
+        degraded = stacks.isDegraded();
       } else {
         /* Seeding: the chart only sees the grammars, not the factories */
         Chart chart = new Chart(sentence, this.featureFunctions, grammars,
@@ -136,6 +147,7 @@ public class DecoderTask {
         hypergraph = (joshuaConfiguration.use_dot_chart) 
             ? chart.expand() 
                 : chart.expandSansDotChart();
+        degraded = chart.isDegraded();
       }
 
     } catch (java.lang.OutOfMemoryError e) {
@@ -149,8 +161,15 @@ public class DecoderTask {
         .getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1000000.0);
 
     /* Return the translation unless we're doing synchronous parsing. */
+    if (degraded)
+      LOG.warn("Input {}: Search exceeded the time limit of {} s; the translation is degraded",
+          sentence.id(), joshuaConfiguration.translation_thread_timeout);
+
     if (!joshuaConfiguration.parse || hypergraph == null) {
-      return new Translation(sentence, hypergraph, featureFunctions, joshuaConfiguration);
+      Translation translation = new Translation(sentence, hypergraph, featureFunctions,
+          joshuaConfiguration);
+      translation.setDegraded(degraded);
+      return translation;
     }
 
     /*****************************************************************************************/
@@ -77,6 +77,9 @@ public class JoshuaConfiguration {
   // Testing shows there's up to ~95% hit rate when cache size is 5000 Trie nodes.
   public Integer cachedRuleSize = 5000;
 
+  // The maximum number of packed grammar trie nodes kept per slice
+  public Integer cachedTrieSize = 1000000;
+
   /*
    * The file to read the weights from (part of the sparse features implementation). Weights can
    * also just be listed in the main config file.
@@ -186,6 +189,40 @@ public class JoshuaConfiguration {
   /* The number of decoding threads to use (-threads). */
   public int num_parallel_decoders = 1;
 
+  /*
+   * The number of threads that search a single sentence (-chart-threads). Spans of the same width
+   * in the chart, and the coverage vectors extended into a phrase-based stack, do not depend on
+   * each other, so they are expanded concurrently. 1 disables this.
+   */
+  public int chart_threads = 1;
+
+  /*
+   * The number of input sentences a request may read ahead of the next translation to be returned
+   * (-read-ahead). This bounds the memory used by sentences that are queued, being decoded, or
+   * finished but waiting for an earlier one. If 0, this defaults to four per decoding thread (but
+   * at least 16).
+   */
+  public int read_ahead = 0;
+
+  /*
+   * The number of threads that load the grammars and language models at startup
+   * (-loading-threads). If 0, every model gets a thread of its own; 1 loads them one at a time.
+   */
+  public int loading_threads = 0;
+
+  /*
+   * The number of threads that sort the grammars at startup when sorting is not amortized
+   * (-sorting-threads). If 0, one thread per available processor.
+   */
+  public int sorting_threads = 0;
+
+  /*
+   * If true, the sorted order of each packed grammar is saved next to the grammar after it has
+   * been sorted, and read back on later startups that use the same features and weights. This
+   * writes to the grammar directory, so it is off by default (-sorted-order-cache).
+   */
+  public boolean sorted_order_cache = false;
+
   /*
    * When true, _OOV is appended to all words that are passed through (useful for something like
    * transliteration on the target side
@@ -215,6 +252,15 @@ public class JoshuaConfiguration {
   /* If set, Joshua will start a (multi-threaded, per "threads") TCP/IP server on this port. */
   public int server_port = 0;
 
+  /* The number of HTTP requests handled concurrently. If 0, this defaults to num_parallel_decoders. */
+  public int server_threads = 0;
+
+  /* The number of HTTP requests that can wait for a free thread. Beyond that, we answer with 503. */
+  public int server_queue_size = 64;
+
+  /* The time in milliseconds an HTTP request may take, including queueing time (0 = no limit). */
+  public long server_request_timeout = 0;
+
   /*
    * Whether to do forest rescoring. If set to true, the references are expected on STDIN along with
    * the input sentences in the following format:
@@ -277,8 +323,22 @@ public class JoshuaConfiguration {
   /* Weights overridden from the command line */
   public String weight_overwrite = "";
 
-  /* Timeout in seconds for threads */
-  public long translation_thread_timeout = 30_000;
+  /*
+   * If true, the vocabulary is frozen into a read-only snapshot once the models are loaded, which
+   * makes looking up model words cheaper. Words first seen in the input are still added.
+   */
+  public boolean freeze_vocabulary = false;
+
+  /*
+   * The time in seconds that the search for a single sentence may take
+   * (-translation-thread-timeout); fractions of a second, e.g. 0.5, are allowed. Over the second
+   * half of the budget, the pop limit is tightened; it is the only pruning parameter that is
+   * changed, as cube pruning has no separate beam width. Once the budget is used up, the search
+   * finishes with a monotone glue of what it has found, and the translation is marked as
+   * degraded. 0 (the default) disables the limit, so that output does not depend on the speed
+   * of the machine.
+   */
+  public double translation_thread_timeout = 0;
 
   /**
    * This method resets the state of JoshuaConfiguration back to the state after initialization.
@@ -308,12 +368,18 @@ public class JoshuaConfiguration {
     true_oovs_only = false;
     filter_grammar = false;
     pop_limit = 100;
+    translation_thread_timeout = 0;
     maxlen = 200;
     use_unique_nbest = false;
     include_align_index = false;
     topN = 1;
     outputFormat = "%i ||| %s ||| %f ||| %c";
     num_parallel_decoders = 1;
+    chart_threads = 1;
+    read_ahead = 0;
+    loading_threads = 0;
+    sorting_threads = 0;
+    sorted_order_cache = false;
     mark_oovs = false;
     // oracleFile = null;
     parse = false; // perform synchronous parsing
@@ -569,6 +635,41 @@ public class JoshuaConfiguration {
             }
             LOG.debug("num_parallel_decoders: {}", num_parallel_decoders);
 
+          } else if (parameter.equals(normalize_key("loading-threads"))) {
+            loading_threads = Integer.parseInt(fds[1]);
+            if (loading_threads < 0) {
+              throw new IllegalArgumentException(
+                  "Must specify a non-negative number for loading-threads");
+            }
+            LOG.debug("loading_threads: {}", loading_threads);
+
+          } else if (parameter.equals(normalize_key("sorting-threads"))) {
+            sorting_threads = Integer.parseInt(fds[1]);
+            if (sorting_threads < 0) {
+              throw new IllegalArgumentException(
+                  "Must specify a non-negative number for sorting-threads");
+            }
+            LOG.debug("sorting_threads: {}", sorting_threads);
+
+          } else if (parameter.equals(normalize_key("sorted-order-cache"))) {
+            sorted_order_cache = Boolean.parseBoolean(fds[1]);
+            LOG.debug("sorted_order_cache: {}", sorted_order_cache);
+
+          } else if (parameter.equals(normalize_key("read-ahead"))) {
+            read_ahead = Integer.parseInt(fds[1]);
+            if (read_ahead < 0) {
+              throw new IllegalArgumentException(
+                  "Must specify a non-negative number for read-ahead");
+            }
+            LOG.debug("read_ahead: {}", read_ahead);
+
+          } else if (parameter.equals(normalize_key("chart-threads"))) {
+            chart_threads = Integer.parseInt(fds[1]);
+            if (chart_threads <= 0) {
+              throw new IllegalArgumentException("Must specify a positive number for chart-threads");
+            }
+            LOG.debug("chart_threads: {}", chart_threads);
+
           } else if (parameter.equals(normalize_key("mark_oovs"))) {
             mark_oovs = Boolean.valueOf(fds[1]);
             LOG.debug("mark_oovs: {}", mark_oovs);
@@ -603,6 +704,18 @@ public class JoshuaConfiguration {
             server_port = Integer.parseInt(fds[1]);
             LOG.info("    server-port: {}", server_port);
 
+          } else if (parameter.equals(normalize_key("server-threads"))) {
+            server_threads = Integer.parseInt(fds[1]);
+            LOG.info("    server-threads: {}", server_threads);
+
+          } else if (parameter.equals(normalize_key("server-queue-size"))) {
+            server_queue_size = Integer.parseInt(fds[1]);
+            LOG.info("    server-queue-size: {}", server_queue_size);
+
+          } else if (parameter.equals(normalize_key("server-request-timeout"))) {
+            server_request_timeout = Long.parseLong(fds[1]);
+            LOG.info("    server-request-timeout: {}", server_request_timeout);
+
           } else if (parameter.equals(normalize_key("rescore-forest"))) {
             rescoreForest = true;
             LOG.info("    rescore-forest: {}", rescoreForest);
@@ -689,6 +802,21 @@ public class JoshuaConfiguration {
           } else if (parameter.equals(normalize_key("cached-rules-size"))) {
             // Check source sentence
             cachedRuleSize = Integer.parseInt(fds[1]);
+
+          } else if (parameter.equals(normalize_key("cached-tries-size"))) {
+            cachedTrieSize = Integer.parseInt(fds[1]);
+          } else if (parameter.equals(normalize_key("freeze-vocabulary"))) {
+            freeze_vocabulary = Boolean.parseBoolean(fds[1]);
+
+          } else if (parameter.equals(normalize_key("translation-thread-timeout"))) {
+            translation_thread_timeout = Double.parseDouble(fds[1]);
+            if (!(translation_thread_timeout >= 0)
+                || Double.isInfinite(translation_thread_timeout)) {
+              throw new IllegalArgumentException(
+                  "Must specify a non-negative number of seconds for translation-thread-timeout");
+            }
+            LOG.debug("translation_thread_timeout: {}", translation_thread_timeout);
+
           } else if (parameter.equals(normalize_key("lowercase"))) {
             lowercase = true;
 
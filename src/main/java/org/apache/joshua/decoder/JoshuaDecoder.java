@@ -28,6 +28,7 @@ import java.net.InetSocketAddress;
 
 import org.apache.joshua.decoder.JoshuaConfiguration.SERVER_TYPE;
 import org.apache.joshua.decoder.io.TranslationRequestStream;
+import org.apache.joshua.server.HttpRequestExecutor;
 import org.apache.joshua.server.ServerThread;
 import org.apache.joshua.server.TcpServer;
 import org.apache.log4j.Level;
@@ -82,10 +83,15 @@ public class JoshuaDecoder {
       } else if (joshuaConfiguration.server_type == SERVER_TYPE.HTTP) {
         joshuaConfiguration.use_structured_output = true;
 
+        int threads = (joshuaConfiguration.server_threads > 0)
+            ? joshuaConfiguration.server_threads
+            : joshuaConfiguration.num_parallel_decoders;
+
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-        LOG.info("HTTP Server running and listening on port {}.", port);
+        LOG.info("HTTP Server running and listening on port {} ({} threads, queue size {}).", port,
+            threads, joshuaConfiguration.server_queue_size);
         server.createContext("/", new ServerThread(null, decoder, joshuaConfiguration));
-        server.setExecutor(null); // creates a default executor
+        server.setExecutor(new HttpRequestExecutor(threads, joshuaConfiguration.server_queue_size));
         server.start();
       } else {
         LOG.error("Unknown server type");
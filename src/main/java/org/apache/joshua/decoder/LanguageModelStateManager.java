@@ -25,12 +25,36 @@ import java.util.Map;
 import java.util.UUID;
 
 /**
+ * Holds the KenLM state pools of a decoding thread, one per language model.
+ *
+ * Each thread owns one manager (see {@link #forCurrentThread()}), so a thread decoding many
+ * sentences keeps reusing the same native pools: {@link #resetStatePools()} empties them after
+ * each sentence, and {@link #releaseCurrentThread()} frees them when the thread is done decoding.
+ *
  * @author Kellen Sunderland
  */
 public class LanguageModelStateManager {
 
+  private static final ThreadLocal<LanguageModelStateManager> managers =
+      ThreadLocal.withInitial(LanguageModelStateManager::new);
+
   private Map<UUID, LmPool> languageModelPoolMapping = new HashMap<>();
 
+  /**
+   * @return the state manager of the calling thread
+   */
+  public static LanguageModelStateManager forCurrentThread() {
+    return managers.get();
+  }
+
+  /**
+   * Frees the native pools of the calling thread. Called by decoding threads when they exit.
+   */
+  public static void releaseCurrentThread() {
+    managers.get().clearStatePool();
+    managers.remove();
+  }
+
   public LmPool getStatePool(UUID languageModelId, KenLM languageModel) {
     LmPool statePool = languageModelPoolMapping.get(languageModelId);
     if (statePool == null) {
@@ -40,6 +64,16 @@ public class LanguageModelStateManager {
     return statePool;
   }
 
+  /**
+   * Empties all pools so they can be reused for the next sentence.
+   */
+  public void resetStatePools() {
+    languageModelPoolMapping.values().forEach(LmPool::reset);
+  }
+
+  /**
+   * Frees all pools.
+   */
   public void clearStatePool() {
     languageModelPoolMapping.values().forEach(LmPool::close);
     languageModelPoolMapping.clear();
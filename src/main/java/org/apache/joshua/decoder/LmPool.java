@@ -21,6 +21,8 @@ package org.apache.joshua.decoder;
 import org.apache.joshua.decoder.ff.lm.KenLM;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.apache.joshua.util.Constants.LONG_SIZE_IN_BYTES;
 
@@ -30,6 +32,11 @@ import static org.apache.joshua.util.Constants.LONG_SIZE_IN_BYTES;
  * does implement a custom finalizer that will release these resources if needed, but
  * this should not be relied on.
  *
+ * A pool can be reused for several sentences by calling {@link #reset()} between them, which
+ * keeps its native memory instead of freeing and reallocating it. The number of live pools and
+ * the native memory they hold are tracked for monitoring; a pool's size is sampled when it is
+ * created and each time it is reset.
+ *
  * @author Kellen Sunderland
  */
 
@@ -40,10 +47,18 @@ public abstract class LmPool implements AutoCloseable {
   private final ByteBuffer ngramBuffer;
   private boolean released = false;
 
+  private static final AtomicInteger livePools = new AtomicInteger();
+  private static final AtomicLong liveBytes = new AtomicLong();
+
+  /* This pool's contribution to liveBytes */
+  private long bytes = 0;
+
   public LmPool(long pool, KenLM languageModel, ByteBuffer ngramBuffer) {
     this.pool = pool;
     this.languageModel = languageModel;
     this.ngramBuffer = ngramBuffer;
+    livePools.incrementAndGet();
+    updateBytes();
   }
 
   public long getPool() {
@@ -61,9 +76,51 @@ public abstract class LmPool implements AutoCloseable {
     if (!released) {
       released = true;
       languageModel.destroyLMPool(pool);
+      livePools.decrementAndGet();
+      liveBytes.addAndGet(-bytes);
+      bytes = 0;
     }
   }
 
+  /**
+   * Forgets all states in the pool so that it can be used for another sentence. States obtained
+   * from the pool before the reset must no longer be used.
+   */
+  public synchronized void reset() {
+    if (released)
+      throw new IllegalStateException("LM pool has already been closed");
+    // Sample the size first: the pool keeps its memory, so this is what it holds from now on
+    updateBytes();
+    languageModel.clearLMPool(pool);
+  }
+
+  /**
+   * @return the bytes of native memory held by this pool when it was last created or reset
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return the number of pools that have been created and not yet closed
+   */
+  public static int getLivePools() {
+    return livePools.get();
+  }
+
+  /**
+   * @return the bytes of native memory held by all live pools, as of their last reset
+   */
+  public static long getLiveBytes() {
+    return liveBytes.get();
+  }
+
+  private void updateBytes() {
+    long current = languageModel.getLMPoolBytes(pool) + ngramBuffer.capacity();
+    liveBytes.addAndGet(current - bytes);
+    bytes = current;
+  }
+
   /**
    * Write a single id to the KenLM shared buffer.
    * Note: This method must be used in conjunction with setBufferLength.
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * The time a single sentence may spend in search (translation_thread_timeout, in seconds), and
+ * the pruning that keeps it within that time. For the first half of the budget, the search runs
+ * with the configured pop limit. Over the second half, the pop limit is tightened in proportion to the
+ * time that is left, down to 1. Once the budget is spent, {@link #isExpired()} tells the search to
+ * stop exploring and to put together a (monotone) translation from what it has found so far.
+ *
+ * A search that was pruned harder than configured is marked degraded, so that the translation can
+ * be flagged as such. An instance is shared by the threads searching one sentence.
+ */
+public class SearchBudget {
+
+  /* The pop limit that is tightened when the configured pop limit is 0 (unlimited) */
+  static final int UNLIMITED_POP_LIMIT = 1000;
+
+  private final LongSupplier clock;
+  private final long start;
+
+  /* The budget in nanoseconds, or 0 if the search is not limited */
+  private final long budget;
+
+  private final int popLimit;
+
+  private volatile boolean degraded = false;
+
+  /**
+   * Starts the clock for a sentence.
+   *
+   * @param config the configuration providing translation_thread_timeout and pop_limit
+   */
+  public SearchBudget(JoshuaConfiguration config) {
+    this(config, System::nanoTime);
+  }
+
+  SearchBudget(JoshuaConfiguration config, LongSupplier clock) {
+    this((long) Math.ceil(config.translation_thread_timeout * 1000), config.pop_limit, clock);
+  }
+
+  SearchBudget(long timeoutMillis, int popLimit, LongSupplier clock) {
+    this.clock = clock;
+    this.start = clock.getAsLong();
+    this.budget = Math.max(0, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    this.popLimit = popLimit;
+  }
+
+  /**
+   * @return true if the search has used up its time
+   */
+  public boolean isExpired() {
+    return budget > 0 && clock.getAsLong() - start >= budget;
+  }
+
+  /**
+   * Returns the pop limit to use for the next cube-pruning step. This is the configured pop limit
+   * until half of the time is used, and then shrinks linearly with the remaining time.
+   *
+   * @return the pop limit, where 0 means unlimited
+   */
+  public int popLimit() {
+    if (budget == 0)
+      return popLimit;
+
+    long remaining = budget - (clock.getAsLong() - start);
+    if (remaining >= budget / 2)
+      return popLimit;
+
+    int base = (popLimit > 0) ? popLimit : UNLIMITED_POP_LIMIT;
+    int limit = (remaining <= 0) ? 1 : (int) Math.max(1, base * remaining / (budget / 2));
+    if (popLimit == 0 || limit < popLimit)
+      degraded = true;
+    return limit;
+  }
+
+  /**
+   * Records that the search was cut short, e.g., because it fell back to a glue derivation.
+   */
+  public void markDegraded() {
+    degraded = true;
+  }
+
+  /**
+   * @return true if the search was pruned harder than configured to meet its deadline
+   */
+  public boolean isDegraded() {
+    return degraded;
+  }
+
+  /**
+   * @return the milliseconds since the search was started
+   */
+  public long elapsedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(clock.getAsLong() - start);
+  }
+}
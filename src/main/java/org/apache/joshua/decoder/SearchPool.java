@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.lm.StateMinimizingLanguageModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fork-join pools that parallelize the search for a single sentence (the spans of one chart width,
+ * or the coverage vectors that feed one phrase-based stack). They are separate from the
+ * {@link DecoderScheduler}'s workers, which each decode a whole sentence, and are shared by all
+ * sentences that ask for the same parallelism.
+ */
+public class SearchPool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SearchPool.class);
+
+  private static final ConcurrentHashMap<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
+
+  /**
+   * @param parallelism the number of threads in the pool
+   * @return the shared pool with that many threads
+   */
+  public static ForkJoinPool get(int parallelism) {
+    return pools.computeIfAbsent(parallelism, n -> new ForkJoinPool(n, pool -> {
+      ForkJoinWorkerThread worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+      // Give the threads a friendly name to help debuggers
+      worker.setName("SearchWorker-" + n + "-" + worker.getPoolIndex());
+      return worker;
+    }, null, false));
+  }
+
+  /**
+   * Returns the pool to search a sentence with, or null if it should be searched by the calling
+   * thread alone. That is the case when chart_threads is 1, or when some feature function cannot
+   * be called from several threads for the same sentence: the state-minimizing LM numbers its
+   * states in the order they are created, which would make the search depend on thread
+   * scheduling.
+   *
+   * @param config the decoder configuration
+   * @param featureFunctions the feature functions used for the sentence
+   * @return the pool, or null
+   */
+  public static ForkJoinPool get(JoshuaConfiguration config, List<FeatureFunction> featureFunctions) {
+    if (config.chart_threads <= 1)
+      return null;
+
+    for (FeatureFunction feature : featureFunctions) {
+      if (feature instanceof StateMinimizingLanguageModel) {
+        LOG.debug("Searching sequentially because of feature {}", feature.getName());
+        return null;
+      }
+    }
+    return get(config.chart_threads);
+  }
+
+  /**
+   * Runs action on each of 0..n-1 in the pool and waits for all of them to finish. The calls may
+   * happen in any order; exceptions are rethrown in the calling thread.
+   *
+   * @param pool the pool to run in
+   * @param n the number of indices
+   * @param action the work for one index
+   */
+  public static void forEach(ForkJoinPool pool, int n, IntConsumer action) {
+    if (n > 0)
+      pool.invoke(new Range(0, n, action));
+  }
+
+  /* Splits [from, to) in half until a single index is left */
+  private static class Range extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+    private final IntConsumer action;
+
+    Range(int from, int to, IntConsumer action) {
+      this.from = from;
+      this.to = to;
+      this.action = action;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from == 1) {
+        action.accept(from);
+      } else {
+        int mid = (from + to) >>> 1;
+        invokeAll(new Range(from, mid, action), new Range(mid, to, action));
+      }
+    }
+  }
+}
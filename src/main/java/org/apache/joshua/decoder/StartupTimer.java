@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records how long each component of the decoder (grammar, language model, feature function)
+ * took to load, and on which thread, so that a startup timing report can be logged once the
+ * decoder is initialized. Components may be timed from several threads at once.
+ */
+public class StartupTimer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(StartupTimer.class);
+
+  private final long start = System.nanoTime();
+  private final List<Entry> entries = new ArrayList<>();
+
+  private static class Entry {
+    final String component;
+    final String thread;
+    final long begin;
+    final long end;
+
+    Entry(String component, String thread, long begin, long end) {
+      this.component = component;
+      this.thread = thread;
+      this.begin = begin;
+      this.end = end;
+    }
+  }
+
+  /**
+   * Runs a loading step on the calling thread and records how long it took.
+   *
+   * @param component a description of what is loaded, e.g., the type and path of a grammar
+   * @param step the loading step
+   * @param <T> the type of the loaded component
+   * @return the loaded component
+   */
+  public <T> T time(String component, Supplier<T> step) {
+    long begin = System.nanoTime();
+    try {
+      return step.get();
+    } finally {
+      long end = System.nanoTime();
+      synchronized (entries) {
+        entries.add(new Entry(component, Thread.currentThread().getName(), begin, end));
+      }
+    }
+  }
+
+  /**
+   * @return the number of components timed so far
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * Logs each component with its load time and the interval in which it was loaded, followed by
+   * the total. Components loaded concurrently have overlapping intervals.
+   */
+  public void log() {
+    List<Entry> report;
+    synchronized (entries) {
+      report = new ArrayList<>(entries);
+    }
+    report.sort((a, b) -> Long.compare(a.begin, b.begin));
+
+    double sum = 0.0;
+    LOG.info("Startup timing:");
+    for (Entry entry : report) {
+      double seconds = (entry.end - entry.begin) / 1e9;
+      sum += seconds;
+      LOG.info(String.format("  %8.2fs  [%7.2fs - %7.2fs] %-20s %s", seconds,
+          (entry.begin - start) / 1e9, (entry.end - start) / 1e9, entry.thread, entry.component));
+    }
+    LOG.info(String.format("  %8.2fs  total (%.2fs spent in the components above)",
+        (System.nanoTime() - start) / 1e9, sum));
+  }
+}
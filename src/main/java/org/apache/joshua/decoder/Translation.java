@@ -65,6 +65,9 @@ public class Translation {
    */
   private List<StructuredTranslation> structuredTranslations = null;
 
+  /* Whether the search was cut short to meet the translation_thread_timeout deadline */
+  private boolean degraded = false;
+
   public Translation(Sentence source, HyperGraph hypergraph,
       List<FeatureFunction> featureFunctions, JoshuaConfiguration joshuaConfiguration) {
     this.source = source;
@@ -180,10 +183,6 @@ public class Translation {
       this.output = sw.toString();
 
     }
-
-    // Force any StateMinimizingLanguageModel pool mappings to be cleaned
-    source.getStateManager().clearStatePool();
-
   }
 
   public Sentence getSourceSentence() {
@@ -194,6 +193,18 @@ public class Translation {
     return source.id();
   }
 
+  /**
+   * @return true if the search ran out of time, so that this translation was found with tighter
+   *         pruning than configured (or is a monotone glue of partial translations)
+   */
+  public boolean isDegraded() {
+    return degraded;
+  }
+
+  void setDegraded(boolean degraded) {
+    this.degraded = degraded;
+  }
+
   @Override
   public String toString() {
     return output;
@@ -19,7 +19,8 @@
 package org.apache.joshua.decoder;
 
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.google.common.base.Throwables;
 import org.apache.joshua.decoder.io.TranslationRequestStream;
@@ -32,31 +33,84 @@ import org.apache.joshua.decoder.io.TranslationRequestStream;
  * TranslationResponseStream object by a DecoderThreadRunner via the record() function, which places the
  * Translation in the right place. When the next translation in a sequence is available, next() is
  * notified.
+ * <p>
+ * Out-of-order translations wait in a fixed-size ring buffer, the window. The thread reading the
+ * request calls {@link #awaitCapacity(int)} before handing out each sentence, which blocks while
+ * the sentence would not fit in the window, so no more than the window's size of sentences are
+ * queued, being decoded, or waiting to be returned at any time, however long the input is.
  * 
  * @author Matt Post post@cs.jhu.edu
  */
 public class TranslationResponseStream implements Iterator<Translation>, Iterable<Translation> {
 
+  /* The size of the window if none is given */
+  public static final int DEFAULT_WINDOW_SIZE = 64;
+
   /* The source sentences to be translated. */
   private TranslationRequestStream request = null;
 
   /*
-   * This records the index of the sentence at the head of the underlying list. The iterator's
-   * next() blocks when the value at this position in the translations LinkedList is null.
+   * This records the index of the next sentence to be returned. The iterator's next() blocks while
+   * the slot for this index in the window is empty.
    */
   private int currentID = 0;
 
-  /* The set of translated sentences. */
-  private LinkedList<Translation> translations = null;
+  /* The translations with ids currentID .. currentID + window.length - 1, at index id % length */
+  private final Translation[] window;
 
   private boolean spent = false;
+  private boolean cancelled = false;
 
   private Translation nextTranslation;
   private Throwable fatalException;
 
   public TranslationResponseStream(TranslationRequestStream request) {
+    this(request, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * @param request the sentences to be translated
+   * @param windowSize the maximum number of sentences between the next one to be returned and the
+   *          last one handed out for decoding
+   */
+  public TranslationResponseStream(TranslationRequestStream request, int windowSize) {
     this.request = request;
-    this.translations = new LinkedList<>();
+    this.window = new Translation[Math.max(1, windowSize)];
+  }
+
+  /**
+   * Called by the thread reading the request before it hands out a sentence for decoding. Blocks
+   * until the sentence fits in the window, that is, until the consumer has taken enough of the
+   * earlier translations. This is the backpressure that keeps a long input from being read
+   * faster than it can be translated and written out.
+   *
+   * @param id the id of the sentence about to be decoded
+   * @return false if the stream was cancelled (or the thread interrupted) while waiting, in which
+   *         case no more sentences should be decoded
+   */
+  public boolean awaitCapacity(int id) {
+    synchronized (this) {
+      while (!cancelled && fatalException == null && id - currentID >= window.length) {
+        try {
+          this.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+      return !cancelled;
+    }
+  }
+
+  /**
+   * Tells the thread reading the request to stop, for when the consumer gives up on the
+   * translations (e.g., after a timeout).
+   */
+  public void cancel() {
+    synchronized (this) {
+      cancelled = true;
+      this.notifyAll();
+    }
   }
 
   /**
@@ -67,9 +121,7 @@ public class TranslationResponseStream implements Iterator<Translation>, Iterabl
   public void finish() {
     synchronized (this) {
       spent = true;
-      if (currentID == request.size()) {
-        this.notifyAll();
-      }
+      this.notifyAll();
     }
   }
 
@@ -83,20 +135,20 @@ public class TranslationResponseStream implements Iterator<Translation>, Iterabl
    */
   public void record(Translation translation) {
     synchronized (this) {
-
-      /* Pad the set of translations with nulls to accommodate the new translation. */
       int offset = translation.id() - currentID;
-      while (offset >= translations.size())
-        translations.add(null);
-      translations.set(offset, translation);
+      if (offset < 0 || offset >= window.length)
+        throw new IllegalStateException(String.format(
+            "Translation %d is outside the window [%d, %d)", translation.id(), currentID,
+            currentID + window.length));
+
+      window[translation.id() % window.length] = translation;
 
       /*
-       * If the id of the current translation is at the head of the list (first element), then we
-       * have the next Translation to be return, and we should notify anyone waiting on next(),
-       * which will then remove the item and increment the currentID.
+       * If this is the translation to be returned next, notify anyone waiting on next(), which
+       * will then remove it and increment the currentID.
        */
-      if (translation.id() == currentID) {
-        this.notify();
+      if (offset == 0) {
+        this.notifyAll();
       }
     }
   }
@@ -120,39 +172,75 @@ public class TranslationResponseStream implements Iterator<Translation>, Iterabl
     }
   }
    
+  /**
+   * Like {@link #next()}, but gives up if the next Translation is not available within the given
+   * amount of time. This is used by the servers to enforce per-request deadlines.
+   *
+   * @param timeout the maximum time to wait
+   * @param unit the unit of the timeout argument
+   * @return the next {@link org.apache.joshua.decoder.Translation}, or null if there are no more
+   * @throws TimeoutException if the next Translation was not produced in time
+   */
+  public Translation next(long timeout, TimeUnit unit) throws TimeoutException {
+    synchronized (this) {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (nextTranslation == null && fatalException == null
+          && ! (spent && currentID == request.size())
+          && window[currentID % window.length] == null) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0)
+          throw new TimeoutException(String.format("Translation %d not ready after %d %s",
+              currentID, timeout, unit));
+        try {
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new TimeoutException("Interrupted while waiting for translation " + currentID);
+        }
+      }
+
+      fatalErrorCheck();
+      return next();
+    }
+  }
+
   @Override
   public boolean hasNext() {
     synchronized (this) {
 
       if (nextTranslation != null)
         return true;
-      
-      /*
-       * If there are no more input sentences, and we've already distributed what we then know is
-       * the last one, we're done.
-       */
-      if (spent && currentID == request.size())
-        return false;
 
-      /*
-       * Otherwise, there is another sentence. If it's not available already, we need to wait for
-       * it.
-       */
-      if (translations.size() == 0 || translations.peek() == null) {
+      while (true) {
+        fatalErrorCheck();
+
+        int slot = currentID % window.length;
+        if (window[slot] != null) {
+          /* We now have the sentence and can return it; its slot is free for the reader. */
+          this.nextTranslation = window[slot];
+          window[slot] = null;
+          currentID++;
+          this.notifyAll();
+          return true;
+        }
+
+        /*
+         * If there are no more input sentences, and we've already distributed what we then know is
+         * the last one, we're done.
+         */
+        if (spent && currentID == request.size())
+          return false;
+
+        /*
+         * Otherwise, there is another sentence, and we need to wait for it.
+         */
         try {
           this.wait();
         } catch (InterruptedException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
+          Thread.currentThread().interrupt();
+          return false;
         }
       }
-
-      fatalErrorCheck();
-
-      /* We now have the sentence and can return it. */
-      currentID++;
-      this.nextTranslation = translations.poll();
-      return this.nextTranslation != null;
     }
   }
 
@@ -164,7 +252,7 @@ public class TranslationResponseStream implements Iterator<Translation>, Iterabl
   public void propagate(Throwable ex) {
     synchronized (this) {
       fatalException = ex;
-      notify();
+      notifyAll();
     }
   }
 
@@ -173,4 +261,4 @@ public class TranslationResponseStream implements Iterator<Translation>, Iterabl
       Throwables.propagate(fatalException);
     }
   }
-}
\ No newline at end of file
+}
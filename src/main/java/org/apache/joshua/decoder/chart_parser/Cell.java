@@ -193,7 +193,7 @@ class Cell {
      * */
     HGNode oldNode = this.nodesSigTbl.get(newNode.signature());
     if (null != oldNode) { // have an item with same states, combine items
-      this.chart.nMerged++;
+      this.chart.nMerged.increment();
 
       /**
        * the position of oldItem in this.heapItems may change, basically, we should remove the
@@ -209,7 +209,7 @@ class Cell {
       }
 
     } else { // first time item
-      this.chart.nAdded++; // however, this item may not be used in the future due to pruning in
+      this.chart.nAdded.increment(); // however, this item may not be used in the future due to pruning in
       // the hyper-graph
       addNewNode(newNode);
     }
@@ -23,9 +23,14 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.SearchBudget;
+import org.apache.joshua.decoder.SearchPool;
 import org.apache.joshua.decoder.chart_parser.DotChart.DotNode;
 import org.apache.joshua.decoder.ff.FeatureFunction;
 import org.apache.joshua.decoder.ff.SourceDependentFF;
@@ -74,9 +79,9 @@ public class Chart {
    * how many items have been pruned away because its cost is greater than the
    * cutoff in calling chart.add_deduction_in_chart()
    */
-  int nMerged = 0;
-  int nAdded = 0;
-  int nDotitemAdded = 0; // note: there is no pruning in dot-item
+  final LongAdder nMerged = new LongAdder();
+  final LongAdder nAdded = new LongAdder();
+  final LongAdder nDotitemAdded = new LongAdder(); // note: there is no pruning in dot-item
 
   public Sentence getSentence() {
     return this.sentence;
@@ -98,6 +103,9 @@ public class Chart {
 //  private SyntaxTree parseTree;
   private StateConstraint stateConstraint;
 
+  /* The time this sentence may spend in search, started when the chart is created */
+  private final SearchBudget budget;
+
 
   // ===============================================================
   // Constructors
@@ -117,6 +125,7 @@ public class Chart {
   public Chart(Sentence sentence, List<FeatureFunction> featureFunctions, Grammar[] grammars,
       String goalSymbol, JoshuaConfiguration config) {
     this.config = config;
+    this.budget = new SearchBudget(config);
     this.inputLattice = sentence.getLattice();
     this.sourceLength = inputLattice.size() - 1;
     this.featureFunctions = featureFunctions;
@@ -179,6 +188,14 @@ public class Chart {
     this.goalBin = new Cell(this, i);
   }
 
+  /**
+   * @return true if the search was cut short or pruned harder than configured to meet the
+   *         translation_thread_timeout deadline
+   */
+  public boolean isDegraded() {
+    return budget.isDegraded();
+  }
+
   // ===============================================================
   // The primary method for filling in the chart
   // ===============================================================
@@ -302,9 +319,15 @@ public class Chart {
      * There are multiple ways to reach each point in the cube, so short-circuit
      * that.
      */
-    HashSet<CubePruneState> visitedStates = new HashSet<>();
+    HashSet<CubePruneState.Signature> visitedStates = new HashSet<>();
 
-    int popLimit = config.pop_limit;
+    /*
+     * Probes for the visited-state check, indexed by the length of their
+     * ranks, so that revisiting a state allocates nothing.
+     */
+    CubePruneState.Signature[] probes = new CubePruneState.Signature[0];
+
+    int popLimit = budget.popLimit();
     int popCount = 0;
     while (candidates.size() > 0 && ((++popCount <= popLimit) || popLimit == 0)) {
       CubePruneState state = candidates.poll();
@@ -331,21 +354,37 @@ public class Chart {
 
       for (int k = 0; k < state.ranks.length; k++) {
 
-        /* Copy the current ranks, then extend the one we're looking at. */
-        int[] nextRanks = new int[state.ranks.length];
-        System.arraycopy(state.ranks, 0, nextRanks, 0, state.ranks.length);
-        nextRanks[k]++;
-
         /*
          * We might have reached the end of something (list of rules or tail
          * nodes)
          */
+        int nextRank = state.ranks[k] + 1;
         if (k == 0
-            && (nextRanks[k] > rules.size() || (config.num_translation_options > 0 && nextRanks[k] > config.num_translation_options)))
+            && (nextRank > rules.size() || (config.num_translation_options > 0 && nextRank > config.num_translation_options)))
+          continue;
+        else if ((k != 0 && nextRank > superNodes.get(k - 1).nodes.size()))
           continue;
-        else if ((k != 0 && nextRanks[k] > superNodes.get(k - 1).nodes.size()))
+
+        /*
+         * Skip states that have been explored before. This is checked with a
+         * reusable probe before anything is allocated for the new state, since
+         * most neighbors in the cube are reachable along several paths.
+         */
+        int numRanks = state.ranks.length;
+        if (numRanks >= probes.length)
+          probes = Arrays.copyOf(probes, numRanks + 1);
+        if (probes[numRanks] == null)
+          probes[numRanks] = new CubePruneState.Signature(new int[numRanks], null);
+        CubePruneState.Signature probe = probes[numRanks];
+        System.arraycopy(state.ranks, 0, probe.ranks, 0, numRanks);
+        probe.ranks[k] = nextRank;
+        probe.dotNode = dotNode;
+        if (visitedStates.contains(probe))
           continue;
 
+        /* Copy the current ranks, then extend the one we're looking at. */
+        int[] nextRanks = probe.ranks.clone();
+
         /* Use the updated ranks to assign the next rule and tail node. */
         Rule nextRule = rules.get(nextRanks[0] - 1);
         // HGNode[] nextAntNodes = new HGNode[state.antNodes.size()];
@@ -358,11 +397,7 @@ public class Chart {
             nextRule, nextAntNodes, i, j, sourcePath, this.sentence), nextRanks, rules,
             nextAntNodes, dotNode);
 
-        /* Skip states that have been explored before. */
-        if (visitedStates.contains(nextState))
-          continue;
-
-        visitedStates.add(nextState);
+        visitedStates.add(new CubePruneState.Signature(nextRanks, dotNode));
         candidates.add(nextState);
       }
     }
@@ -552,65 +587,28 @@ public class Chart {
    */
   public HyperGraph expand() {
 
-    for (int width = 1; width <= sourceLength; width++) {
-      for (int i = 0; i <= sourceLength - width; i++) {
-        int j = i + width;
-        if (LOG.isDebugEnabled())
-          LOG.debug("Processing span ({}, {})", i, j);
-
-        /* Skips spans for which no path exists (possible in lattices). */
-        if (inputLattice.distance(i, j) == Float.POSITIVE_INFINITY) {
-          continue;
-        }
-
-        /*
-         * 1. Expand the dot through all rules. This is a matter of (a) look for
-         * rules over (i,j-1) that need the terminal at (j-1,j) and looking at
-         * all split points k to expand nonterminals.
-         */
-        if (LOG.isDebugEnabled())
-          LOG.debug("Expanding cell");
-        for (int k = 0; k < this.grammars.length; k++) {
-          /**
-           * Each dotChart can act individually (without consulting other
-           * dotCharts) because it either consumes the source input or the
-           * complete nonTerminals, which are both grammar-independent.
-           **/
-          this.dotcharts[k].expandDotCell(i, j);
-        }
-
-        /*
-         * 2. The regular CKY part: add completed items onto the chart via cube
-         * pruning.
-         */
-        if (LOG.isDebugEnabled())
-          LOG.debug("Adding complete items into chart");
-        completeSpan(i, j);
-
-        /* 3. Process unary rules. */
-        if (LOG.isDebugEnabled())
-          LOG.debug("Adding unary items into chart");
-        addUnaryNodes(this.grammars, i, j);
+    ForkJoinPool pool = SearchPool.get(config, featureFunctions);
 
-        // (4)=== in dot_cell(i,j), add dot-nodes that start from the /complete/
-        // superIterms in
-        // chart_cell(i,j)
-        if (LOG.isDebugEnabled())
-          LOG.debug("Initializing new dot-items that start from complete items in this cell");
-        for (int k = 0; k < this.grammars.length; k++) {
-          if (this.grammars[k].hasRuleForSpan(i, j, inputLattice.distance(i, j))) {
-            this.dotcharts[k].startDotItems(i, j);
-          }
-        }
+    for (int width = 1; width <= sourceLength; width++) {
+      if (width > 1 && budget.isExpired()) {
+        LOG.warn("Input {}: Out of time after {} ms with spans of up to {} words; gluing them",
+            sentence.id(), budget.elapsedMillis(), width - 1);
+        budget.markDegraded();
+        glueSpans();
+        break;
+      }
 
+      if (pool != null && width < sourceLength) {
         /*
-         * 5. Sort the nodes in the cell.
-         * 
-         * Sort the nodes in this span, to make them usable for future
-         * applications of cube pruning.
+         * All spans of a width only read cells of smaller widths and only write their own cell and
+         * dot cells, so they can be expanded in any order. Each cell is still filled in by a single
+         * thread in the usual order, so the chart is the same as when expanding sequentially.
          */
-        if (null != this.cells.get(i, j)) {
-          this.cells.get(i, j).getSortedNodes();
+        final int w = width;
+        SearchPool.forEach(pool, sourceLength - width + 1, i -> expandSpan(i, i + w));
+      } else {
+        for (int i = 0; i <= sourceLength - width; i++) {
+          expandSpan(i, i + width);
         }
       }
     }
@@ -631,6 +629,124 @@ public class Chart {
     return new HyperGraph(this.goalBin.getSortedNodes().get(0), -1, -1, this.sentence);
   }
 
+  /**
+   * Covers the sentence with a monotone sequence of the best items found so far, when the search
+   * runs out of time before reaching the top of the chart. Starting at the left edge, the longest
+   * span that has any items is taken, and the items are chained together with glue rules into goal
+   * items over (0,j), the last of which is over the whole sentence.
+   */
+  private void glueSpans() {
+    HGNode derivation = null;
+    for (int i = 0; i < sourceLength; ) {
+      int j = sourceLength;
+      while (j > i && (cells.get(i, j) == null || cells.get(i, j).getSortedNodes().isEmpty()))
+        j--;
+      if (j == i) {
+        LOG.warn("Input {}: No items start at word {}, so the chart can't be glued", sentence.id(), i);
+        return;
+      }
+
+      /* Starting items that already have the goal symbol (e.g., from the glue grammar) are kept */
+      HGNode best = cells.get(i, j).getSortedNodes().get(0);
+      if (derivation == null)
+        for (HGNode node : cells.get(i, j).getSortedNodes())
+          if (node.lhs == goalSymbolID) {
+            best = node;
+            break;
+          }
+
+      derivation = (derivation == null && best.lhs == goalSymbolID) ? best : glue(derivation, best);
+      i = j;
+    }
+  }
+
+  /**
+   * Adds a goal item to cell (0, right.j) that concatenates left (a goal item over (0, right.i), or
+   * null at the start of the sentence) and right.
+   */
+  private HGNode glue(HGNode left, HGNode right) {
+    List<HGNode> tailNodes = new ArrayList<>();
+    Rule rule;
+    if (left == null) {
+      tailNodes.add(right);
+      rule = new Rule(goalSymbolID, new int[] { right.lhs }, new int[] { -1 }, "", 1);
+    } else {
+      tailNodes.add(left);
+      tailNodes.add(right);
+      rule = new Rule(goalSymbolID, new int[] { goalSymbolID, right.lhs }, new int[] { -1, -2 },
+          "", 2);
+    }
+
+    ComputeNodeResult result = new ComputeNodeResult(featureFunctions, rule, tailNodes, 0, right.j,
+        new SourcePath(), sentence);
+    return getCell(0, right.j).addHyperEdgeInCell(result, rule, 0, right.j, tailNodes,
+        new SourcePath(), true);
+  }
+
+  /**
+   * Fills in the chart cell for span (i,j), assuming that all cells over smaller spans are
+   * complete.
+   */
+  private void expandSpan(int i, int j) {
+    if (LOG.isDebugEnabled())
+      LOG.debug("Processing span ({}, {})", i, j);
+
+    /* Skips spans for which no path exists (possible in lattices). */
+    if (inputLattice.distance(i, j) == Float.POSITIVE_INFINITY) {
+      return;
+    }
+
+    /*
+     * 1. Expand the dot through all rules. This is a matter of (a) look for
+     * rules over (i,j-1) that need the terminal at (j-1,j) and looking at
+     * all split points k to expand nonterminals.
+     */
+    if (LOG.isDebugEnabled())
+      LOG.debug("Expanding cell");
+    for (int k = 0; k < this.grammars.length; k++) {
+      /**
+       * Each dotChart can act individually (without consulting other
+       * dotCharts) because it either consumes the source input or the
+       * complete nonTerminals, which are both grammar-independent.
+       **/
+      this.dotcharts[k].expandDotCell(i, j);
+    }
+
+    /*
+     * 2. The regular CKY part: add completed items onto the chart via cube
+     * pruning.
+     */
+    if (LOG.isDebugEnabled())
+      LOG.debug("Adding complete items into chart");
+    completeSpan(i, j);
+
+    /* 3. Process unary rules. */
+    if (LOG.isDebugEnabled())
+      LOG.debug("Adding unary items into chart");
+    addUnaryNodes(this.grammars, i, j);
+
+    // (4)=== in dot_cell(i,j), add dot-nodes that start from the /complete/
+    // superIterms in
+    // chart_cell(i,j)
+    if (LOG.isDebugEnabled())
+      LOG.debug("Initializing new dot-items that start from complete items in this cell");
+    for (int k = 0; k < this.grammars.length; k++) {
+      if (this.grammars[k].hasRuleForSpan(i, j, inputLattice.distance(i, j))) {
+        this.dotcharts[k].startDotItems(i, j);
+      }
+    }
+
+    /*
+     * 5. Sort the nodes in the cell.
+     * 
+     * Sort the nodes in this span, to make them usable for future
+     * applications of cube pruning.
+     */
+    if (null != this.cells.get(i, j)) {
+      this.cells.get(i, j).getSortedNodes();
+    }
+  }
+
   /**
    * Get the requested cell, creating the entry if it doesn't already exist.
    * 
@@ -655,7 +771,7 @@ public class Chart {
   private void logStatistics() {
     if (LOG.isDebugEnabled())
       LOG.debug("Input {}: Chart: added {} merged {} dot-items added: {}",
-          this.sentence.id(), this.nAdded, this.nMerged, this.nDotitemAdded);
+          this.sentence.id(), this.nAdded.sum(), this.nMerged.sum(), this.nDotitemAdded.sum());
   }
 
   /**
@@ -18,8 +18,8 @@
  */
 package org.apache.joshua.decoder.chart_parser;
 
-import java.util.ArrayList;
-
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.joshua.decoder.Decoder;
@@ -57,6 +57,42 @@ public class ComputeNodeResult {
   // The StateComputer objects themselves serve as keys.
   private final List<DPState> dpStates;
 
+  /*
+   * Scratch space reused by every edge scored on a thread. Each sentence is decoded on a single
+   * thread, so this needs no locking.
+   */
+  private static final ThreadLocal<ScoringContext> SCORING_CONTEXT =
+      ThreadLocal.withInitial(ScoringContext::new);
+
+  /**
+   * Holds one {@link FeatureFunction.ScoreAccumulator} per feature function, so that scoring an
+   * edge allocates only what outlives it: the result itself and its DP states.
+   */
+  private static final class ScoringContext {
+    private List<FeatureFunction> featureFunctions = null;
+    private FeatureFunction.ScoreAccumulator[] accumulators = new FeatureFunction.ScoreAccumulator[0];
+
+    /* The number of stateful feature functions, i.e., the number of DP states per edge */
+    private int numStates = 0;
+
+    FeatureFunction.ScoreAccumulator[] accumulatorsFor(List<FeatureFunction> featureFunctions) {
+      // Callers hold on to their feature list, so an identity check is enough in the common case
+      if (featureFunctions != this.featureFunctions
+          || featureFunctions.size() != accumulators.length) {
+        this.accumulators = new FeatureFunction.ScoreAccumulator[featureFunctions.size()];
+        this.numStates = 0;
+        for (int f = 0; f < accumulators.length; f++) {
+          FeatureFunction feature = featureFunctions.get(f);
+          accumulators[f] = feature.new ScoreAccumulator();
+          if (feature.isStateful())
+            numStates++;
+        }
+        this.featureFunctions = featureFunctions;
+      }
+      return accumulators;
+    }
+  }
+
   /**
    * Computes the new state(s) that are produced when applying the given rule to the list of tail
    * nodes. Also computes a range of costs of doing so (the transition cost, the total (Viterbi)
@@ -99,7 +135,9 @@ public class ComputeNodeResult {
       }
     }
 
-    List<DPState> allDPStates = new ArrayList<>();
+    ScoringContext context = SCORING_CONTEXT.get();
+    FeatureFunction.ScoreAccumulator[] accumulators = context.accumulatorsFor(featureFunctions);
+    DPState[] allDPStates = context.numStates > 0 ? new DPState[context.numStates] : null;
 
     // The transition cost is the new cost incurred by applying this rule
     this.transitionCost = 0.0f;
@@ -111,8 +149,10 @@ public class ComputeNodeResult {
      * We now iterate over all the feature functions, computing their cost and their expected future
      * cost.
      */
-    for (FeatureFunction feature : featureFunctions) {
-      FeatureFunction.ScoreAccumulator acc = feature.new ScoreAccumulator(); 
+    for (int f = 0; f < accumulators.length; f++) {
+      FeatureFunction feature = featureFunctions.get(f);
+      FeatureFunction.ScoreAccumulator acc = accumulators[f];
+      acc.reset();
 
       DPState newState = feature.compute(rule, tailNodes, i, j, sourcePath, sentence, acc);
       this.transitionCost += acc.getScore();
@@ -126,14 +166,14 @@ public class ComputeNodeResult {
 
       if (feature.isStateful()) {
         futureCostEstimate += feature.estimateFutureCost(rule, newState, sentence);
-        allDPStates.add(((StatefulFF)feature).getStateIndex(), newState);
+        allDPStates[((StatefulFF)feature).getStateIndex()] = newState;
       }
     }
     this.viterbiCost += transitionCost;
     if (LOG.isDebugEnabled())
       LOG.debug("-> COST = {}", transitionCost);
 
-    this.dpStates = allDPStates;
+    this.dpStates = (allDPStates != null) ? Arrays.asList(allDPStates) : Collections.emptyList();
   }
 
   /**
@@ -94,6 +94,37 @@ public class CubePruneState implements Comparable<CubePruneState> {
     return hash;
   }
 
+  /**
+   * Identifies a point in the cube (the ranks along each dimension, and the dot node) without the
+   * cost of reaching it, so that it can be looked up before that cost is computed. This is kept
+   * apart from {@link CubePruneState} because HashMap orders large buckets by compareTo(), which
+   * for states compares costs rather than identity.
+   */
+  static final class Signature {
+    int[] ranks;
+    DotNode dotNode;
+
+    Signature(int[] ranks, DotNode dotNode) {
+      this.ranks = ranks;
+      this.dotNode = dotNode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Signature))
+        return false;
+      Signature other = (Signature) obj;
+      return dotNode == other.dotNode && Arrays.equals(ranks, other.ranks);
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = (dotNode != null) ? dotNode.hashCode() : 0;
+      hash += Arrays.hashCode(ranks);
+      return hash;
+    }
+  }
+
   /**
    * Compares states by ExpectedTotalLogP, allowing states to be sorted according to their inverse
    * order (high-prob first).
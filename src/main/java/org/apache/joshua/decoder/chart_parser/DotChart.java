@@ -293,11 +293,11 @@ class DotChart {
       dotcells.set(i, j, new DotCell());
     }
     dotcells.get(i, j).addDotNode(item);
-    dotChart.nDotitemAdded++;
+    dotChart.nDotitemAdded.increment();
 
     if (LOG.isDebugEnabled()) {
       LOG.debug("Add a dotitem in cell ({}, {}), n_dotitem={}, {}", i, j,
-          dotChart.nDotitemAdded, srcPath);
+          dotChart.nDotitemAdded.sum(), srcPath);
 
       RuleCollection rules = tnode.getRuleCollection();
       if (rules != null) {
@@ -101,6 +101,13 @@ public abstract class FeatureFunction {
     return name;
   }
 
+  /**
+   * @return the weights this feature function scores with
+   */
+  public FeatureVector getWeights() {
+    return weights;
+  }
+
   // Whether the feature has state.
   public abstract boolean isStateful();
 
@@ -315,11 +322,21 @@ public abstract class FeatureFunction {
    * Accumulator objects allow us to generalize feature computation.
    * ScoreAccumulator takes (feature,value) pairs and simple stores the weighted
    * sum (for decoding). FeatureAccumulator records the named feature values
-   * (for k-best extraction).
+   * (for k-best extraction). Features that fire many distinct sparse names can
+   * pass a {@link HashedFeature}, whose weight is looked up by hash.
    */
   public interface Accumulator {
     void add(String name, float value);
     void add(int id, float value);
+
+    /**
+     * Adds a sparse feature that is identified by the hash of its name. Accumulators that only
+     * need the score never build the name.
+     *
+     * @param feature the feature
+     * @param value its value
+     */
+    void add(HashedFeature feature, float value);
   }
 
   public class ScoreAccumulator implements Accumulator {
@@ -339,9 +356,21 @@ public abstract class FeatureFunction {
       score += value * weights.getDense(id);
     }
 
+    @Override
+    public void add(HashedFeature feature, float value) {
+      score += value * weights.getSparseByHash(feature.getHash());
+    }
+
     public float getScore() {
       return score;
     }
+
+    /**
+     * Zeroes the score so the accumulator can be reused for another edge.
+     */
+    public void reset() {
+      score = 0.0f;
+    }
   }
 
   public class FeatureAccumulator implements Accumulator {
@@ -361,6 +390,11 @@ public abstract class FeatureFunction {
       features.increment(id,  value);
     }
 
+    @Override
+    public void add(HashedFeature feature, float value) {
+      features.increment(feature.getName(), value);
+    }
+
     public FeatureVector getFeatures() {
       return features;
     }
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FeatureMap maintains a decoder-wide mapping between sparse feature names and int ids, so that
+ * {@link FeatureVector} can store sparse features in primitive arrays instead of hashing strings.
+ *
+ * Ids are assigned in order of first use and are never reused, so they are stable for the lifetime
+ * of the JVM (and in particular across {@link org.apache.joshua.decoder.Decoder#resetGlobalState()}).
+ * Lookups are lock-free; only registering a new name takes a lock.
+ */
+public class FeatureMap {
+
+  private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+  /* id -> name. Grown by copying; a new array is published before any id that indexes into it */
+  private static volatile String[] names = new String[1024];
+  private static int size = 0;
+
+  /**
+   * Returns the id for the feature name, registering it if it has not been seen before.
+   *
+   * @param name the name of a sparse feature
+   * @return the feature's id
+   */
+  public static int getFeatureId(String name) {
+    Integer id = ids.get(name);
+    if (id != null)
+      return id;
+    return register(name);
+  }
+
+  /**
+   * Returns the id for the feature name without registering it.
+   *
+   * @param name the name of a sparse feature
+   * @return the feature's id, or -1 if the feature has never been registered
+   */
+  public static int lookup(String name) {
+    Integer id = ids.get(name);
+    return (id != null) ? id : -1;
+  }
+
+  /**
+   * @param id a registered feature id
+   * @return the name of the feature
+   */
+  public static String getFeatureName(int id) {
+    return names[id];
+  }
+
+  public static synchronized int size() {
+    return size;
+  }
+
+  private static synchronized int register(String name) {
+    Integer id = ids.get(name);
+    if (id != null)
+      return id;
+
+    if (size == names.length)
+      names = Arrays.copyOf(names, 2 * size);
+    names[size] = name;
+    ids.put(name, size);
+    return size++;
+  }
+}
@@ -19,6 +19,7 @@
 package org.apache.joshua.decoder.ff;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -39,6 +40,10 @@ import java.util.Set;
  * {@link org.apache.joshua.decoder.ff.FeatureVector#getSparse(String)} when asking for the feature
  * values later on.
  *
+ * Dense features are stored in a float[]. Sparse features are keyed by the int ids assigned by
+ * {@link FeatureMap} and stored in a primitive open-addressing hash table (linear probing), so
+ * that adding, cloning, and taking inner products neither boxes floats nor hashes strings.
+ *
  * @author Matt Post post@cs.jhu.edu
  */
 
@@ -46,23 +51,39 @@ public class FeatureVector {
   /*
    * A list of the dense feature names. Increased via calls to registerDenseFeatures()
    */
-  public static final ArrayList<String> DENSE_FEATURE_NAMES = new ArrayList<>();
+  public static final ArrayList<String> DENSE_FEATURE_NAMES = new DenseFeatureNames();
+
+  /*
+   * The values of each of the dense features, defaulting to 0. Only the first denseSize entries
+   * are in use.
+   */
+  private float[] denseFeatures;
+  private int denseSize = 0;
 
   /*
-   * The values of each of the dense features, defaulting to 0.
+   * Value of sparse features. The keys are FeatureMap ids plus one, so that 0 marks an empty slot.
+   * The tables are allocated on first use, since most vectors have no sparse features.
    */
-  private ArrayList<Float> denseFeatures = null;
+  private int[] sparseKeys = null;
+  private float[] sparseValues = null;
+  private int sparseSize = 0;
 
   /*
-   * Value of sparse features.
+   * The sparse values keyed by the hashes of their names, for getSparseByHash(). This is only
+   * used for weight vectors; it is built on first use and rebuilt once the sparse values change.
    */
-  private final HashMap<String, Float> sparseFeatures;
+  private int sparseVersion = 0;
+  private volatile HashIndex hashIndex = null;
+
+  /**
+   * Receives the sparse features of a vector; see {@link FeatureVector#forEachSparse}.
+   */
+  public interface SparseFeatureConsumer {
+    void accept(int featureId, float value);
+  }
 
   public FeatureVector() {
-    sparseFeatures = new HashMap<>();
-    denseFeatures = new ArrayList<>(DENSE_FEATURE_NAMES.size());
-    for (int i = 0; i < denseFeatures.size(); i++)
-      denseFeatures.set(i, 0.0f);
+    denseFeatures = new float[DENSE_FEATURE_NAMES.size()];
   }
 
   /**
@@ -86,8 +107,6 @@ public class FeatureVector {
    */
   public FeatureVector(String featureString, String prefix) {
 
-//    System.err.println(String.format("FEATURES_OF(%s, %s)", featureString, prefix));
-
     /*
      * Read through the features on this rule, adding them to the feature vector. Unlabeled features
      * are converted to a canonical form.
@@ -108,9 +127,7 @@ public class FeatureVector {
           /*
            * If we encounter an unlabeled feature, it is the next dense feature
            */
-          while (denseFeatures.size() <= denseFeatureIndex)
-            denseFeatures.add(0.0f);
-          denseFeatures.set(denseFeatureIndex, -Float.parseFloat(token));
+          set(denseFeatureIndex, -Float.parseFloat(token));
           denseFeatureIndex++;
         } else {
           /*
@@ -119,14 +136,10 @@ public class FeatureVector {
            */
           int splitPoint = token.indexOf('=');
           if (token.startsWith(prefix)) {
-//            System.err.println(String.format("  PREFIX=%s '%s'.substring(%d,%d) = %s", prefix, token, prefix.length(), splitPoint,
-//                token.substring(prefix.length(), splitPoint)));
             int index = Integer.parseInt(token.substring(prefix.length(), splitPoint));
-            while (denseFeatures.size() <= index)
-              denseFeatures.add(0.0f);
-            denseFeatures.set(index, 1.0f * Float.parseFloat(token.substring(splitPoint + 1)));
+            set(index, 1.0f * Float.parseFloat(token.substring(splitPoint + 1)));
           } else {
-            sparseFeatures.put(token.substring(0, splitPoint),
+            setSparseById(FeatureMap.getFeatureId(token.substring(0, splitPoint)),
                 Float.parseFloat(token.substring(splitPoint + 1)));
           }
         }
@@ -144,37 +157,69 @@ public class FeatureVector {
    */
   public void registerDenseFeatures(ArrayList<FeatureFunction> featureFunctions) {
     for (FeatureFunction feature: featureFunctions) {
-      ArrayList<String> names = feature.reportDenseFeatures(denseFeatures.size());
+      ArrayList<String> names = feature.reportDenseFeatures(denseSize);
       for (String name: names) {
         DENSE_FEATURE_NAMES.add(name);
-        denseFeatures.add(getSparse(name));
-        sparseFeatures.remove(name);
+        set(denseSize, getSparse(name));
+        int id = FeatureMap.lookup(name);
+        if (id != -1)
+          removeSparse(id);
       }
     }
   }
 
+  /**
+   * @return a copy of the dense feature values
+   * @deprecated use {@link #getDenseSize()} and {@link #getDense(int)}, which do not copy
+   */
+  @Deprecated
   public ArrayList<Float> getDenseFeatures() {
-    return denseFeatures;
+    ArrayList<Float> dense = new ArrayList<>(denseSize);
+    for (int i = 0; i < denseSize; i++)
+      dense.add(denseFeatures[i]);
+    return dense;
   }
 
+  /**
+   * @return a copy of the sparse feature values, keyed by name
+   * @deprecated use {@link #forEachSparse(SparseFeatureConsumer)}, which does not copy
+   */
+  @Deprecated
   public HashMap<String,Float> getSparseFeatures() {
-    return sparseFeatures;
+    HashMap<String, Float> sparse = new HashMap<>(2 * sparseSize);
+    forEachSparse((id, value) -> sparse.put(FeatureMap.getFeatureName(id), value));
+    return sparse;
   }
 
+  /**
+   * @return the names of the sparse features present in this vector
+   */
   public Set<String> keySet() {
-    return sparseFeatures.keySet();
+    Set<String> keys = new HashSet<>(2 * sparseSize);
+    forEachSparse((id, value) -> keys.add(FeatureMap.getFeatureName(id)));
+    return keys;
   }
 
   public int size() {
-    return sparseFeatures.size() + denseFeatures.size();
+    return sparseSize + denseSize;
+  }
+
+  /**
+   * @return the number of dense feature slots in use
+   */
+  public int getDenseSize() {
+    return denseSize;
   }
 
   public FeatureVector clone() {
     FeatureVector newOne = new FeatureVector();
-    for (String key : this.sparseFeatures.keySet())
-      newOne.set(key, this.sparseFeatures.get(key));
-    for (int i = 0; i < denseFeatures.size(); i++)
-      newOne.set(i, getDense(i));
+    newOne.denseFeatures = Arrays.copyOf(denseFeatures, denseSize);
+    newOne.denseSize = denseSize;
+    if (sparseKeys != null) {
+      newOne.sparseKeys = sparseKeys.clone();
+      newOne.sparseValues = sparseValues.clone();
+      newOne.sparseSize = sparseSize;
+    }
     return newOne;
   }
 
@@ -186,13 +231,11 @@ public class FeatureVector {
    * @param other another {@link org.apache.joshua.decoder.ff.FeatureVector} from which to subtract its score
    */
   public void subtract(FeatureVector other) {
-    for (int i = 0; i < denseFeatures.size(); i++)
-      denseFeatures.set(i, getDense(i) - other.getDense(i));
+    int n = Math.min(denseSize, other.denseSize);
+    for (int i = 0; i < n; i++)
+      denseFeatures[i] -= other.denseFeatures[i];
 
-    for (String key : other.keySet()) {
-      float oldValue = (sparseFeatures.containsKey(key)) ? sparseFeatures.get(key) : 0.0f;
-      sparseFeatures.put(key, oldValue - other.getSparse(key));
-    }
+    other.forEachSparse((id, value) -> incrementSparseById(id, -value));
   }
 
   /**
@@ -202,18 +245,11 @@ public class FeatureVector {
    * @param other another {@link org.apache.joshua.decoder.ff.FeatureVector} from which to add its score
    */
   public void add(FeatureVector other) {
-    while (denseFeatures.size() < other.denseFeatures.size())
-      denseFeatures.add(0.0f);
-
-    for (int i = 0; i < other.denseFeatures.size(); i++)
-      increment(i, other.getDense(i));
+    ensureDense(other.denseSize);
+    for (int i = 0; i < other.denseSize; i++)
+      denseFeatures[i] += other.denseFeatures[i];
 
-    for (String key : other.keySet()) {
-      if (!sparseFeatures.containsKey(key))
-        sparseFeatures.put(key, other.getSparse(key));
-      else
-        sparseFeatures.put(key, sparseFeatures.get(key) + other.getSparse(key));
-    }
+    other.forEachSparse(this::incrementSparseById);
   }
 
   /**
@@ -223,11 +259,9 @@ public class FeatureVector {
    * @return the feature's weight
    */
   public float getWeight(String feature) {
-    for (int i = 0; i < DENSE_FEATURE_NAMES.size(); i++) {
-      if (DENSE_FEATURE_NAMES.get(i).equals(feature)) {
-        return getDense(i);
-      }
-    }
+    int i = DENSE_FEATURE_NAMES.indexOf(feature);
+    if (i != -1)
+      return getDense(i);
     return getSparse(feature);
   }
 
@@ -238,13 +272,41 @@ public class FeatureVector {
    * @return the sparse feature's weight, or 0 if not found.
    */
   public float getSparse(String feature) {
-    if (sparseFeatures.containsKey(feature))
-      return sparseFeatures.get(feature);
-    return 0.0f;
+    int id = FeatureMap.lookup(feature);
+    return (id != -1) ? getSparseById(id) : 0.0f;
+  }
+
+  /**
+   * Return the weight of a sparse feature, indexed by its {@link FeatureMap} id.
+   *
+   * @param featureId the id of some sparse feature
+   * @return the sparse feature's weight, or 0 if not found.
+   */
+  public float getSparseById(int featureId) {
+    int slot = findSparse(featureId);
+    return (slot != -1) ? sparseValues[slot] : 0.0f;
+  }
+
+  /**
+   * Return the value of a sparse feature, indexed by the hash of its name (see
+   * {@link HashedFeature}). This avoids looking up the name; it is meant for the weight vector,
+   * which is queried this way for every {@link HashedFeature} that fires.
+   *
+   * @param hash the hash of the name of some sparse feature
+   * @return the sparse feature's value, or 0 if not found.
+   */
+  public float getSparseByHash(long hash) {
+    HashIndex index = hashIndex;
+    if (index == null || index.version != sparseVersion) {
+      index = new HashIndex(this);
+      hashIndex = index;
+    }
+    return index.get(hash);
   }
 
   public boolean hasValue(String name) {
-    return sparseFeatures.containsKey(name);
+    int id = FeatureMap.lookup(name);
+    return id != -1 && findSparse(id) != -1;
   }
 
   /**
@@ -255,19 +317,24 @@ public class FeatureVector {
    * @return the dense feature's value, or 0 if not found.
    */
   public float getDense(int id) {
-    if (id < denseFeatures.size())
-      return denseFeatures.get(id);
+    if (id < denseSize)
+      return denseFeatures[id];
     return 0.0f;
   }
 
   public void increment(String feature, float value) {
-    sparseFeatures.put(feature, getSparse(feature) + value);
+    incrementSparseById(FeatureMap.getFeatureId(feature), value);
+  }
+
+  public void incrementSparseById(int featureId, float value) {
+    int slot = insertSparse(featureId);
+    sparseValues[slot] += value;
+    sparseVersion++;
   }
 
   public void increment(int id, float value) {
-    while (id >= denseFeatures.size())
-      denseFeatures.add(0.0f);
-    denseFeatures.set(id, getDense(id) + value);
+    ensureDense(id + 1);
+    denseFeatures[id] += value;
   }
 
   /**
@@ -278,25 +345,29 @@ public class FeatureVector {
    * @param value float value to set to the featue with the associated name
    */
   public void set(String feature, float value) {
-    for (int i = 0; i < DENSE_FEATURE_NAMES.size(); i++) {
-      if (DENSE_FEATURE_NAMES.get(i).equals(feature)) {
-        denseFeatures.set(i, value);
-        return;
-      }
+    int i = DENSE_FEATURE_NAMES.indexOf(feature);
+    if (i != -1) {
+      set(i, value);
+      return;
     }
     // No dense feature was found; assume it's sparse
-    sparseFeatures.put(feature, value);
+    setSparseById(FeatureMap.getFeatureId(feature), value);
+  }
+
+  public void setSparseById(int featureId, float value) {
+    int slot = insertSparse(featureId);
+    sparseValues[slot] = value;
+    sparseVersion++;
   }
 
   public void set(int id, float value) {
-    while (id >= denseFeatures.size())
-      denseFeatures.add(0.0f);
-    denseFeatures.set(id, value);
+    ensureDense(id + 1);
+    denseFeatures[id] = value;
   }
 
   public Map<String, Float> getMap() {
-    Map<String, Float> allFeatures = new HashMap<>(sparseFeatures.size() + denseFeatures.size());
-    allFeatures.putAll(sparseFeatures);
+    Map<String, Float> allFeatures = new HashMap<>(sparseSize + denseSize);
+    forEachSparse((id, value) -> allFeatures.put(FeatureMap.getFeatureName(id), value));
     for (int i = 0; i < DENSE_FEATURE_NAMES.size(); i++) {
       allFeatures.put(DENSE_FEATURE_NAMES.get(i), getDense(i));
     }
@@ -310,19 +381,55 @@ public class FeatureVector {
    * @return float value representing the computation
    */
   public float innerProduct(FeatureVector other) {
+    final float[] a = denseFeatures;
+    final float[] b = other.denseFeatures;
+    final int n = Math.min(DENSE_FEATURE_NAMES.size(), Math.min(denseSize, other.denseSize));
+
     float cost = 0.0f;
-    for (int i = 0; i < DENSE_FEATURE_NAMES.size(); i++)
-      cost += getDense(i) * other.getDense(i);
+    for (int i = 0; i < n; i++)
+      cost += a[i] * b[i];
 
-    for (String key : sparseFeatures.keySet())
-      cost += sparseFeatures.get(key) * other.getSparse(key);
+    return cost + sparseInnerProduct(other);
+  }
+
+  /**
+   * Computes the inner product between the sparse features of this vector and another one.
+   *
+   * @param other a {@link org.apache.joshua.decoder.ff.FeatureVector} (typically the weights)
+   * @return the sum over this vector's sparse features of value times other's value
+   */
+  public float sparseInnerProduct(FeatureVector other) {
+    if (sparseSize == 0 || other.sparseSize == 0)
+      return 0.0f;
 
+    float cost = 0.0f;
+    for (int i = 0; i < sparseKeys.length; i++) {
+      if (sparseKeys[i] != 0)
+        cost += sparseValues[i] * other.getSparseById(sparseKeys[i] - 1);
+    }
     return cost;
   }
 
   public void times(float value) {
-    for (String key : sparseFeatures.keySet())
-      sparseFeatures.put(key, sparseFeatures.get(key) * value);
+    if (sparseKeys == null)
+      return;
+    for (int i = 0; i < sparseKeys.length; i++)
+      sparseValues[i] *= value;
+    sparseVersion++;
+  }
+
+  /**
+   * Calls the consumer once for each sparse feature in this vector, in no particular order.
+   *
+   * @param consumer receives the {@link FeatureMap} id and value of each sparse feature
+   */
+  public void forEachSparse(SparseFeatureConsumer consumer) {
+    if (sparseKeys == null)
+      return;
+    for (int i = 0; i < sparseKeys.length; i++) {
+      if (sparseKeys[i] != 0)
+        consumer.accept(sparseKeys[i] - 1, sparseValues[i]);
+    }
   }
 
   /***
@@ -343,11 +450,11 @@ public class FeatureVector {
     }
 
     // Now print the sparse features
-    ArrayList<String> keys = new ArrayList<>(sparseFeatures.keySet());
+    ArrayList<String> keys = new ArrayList<>(keySet());
     Collections.sort(keys);
     for (String key: keys) {
       if (! printed_keys.contains(key)) {
-        float value = sparseFeatures.get(key);
+        float value = getSparse(key);
         if (key.equals("OOVPenalty"))
           // force moses to see it as sparse
           key = "OOV_Penalty";
@@ -374,11 +481,196 @@ public class FeatureVector {
     }
 
     // Now print the rest of the features
-    ArrayList<String> keys = new ArrayList<>(sparseFeatures.keySet());
+    ArrayList<String> keys = new ArrayList<>(keySet());
     Collections.sort(keys);
     keys.stream().filter(key -> !printed_keys.contains(key)).forEach(
-        key -> outputString.append(String.format("%s=%.3f ", key, sparseFeatures.get(key))));
+        key -> outputString.append(String.format("%s=%.3f ", key, getSparse(key))));
 
     return outputString.toString().trim();
   }
+
+  /*
+   * Dense storage
+   */
+
+  private void ensureDense(int size) {
+    if (size > denseFeatures.length)
+      denseFeatures = Arrays.copyOf(denseFeatures, Math.max(size, 2 * denseFeatures.length));
+    if (size > denseSize)
+      denseSize = size;
+  }
+
+  /*
+   * Sparse storage: open addressing with linear probing over FeatureMap ids
+   */
+
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /* Returns the slot holding key, or the empty slot where it would go */
+  private int slot(int key) {
+    final int mask = sparseKeys.length - 1;
+    int i = hash(key) & mask;
+    while (sparseKeys[i] != 0 && sparseKeys[i] != key)
+      i = (i + 1) & mask;
+    return i;
+  }
+
+  private int findSparse(int featureId) {
+    if (sparseKeys == null)
+      return -1;
+    int i = slot(featureId + 1);
+    return (sparseKeys[i] != 0) ? i : -1;
+  }
+
+  /* Returns the slot for the feature, adding it with value 0 if it is not present */
+  private int insertSparse(int featureId) {
+    if (sparseKeys == null) {
+      sparseKeys = new int[8];
+      sparseValues = new float[8];
+    }
+
+    int key = featureId + 1;
+    int i = slot(key);
+    if (sparseKeys[i] == 0) {
+      if (2 * (sparseSize + 1) > sparseKeys.length) {
+        rehash(2 * sparseKeys.length);
+        i = slot(key);
+      }
+      sparseKeys[i] = key;
+      sparseValues[i] = 0.0f;
+      sparseSize++;
+    }
+    return i;
+  }
+
+  private void rehash(int capacity) {
+    int[] oldKeys = sparseKeys;
+    float[] oldValues = sparseValues;
+    sparseKeys = new int[capacity];
+    sparseValues = new float[capacity];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0) {
+        int j = slot(oldKeys[i]);
+        sparseKeys[j] = oldKeys[i];
+        sparseValues[j] = oldValues[i];
+      }
+    }
+  }
+
+  /* Removes the feature, shifting back any later entries of its probe sequence */
+  private void removeSparse(int featureId) {
+    int i = findSparse(featureId);
+    if (i == -1)
+      return;
+
+    final int mask = sparseKeys.length - 1;
+    sparseKeys[i] = 0;
+    sparseSize--;
+    sparseVersion++;
+    for (int j = (i + 1) & mask; sparseKeys[j] != 0; j = (j + 1) & mask) {
+      int home = hash(sparseKeys[j]) & mask;
+      boolean reachable = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+      if (! reachable) {
+        sparseKeys[i] = sparseKeys[j];
+        sparseValues[i] = sparseValues[j];
+        sparseKeys[j] = 0;
+        i = j;
+      }
+    }
+  }
+
+  /**
+   * A read-only snapshot of the sparse values of a vector, keyed by the hashes of the feature
+   * names, in an open-addressing table with linear probing. 0 marks an empty slot, so a value
+   * whose hash is 0 is kept aside.
+   */
+  private static final class HashIndex {
+    private final int version;
+    private final long[] keys;
+    private final float[] values;
+    private float zeroHashValue = 0.0f;
+
+    private HashIndex(FeatureVector vector) {
+      version = vector.sparseVersion;
+      int capacity = 8;
+      while (capacity < 2 * vector.sparseSize)
+        capacity *= 2;
+      keys = new long[capacity];
+      values = new float[capacity];
+      vector.forEachSparse(
+          (id, value) -> put(HashedFeature.hash(FeatureMap.getFeatureName(id)), value));
+    }
+
+    private static int slot(long hash, int mask) {
+      long h = hash * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void put(long hash, float value) {
+      if (hash == 0) {
+        zeroHashValue = value;
+        return;
+      }
+      final int mask = keys.length - 1;
+      int i = slot(hash, mask);
+      while (keys[i] != 0 && keys[i] != hash)
+        i = (i + 1) & mask;
+      keys[i] = hash;
+      values[i] = value;
+    }
+
+    private float get(long hash) {
+      if (hash == 0)
+        return zeroHashValue;
+      final int mask = keys.length - 1;
+      for (int i = slot(hash, mask); keys[i] != 0; i = (i + 1) & mask) {
+        if (keys[i] == hash)
+          return values[i];
+      }
+      return 0.0f;
+    }
+  }
+
+  /**
+   * The list of dense feature names, with a hash index so that looking up a name's position
+   * doesn't have to scan the list. The index is rebuilt lazily whenever the list has changed.
+   */
+  private static class DenseFeatureNames extends ArrayList<String> {
+    private static final long serialVersionUID = 1L;
+
+    private static class Index {
+      final int modCount;
+      final HashMap<String, Integer> positions;
+
+      Index(int modCount, HashMap<String, Integer> positions) {
+        this.modCount = modCount;
+        this.positions = positions;
+      }
+    }
+
+    private transient volatile Index index = null;
+
+    @Override
+    public int indexOf(Object o) {
+      Index current = index;
+      if (current == null || current.modCount != modCount) {
+        HashMap<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < size(); i++)
+          positions.putIfAbsent(get(i), i);
+        current = new Index(modCount, positions);
+        index = current;
+      }
+      Integer position = current.positions.get(o);
+      return (position != null) ? position : -1;
+    }
+
+    @Override
+    public String set(int i, String name) {
+      index = null;
+      return super.set(i, name);
+    }
+  }
 }
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff;
+
+import org.apache.joshua.corpus.Vocabulary;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
+/**
+ * A sparse feature identified by a 64-bit hash of its name, for features such as {@link RuleFF}
+ * and {@link LexicalFeatures} that fire a great many distinct names. Scoring such a feature only
+ * needs the hash, which is looked up in {@link FeatureVector#getSparseByHash(long)}; the name is
+ * built only if an accumulator records it (e.g., for k-best output).
+ *
+ * The hash is 64-bit FNV-1a over the characters of the name. It can be computed piecewise with
+ * the static methods, so that a name made up of vocabulary words does not have to be built first.
+ * Distinct names are assumed not to collide.
+ */
+public final class HashedFeature {
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /** The hash of the empty string, to be extended with the pieces of a name */
+  public static final long EMPTY = FNV_OFFSET_BASIS;
+
+  private final long hash;
+  private final Supplier<String> name;
+
+  /**
+   * @param hash the hash of the feature's name, which must equal {@link #hash(CharSequence)} of it
+   * @param name builds the feature's name; called at most once
+   */
+  public HashedFeature(long hash, Supplier<String> name) {
+    this.hash = hash;
+    this.name = Suppliers.memoize(name);
+  }
+
+  public HashedFeature(String name) {
+    this.hash = hash(name);
+    this.name = Suppliers.ofInstance(name);
+  }
+
+  public long getHash() {
+    return hash;
+  }
+
+  public String getName() {
+    return name.get();
+  }
+
+  @Override
+  public String toString() {
+    return getName();
+  }
+
+  /**
+   * @param name the name of a sparse feature
+   * @return the hash of the name
+   */
+  public static long hash(CharSequence name) {
+    return extend(EMPTY, name);
+  }
+
+  /**
+   * @param hash the hash of a prefix of a name
+   * @param s the next characters of the name
+   * @return the hash of the prefix followed by s
+   */
+  public static long extend(long hash, CharSequence s) {
+    for (int i = 0; i < s.length(); i++)
+      hash = extend(hash, s.charAt(i));
+    return hash;
+  }
+
+  public static long extend(long hash, char c) {
+    return (hash ^ c) * FNV_PRIME;
+  }
+
+  /**
+   * Extends the hash with the given words joined by a separator, i.e., with
+   * {@link Vocabulary#getWords(int[], String)}.
+   *
+   * @param hash the hash of a prefix of a name
+   * @param ids the word ids
+   * @param separator the string between words
+   * @return the hash of the prefix followed by the words
+   */
+  public static long extend(long hash, int[] ids, String separator) {
+    for (int i = 0; i < ids.length; i++) {
+      if (i > 0)
+        hash = extend(hash, separator);
+      hash = extend(hash, Vocabulary.word(ids[i]));
+    }
+    return hash;
+  }
+}
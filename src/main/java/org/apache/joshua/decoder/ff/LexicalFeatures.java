@@ -55,7 +55,7 @@ public class LexicalFeatures extends StatelessFF {
   // Strings separating words
   private static final String SEPARATOR = "~";
   
-  private final Cache<Rule, List<String>> featureCache;
+  private final Cache<Rule, List<HashedFeature>> featureCache;
   
   public LexicalFeatures(FeatureVector weights, String[] args, JoshuaConfiguration config) {
     super(weights, NAME, args, config);
@@ -83,12 +83,12 @@ public class LexicalFeatures extends StatelessFF {
       return null;
     }
 
-    List<String> featureNames = featureCache.getIfPresent(rule);
-    if (featureNames == null) {
-      featureNames = getFeatures(rule);
-      featureCache.put(rule, featureNames);
+    List<HashedFeature> features = featureCache.getIfPresent(rule);
+    if (features == null) {
+      features = getFeatures(rule);
+      featureCache.put(rule, features);
     }
-    for (String feature : featureNames) {
+    for (HashedFeature feature : features) {
       acc.add(feature, VALUE);
     }
     
@@ -96,12 +96,12 @@ public class LexicalFeatures extends StatelessFF {
   }
   
   /**
-   * Obtains the feature ids for the given rule.
+   * Obtains the features for the given rule. Their names are only built if asked for.
    * @param rule
-   * @return String representing the feature name.s
+   * @return the features that fire for the rule
    */
-  private List<String> getFeatures(final Rule rule) {
-    final List<String> result = new ArrayList<>();
+  private List<HashedFeature> getFeatures(final Rule rule) {
+    final List<HashedFeature> result = new ArrayList<>();
     
     byte[] alignments = rule.getAlignment();
     if (alignments == null) {
@@ -121,11 +121,7 @@ public class LexicalFeatures extends StatelessFF {
       sourceAligned[sourceIndex] = true;
       targetAligned[targetIndex] = true;
       if (useAlignments) {
-        result.add(
-            "T:" + 
-            Vocabulary.word(sourceWords[sourceIndex]) + 
-            SEPARATOR + 
-            Vocabulary.word(targetWords[targetIndex]));
+        result.add(wordFeature("T:", sourceWords[sourceIndex], targetWords[targetIndex]));
       }
     }
     
@@ -133,7 +129,7 @@ public class LexicalFeatures extends StatelessFF {
     if (useDeletions) {
       for (int i = 0; i < sourceAligned.length; i++) {
         if (!sourceAligned[i] && ! FormatUtils.isNonterminal(sourceWords[i])) {
-          result.add("D:" + Vocabulary.word(sourceWords[i]));
+          result.add(wordFeature("D:", sourceWords[i]));
         }
       }
     }
@@ -142,11 +138,20 @@ public class LexicalFeatures extends StatelessFF {
     if (useInsertions) {
       for (int i = 0; i < targetAligned.length; i++) {
         if (useInsertions && !targetAligned[i] && ! FormatUtils.isNonterminal(targetWords[i])) {
-          result.add("I:" + Vocabulary.word(targetWords[i]));
+          result.add(wordFeature("I:", targetWords[i]));
         }
       }
     }
     
     return result;
   }
+
+  /**
+   * Returns the feature named by the prefix followed by the words, joined by SEPARATOR.
+   */
+  private static HashedFeature wordFeature(final String prefix, final int... words) {
+    long hash = HashedFeature.extend(HashedFeature.EMPTY, prefix);
+    hash = HashedFeature.extend(hash, words, SEPARATOR);
+    return new HashedFeature(hash, () -> prefix + Vocabulary.getWords(words, SEPARATOR));
+  }
 }
@@ -80,6 +80,20 @@ public class PhraseModel extends StatelessFF {
     return names;
   }
 
+  /**
+   * @return the owner of the grammar whose rules this feature scores
+   */
+  public OwnerId getOwnerId() {
+    return ownerID;
+  }
+
+  /**
+   * @return the weights of the grammar's dense features (tm_OWNER_0, tm_OWNER_1, ...), by index
+   */
+  public float[] getDenseWeights() {
+    return phrase_weights;
+  }
+
   /**
    * Estimates the cost of applying this rule, which is just the score of the precomputable feature
    * functions.
@@ -121,8 +135,8 @@ public class PhraseModel extends StatelessFF {
         acc.add(k + denseFeatureIndex, rule.getDenseFeature(k));
       }
       
-      for (String key: rule.getFeatureVector().keySet())
-        acc.add(key, rule.getFeatureVector().getSparse(key));
+      rule.getFeatureVector().forEachSparse(
+          (id, value) -> acc.add(FeatureMap.getFeatureName(id), value));
     }
 
     return null;
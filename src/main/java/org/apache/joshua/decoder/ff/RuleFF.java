@@ -57,7 +57,7 @@ public class RuleFF extends StatelessFF {
   private static final String SEPARATOR = "~";
   private static final String SIDES_SEPARATOR = "->";
   
-  private final Cache<Rule, String> featureCache;
+  private final Cache<Rule, HashedFeature> featureCache;
   
   public RuleFF(FeatureVector weights, String[] args, JoshuaConfiguration config) {
     super(weights, NAME, args, config);
@@ -96,16 +96,33 @@ public class RuleFF extends StatelessFF {
       return null;
     }
 
-    String featureName = featureCache.getIfPresent(rule);
-    if (featureName == null) {
-      featureName = getRuleString(rule);
-      featureCache.put(rule, featureName);
+    HashedFeature feature = featureCache.getIfPresent(rule);
+    if (feature == null) {
+      feature = new HashedFeature(getRuleHash(rule), () -> getRuleString(rule));
+      featureCache.put(rule, feature);
     }
-    acc.add(featureName, VALUE);
+    acc.add(feature, VALUE);
     
     return null;
   }
   
+  /**
+   * Computes the hash of the rule's feature name (see {@link #getRuleString(Rule)}) without
+   * building the name.
+   */
+  private long getRuleHash(final Rule rule) {
+    long hash = HashedFeature.extend(HashedFeature.EMPTY, Vocabulary.word(rule.getLHS()));
+    hash = HashedFeature.extend(hash, SIDES_SEPARATOR);
+    if (sides == Sides.SOURCE || sides == Sides.BOTH) {
+      hash = HashedFeature.extend(hash, rule.getFrench(), SEPARATOR);
+    }
+    hash = HashedFeature.extend(hash, SIDES_SEPARATOR);
+    if (sides == Sides.TARGET || sides == Sides.BOTH) {
+      hash = HashedFeature.extend(hash, rule.getEnglish(), SEPARATOR);
+    }
+    return hash;
+  }
+
   /**
    * Obtains the feature id for the given rule.
    * @param rule
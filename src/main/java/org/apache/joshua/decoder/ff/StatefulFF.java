@@ -55,6 +55,17 @@ public abstract class StatefulFF extends FeatureFunction {
     stateIndex = GLOBAL_STATE_INDEX++;
   }
 
+  /**
+   * Creates a copy that shares the original's state index, for feature functions that are cloned
+   * for each sentence (see {@link SourceDependentFF}).
+   *
+   * @param other the feature function to copy
+   */
+  protected StatefulFF(StatefulFF other) {
+    super(other.weights, other.name, other.args, other.config);
+    this.stateIndex = other.stateIndex;
+  }
+
   public static void resetGlobalStateIndex() {
     GLOBAL_STATE_INDEX = 0;
   }
@@ -233,9 +233,9 @@ public class ArpaFile implements Iterable<ArpaNgram> {
       if (arpaFile.getName().endsWith("gz")) { 
         InputStream in = new GZIPInputStream( 
             new FileInputStream(arpaFile)); 
-        scanner = new Scanner(in); 
+        scanner = new Scanner(in, "UTF-8"); 
       } else { 
-        scanner = new Scanner(arpaFile); 
+        scanner = new Scanner(arpaFile, "UTF-8"); 
       } 
 
       // Eat initial header lines 
@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm;
+
+import java.lang.ref.SoftReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches n-gram log probabilities in front of another {@link NGramLanguageModel}. Cube pruning
+ * scores the same boundary n-grams over and over as tail nodes are recombined, and each of those
+ * queries would otherwise go to the backend.
+ *
+ * Every decoding thread has its own fixed-size open-addressing table, so lookups take no locks
+ * and the cache never grows. Tables survive from one sentence to the next; they are only held
+ * softly, so the garbage collector may drop them (and they are rebuilt empty) when memory is
+ * short. Since the n-grams themselves are stored alongside their hashes, a hash collision can
+ * never return the wrong probability.
+ *
+ * The cache is enabled per language model with the <code>-cache_size</code> argument of
+ * {@link LanguageModelFF}, which gives the number of entries in each thread's table.
+ */
+public class CachingNGramLanguageModel implements NGramLanguageModel {
+
+  /* The number of neighboring slots searched before an entry is evicted */
+  private static final int PROBE_LIMIT = 4;
+
+  private final NGramLanguageModel languageModel;
+  private final int maxOrder;
+  private final int numSlots;
+
+  private final ThreadLocal<SoftReference<Table>> tables = new ThreadLocal<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param languageModel the language model to cache
+   * @param size the number of cached n-grams per thread (rounded up to a power of two)
+   */
+  public CachingNGramLanguageModel(NGramLanguageModel languageModel, int size) {
+    if (size <= 0)
+      throw new IllegalArgumentException("The n-gram cache size must be positive");
+    this.languageModel = languageModel;
+    this.maxOrder = languageModel.getOrder();
+    this.numSlots = Integer.highestOneBit(Math.max(PROBE_LIMIT, size - 1)) << 1;
+  }
+
+  /**
+   * One thread's cache. Slot s holds an n-gram in words[s * maxOrder ...], with its length and
+   * the order it was queried with packed into keys[s], and its hash in hashes[s] (0 if empty).
+   */
+  private final class Table {
+    final long[] hashes = new long[numSlots];
+    final int[] keys = new int[numSlots];
+    final int[] words = new int[numSlots * maxOrder];
+    final float[] probs = new float[numSlots];
+  }
+
+  private Table getTable() {
+    SoftReference<Table> ref = tables.get();
+    Table table = (ref != null) ? ref.get() : null;
+    if (table == null) {
+      table = new Table();
+      tables.set(new SoftReference<>(table));
+    }
+    return table;
+  }
+
+  /**
+   * Looks up the n-gram stored in ngram[offset .. offset + length - 1], asking the wrapped
+   * language model and caching the answer on a miss. An order of 0 stands for a query made
+   * without an order, i.e., through {@link #ngramLogProbability(int[])}.
+   */
+  private float lookup(Table table, int[] ngram, int offset, int length, int order) {
+    if (length > maxOrder)
+      return query(copy(ngram, offset, length), order);
+
+    long hash = hash(ngram, offset, length, order);
+    int key = (length << 16) | order;
+    int mask = numSlots - 1;
+    int home = (int) hash & mask;
+
+    int free = -1;
+    for (int probe = 0; probe < PROBE_LIMIT; probe++) {
+      int slot = (home + probe) & mask;
+      if (table.hashes[slot] == 0) {
+        if (free == -1)
+          free = slot;
+        continue;
+      }
+      if (table.hashes[slot] == hash && table.keys[slot] == key
+          && matches(table.words, slot * maxOrder, ngram, offset, length)) {
+        hits.increment();
+        return table.probs[slot];
+      }
+    }
+
+    misses.increment();
+    float prob = query(copy(ngram, offset, length), order);
+
+    // Take a free slot if there is one, otherwise evict whatever is in the home slot
+    int slot = (free != -1) ? free : home;
+    table.hashes[slot] = hash;
+    table.keys[slot] = key;
+    System.arraycopy(ngram, offset, table.words, slot * maxOrder, length);
+    table.probs[slot] = prob;
+    return prob;
+  }
+
+  private float query(int[] ngram, int order) {
+    return (order == 0)
+        ? languageModel.ngramLogProbability(ngram)
+        : languageModel.ngramLogProbability(ngram, order);
+  }
+
+  private static long hash(int[] ngram, int offset, int length, int order) {
+    long hash = 0xcbf29ce484222325L ^ order;
+    for (int i = offset; i < offset + length; i++) {
+      hash ^= ngram[i];
+      hash *= 0x100000001b3L;
+    }
+    hash ^= (hash >>> 29);
+    // 0 marks an empty slot
+    return (hash == 0) ? 1 : hash;
+  }
+
+  private static boolean matches(int[] stored, int start, int[] ngram, int offset, int length) {
+    for (int i = 0; i < length; i++)
+      if (stored[start + i] != ngram[offset + i])
+        return false;
+    return true;
+  }
+
+  private static int[] copy(int[] ngram, int offset, int length) {
+    if (offset == 0 && length == ngram.length)
+      return ngram;
+    int[] copy = new int[length];
+    System.arraycopy(ngram, offset, copy, 0, length);
+    return copy;
+  }
+
+  /**
+   * @return the number of queries answered from the cache, over all threads
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return the number of queries passed on to the wrapped language model, over all threads
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return the language model whose probabilities are cached
+   */
+  public NGramLanguageModel getLanguageModel() {
+    return languageModel;
+  }
+
+  @Override
+  public int getOrder() {
+    return languageModel.getOrder();
+  }
+
+  @Override
+  public boolean registerWord(String token, int id) {
+    return languageModel.registerWord(token, id);
+  }
+
+  @Override
+  public float sentenceLogProbability(int[] sentence, int order, int startIndex) {
+    return languageModel.sentenceLogProbability(sentence, order, startIndex);
+  }
+
+  @Override
+  public float ngramLogProbability(int[] ngram, int order) {
+    return lookup(getTable(), ngram, 0, ngram.length, order);
+  }
+
+  @Override
+  public float ngramLogProbability(int[] ngram) {
+    return lookup(getTable(), ngram, 0, ngram.length, 0);
+  }
+
+  /**
+   * Each n-gram of the batch is looked up separately, and only the misses are passed on to the
+   * wrapped model, one at a time.
+   */
+  @Override
+  public float ngramLogProbabilities(int[] ngrams, int count, int order) {
+    if (count == 0)
+      return 0.0f;
+
+    Table table = getTable();
+    float prob = 0.0f;
+    for (int n = 0; n < count; n++)
+      prob += lookup(table, ngrams, n * order, order, order);
+    return prob;
+  }
+
+  @Override
+  public boolean isOov(int id) {
+    return languageModel.isOov(id);
+  }
+}
@@ -26,8 +26,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static org.apache.joshua.util.Constants.INT_SIZE_IN_BYTES;
 import static org.apache.joshua.util.Constants.LONG_SIZE_IN_BYTES;
 
 /**
@@ -49,6 +51,16 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
 
   private final long pointer;
 
+  /*
+   * Per-thread buffers that batches of n-grams are written to for probNgrams(). They are
+   * allocated directly so the native side can read them in place, and grow as needed.
+   */
+  private static final ThreadLocal<ByteBuffer> NGRAM_BATCH_BUFFER =
+      ThreadLocal.withInitial(() -> allocateBatchBuffer(MAX_TARGET_LENGTH * INT_SIZE_IN_BYTES));
+
+  // Cleared if the loaded libken predates probNgrams(), in which case we score n-grams one by one
+  private static volatile boolean batchSupported = true;
+
   // this is read from the config file, used to set maximum order
   private final int ngramOrder;
   // inferred from model file (may be larger than ngramOrder)
@@ -84,6 +96,8 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
 
   private static native float probForString(long ptr, String[] words);
 
+  private static native float probNgrams(long ptr, ByteBuffer ngrams, int count, int order);
+
   private static native boolean isKnownWord(long ptr, String word);
 
   private static native boolean isLmOov(long ptr, int word);
@@ -98,6 +112,10 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
 
   private static native void destroyPool(long pointer);
 
+  private static native void clearPool(long pointer);
+
+  private static native long poolBytes(long pointer);
+
   private long initializeSystemLibrary(String file_name) {
     try {
       System.loadLibrary("ken");
@@ -119,6 +137,23 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
     destroyPool(pointer);
   }
 
+  /**
+   * Forgets the states interned in a pool, keeping its memory for reuse.
+   *
+   * @param pointer a pool returned from createPool
+   */
+  public void clearLMPool(long pointer) {
+    clearPool(pointer);
+  }
+
+  /**
+   * @param pointer a pool returned from createPool
+   * @return the approximate number of bytes of native memory held by the pool
+   */
+  public long getLMPoolBytes(long pointer) {
+    return poolBytes(pointer);
+  }
+
   public void destroy() {
     destroy(pointer);
   }
@@ -250,6 +285,40 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
     return prob(ngram);
   }
 
+  /**
+   * Scores the whole batch with a single native call. The n-grams are copied into a per-thread
+   * direct buffer, which KenLM reads in place, instead of copying one Java array across JNI per
+   * n-gram.
+   */
+  @Override
+  public float ngramLogProbabilities(int[] ngrams, int count, int order) {
+    if (count == 0)
+      return 0.0f;
+    if (!batchSupported)
+      return NGramLanguageModel.super.ngramLogProbabilities(ngrams, count, order);
+
+    int length = count * order;
+    ByteBuffer buffer = NGRAM_BATCH_BUFFER.get();
+    if (buffer.capacity() < length * INT_SIZE_IN_BYTES) {
+      buffer = allocateBatchBuffer(2 * length * INT_SIZE_IN_BYTES);
+      NGRAM_BATCH_BUFFER.set(buffer);
+    }
+    for (int i = 0; i < length; i++)
+      buffer.putInt(i * INT_SIZE_IN_BYTES, ngrams[i]);
+
+    try {
+      return probNgrams(pointer, buffer, count, order);
+    } catch (UnsatisfiedLinkError e) {
+      LOG.warn("libken does not support batched n-gram scoring; rebuild it to enable it");
+      batchSupported = false;
+      return NGramLanguageModel.super.ngramLogProbabilities(ngrams, count, order);
+    }
+  }
+
+  private static ByteBuffer allocateBatchBuffer(int capacity) {
+    return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+  }
+
   public static class KenLMLoadException extends RuntimeException {
 
     public KenLMLoadException(UnsatisfiedLinkError e) {
@@ -25,6 +25,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.JoshuaConfiguration;
@@ -33,6 +36,7 @@ import org.apache.joshua.decoder.chart_parser.SourcePath;
 import org.apache.joshua.decoder.ff.FeatureVector;
 import org.apache.joshua.decoder.ff.StatefulFF;
 import org.apache.joshua.decoder.ff.lm.berkeley_lm.LMGrammarBerkeley;
+import org.apache.joshua.decoder.ff.lm.mapped_lm.MappedLM;
 import org.apache.joshua.decoder.ff.state_maintenance.DPState;
 import org.apache.joshua.decoder.ff.state_maintenance.NgramDPState;
 import org.apache.joshua.decoder.ff.tm.Rule;
@@ -43,6 +47,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
 import com.google.common.primitives.Ints;
 
 /**
@@ -65,6 +70,13 @@ public class LanguageModelFF extends StatefulFF {
   public static int LM_INDEX = 0;
   private int startSymbolId;
 
+  /*
+   * Language models that are being loaded (e.g., in the background at startup) ahead of the
+   * feature functions that will use them, keyed by type, order and path.
+   */
+  private static final ConcurrentHashMap<String, Future<NGramLanguageModel>> preloaded =
+      new ConcurrentHashMap<>();
+
   /**
    * N-gram language model. We assume the language model is in ARPA format for equivalent state:
    *
@@ -149,25 +161,92 @@ public class LanguageModelFF extends StatefulFF {
    * Initializes the underlying language model.
    */
   protected void initializeLM() {
+    this.languageModel = takePreloaded(type, ngramOrder, path);
+    if (this.languageModel == null)
+      this.languageModel = loadLanguageModel(type, ngramOrder, path);
+
+    if (parsedArgs.containsKey("cache_size")) {
+      int cacheSize = Integer.parseInt(parsedArgs.get("cache_size"));
+      if (cacheSize > 0)
+        this.languageModel = new CachingNGramLanguageModel(this.languageModel, cacheSize);
+    }
+
+    Vocabulary.registerLanguageModel(this.languageModel);
+    Vocabulary.id(config.default_non_terminal);
+
+    startSymbolId = Vocabulary.id(Vocabulary.START_SYM);
+  }
+
+  /**
+   * Loads a language model. This does not touch the {@link Vocabulary} or any other global state,
+   * so several models can be loaded at the same time.
+   *
+   * @param type the lm_type, 'kenlm', 'berkeleylm' or 'mappedlm'
+   * @param order the order of the model
+   * @param path the model file
+   * @return the language model
+   */
+  public static NGramLanguageModel loadLanguageModel(String type, int order, String path) {
     switch (type) {
     case "kenlm":
-      this.languageModel = new KenLM(ngramOrder, path);
+      return new KenLM(order, path);
 
-      break;
     case "berkeleylm":
-      this.languageModel = new LMGrammarBerkeley(ngramOrder, path);
+      return new LMGrammarBerkeley(order, path);
+
+    case "mappedlm":
+      return new MappedLM(order, path);
 
-      break;
     default:
       String msg = String.format("* FATAL: Invalid backend lm_type '%s' for LanguageModel", type)
-          + "*        Permissible values for 'lm_type' are 'kenlm' and 'berkeleylm'";
+          + "*        Permissible values for 'lm_type' are 'kenlm', 'berkeleylm' and 'mappedlm'";
       throw new RuntimeException(msg);
     }
+  }
 
-    Vocabulary.registerLanguageModel(this.languageModel);
-    Vocabulary.id(config.default_non_terminal);
+  /**
+   * Hands over a language model that is being loaded, to be used by the next language model
+   * feature function with the same type, order and path instead of loading it itself. The Decoder
+   * uses this to load the models concurrently with the grammars.
+   *
+   * @param type the lm_type
+   * @param order the order of the model
+   * @param path the model file
+   * @param model the (future) model, e.g., from {@link #loadLanguageModel(String, int, String)}
+   */
+  public static void preload(String type, int order, String path, Future<NGramLanguageModel> model) {
+    preloaded.putIfAbsent(preloadKey(type, order, path), model);
+  }
 
-    startSymbolId = Vocabulary.id(Vocabulary.START_SYM);
+  /**
+   * Drops the preloaded models that no feature function has claimed.
+   */
+  public static void discardPreloaded() {
+    preloaded.values().forEach(model -> model.cancel(false));
+    preloaded.clear();
+  }
+
+  /**
+   * Returns (waiting for it if necessary) the preloaded model with the given type, order, and path,
+   * or null if there is none.
+   */
+  protected static NGramLanguageModel takePreloaded(String type, int order, String path) {
+    Future<NGramLanguageModel> model = preloaded.remove(preloadKey(type, order, path));
+    if (model == null)
+      return null;
+
+    try {
+      return model.get();
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while loading " + path, e);
+    }
+  }
+
+  private static String preloadKey(String type, int order, String path) {
+    return type + " " + order + " " + path;
   }
 
   public NGramLanguageModel getLM() {
@@ -179,7 +258,12 @@ public class LanguageModelFF extends StatefulFF {
   }
 
   public String logString() {
-    return String.format("%s, order %d (weight %.3f), classLm=%s", name, languageModel.getOrder(), weight, isClassLM);
+    String description = String.format("%s, order %d (weight %.3f), classLm=%s", name, languageModel.getOrder(), weight, isClassLM);
+    if (languageModel instanceof CachingNGramLanguageModel) {
+      CachingNGramLanguageModel cache = (CachingNGramLanguageModel) languageModel;
+      description += String.format(", cache hits=%d misses=%d", cache.getHits(), cache.getMisses());
+    }
+    return description;
   }
 
   /**
@@ -395,9 +479,15 @@ public class LanguageModelFF extends StatefulFF {
     int[] current = new int[this.ngramOrder];
     int[] shadow = new int[this.ngramOrder];
     int ccount = 0;
-    float transitionLogP = 0.0f;
     int[] left_context = null;
 
+    /*
+     * The complete n-grams are collected here and scored together once the whole rule has been
+     * read, so that backends like KenLM can score them in a single call.
+     */
+    int[] ngrams = NGRAM_BATCH.get();
+    int numNgrams = 0;
+
     for (int curID : enWords) {
       if (FormatUtils.isNonterminal(curID)) {
         int index = -(curID + 1);
@@ -414,10 +504,8 @@ public class LanguageModelFF extends StatefulFF {
             left_context = Arrays.copyOf(current, ccount);
 
           if (ccount == this.ngramOrder) {
-            // Compute the current word probability, and remove it.
-            float prob = this.languageModel.ngramLogProbability(current, this.ngramOrder);
-            //            System.err.println(String.format("-> prob(%s) = %f", Vocabulary.getWords(current), prob));
-            transitionLogP += prob;
+            // Queue the current word for scoring, and remove it.
+            ngrams = addNgram(ngrams, numNgrams++, current);
             System.arraycopy(current, 1, shadow, 0, this.ngramOrder - 1);
             int[] tmp = current;
             current = shadow;
@@ -433,10 +521,8 @@ public class LanguageModelFF extends StatefulFF {
           left_context = Arrays.copyOf(current, ccount);
 
         if (ccount == this.ngramOrder) {
-          // Compute the current word probability, and remove it.s
-          float prob = this.languageModel.ngramLogProbability(current, this.ngramOrder);
-          //          System.err.println(String.format("-> prob(%s) = %f", Vocabulary.getWords(current), prob));
-          transitionLogP += prob;
+          // Queue the current word for scoring, and remove it.
+          ngrams = addNgram(ngrams, numNgrams++, current);
           System.arraycopy(current, 1, shadow, 0, this.ngramOrder - 1);
           int[] tmp = current;
           current = shadow;
@@ -445,6 +531,8 @@ public class LanguageModelFF extends StatefulFF {
         }
       }
     }
+    float transitionLogP = this.languageModel.ngramLogProbabilities(ngrams, numNgrams,
+        this.ngramOrder);
     //    acc.add(name, transitionLogP);
     acc.add(denseFeatureIndex, transitionLogP);
 
@@ -457,6 +545,27 @@ public class LanguageModelFF extends StatefulFF {
     }
   }
 
+  /*
+   * Scratch space for the n-grams of a single rule application, one buffer per thread. It is
+   * grown by addNgram() and kept for the next rule.
+   */
+  private static final ThreadLocal<int[]> NGRAM_BATCH = ThreadLocal.withInitial(() -> new int[64]);
+
+  /**
+   * Appends an n-gram to the batch, growing the batch if needed.
+   *
+   * @return the batch, which is a new array if it had to grow
+   */
+  private int[] addNgram(int[] ngrams, int position, int[] ngram) {
+    int offset = position * this.ngramOrder;
+    if (offset + this.ngramOrder > ngrams.length) {
+      ngrams = Arrays.copyOf(ngrams, 2 * (offset + this.ngramOrder));
+      NGRAM_BATCH.set(ngrams);
+    }
+    System.arraycopy(ngram, 0, ngrams, offset, this.ngramOrder);
+    return ngrams;
+  }
+
   /**
    * This function differs from regular transitions because we incorporate the cost of incomplete
    * left-hand ngrams, as well as including the start- and end-of-sentence markers (if they were
@@ -70,6 +70,30 @@ public interface NGramLanguageModel {
   float ngramLogProbability(int[] ngram, int order);
 
   float ngramLogProbability(int[] ngram);
+
+  /**
+   * Computes the summed log probability of a batch of n-grams of the same order. The n-grams are
+   * stored back to back, so the k-th n-gram occupies ngrams[k * order] .. ngrams[(k + 1) * order - 1].
+   * This lets a feature function score all of the n-grams created by a rule application at once;
+   * backends behind a native interface override it to make a single call for the whole batch.
+   *
+   * @param ngrams the n-grams, one after another
+   * @param count the number of n-grams in the batch
+   * @param order the order of every n-gram in the batch
+   * @return the sum of the n-grams' log probabilities
+   */
+  default float ngramLogProbabilities(int[] ngrams, int count, int order) {
+    if (count == 0)
+      return 0.0f;
+
+    float prob = 0.0f;
+    int[] ngram = new int[order];
+    for (int n = 0; n < count; n++) {
+      System.arraycopy(ngrams, n * order, ngram, 0, order);
+      prob += ngramLogProbability(ngram, order);
+    }
+    return prob;
+  }
   
   /**
    * Check whether a word corresponding to the given id is OOV to the language model.
@@ -25,6 +25,7 @@ import java.util.UUID;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.LanguageModelStateManager;
 import org.apache.joshua.decoder.LmPool;
 import org.apache.joshua.decoder.chart_parser.SourcePath;
 import org.apache.joshua.decoder.ff.FeatureVector;
@@ -60,7 +61,9 @@ public class StateMinimizingLanguageModel extends LanguageModelFF {
   public void initializeLM() {
 
     // Override type (only KenLM supports left-state minimization)
-    this.languageModel = new KenLM(ngramOrder, path);
+    this.languageModel = takePreloaded("kenlm", ngramOrder, path);
+    if (this.languageModel == null)
+      this.languageModel = new KenLM(ngramOrder, path);
 
     Vocabulary.registerLanguageModel(this.languageModel);
     Vocabulary.id(config.default_non_terminal);
@@ -115,8 +118,8 @@ public class StateMinimizingLanguageModel extends LanguageModelFF {
      // map to ken lm ids
     final long[] words = mapToKenLmIds(ruleWords, tailNodes, false);
 
-    LmPool statePool = sentence.getStateManager().getStatePool(languageModelPoolId, (KenLM)
-            languageModel);
+    LmPool statePool = LanguageModelStateManager.forCurrentThread()
+        .getStatePool(languageModelPoolId, (KenLM) languageModel);
 
     // Get the probability of applying the rule and the new state
     final StateProbPair pair = ((KenLM) languageModel).probRule(words, statePool);
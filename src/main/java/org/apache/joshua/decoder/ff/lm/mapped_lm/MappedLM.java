@@ -0,0 +1,295 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm.mapped_lm;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.joshua.decoder.ff.lm.DefaultNGramLanguageModel;
+import org.apache.joshua.decoder.ff.tm.packed.MappedIntArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A backoff n-gram language model in pure Java, memory-mapped from the binary format written by
+ * {@link MappedLMBuilder}.
+ *
+ * The unigrams are stored in a table indexed by the model's own word ids. The n-grams of each
+ * higher order are stored in an open-addressing hash table keyed by a 64-bit hash of their words,
+ * as KenLM's probing format does. Each entry holds an int with codes for the log probability and
+ * the backoff weight, which index per-order codebooks. The backoff code takes up to 16 bits and the
+ * probability code the rest, so an order is stored exactly unless it has more distinct values than
+ * that; otherwise the values are quantized. The tables are read in place from the page cache, so loading is
+ * quick, the model is shared by every decoder on the machine, and queries need no locks.
+ *
+ * <pre>
+ *   java org.apache.joshua.decoder.ff.lm.mapped_lm.MappedLMBuilder lm.arpa.gz lm.mapped
+ *   feature-function = LanguageModel -lm_type mappedlm -lm_order 5 -lm_file lm.mapped
+ * </pre>
+ */
+public class MappedLM extends DefaultNGramLanguageModel {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MappedLM.class);
+
+  /* Marks the binary format ("JLMM") */
+  static final int MAGIC = 0x4A4C4D4D;
+  static final int VERSION = 1;
+
+  /* The key of an empty hash table slot; no n-gram hashes to it */
+  static final long EMPTY = 0L;
+
+  /* The log probability of unknown words if the model has no <unk> */
+  static final float UNKNOWN_LOG_PROB = -100.0f;
+
+  static final String UNKNOWN_WORD = "<unk>";
+
+  private final MappedIntArray data;
+
+  /* The model's own vocabulary, and its id for <unk> (or -1) */
+  private final Map<String, Integer> words;
+  private final int unknown;
+
+  /* Joshua id -> 1 + the model's id, or 0 for an unknown word. Grown by copying */
+  private volatile int[] mapping = new int[0];
+
+  /* Per order (index 0 is unigrams): where its table starts, and the codebooks */
+  private final long[] tables;
+  private final long[] masks;
+  private final int[] backoffBits;
+  private final float[][] probs;
+  private final float[][] backoffs;
+  private final int modelOrder;
+
+  /**
+   * Maps a model.
+   *
+   * @param order the order of n-grams that are scored; may be less than the model's
+   * @param path a file written by {@link MappedLMBuilder}
+   */
+  public MappedLM(int order, String path) {
+    super(order);
+
+    File file = new File(path);
+    if (!file.exists())
+      throw new RuntimeException("Can't read lm_file '" + path + "'");
+
+    try {
+      long start;
+      try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+        if (in.readInt() != MAGIC)
+          throw new RuntimeException(String.format(
+              "'%s' is not a mappedlm file; build one from an ARPA file with %s", path,
+              MappedLMBuilder.class.getName()));
+        int version = in.readInt();
+        if (version != VERSION)
+          throw new RuntimeException(String.format("'%s' has version %d of the mappedlm format, "
+              + "but version %d is required", path, version, VERSION));
+        modelOrder = in.readInt();
+        int vocabularySize = in.readInt();
+        int vocabularyBytes = in.readInt();
+
+        byte[] vocabulary = new byte[vocabularyBytes];
+        in.readFully(vocabulary);
+        DataInputStream vocabularyIn = new DataInputStream(new ByteArrayInputStream(vocabulary));
+        words = new HashMap<>(2 * vocabularySize);
+        for (int i = 0; i < vocabularySize; i++)
+          words.put(vocabularyIn.readUTF(), i);
+        start = headerInts(vocabularyBytes);
+      }
+      unknown = words.getOrDefault(UNKNOWN_WORD, -1);
+
+      data = new MappedIntArray(file);
+      tables = new long[modelOrder];
+      masks = new long[modelOrder];
+      backoffBits = new int[modelOrder];
+      probs = new float[modelOrder][];
+      backoffs = new float[modelOrder][];
+
+      // Each order: the number of slots, the width of backoff codes, the codebooks, then the table
+      long position = start;
+      for (int n = 0; n < modelOrder; n++) {
+        long slots = data.getLong(position);
+        backoffBits[n] = data.get(position + 2);
+        position += 3;
+        probs[n] = readCodebook(position);
+        position += 1 + probs[n].length;
+        backoffs[n] = readCodebook(position);
+        position += 1 + backoffs[n].length;
+        tables[n] = position;
+        masks[n] = slots - 1;
+        position += (n == 0) ? slots : slots * 3;
+      }
+      if (position != data.size())
+        throw new RuntimeException("The mappedlm file '" + path + "' is truncated or corrupt");
+    } catch (IOException e) {
+      throw new RuntimeException("Can't read lm_file '" + path + "'", e);
+    }
+
+    LOG.info("Mapped a {}-gram language model with {} words from {}", modelOrder, words.size(),
+        path);
+  }
+
+  /**
+   * @return the number of ints taken up by the header and a vocabulary of the given size
+   */
+  static long headerInts(int vocabularyBytes) {
+    return 5 + (vocabularyBytes + 3) / 4;
+  }
+
+  private float[] readCodebook(long position) {
+    float[] codebook = new float[data.get(position)];
+    for (int i = 0; i < codebook.length; i++)
+      codebook[i] = Float.intBitsToFloat(data.get(position + 1 + i));
+    return codebook;
+  }
+
+  /**
+   * Extends the hash of an n-gram by one more word of context. An n-gram's key starts from its
+   * last word and takes in the context from right to left, so the keys of all the suffixes of an
+   * n-gram are computed on the way to the key of the whole n-gram.
+   *
+   * @param hash the hash so far, or {@link #EMPTY} for none
+   * @param word the model's id of the next word
+   * @return the extended hash, never {@link #EMPTY}
+   */
+  static long extend(long hash, int word) {
+    long h = (hash ^ (word + 1L)) * 0x9E3779B97F4A7C15L;
+    h ^= h >>> 31;
+    h *= 0xBF58476D1CE4E5B9L;
+    h ^= h >>> 29;
+    return (h == EMPTY) ? 1L : h;
+  }
+
+  /**
+   * Finds an n-gram of order 2 or more.
+   *
+   * @return the entry's value, or -1 if the n-gram is not in the model
+   */
+  private long find(int n, long key) {
+    long mask = masks[n - 1];
+    long table = tables[n - 1];
+    for (long slot = key & mask; ; slot = (slot + 1) & mask) {
+      long entry = table + 3 * slot;
+      long found = data.getLong(entry);
+      if (found == key)
+        return data.get(entry + 2) & 0xFFFFFFFFL;
+      if (found == EMPTY)
+        return -1L;
+    }
+  }
+
+  private float prob(int n, long value) {
+    return probs[n - 1][(int) (value >>> backoffBits[n - 1])];
+  }
+
+  private float backoff(int n, long value) {
+    return backoffs[n - 1][(int) (value & ((1L << backoffBits[n - 1]) - 1))];
+  }
+
+  /**
+   * @return the model's id for a Joshua word id, or -1 if it doesn't know the word
+   */
+  private int lookup(int id) {
+    int[] map = mapping;
+    int word = (id >= 0 && id < map.length) ? map[id] - 1 : -1;
+    return (word < 0) ? unknown : word;
+  }
+
+  @Override
+  public boolean registerWord(String token, int id) {
+    Integer word = words.get(token);
+    if (word == null)
+      return false;
+
+    int[] map = mapping;
+    if (id >= map.length) {
+      // Publish a full copy, so that readers never see a missing entry for a registered word
+      map = Arrays.copyOf(map, Math.max(id + 1, 2 * map.length));
+      map[id] = word + 1;
+      mapping = map;
+    } else {
+      map[id] = word + 1;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean isOov(int id) {
+    int word = lookup(id);
+    return word < 0 || word == unknown;
+  }
+
+  /**
+   * Computes the backoff log probability of the last word of the n-gram given the others.
+   */
+  @Override
+  protected float ngramLogProbability_helper(int[] ngram, int order) {
+    int length = Math.min(ngram.length, modelOrder);
+    int last = ngram.length - 1;
+
+    int word = lookup(ngram[last]);
+    if (word < 0)
+      return UNKNOWN_LOG_PROB;
+
+    // The longest n-gram ending in the word that the model has. Pruned models need not contain
+    // every suffix of an n-gram, so shorter misses don't end the search.
+    float prob = prob(1, data.get(tables[0] + word));
+    int matched = 0;
+    int known = 0;
+    long key = extend(EMPTY, word);
+    for (int k = 1; k < length; k++) {
+      int context = lookup(ngram[last - k]);
+      if (context < 0)
+        break;
+      known = k;
+      key = extend(key, context);
+      long value = find(k + 1, key);
+      if (value >= 0) {
+        prob = prob(k + 1, value);
+        matched = k;
+      }
+    }
+
+    // Plus the backoff weights of the longer contexts (zero for contexts the model doesn't have)
+    long contextKey = EMPTY;
+    for (int k = 1; k <= known; k++) {
+      int context = lookup(ngram[last - k]);
+      contextKey = extend(contextKey, context);
+      if (k > matched) {
+        long value = (k == 1) ? data.get(tables[0] + context) & 0xFFFFFFFFL : find(k, contextKey);
+        if (value >= 0)
+          prob += backoff(k, value);
+      }
+    }
+    return prob;
+  }
+
+  /**
+   * @return the order of the model, which may be larger than the order that is scored
+   */
+  public int getModelOrder() {
+    return modelOrder;
+  }
+}
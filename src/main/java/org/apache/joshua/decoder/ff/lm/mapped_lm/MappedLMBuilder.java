@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm.mapped_lm;
+
+import static org.apache.joshua.decoder.ff.lm.mapped_lm.MappedLM.EMPTY;
+import static org.apache.joshua.decoder.ff.lm.mapped_lm.MappedLM.extend;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.ff.lm.ArpaFile;
+import org.apache.joshua.decoder.ff.lm.ArpaNgram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts an ARPA language model into the binary format that {@link MappedLM} maps.
+ *
+ * The whole model is held in memory while it is converted, so this needs about twice as much
+ * memory as the binary file takes up on disk.
+ */
+public class MappedLMBuilder {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MappedLMBuilder.class);
+
+  /* The most bits a backoff code takes up; the probability code gets the rest of the 32 */
+  private static final int MAX_BACKOFF_BITS = 16;
+
+  /* The number of hash table slots per n-gram (at least; tables have a power of two slots) */
+  private static final double SLOTS_PER_NGRAM = 1.5;
+
+  /* The model's vocabulary, in order of the unigrams, and Joshua id -> the model's id */
+  private final List<String> words = new ArrayList<>();
+  private final Map<Integer, Integer> ids = new HashMap<>();
+
+  /* The n-grams of each order */
+  private final List<Ngrams> orders = new ArrayList<>();
+
+  /**
+   * Reads all n-grams of a model.
+   *
+   * @param arpaFile input ARPA file
+   */
+  public MappedLMBuilder(ArpaFile arpaFile) {
+    int count = 0;
+    for (ArpaNgram ngram : arpaFile) {
+      add(ngram);
+      if (++count % 1000000 == 0)
+        LOG.info("Read {} n-grams", count);
+    }
+    LOG.info("Read {} n-grams of up to order {}", count, orders.size());
+  }
+
+  private void add(ArpaNgram ngram) {
+    int order = ngram.order();
+    while (orders.size() < order)
+      orders.add(new Ngrams());
+
+    long key;
+    if (order == 1) {
+      // Unigrams are stored by the model's word id
+      key = words.size();
+      if (ids.putIfAbsent(ngram.getWord(), words.size()) != null)
+        throw new RuntimeException("Duplicate unigram " + Vocabulary.word(ngram.getWord()));
+      words.add(Vocabulary.word(ngram.getWord()));
+    } else {
+      key = extend(EMPTY, id(ngram.getWord()));
+      int[] context = ngram.getContext();
+      for (int i = context.length - 1; i >= 0; i--)
+        key = extend(key, id(context[i]));
+    }
+    orders.get(order - 1).add(key, ngram.getValue(), ngram.getBackoff());
+  }
+
+  private int id(int word) {
+    Integer id = ids.get(word);
+    if (id == null)
+      throw new RuntimeException("The word " + Vocabulary.word(word)
+          + " appears in an n-gram, but not among the unigrams");
+    return id;
+  }
+
+  /**
+   * Writes the model.
+   *
+   * @param file the binary file to write
+   * @throws IOException if the file cannot be written
+   */
+  public void write(String file) throws IOException {
+    ByteArrayOutputStream vocabulary = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(vocabulary)) {
+      for (String word : words)
+        out.writeUTF(word);
+    }
+
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(MappedLM.MAGIC);
+      out.writeInt(MappedLM.VERSION);
+      out.writeInt(orders.size());
+      out.writeInt(words.size());
+      out.writeInt(vocabulary.size());
+      vocabulary.writeTo(out);
+      // Align the tables to ints
+      while (out.size() % 4 != 0)
+        out.writeByte(0);
+
+      for (int n = 1; n <= orders.size(); n++) {
+        Ngrams ngrams = orders.get(n - 1);
+        // Give the backoffs as many bits as they need, up to a limit, and the probabilities the rest
+        float[] backoffs = codebook(ngrams.backoffs, ngrams.size, 1 << MAX_BACKOFF_BITS);
+        int backoffBits = bits(backoffs.length);
+        float[] probs = codebook(ngrams.probs, ngrams.size,
+            (int) Math.min(Integer.MAX_VALUE, 1L << (32 - backoffBits)));
+        LOG.info("{}-grams: {}, {} probabilities, {} backoffs", n, ngrams.size, probs.length,
+            backoffs.length);
+
+        int[] values = new int[ngrams.size];
+        for (int i = 0; i < ngrams.size; i++)
+          values[i] = encode(probs, ngrams.probs[i]) << backoffBits
+              | encode(backoffs, ngrams.backoffs[i]);
+
+        long slots = (n == 1) ? ngrams.size : tableSize(ngrams.size);
+        out.writeLong(slots);
+        out.writeInt(backoffBits);
+        writeCodebook(out, probs);
+        writeCodebook(out, backoffs);
+        if (n == 1) {
+          for (int value : values)
+            out.writeInt(value);
+        } else {
+          writeTable(out, ngrams, values, (int) slots);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of bits needed to tell apart the given number of codes
+   */
+  private static int bits(int codes) {
+    return (codes <= 1) ? 0 : 32 - Integer.numberOfLeadingZeros(codes - 1);
+  }
+
+  private static long tableSize(int ngrams) {
+    long wanted = Math.max(2, (long) Math.ceil(ngrams * SLOTS_PER_NGRAM));
+    long slots = Long.highestOneBit(wanted - 1) << 1;
+    if (slots > (1 << 30))
+      throw new RuntimeException("Too many n-grams of one order: " + ngrams);
+    return slots;
+  }
+
+  private static void writeTable(DataOutputStream out, Ngrams ngrams, int[] values, int slots)
+      throws IOException {
+    long[] keys = new long[slots];
+    int[] slotValues = new int[slots];
+    int mask = slots - 1;
+    for (int i = 0; i < ngrams.size; i++) {
+      long key = ngrams.keys[i];
+      int slot = (int) (key & mask);
+      while (keys[slot] != EMPTY && keys[slot] != key)
+        slot = (slot + 1) & mask;
+      if (keys[slot] == key)
+        LOG.warn("Duplicate n-gram; keeping the last one");
+      keys[slot] = key;
+      slotValues[slot] = values[i];
+    }
+
+    for (int slot = 0; slot < slots; slot++) {
+      out.writeLong(keys[slot]);
+      out.writeInt(slotValues[slot]);
+    }
+  }
+
+  private static void writeCodebook(DataOutputStream out, float[] codebook) throws IOException {
+    out.writeInt(codebook.length);
+    for (float value : codebook)
+      out.writeInt(Float.floatToIntBits(value));
+  }
+
+  /**
+   * Chooses the values that codes stand for. If there are few enough distinct values, they are
+   * all kept, so that they are stored exactly. Otherwise, the values are split into bins of equal
+   * size and each bin is represented by its mean.
+   *
+   * @param values the values to encode
+   * @param count the number of values
+   * @param maxSize the number of codes available
+   * @return the values in increasing order
+   */
+  static float[] codebook(float[] values, int count, int maxSize) {
+    float[] sorted = Arrays.copyOf(values, count);
+    Arrays.sort(sorted);
+
+    float[] distinct = new float[count];
+    int size = 0;
+    for (float value : sorted)
+      if (size == 0 || value != distinct[size - 1])
+        distinct[size++] = value;
+    if (size <= maxSize)
+      return Arrays.copyOf(distinct, size);
+
+    float[] means = new float[maxSize];
+    size = 0;
+    for (int bin = 0; bin < maxSize; bin++) {
+      int from = (int) ((long) count * bin / maxSize);
+      int to = (int) ((long) count * (bin + 1) / maxSize);
+      double sum = 0.0;
+      for (int i = from; i < to; i++)
+        sum += sorted[i];
+      float mean = (float) (sum / (to - from));
+      if (size == 0 || mean != means[size - 1])
+        means[size++] = mean;
+    }
+    return Arrays.copyOf(means, size);
+  }
+
+  /**
+   * @return the code of the closest value in the codebook
+   */
+  static int encode(float[] codebook, float value) {
+    int index = Arrays.binarySearch(codebook, value);
+    if (index >= 0)
+      return index;
+    int above = -index - 1;
+    if (above == 0)
+      return 0;
+    if (above == codebook.length)
+      return codebook.length - 1;
+    return (value - codebook[above - 1] <= codebook[above] - value) ? above - 1 : above;
+  }
+
+  /* The keys, log probabilities and backoffs of the n-grams of one order */
+  private static class Ngrams {
+    long[] keys = new long[1024];
+    float[] probs = new float[1024];
+    float[] backoffs = new float[1024];
+    int size = 0;
+
+    void add(long key, float prob, float backoff) {
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, 2 * size);
+        probs = Arrays.copyOf(probs, 2 * size);
+        backoffs = Arrays.copyOf(backoffs, 2 * size);
+      }
+      keys[size] = key;
+      probs[size] = prob;
+      backoffs[size] = backoff;
+      size++;
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: MappedLMBuilder <ARPA file> <output file>");
+      System.exit(1);
+    }
+
+    MappedLMBuilder builder = new MappedLMBuilder(new ArpaFile(args[0]));
+    builder.write(args[1]);
+    LOG.info("Wrote {}", args[1]);
+  }
+}
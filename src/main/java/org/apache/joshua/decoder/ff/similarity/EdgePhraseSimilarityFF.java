@@ -18,17 +18,12 @@
  */
 package org.apache.joshua.decoder.ff.similarity;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-
-import com.google.common.base.Throwables;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.JoshuaConfiguration;
@@ -41,40 +36,58 @@ import org.apache.joshua.decoder.ff.state_maintenance.NgramDPState;
 import org.apache.joshua.decoder.ff.tm.Rule;
 import org.apache.joshua.decoder.hypergraph.HGNode;
 import org.apache.joshua.decoder.segment_file.Sentence;
-import org.apache.joshua.util.Cache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Scores the similarity of the phrases around each nonterminal anchor of a rule application with
+ * the corresponding source phrase, as computed by a similarity server.
+ * <p>
+ * The server is reached through a {@link SimilarityClient} that is shared by all instances (and
+ * therefore all decoding threads) with the same host and port; it batches, de-duplicates, and
+ * caches requests. Optional arguments: -connections (default 2), -batch_size (default 64),
+ * -cache_size (default 100M), and -timeout in milliseconds (default 10000).
+ */
 public class EdgePhraseSimilarityFF extends StatefulFF implements SourceDependentFF {
 
   private static final Logger LOG = LoggerFactory.getLogger(EdgePhraseSimilarityFF.class);
 
-  private static final Cache<String, Float> cache = new Cache<>(100000000);
-
-  private final String host;
-  private final int port;
+  /* One client per server, keyed by host:port */
+  private static final ConcurrentHashMap<String, SimilarityClient> clients = new ConcurrentHashMap<>();
 
-  private PrintWriter serverAsk;
-  private BufferedReader serverReply;
+  private final SimilarityClient client;
 
   private int[] source;
 
   private final int MAX_PHRASE_LENGTH = 4;
 
-  public EdgePhraseSimilarityFF(FeatureVector weights, String[] args, JoshuaConfiguration config) throws NumberFormatException, UnknownHostException, IOException {
+  public EdgePhraseSimilarityFF(FeatureVector weights, String[] args, JoshuaConfiguration config) throws NumberFormatException, IOException {
     super(weights, "EdgePhraseSimilarity", args, config);
 
-    this.host = parsedArgs.get("host");
-    this.port = Integer.parseInt(parsedArgs.get("port"));
+    String host = parsedArgs.get("host");
+    int port = Integer.parseInt(parsedArgs.get("port"));
+    int connections = Integer.parseInt(parsedArgs.getOrDefault("connections", "2"));
+    int batchSize = Integer.parseInt(parsedArgs.getOrDefault("batch_size", "64"));
+    long cacheSize = Long.parseLong(parsedArgs.getOrDefault("cache_size", "100000000"));
+    long timeout = Long.parseLong(parsedArgs.getOrDefault("timeout", "10000"));
 
-    initializeConnection();
+    try {
+      this.client = clients.computeIfAbsent(host + ":" + port, key -> {
+        try {
+          return new SimilarityClient(host, port, connections, batchSize, cacheSize, timeout);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
   }
 
-  private void initializeConnection() throws NumberFormatException, IOException {
-    LOG.info("Opening connection.");
-    Socket socket = new Socket(host, port);
-    serverAsk = new PrintWriter(socket.getOutputStream(), true);
-    serverReply = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+  /* Used by clone(): the copy keeps the state index and shares the client */
+  private EdgePhraseSimilarityFF(EdgePhraseSimilarityFF other) {
+    super(other);
+    this.client = other.client;
   }
 
   @Override
@@ -197,11 +210,7 @@ public class EdgePhraseSimilarityFF extends StatefulFF implements SourceDependen
   }
 
   public EdgePhraseSimilarityFF clone() {
-    try {
-      return new EdgePhraseSimilarityFF(this.weights, args, config);
-    } catch (Exception e) {
-      throw Throwables.propagate(e);
-    }
+    return new EdgePhraseSimilarityFF(this);
   }
 
   @Override
@@ -226,9 +235,8 @@ public class EdgePhraseSimilarityFF extends StatefulFF implements SourceDependen
   private float getSimilarity(List<int[]> batch) {
     float similarity = 0.0f;
     int count = 0;
-    StringBuilder query = new StringBuilder();
-    List<String> to_cache = new ArrayList<>();
-    query.append("xb");
+    List<String> sources = new ArrayList<>();
+    List<String> targets = new ArrayList<>();
     for (int i = 0; i < batch.size(); i += 2) {
       int[] source = batch.get(i);
       int[] target = batch.get(i + 1);
@@ -237,39 +245,18 @@ public class EdgePhraseSimilarityFF extends StatefulFF implements SourceDependen
         similarity += 1;
         count++;
       } else {
-        String source_string = Vocabulary.getWords(source);
-        String target_string = Vocabulary.getWords(target);
-
-        String both;
-        if (source_string.compareTo(target_string) > 0)
-          both = source_string + " ||| " + target_string;
-        else
-          both = target_string + " ||| " + source_string;
-
-        Float cached = cache.get(both);
-        if (cached != null) {
-          // System.err.println("SIM: " + source_string + " X " + target_string + " = " + cached);
-          similarity += cached;
-          count++;
-        } else {
-          query.append("\t").append(source_string);
-          query.append("\t").append(target_string);
-          to_cache.add(both);
-        }
+        sources.add(Vocabulary.getWords(source));
+        targets.add(Vocabulary.getWords(target));
       }
     }
-    if (!to_cache.isEmpty()) {
+    if (!sources.isEmpty()) {
       try {
-        serverAsk.println(query.toString());
-        String response = serverReply.readLine();
-        String[] scores = response.split("\\s+");
-        for (int i = 0; i < scores.length; i++) {
-          Float score = Float.parseFloat(scores[i]);
-          cache.put(to_cache.get(i), score);
+        for (float score : client.getSimilarities(sources, targets)) {
           similarity += score;
           count++;
         }
-      } catch (Exception e) {
+      } catch (IOException e) {
+        LOG.debug(e.getMessage(), e);
         return 0;
       }
     }
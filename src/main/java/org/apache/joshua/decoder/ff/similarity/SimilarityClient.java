@@ -0,0 +1,351 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.similarity;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.joshua.util.ConcurrentCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A client for a phrase similarity server, shared by all decoding threads.
+ * <p>
+ * The server speaks a line protocol: a request is "xb" followed by tab-separated pairs of phrases,
+ * and the reply is a line with one whitespace-separated score per pair. This client
+ * <ul>
+ * <li>caches scores, keyed by the (unordered) pair of phrases;</li>
+ * <li>de-duplicates pairs that are already being asked for by another thread, which then shares
+ * the reply;</li>
+ * <li>batches the pairs of all waiting threads, up to batchSize per request; and</li>
+ * <li>pipelines requests over a small pool of connections: a request is written without waiting
+ * for the previous replies, and a reader thread per connection matches replies to requests in
+ * order.</li>
+ * </ul>
+ */
+public class SimilarityClient implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SimilarityClient.class);
+
+  private final ConcurrentCache<String, Float> cache;
+
+  /* Pairs that have been sent (or are about to be) but whose score has not come back */
+  private final ConcurrentHashMap<String, CompletableFuture<Float>> inFlight = new ConcurrentHashMap<>();
+
+  /* Pairs waiting to be put into a request */
+  private final ConcurrentLinkedQueue<Query> pending = new ConcurrentLinkedQueue<>();
+
+  private final Connection[] connections;
+  private final AtomicInteger nextConnection = new AtomicInteger();
+  private final int batchSize;
+  private final long timeoutMillis;
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder sharedPairs = new LongAdder();
+
+  /**
+   * Opens the connections to the server.
+   *
+   * @param host the server's host
+   * @param port the server's port
+   * @param numConnections the number of connections to spread requests over
+   * @param batchSize the maximum number of pairs per request
+   * @param cacheSize the maximum number of cached scores
+   * @param timeoutMillis how long to wait for a score before giving up
+   * @throws IOException if a connection cannot be opened
+   */
+  public SimilarityClient(String host, int port, int numConnections, int batchSize, long cacheSize,
+      long timeoutMillis) throws IOException {
+    this.batchSize = Math.max(1, batchSize);
+    this.timeoutMillis = timeoutMillis;
+    this.cache = new ConcurrentCache<>(cacheSize);
+    this.connections = new Connection[Math.max(1, numConnections)];
+
+    LOG.info("Opening {} connections to {}:{}", connections.length, host, port);
+    try {
+      for (int i = 0; i < connections.length; i++)
+        connections[i] = new Connection(new Socket(host, port), i);
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the similarity of each pair (sources[i], targets[i]), asking the server for the ones
+   * that are not cached. Blocks until all scores are known.
+   *
+   * @param sources the source phrases
+   * @param targets the target phrases, as many as there are sources
+   * @return the scores
+   * @throws IOException if the server fails or does not answer in time
+   */
+  public float[] getSimilarities(List<String> sources, List<String> targets) throws IOException {
+    float[] scores = new float[sources.size()];
+    List<CompletableFuture<Float>> waiting = null;
+    int[] waitingIndex = null;
+
+    for (int i = 0; i < scores.length; i++) {
+      String key = key(sources.get(i), targets.get(i));
+      Float cached = cache.getIfPresent(key);
+      if (cached != null) {
+        scores[i] = cached;
+        continue;
+      }
+
+      CompletableFuture<Float> result = new CompletableFuture<>();
+      CompletableFuture<Float> shared = inFlight.putIfAbsent(key, result);
+      if (shared != null) {
+        sharedPairs.increment();
+        result = shared;
+      } else {
+        pending.add(new Query(key, sources.get(i), targets.get(i), result));
+      }
+
+      if (waiting == null) {
+        waiting = new ArrayList<>();
+        waitingIndex = new int[scores.length];
+      }
+      waitingIndex[waiting.size()] = i;
+      waiting.add(result);
+    }
+
+    if (waiting == null)
+      return scores;
+
+    flush();
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    try {
+      for (int w = 0; w < waiting.size(); w++) {
+        long remaining = deadline - System.nanoTime();
+        scores[waitingIndex[w]] = waiting.get(w).get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+      }
+    } catch (ExecutionException e) {
+      throw new IOException("Similarity server failed", e.getCause());
+    } catch (TimeoutException e) {
+      throw new IOException("Similarity server did not answer within " + timeoutMillis + " ms");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the similarity server");
+    }
+    return scores;
+  }
+
+  /**
+   * Sends all pending pairs. Whichever thread gets here first takes the pairs queued by the
+   * others along with its own, so every pair is sent without a dedicated sender thread.
+   */
+  private void flush() {
+    while (true) {
+      List<Query> batch = new ArrayList<>();
+      Query query;
+      while (batch.size() < batchSize && (query = pending.poll()) != null)
+        batch.add(query);
+      if (batch.isEmpty())
+        return;
+
+      requests.increment();
+      int c = Math.floorMod(nextConnection.getAndIncrement(), connections.length);
+      connections[c].send(batch);
+    }
+  }
+
+  /* The cache key; the similarity is symmetric, so the two phrases are put in a fixed order */
+  private static String key(String source, String target) {
+    return (source.compareTo(target) > 0)
+        ? source + " ||| " + target
+        : target + " ||| " + source;
+  }
+
+  private void complete(Query query, float score) {
+    cache.put(query.key, score);
+    inFlight.remove(query.key, query.result);
+    query.result.complete(score);
+  }
+
+  private void fail(List<Query> batch, Throwable cause) {
+    for (Query query : batch) {
+      inFlight.remove(query.key, query.result);
+      query.result.completeExceptionally(cause);
+    }
+  }
+
+  /**
+   * @return the number of requests sent to the server
+   */
+  public long getRequestCount() {
+    return requests.sum();
+  }
+
+  /**
+   * @return the number of pairs that were already being asked for by another thread
+   */
+  public long getSharedPairCount() {
+    return sharedPairs.sum();
+  }
+
+  public ConcurrentCache<String, Float> getCache() {
+    return cache;
+  }
+
+  @Override
+  public void close() {
+    for (Connection connection : connections)
+      if (connection != null)
+        connection.close();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d requests, %d shared pairs, cache: %s", getRequestCount(),
+        getSharedPairCount(), cache);
+  }
+
+  private static final class Query {
+    final String key;
+    final String source;
+    final String target;
+    final CompletableFuture<Float> result;
+
+    Query(String key, String source, String target, CompletableFuture<Float> result) {
+      this.key = key;
+      this.source = source;
+      this.target = target;
+      this.result = result;
+    }
+  }
+
+  /**
+   * One connection to the server. Requests are written under the connection's lock, in the same
+   * order they are queued as outstanding, so the reader can match each reply line to the oldest
+   * outstanding request.
+   */
+  private final class Connection {
+    private final Socket socket;
+    private final Writer out;
+    private final BufferedReader in;
+    private final ArrayDeque<List<Query>> outstanding = new ArrayDeque<>();
+    private IOException failure = null;
+
+    Connection(Socket socket, int index) throws IOException {
+      this.socket = socket;
+      this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF_8));
+      this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+
+      Thread reader = new Thread(this::read, "SimilarityReader-" + index);
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    void send(List<Query> batch) {
+      StringBuilder request = new StringBuilder("xb");
+      for (Query query : batch)
+        request.append('\t').append(query.source).append('\t').append(query.target);
+      request.append('\n');
+
+      IOException cause;
+      synchronized (this) {
+        if (failure == null) {
+          outstanding.add(batch);
+          try {
+            out.write(request.toString());
+            out.flush();
+            return;
+          } catch (IOException e) {
+            failure = e;
+            outstanding.removeLast();
+          }
+        }
+        cause = failure;
+      }
+      fail(batch, cause);
+    }
+
+    private void read() {
+      IOException cause = new IOException("Similarity server closed the connection");
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          List<Query> batch;
+          synchronized (this) {
+            batch = outstanding.poll();
+          }
+          if (batch == null) {
+            LOG.warn("Ignoring unexpected reply from similarity server: {}", line);
+            continue;
+          }
+
+          String[] scores = line.trim().split("\\s+");
+          if (scores.length != batch.size()) {
+            fail(batch, new IOException(String.format("Expected %d scores but got %d",
+                batch.size(), scores.length)));
+            continue;
+          }
+          try {
+            for (int i = 0; i < scores.length; i++)
+              complete(batch.get(i), Float.parseFloat(scores[i]));
+          } catch (NumberFormatException e) {
+            fail(batch, new IOException("Malformed reply from similarity server: " + line, e));
+          }
+        }
+      } catch (IOException e) {
+        cause = e;
+      }
+
+      List<List<Query>> orphans;
+      synchronized (this) {
+        if (failure == null)
+          failure = cause;
+        cause = failure;
+        orphans = new ArrayList<>(outstanding);
+        outstanding.clear();
+      }
+      for (List<Query> batch : orphans)
+        fail(batch, cause);
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        LOG.warn(e.getMessage(), e);
+      }
+    }
+  }
+}
@@ -18,8 +18,11 @@
  */
 package org.apache.joshua.decoder.ff.tm;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.JoshuaConfiguration;
@@ -122,6 +125,23 @@ public abstract class AbstractGrammar implements Grammar {
     }
   }
 
+  /**
+   * Sorts the grammar like {@link #sortGrammar(List)}, but sorts the rule collections of
+   * different trie nodes concurrently on the given pool. The models must be safe to call from
+   * several threads, as they are during decoding.
+   *
+   * @param models {@link java.util.List} of {@link org.apache.joshua.decoder.ff.FeatureFunction}'s
+   * @param pool the pool that does the sorting
+   */
+  @Override
+  public void sortGrammar(List<FeatureFunction> models, ForkJoinPool pool) {
+    Trie root = getTrieRoot();
+    if (root != null) {
+      pool.invoke(new SortTask(root, models));
+      setSorted(true);
+    }
+  }
+
   /* See Javadoc comments for Grammar interface. */
   public boolean isSorted() {
     return sorted;
@@ -155,26 +175,7 @@ public abstract class AbstractGrammar implements Grammar {
   private void sort(Trie node, List<FeatureFunction> models) {
 
     if (node != null) {
-      if (node.hasRules()) {
-        RuleCollection rules = node.getRuleCollection();
-        LOG.debug("Sorting node {}", Arrays.toString(rules.getSourceSide()));
-
-        /* This causes the rules at this trie node to be sorted */
-        rules.getSortedRules(models);
-
-        if (LOG.isDebugEnabled()) {
-          StringBuilder s = new StringBuilder();
-          for (Rule r : rules.getSortedRules(models)) {
-            s.append("\n\t").append(r.getLHS()).append(" ||| ")
-                .append(Arrays.toString(r.getFrench())).append(" ||| ")
-                .append(Arrays.toString(r.getEnglish())).append(" ||| ")
-                .append(r.getFeatureVector()).append(" ||| ").append(r.getEstimatedCost())
-                .append("  ").append(r.getClass().getName()).append("@")
-                .append(Integer.toHexString(System.identityHashCode(r)));
-          }
-          LOG.debug("{}", s);
-        }
-      }
+      sortRules(node, models);
 
       if (node.hasExtensions()) {
         for (Trie child : node.getExtensions()) {
@@ -186,6 +187,69 @@ public abstract class AbstractGrammar implements Grammar {
     }
   }
 
+  /**
+   * Sorts the rules stored at a single trie node.
+   */
+  private static void sortRules(Trie node, List<FeatureFunction> models) {
+    if (node.hasRules()) {
+      RuleCollection rules = node.getRuleCollection();
+      LOG.debug("Sorting node {}", Arrays.toString(rules.getSourceSide()));
+
+      /* This causes the rules at this trie node to be sorted */
+      rules.getSortedRules(models);
+
+      if (LOG.isDebugEnabled()) {
+        StringBuilder s = new StringBuilder();
+        for (Rule r : rules.getSortedRules(models)) {
+          s.append("\n\t").append(r.getLHS()).append(" ||| ")
+              .append(Arrays.toString(r.getFrench())).append(" ||| ")
+              .append(Arrays.toString(r.getEnglish())).append(" ||| ")
+              .append(r.getFeatureVector()).append(" ||| ").append(r.getEstimatedCost())
+              .append("  ").append(r.getClass().getName()).append("@")
+              .append(Integer.toHexString(System.identityHashCode(r)));
+        }
+        LOG.debug("{}", s);
+      }
+    }
+  }
+
+  /**
+   * Sorts a subtrie: the node's own rules on the current thread, and each child subtrie as a
+   * separate task. Children without extensions are sorted directly while the subtasks run, which
+   * avoids creating a task for every leaf.
+   */
+  private static class SortTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Trie node;
+    private final List<FeatureFunction> models;
+
+    SortTask(Trie node, List<FeatureFunction> models) {
+      this.node = node;
+      this.models = models;
+    }
+
+    @Override
+    protected void compute() {
+      sortRules(node, models);
+
+      if (node.hasExtensions()) {
+        List<SortTask> subtasks = new ArrayList<>();
+        for (Trie child : node.getExtensions()) {
+          if (child.hasExtensions()) {
+            SortTask subtask = new SortTask(child, models);
+            subtask.fork();
+            subtasks.add(subtask);
+          } else {
+            sortRules(child, models);
+          }
+        }
+        for (SortTask subtask : subtasks)
+          subtask.join();
+      }
+    }
+  }
+
   // write grammar to disk
   public void writeGrammarOnDisk(String file) {
   }
@@ -19,6 +19,7 @@
 package org.apache.joshua.decoder.ff.tm;
 
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.joshua.decoder.ff.FeatureFunction;
 
@@ -49,6 +50,17 @@ public interface Grammar {
    */
   void sortGrammar(List<FeatureFunction> models);
 
+  /**
+   * Sorts the grammar like {@link #sortGrammar(List)}, using the given pool to sort independent
+   * parts of the grammar concurrently. Grammars that cannot be sorted concurrently sort serially.
+   * 
+   * @param models list of {@link org.apache.joshua.decoder.ff.FeatureFunction}'s
+   * @param pool the pool to sort on
+   */
+  default void sortGrammar(List<FeatureFunction> models, ForkJoinPool pool) {
+    sortGrammar(models);
+  }
+
   /**
    * Determines whether the rules in this grammar have been sorted based on the latest feature
    * function values.
@@ -120,6 +120,16 @@ public abstract class GrammarReader<R extends Rule> implements Iterable<R>, Iter
    */
   @Override
   public R next() {
+    return parseLine(nextLine());
+  }
+
+  /**
+   * Read the next line without parsing it, and print reader progress. This lets callers parse
+   * lines elsewhere, e.g. on several threads.
+   *
+   * @return the next line of the grammar file
+   */
+  public String nextLine() {
     String line = lookAhead;
 
     int oldProgress = reader.progress();
@@ -151,7 +161,7 @@ public abstract class GrammarReader<R extends Rule> implements Iterable<R>, Iter
           }
       }
     }
-    return parseLine(line);
+    return line;
   }
 
   protected abstract R parseLine(String line);
@@ -113,7 +113,7 @@ public class Rule implements Comparator<Rule>, Comparable<Rule> {
   }
   
   /**
-   * Constructor used by PackedGrammar's sortRules()
+   * Constructor for a rule whose features have already been read
    * @param lhs todo
    * @param sourceRhs todo
    * @param targetRhs todo
@@ -333,13 +333,11 @@ public class Rule implements Comparator<Rule>, Comparable<Rule> {
   public void setPrecomputableCost(float[] dense_weights, FeatureVector weights) {
     float cost = 0.0f;
     FeatureVector features = getFeatureVector();
-    for (int i = 0; i < features.getDenseFeatures().size() && i < dense_weights.length; i++) {
+    for (int i = 0; i < features.getDenseSize() && i < dense_weights.length; i++) {
       cost += dense_weights[i] * features.getDense(i);
     }
 
-    for (String key: features.getSparseFeatures().keySet()) {
-      cost += weights.getSparse(key) * features.getSparse(key);
-    }
+    cost += features.sparseInnerProduct(weights);
     
     this.precomputableCost = cost;
   }
@@ -19,6 +19,9 @@
 package org.apache.joshua.decoder.ff.tm.format;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.function.ToIntFunction;
+import java.util.regex.Pattern;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.ff.tm.GrammarReader;
@@ -38,6 +41,9 @@ public class HieroFormatReader extends GrammarReader<Rule> {
     description = "Original Hiero format";
   }
 
+  protected static final Pattern FIELD_DELIMITER = Pattern.compile(Constants.fieldDelimiter);
+  private static final Pattern SPACES = Pattern.compile(Constants.spaceSeparator);
+
   public HieroFormatReader() {
     super();
   }
@@ -48,26 +54,84 @@ public class HieroFormatReader extends GrammarReader<Rule> {
 
   @Override
   public Rule parseLine(String line) {
-    String[] fields = line.split(Constants.fieldDelimiter);
+    return parseFields(splitFields(line), true);
+  }
+
+  /**
+   * Splits a line into the fields of a Hiero-format rule: the left-hand side, the source and
+   * target sides, the features, and optionally the alignment. Does not touch the vocabulary, so
+   * it can be called from any thread.
+   *
+   * @param line a line of the grammar file
+   * @return the fields
+   */
+  public String[] splitFields(String line) {
+    String[] fields = FIELD_DELIMITER.split(line);
     if (fields.length < 3) {
       throw new RuntimeException(String.format("Rule '%s' does not have four fields", line));
     }
+    return fields;
+  }
+
+  /**
+   * Builds a rule from the fields returned by {@link #splitFields(String)}.
+   *
+   * @param fields the fields of the rule
+   * @param addWords whether to add words to the vocabulary. If false, only words that are already
+   *          in the vocabulary are looked up, which leaves word ids independent of the order in
+   *          which lines are parsed.
+   * @return the rule, or null if addWords is false and the rule has a word that is not in the
+   *         vocabulary yet
+   */
+  public Rule parseFields(String[] fields, boolean addWords) {
+    return addWords ? buildRule(fields, Vocabulary::id) : buildRule(fields, Vocabulary::lookup);
+  }
+
+  /**
+   * Builds a rule from the fields returned by {@link #splitFields(String)}, noting the words that
+   * are not in the vocabulary yet instead of adding them.
+   *
+   * @param fields the fields of the rule
+   * @param newWords collects the words that are not in the vocabulary, in the order in which
+   *          {@link #parseFields(String[], boolean)} would add them
+   * @return the rule, or null if it has a word that is not in the vocabulary yet
+   */
+  public Rule parseFields(String[] fields, Collection<String> newWords) {
+    boolean[] complete = { true };
+    Rule rule = buildRule(fields, word -> {
+      int id = Vocabulary.lookup(word);
+      if (id != Vocabulary.MISSING_ID)
+        return id;
+      newWords.add(word);
+      complete[0] = false;
+      return 0;
+    });
+    return complete[0] ? rule : null;
+  }
 
-    int lhs = Vocabulary.id(fields[0]);
+  /* Builds a rule, or returns null if ids maps one of its words to MISSING_ID */
+  private Rule buildRule(String[] fields, ToIntFunction<String> ids) {
+    int lhs = ids.applyAsInt(fields[0]);
+    if (lhs == Vocabulary.MISSING_ID)
+      return null;
 
     /**
      * On the foreign side, we map nonterminals to negative IDs, and terminals to positive IDs.
      */
     int arity = 0;
-    String[] sourceWords = fields[1].split("\\s+");
+    String[] sourceWords = SPACES.split(fields[1]);
     int[] sourceIDs = new int[sourceWords.length];
     for (int i = 0; i < sourceWords.length; i++) {
       /* NOTE: This redundantly creates vocab items for terms like [X,1]. This might actually
        * be necessary, so don't try to turn this into an if/else.
        */
-      sourceIDs[i] = Vocabulary.id(sourceWords[i]);
+      sourceIDs[i] = ids.applyAsInt(sourceWords[i]);
+      if (sourceIDs[i] == Vocabulary.MISSING_ID)
+        return null;
       if (FormatUtils.isNonterminal(sourceWords[i])) {
-        sourceIDs[i] = Vocabulary.id(FormatUtils.stripNonTerminalIndex(sourceWords[i]));
+        sourceIDs[i] = ids.applyAsInt(FormatUtils.stripNonTerminalIndex(sourceWords[i]));
+        if (sourceIDs[i] == Vocabulary.MISSING_ID)
+          return null;
         arity++;
         
         // TODO: the arity here (after incrementing) should match the rule index. Should
@@ -85,10 +149,12 @@ public class HieroFormatReader extends GrammarReader<Rule> {
      * the English side nonterminals will be -2, -1, -3. This assumes that the source side of
      * the rule is always listed monotonically.
      */
-    String[] targetWords = fields[2].split("\\s+");
+    String[] targetWords = SPACES.split(fields[2]);
     int[] targetIDs = new int[targetWords.length];
     for (int i = 0; i < targetWords.length; i++) {
-      targetIDs[i] = Vocabulary.id(targetWords[i]);
+      targetIDs[i] = ids.applyAsInt(targetWords[i]);
+      if (targetIDs[i] == Vocabulary.MISSING_ID)
+        return null;
       if (FormatUtils.isNonterminal(targetWords[i])) {
         targetIDs[i] = -FormatUtils.getNonterminalIndex(targetWords[i]);
       }
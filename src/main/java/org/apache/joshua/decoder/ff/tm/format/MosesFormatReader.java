@@ -68,22 +68,22 @@ public class MosesFormatReader extends HieroFormatReader {
    * For thrax-extracted phrasal grammars, no transformation is needed.
    */
   @Override
-  public Rule parseLine(String line) {
-    String[] fields = line.split(Constants.fieldDelimiter);
-    
-    StringBuffer hieroLine = new StringBuffer(Constants.defaultNT + " ||| " + fields[0] + " ||| " + fields[1] + " |||");
+  public String[] splitFields(String line) {
+    String[] fields = FIELD_DELIMITER.split(line);
 
+    StringBuilder features = new StringBuilder();
     String mosesFeatureString = fields[2];
     for (String value: mosesFeatureString.split(" ")) {
       float f = Float.parseFloat(value);
-      hieroLine.append(String.format(" %f", f <= 0.0 ? -100 : -Math.log(f)));
+      if (features.length() > 0)
+        features.append(' ');
+      features.append(String.format("%f", f <= 0.0 ? -100 : -Math.log(f)));
     }
 
     // alignments
-    if (fields.length >= 4)
-      hieroLine.append(" ||| ").append(fields[3]);
-
-    return super.parseLine(hieroLine.toString());
+    if (fields.length >= 4 && !fields[3].isEmpty())
+      return new String[] { Constants.defaultNT, fields[0], fields[1], features.toString(), fields[3] };
+    return new String[] { Constants.defaultNT, fields[0], fields[1], features.toString() };
   }
   
   /**
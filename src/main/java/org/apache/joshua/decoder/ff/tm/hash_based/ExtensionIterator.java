@@ -18,6 +18,7 @@
  */
 package org.apache.joshua.decoder.ff.tm.hash_based;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -28,6 +29,11 @@ public class ExtensionIterator implements Iterator<Integer> {
   private boolean done;
   private int next;
 
+  /* Used instead of the iterator for sorted keys, whose matching keys form a contiguous range */
+  private int[] keys;
+  private int index;
+  private int end;
+
   public ExtensionIterator(HashMap<Integer, ?> map, boolean terminal) {
     this.terminal = terminal;
     done = false;
@@ -39,9 +45,38 @@ public class ExtensionIterator implements Iterator<Integer> {
     }
   }
 
+  /**
+   * Iterates over the terminals (positive ids) or nonterminals (negative ids) among sorted keys.
+   *
+   * @param sortedKeys word ids in ascending order
+   * @param terminal whether to return the terminals or the nonterminals
+   */
+  public ExtensionIterator(int[] sortedKeys, boolean terminal) {
+    this.terminal = terminal;
+    this.keys = sortedKeys;
+    // Nonterminals sort before 0, terminals after
+    int zero = Arrays.binarySearch(sortedKeys, 0);
+    int firstNonNegative = (zero >= 0) ? zero : -zero - 1;
+    if (terminal) {
+      this.index = (zero >= 0) ? zero + 1 : firstNonNegative;
+      this.end = sortedKeys.length;
+    } else {
+      this.index = 0;
+      this.end = firstNonNegative;
+    }
+    forward();
+  }
+
   private void forward() {
     if (done)
       return;
+    if (keys != null) {
+      if (index < end)
+        next = keys[index++];
+      else
+        done = true;
+      return;
+    }
     while (iterator.hasNext()) {
       int candidate = iterator.next();
       if ((terminal && candidate > 0) || (!terminal && candidate < 0)) {
@@ -28,9 +28,17 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.JoshuaConfiguration;
@@ -47,12 +55,14 @@ import org.apache.joshua.util.FormatUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Throwables;
+
 /**
  * This class implements a memory-based bilingual BatchGrammar.
  * <p>
  * The rules are stored in a trie. Each trie node has: (1) RuleBin: a list of rules matching the
- * french sides so far (2) A HashMap of next-layer trie nodes, the next french word used as the key
- * in HashMap
+ * french sides so far (2) the next-layer trie nodes, keyed by the next french word. The children
+ * are kept in HashMaps while the grammar loads and are then frozen into sorted arrays.
  * 
  * @author Zhifei Li zhifei.work@gmail.com
  * @author Matt Post post@cs.jhu.edu
@@ -61,6 +71,9 @@ public class MemoryBasedBatchGrammar extends AbstractGrammar {
 
   private static final Logger LOG = LoggerFactory.getLogger(MemoryBasedBatchGrammar.class);
 
+  /* The number of lines handed to a loading thread at a time */
+  private static final int LOADING_CHUNK_SIZE = 10000;
+
   /* The number of rules read. */
   private int qtyRulesRead = 0;
 
@@ -114,6 +127,24 @@ public class MemoryBasedBatchGrammar extends AbstractGrammar {
   public MemoryBasedBatchGrammar(String formatKeyword, String grammarFile, String owner,
       String defaultLHSSymbol, int spanLimit, JoshuaConfiguration joshuaConfiguration)
       throws IOException {
+    this(formatKeyword, grammarFile, owner, defaultLHSSymbol, spanLimit, joshuaConfiguration, 1);
+  }
+
+  /**
+   * Loads a grammar from a text file.
+   *
+   * @param formatKeyword the grammar format (hiero, thrax, phrase, or moses)
+   * @param grammarFile the file to load the grammar from
+   * @param owner the associated decoder-wide {@link org.apache.joshua.decoder.ff.tm.OwnerMap}
+   * @param defaultLHSSymbol the default nonterminal
+   * @param spanLimit the maximum span of the input grammar rule(s) can be applied to.
+   * @param joshuaConfiguration a {@link org.apache.joshua.decoder.JoshuaConfiguration} object
+   * @param loadingThreads the number of threads to parse the file with
+   * @throws IOException if there is an error reading the grammar file
+   */
+  public MemoryBasedBatchGrammar(String formatKeyword, String grammarFile, String owner,
+      String defaultLHSSymbol, int spanLimit, JoshuaConfiguration joshuaConfiguration,
+      int loadingThreads) throws IOException {
 
     super(owner, joshuaConfiguration, spanLimit);
     Vocabulary.id(defaultLHSSymbol);
@@ -125,7 +156,9 @@ public class MemoryBasedBatchGrammar extends AbstractGrammar {
     } catch (IOException e) {
       LOG.warn("Couldn't load a '{}' type grammar from file '{}'", formatKeyword, grammarFile);
     }
-    if (modelReader != null) {
+    if (modelReader instanceof HieroFormatReader && loadingThreads > 1) {
+      addRulesInParallel((HieroFormatReader) modelReader, loadingThreads);
+    } else if (modelReader != null) {
       for (Rule rule : modelReader)
         if (rule != null) {
           addRule(rule);
@@ -137,6 +170,8 @@ public class MemoryBasedBatchGrammar extends AbstractGrammar {
     
     LOG.info("MemoryBasedBatchGrammar: Read {} rules with {} distinct source sides from '{}'",
         this.qtyRulesRead, this.qtyRuleBins, grammarFile);
+
+    freeze();
   }
 
   protected GrammarReader<Rule> createReader(String format, String grammarFile) throws IOException {
@@ -153,6 +188,115 @@ public class MemoryBasedBatchGrammar extends AbstractGrammar {
     return null;
   }
 
+  /**
+   * Reads the grammar in chunks of lines that are parsed on several threads and added to the trie
+   * in file order. The threads only look up words that are already in the vocabulary, and note the
+   * new words of each chunk in the order in which they occur. Here, chunk by chunk in file order,
+   * the new words are added to the vocabulary, so words get the same ids as when loading on one
+   * thread; then the lines that had new words are parsed again on the threads.
+   */
+  private void addRulesInParallel(HieroFormatReader reader, int threads) {
+    AtomicInteger threadCount = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+      Thread thread = new Thread(r, "GrammarLoader-" + threadCount.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    // Chunks being parsed for the first time, and chunks whose new words have been added
+    ArrayDeque<Future<ParsedChunk>> parsing = new ArrayDeque<>();
+    ArrayDeque<Future<ParsedChunk>> resolving = new ArrayDeque<>();
+    try {
+      while (reader.hasNext()) {
+        String[] lines = new String[LOADING_CHUNK_SIZE];
+        int size = 0;
+        while (size < lines.length && reader.hasNext())
+          lines[size++] = reader.nextLine();
+
+        final int chunkSize = size;
+        parsing.add(pool.submit(() -> new ParsedChunk(reader, lines, chunkSize)));
+
+        // Bound the parsed rules waiting to be added
+        if (parsing.size() >= threads) {
+          resolving.add(resolve(reader, pool, await(parsing.poll())));
+          if (resolving.size() >= threads)
+            addChunk(reader, await(resolving.poll()));
+        }
+      }
+      while (!parsing.isEmpty())
+        resolving.add(resolve(reader, pool, await(parsing.poll())));
+      while (!resolving.isEmpty())
+        addChunk(reader, await(resolving.poll()));
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Adds the chunk's new words to the vocabulary, and has the lines that had them parsed again.
+   */
+  private static Future<ParsedChunk> resolve(HieroFormatReader reader, ExecutorService pool,
+      ParsedChunk chunk) {
+    if (chunk.newWords.isEmpty())
+      return CompletableFuture.completedFuture(chunk);
+
+    for (String word : chunk.newWords)
+      Vocabulary.id(word);
+    return pool.submit(() -> {
+      for (int i = 0; i < chunk.rules.length; i++) {
+        if (chunk.rules[i] == null) {
+          chunk.rules[i] = reader.parseFields(chunk.fields[i], false);
+          if (chunk.rules[i] != null)
+            chunk.fields[i] = null;
+        }
+      }
+      return chunk;
+    });
+  }
+
+  private void addChunk(HieroFormatReader reader, ParsedChunk chunk) {
+    for (int i = 0; i < chunk.rules.length; i++) {
+      Rule rule = (chunk.rules[i] != null)
+          ? chunk.rules[i]
+          : reader.parseFields(chunk.fields[i], true);
+      if (rule != null)
+        addRule(rule);
+    }
+  }
+
+  private static ParsedChunk await(Future<ParsedChunk> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * The rules parsed from a chunk of lines. Lines with words that were not in the vocabulary yet
+   * are left split into fields, with a null rule, and those words are listed in the order in which
+   * they first occur.
+   */
+  private static class ParsedChunk {
+    final Rule[] rules;
+    final String[][] fields;
+    final Set<String> newWords = new LinkedHashSet<>();
+
+    ParsedChunk(HieroFormatReader reader, String[] lines, int size) {
+      this.rules = new Rule[size];
+      this.fields = new String[size][];
+      for (int i = 0; i < size; i++) {
+        fields[i] = reader.splitFields(lines[i]);
+        rules[i] = reader.parseFields(fields[i], newWords);
+        if (rules[i] != null)
+          fields[i] = null;
+      }
+    }
+  }
+
   // ===============================================================
   // Methods
   // ===============================================================
@@ -179,6 +323,15 @@ public class MemoryBasedBatchGrammar extends AbstractGrammar {
     return this.root;
   }
 
+  /**
+   * Converts the trie to its compact, array-based form (see {@link MemoryBasedTrie#compact()}).
+   * This is done once a grammar file has been loaded. Rules can still be added afterwards, but
+   * each new trie node is more expensive to add than before.
+   */
+  public void freeze() {
+    root.compact();
+  }
+
   /**
    * Adds a rule to the grammar.
    */
@@ -189,7 +342,7 @@ public class MemoryBasedBatchGrammar extends AbstractGrammar {
     rule.setOwner(owner);
 
     if (numDenseFeatures == 0)
-      numDenseFeatures = rule.getFeatureVector().getDenseFeatures().size();
+      numDenseFeatures = rule.getFeatureVector().getDenseSize();
 
     // === identify the position, and insert the trie nodes as necessary
     MemoryBasedTrie pos = root;
@@ -206,15 +359,7 @@ public class MemoryBasedBatchGrammar extends AbstractGrammar {
        * (logger.isLoggable(Level.FINEST)) logger.finest("Amended to: " + curSymID); }
        */
 
-      MemoryBasedTrie nextLayer = (MemoryBasedTrie) pos.match(curSymID);
-      if (null == nextLayer) {
-        nextLayer = new MemoryBasedTrie();
-        if (pos.hasExtensions() == false) {
-          pos.childrenTbl = new HashMap<>();
-        }
-        pos.childrenTbl.put(curSymID, nextLayer);
-      }
-      pos = nextLayer;
+      pos = pos.extend(curSymID);
     }
 
     // === add the rule into the trie node
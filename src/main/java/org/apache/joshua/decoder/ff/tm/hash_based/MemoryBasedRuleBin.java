@@ -18,6 +18,8 @@
  */
 package org.apache.joshua.decoder.ff.tm.hash_based;
 
+import java.util.ArrayList;
+
 import org.apache.joshua.decoder.ff.tm.BasicRuleCollection;
 import org.apache.joshua.decoder.ff.tm.Rule;
 
@@ -56,4 +58,12 @@ public class MemoryBasedRuleBin extends BasicRuleCollection {
     sorted = false;
     rule.setFrench(this.sourceTokens);
   }
+
+  /**
+   * Trims the list of rules to its size, once the grammar has been loaded.
+   */
+  void compact() {
+    if (rules instanceof ArrayList)
+      ((ArrayList<Rule>) rules).trimToSize();
+  }
 }
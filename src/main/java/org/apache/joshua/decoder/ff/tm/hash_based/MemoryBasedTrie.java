@@ -18,6 +18,7 @@
  */
 package org.apache.joshua.decoder.ff.tm.hash_based;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -26,33 +27,151 @@ import org.apache.joshua.decoder.ff.tm.RuleCollection;
 import org.apache.joshua.decoder.ff.tm.Trie;
 
 /**
+ * A trie node of an in-memory grammar.
+ *
+ * While a grammar is loading, the children of a node are kept in a HashMap. Once loading is done,
+ * {@link #compact()} moves them into a sorted array of word ids and an aligned array of child
+ * nodes, which {@link #match(int)} binary searches. This avoids the boxed keys and map entries of
+ * the HashMap and keeps each node's keys together in memory. A compacted node still accepts new
+ * children (e.g., OOV and custom rules), but each one costs a copy of the node's arrays. The two
+ * arrays are replaced together through a single volatile field, so a reader never pairs the keys
+ * of one version with the children of another.
+ *
  * @author Zhifei Li, zhifei.work@gmail.com
  */
 public class MemoryBasedTrie implements Trie {
   MemoryBasedRuleBin ruleBin = null;
   HashMap<Integer, MemoryBasedTrie> childrenTbl = null;
 
+  /* The children of a compacted node */
+  private volatile Children compactChildren = null;
+
+  /* Sorted word ids and the child for each, never changed once published */
+  private static final class Children {
+    final int[] keys;
+    final MemoryBasedTrie[] nodes;
+
+    Children(int[] keys, MemoryBasedTrie[] nodes) {
+      this.keys = keys;
+      this.nodes = nodes;
+    }
+  }
+
   public MemoryBasedTrie() {
   }
 
   @Override
   public Trie match(int wordID) {
+    Children compact = compactChildren;
+    if (compact != null) {
+      int index = Arrays.binarySearch(compact.keys, wordID);
+      return (index >= 0) ? compact.nodes[index] : null;
+    }
     if (childrenTbl != null)
       return childrenTbl.get(wordID);
     return null;
   }
 
+  /**
+   * Returns the child for the word, adding an empty one if there is none.
+   *
+   * @param wordID the word (or nonterminal) id
+   * @return the child node
+   */
+  MemoryBasedTrie extend(int wordID) {
+    if (compactChildren != null)
+      return extendCompact(wordID);
+
+    if (childrenTbl == null)
+      childrenTbl = new HashMap<>();
+    MemoryBasedTrie child = childrenTbl.get(wordID);
+    if (child == null) {
+      child = new MemoryBasedTrie();
+      childrenTbl.put(wordID, child);
+    }
+    return child;
+  }
+
+  /* Adds a child to a compacted node by publishing copies of its arrays with the child inserted */
+  private synchronized MemoryBasedTrie extendCompact(int wordID) {
+    Children compact = compactChildren;
+    int index = Arrays.binarySearch(compact.keys, wordID);
+    if (index >= 0)
+      return compact.nodes[index];
+
+    index = -index - 1;
+    int length = compact.keys.length;
+    MemoryBasedTrie child = new MemoryBasedTrie();
+    int[] newKeys = new int[length + 1];
+    MemoryBasedTrie[] newNodes = new MemoryBasedTrie[length + 1];
+    System.arraycopy(compact.keys, 0, newKeys, 0, index);
+    System.arraycopy(compact.nodes, 0, newNodes, 0, index);
+    newKeys[index] = wordID;
+    newNodes[index] = child;
+    System.arraycopy(compact.keys, index, newKeys, index + 1, length - index);
+    System.arraycopy(compact.nodes, index, newNodes, index + 1, length - index);
+    compactChildren = new Children(newKeys, newNodes);
+    return child;
+  }
+
+  /**
+   * Converts this node and all nodes below it to the compact, array-based representation, and
+   * trims the rule lists to their size.
+   */
+  public void compact() {
+    if (childrenTbl != null) {
+      int[] keys = new int[childrenTbl.size()];
+      int i = 0;
+      for (int key : childrenTbl.keySet())
+        keys[i++] = key;
+      Arrays.sort(keys);
+
+      MemoryBasedTrie[] nodes = new MemoryBasedTrie[keys.length];
+      for (i = 0; i < keys.length; i++)
+        nodes[i] = childrenTbl.get(keys[i]);
+      compactChildren = new Children(keys, nodes);
+      childrenTbl = null;
+    }
+
+    if (ruleBin != null)
+      ruleBin.compact();
+
+    Children compact = compactChildren;
+    if (compact != null)
+      for (MemoryBasedTrie child : compact.nodes)
+        child.compact();
+  }
+
+  /**
+   * @return true if the node's children are stored in the compact representation
+   */
+  public boolean isCompact() {
+    return compactChildren != null;
+  }
+
   /* See Javadoc for Trie interface. */
   public boolean hasExtensions() {
-    return (null != this.childrenTbl);
+    return (null != this.childrenTbl || null != this.compactChildren);
   }
 
+  /**
+   * Returns the children of this node. For a compacted node, this is a new map; changes to it are
+   * not reflected in the trie.
+   */
   public HashMap<Integer, MemoryBasedTrie> getChildren() {
+    Children compact = compactChildren;
+    if (compact != null) {
+      HashMap<Integer, MemoryBasedTrie> map = new HashMap<>(compact.keys.length * 2);
+      for (int i = 0; i < compact.keys.length; i++)
+        map.put(compact.keys[i], compact.nodes[i]);
+      return map;
+    }
     return this.childrenTbl;
   }
 
   public void setExtensions(HashMap<Integer, MemoryBasedTrie> tbl_children_) {
     this.childrenTbl = tbl_children_;
+    this.compactChildren = null;
   }
 
   /* See Javadoc for Trie interface. */
@@ -71,6 +190,9 @@ public class MemoryBasedTrie implements Trie {
 
   /* See Javadoc for Trie interface. */
   public Collection<MemoryBasedTrie> getExtensions() {
+    Children compact = compactChildren;
+    if (compact != null)
+      return Arrays.asList(compact.nodes);
     if (this.childrenTbl != null)
       return this.childrenTbl.values();
     return null;
@@ -78,11 +200,17 @@ public class MemoryBasedTrie implements Trie {
 
   @Override
   public Iterator<Integer> getTerminalExtensionIterator() {
+    Children compact = compactChildren;
+    if (compact != null)
+      return new ExtensionIterator(compact.keys, true);
     return new ExtensionIterator(childrenTbl, true);
   }
 
   @Override
   public Iterator<Integer> getNonterminalExtensionIterator() {
+    Children compact = compactChildren;
+    if (compact != null)
+      return new ExtensionIterator(compact.keys, false);
     return new ExtensionIterator(childrenTbl, false);
   }
 }
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.tm.packed;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A read-only array of ints backed by a memory-mapped file. A single mapped buffer is indexed by
+ * int and so cannot reach past 2 GB; this class maps the file in segments of at most 1 GB and
+ * indexes them with longs, so it can hold files of any size. The data lives off the heap in the
+ * page cache, where it is shared by every process that maps the same file.
+ *
+ * Reads are absolute and need no synchronization.
+ */
+public final class MappedIntArray {
+
+  /* Each segment holds 2^SEGMENT_BITS ints (1 GB) */
+  private static final int SEGMENT_BITS = 28;
+  private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+  private final IntBuffer[] segments;
+  private final long size;
+
+  /**
+   * Maps a file of big-endian ints, as written by {@link java.io.DataOutputStream}.
+   *
+   * @param file the file to map
+   * @throws IOException if the file cannot be mapped
+   */
+  public MappedIntArray(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel()) {
+      size = channel.size() / 4;
+      int numSegments = (int) ((size + SEGMENT_MASK) >>> SEGMENT_BITS);
+      segments = new IntBuffer[numSegments];
+      for (int i = 0; i < numSegments; i++) {
+        long first = (long) i << SEGMENT_BITS;
+        long length = Math.min(size - first, 1L << SEGMENT_BITS);
+        segments[i] = channel.map(MapMode.READ_ONLY, 4 * first, 4 * length).asIntBuffer();
+      }
+    }
+  }
+
+  /**
+   * @param index the index of an int in the file
+   * @return the int
+   */
+  public int get(long index) {
+    return segments[(int) (index >>> SEGMENT_BITS)].get((int) (index & SEGMENT_MASK));
+  }
+
+  /**
+   * Reads a long stored as two consecutive ints, high int first (as written by
+   * {@link java.io.DataOutputStream#writeLong(long)}).
+   *
+   * @param index the index of the high int
+   * @return the long
+   */
+  public long getLong(long index) {
+    return ((long) get(index) << 32) | (get(index + 1) & 0xffffffffL);
+  }
+
+  /**
+   * @return the number of ints in the file
+   */
+  public long size() {
+    return size;
+  }
+}
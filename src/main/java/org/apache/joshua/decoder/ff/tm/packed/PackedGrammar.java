@@ -51,22 +51,35 @@ package org.apache.joshua.decoder.ff.tm.packed;
  * The introduction of a SliceAggregatingTrie together with sorting the grammar by the full source string
  * (not just by the first source word) allows distributing rules with the same first source word
  * across multiple slices.
+ *
+ * *UPDATE 10/2026*
+ * From packer version 5 on, the source and target tries store their addresses as longs and are
+ * memory-mapped through {@link MappedIntArray} rather than copied onto the heap, so their size is
+ * no longer bounded by the size of a Java array. The feature and alignment data of a slice are
+ * still limited to 2 GB.
  * @author fhieber
  */
 
 import static java.util.Collections.sort;
+import static org.apache.joshua.decoder.ff.FeatureVector.DENSE_FEATURE_NAMES;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -76,14 +89,20 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.JoshuaConfiguration;
 import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.FeatureMap;
 import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.PhraseModel;
 import org.apache.joshua.decoder.ff.tm.AbstractGrammar;
 import org.apache.joshua.decoder.ff.tm.BasicRuleCollection;
 import org.apache.joshua.decoder.ff.tm.OwnerId;
+import org.apache.joshua.decoder.ff.tm.OwnerMap;
 import org.apache.joshua.decoder.ff.tm.Rule;
 import org.apache.joshua.decoder.ff.tm.RuleCollection;
 import org.apache.joshua.decoder.ff.tm.Trie;
@@ -105,7 +124,26 @@ public class PackedGrammar extends AbstractGrammar {
   private static final Logger LOG = LoggerFactory.getLogger(PackedGrammar.class);
   public static final String VOCABULARY_FILENAME = "vocabulary";
 
+  /* The prefix of the files that hold the sorted order of the grammar for some weights */
+  public static final String SORTED_ORDER_PREFIX = "sorted.";
+  private static final int SORTED_ORDER_VERSION = 2;
+
+  /* The number of sorted orders (i.e., sets of weights) kept next to a grammar */
+  static final int MAX_SORTED_ORDERS = 4;
+
   private EncoderConfiguration encoding;
+
+  /*
+   * For each inner feature id of the encoding, the index of the dense feature, or -1 for a sparse
+   * feature, whose FeatureMap id is then in sparseFeatureIds. Worked out once so that reading the
+   * features of a rule does not have to look up and parse feature names.
+   */
+  private int[] denseFeatureIndex;
+  private int[] sparseFeatureIds;
+
+  /* The weights of the grammar's features, for the PhraseModel they were last taken from */
+  private volatile FeatureWeights featureWeights = null;
+
   private PackedRoot root;
   private ArrayList<PackedSlice> slices;
 
@@ -119,6 +157,9 @@ public class PackedGrammar extends AbstractGrammar {
   
   private JoshuaConfiguration config;
 
+  /* The version of the packer that wrote the grammar, from its config file */
+  private int version = 2;
+
   public PackedGrammar(String grammar_dir, int span_limit, String owner, String type,
       JoshuaConfiguration joshuaConfiguration) throws IOException {
     super(owner, joshuaConfiguration, span_limit);
@@ -126,11 +167,16 @@ public class PackedGrammar extends AbstractGrammar {
     this.grammarDir = grammar_dir;
     this.config = joshuaConfiguration;
 
-    // Read the vocabulary.
+    // Read the vocabulary, unless it was already read (e.g., by the Decoder before loading its
+    // grammars concurrently); reading it again would drop the words added since.
     vocabFile = new File(grammar_dir + File.separator + VOCABULARY_FILENAME);
-    LOG.info("Reading vocabulary: {}", vocabFile);
-    if (!Vocabulary.read(vocabFile)) {
-      throw new RuntimeException("mismatches or collisions while reading on-disk vocabulary");
+    if (Vocabulary.contains(vocabFile)) {
+      LOG.info("Vocabulary {} is already loaded", vocabFile);
+    } else {
+      LOG.info("Reading vocabulary: {}", vocabFile);
+      if (!Vocabulary.read(vocabFile)) {
+        throw new RuntimeException("mismatches or collisions while reading on-disk vocabulary");
+      }
     }
 
     // Read the config
@@ -144,6 +190,7 @@ public class PackedGrammar extends AbstractGrammar {
     LOG.info("Reading encoder configuration: {}{}encoding", grammar_dir, File.separator);
     encoding = new EncoderConfiguration();
     encoding.load(grammar_dir + File.separator + "encoding");
+    initializeFeatureIds();
 
     final List<String> listing = Arrays.asList(new File(grammar_dir).list());
     sort(listing); // File.list() has arbitrary sort order
@@ -162,6 +209,72 @@ public class PackedGrammar extends AbstractGrammar {
     LOG.info("Loaded {} rules", count);
   }
 
+  /**
+   * Dense features are named by their index in the encoding; all other names are sparse features.
+   */
+  private void initializeFeatureIds() {
+    int numFeatures = encoding.getNumFeatures();
+    denseFeatureIndex = new int[numFeatures];
+    sparseFeatureIds = new int[numFeatures];
+    for (int innerId = 0; innerId < numFeatures; innerId++) {
+      // TODO (fhieber): why on earth are dense feature ids (ints) encoded in the vocabulary?
+      String featureName = Vocabulary.word(encoding.outerId(innerId));
+      try {
+        denseFeatureIndex[innerId] = Integer.parseInt(featureName);
+        sparseFeatureIds[innerId] = -1;
+      } catch (NumberFormatException e) {
+        denseFeatureIndex[innerId] = -1;
+        sparseFeatureIds[innerId] = FeatureMap.getFeatureId(featureName);
+      }
+    }
+  }
+
+  /**
+   * The weights that the {@link PhraseModel} scoring this grammar gives to each of its features,
+   * looked up by inner feature id so that rule costs can be computed straight from the features
+   * buffer.
+   */
+  private static final class FeatureWeights {
+    private final PhraseModel model;
+
+    /* By dense feature index */
+    private final float[] dense;
+
+    /* By inner feature id; 0 for dense features */
+    private final float[] sparse;
+
+    private FeatureWeights(PhraseModel model, int[] sparseFeatureIds) {
+      this.model = model;
+      this.dense = model.getDenseWeights();
+      this.sparse = new float[sparseFeatureIds.length];
+      FeatureVector weights = model.getWeights();
+      for (int innerId = 0; innerId < sparseFeatureIds.length; innerId++)
+        if (sparseFeatureIds[innerId] != -1)
+          sparse[innerId] = weights.getSparseById(sparseFeatureIds[innerId]);
+    }
+  }
+
+  /**
+   * Returns the weights of the grammar's features according to the first {@link PhraseModel} for
+   * this grammar's owner, or null if there is no such model.
+   */
+  private FeatureWeights getFeatureWeights(List<FeatureFunction> models) {
+    if (models == null)
+      return null;
+
+    for (FeatureFunction model : models) {
+      if (model instanceof PhraseModel && ((PhraseModel) model).getOwnerId().equals(owner)) {
+        FeatureWeights weights = featureWeights;
+        if (weights == null || weights.model != model) {
+          weights = new FeatureWeights((PhraseModel) model, sparseFeatureIds);
+          featureWeights = weights;
+        }
+        return weights;
+      }
+    }
+    return null;
+  }
+
   @Override
   public Trie getTrieRoot() {
     return root;
@@ -213,6 +326,175 @@ public class PackedGrammar extends AbstractGrammar {
     return sb.toString();
   }
 
+  /**
+   * Sorts the grammar, unless its sorted order was saved by an earlier run with the same features
+   * and weights, in which case that order is read instead. A newly computed order is saved.
+   */
+  @Override
+  public void sortGrammar(List<FeatureFunction> models) {
+    if (!loadSortedOrder(models)) {
+      super.sortGrammar(models);
+      saveSortedOrder(models);
+    }
+  }
+
+  @Override
+  public void sortGrammar(List<FeatureFunction> models, ForkJoinPool pool) {
+    if (!loadSortedOrder(models)) {
+      super.sortGrammar(models, pool);
+      saveSortedOrder(models);
+    }
+  }
+
+  /**
+   * Reads the sorted order of every trie node, along with the estimated costs of the rules, from
+   * the file saved for these features and weights by {@link #saveSortedOrder(List)}. Nothing is
+   * changed if there is no such file or it does not match the grammar.
+   *
+   * @param models the feature functions the grammar is to be sorted with
+   * @return true if the grammar is now sorted
+   */
+  public boolean loadSortedOrder(List<FeatureFunction> models) {
+    if (!config.sorted_order_cache)
+      return false;
+
+    File file = getSortedOrderFile(models);
+    if (!file.exists())
+      return false;
+
+    long startTime = System.currentTimeMillis();
+    List<PackedSlice.SortedOrder> orders = new ArrayList<>(slices.size());
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != SORTED_ORDER_VERSION || in.readInt() != slices.size())
+        throw new IOException("it was saved for a different grammar");
+      // Read the whole file before publishing anything, so a bad file leaves the grammar unsorted
+      for (PackedSlice slice : slices)
+        orders.add(slice.readSortedOrder(in));
+    } catch (IOException e) {
+      LOG.warn("Ignoring the sorted order in {}: {}", file, e.getMessage());
+      return false;
+    }
+
+    for (int i = 0; i < slices.size(); i++)
+      slices.get(i).publish(orders.get(i));
+    setSorted(true);
+    // Mark the order as recently used, so that it is the last to go (see saveSortedOrder)
+    file.setLastModified(System.currentTimeMillis());
+    LOG.info("Read the sorted order of {} from {} in {} ms", grammarDir, file.getName(),
+        System.currentTimeMillis() - startTime);
+    return true;
+  }
+
+  /**
+   * Saves the sorted order of every trie node next to the grammar, so that later runs with the
+   * same features and weights can skip sorting. Only the {@link #MAX_SORTED_ORDERS} most recently
+   * used orders are kept, so that tuning runs that change the weights every iteration do not fill
+   * up the grammar directory, while a few decoders with different weights can share it. Failing
+   * to save (e.g., because the directory is read-only) is not an error.
+   *
+   * @param models the feature functions the grammar was sorted with
+   */
+  public void saveSortedOrder(List<FeatureFunction> models) {
+    if (!config.sorted_order_cache || !isSorted())
+      return;
+
+    File file = getSortedOrderFile(models);
+    File tmp = null;
+    try {
+      tmp = File.createTempFile(SORTED_ORDER_PREFIX, ".tmp", new File(grammarDir));
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp)))) {
+        out.writeInt(SORTED_ORDER_VERSION);
+        out.writeInt(slices.size());
+        for (PackedSlice slice : slices)
+          slice.writeSortedOrder(out);
+      }
+      // Readers never see a partially written file
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      LOG.info("Saved the sorted order of {} to {}", grammarDir, file.getName());
+    } catch (IOException e) {
+      LOG.warn("Could not save the sorted order of {}: {}", grammarDir, e.getMessage());
+      if (tmp != null)
+        tmp.delete();
+      return;
+    }
+
+    File[] saved = new File(grammarDir).listFiles((dir, name) ->
+        name.startsWith(SORTED_ORDER_PREFIX) && !name.endsWith(".tmp"));
+    if (saved != null && saved.length > MAX_SORTED_ORDERS) {
+      // Least recently used last; the file just written is never removed
+      Arrays.sort(saved, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+      for (int i = MAX_SORTED_ORDERS; i < saved.length; i++) {
+        if (!saved[i].equals(file))
+          saved[i].delete();
+      }
+    }
+  }
+
+  /**
+   * The sorted order depends on everything that goes into the estimated cost of a rule: the
+   * grammar itself, the grammar's owner, the feature functions with their arguments, and the
+   * weights. The file name holds a digest of all of these. The grammar is identified by the name,
+   * size and modification time of each of its files, so that repacking it in the same directory
+   * (e.g., with different feature values) does not pick up the orders saved for the old packing.
+   */
+  private File getSortedOrderFile(List<FeatureFunction> models) {
+    StringBuilder key = new StringBuilder(OwnerMap.getOwner(owner));
+    appendGrammarFiles(key);
+    for (String feature : config.features)
+      key.append('\n').append(feature);
+
+    FeatureVector weights = null;
+    for (FeatureFunction model : models) {
+      key.append('\n').append(model.getClass().getName()).append(' ').append(model.getName());
+      if (model.getWeights() != weights) {
+        weights = model.getWeights();
+        appendWeights(key, weights);
+      }
+    }
+
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("Unknown checksum algorithm");
+    }
+    byte[] digest = md.digest(key.toString().getBytes(StandardCharsets.UTF_8));
+    StringBuilder name = new StringBuilder(SORTED_ORDER_PREFIX);
+    for (byte aDigest : digest)
+      name.append(Integer.toString((aDigest & 0xff) + 0x100, 16).substring(1));
+    return new File(grammarDir, name.toString());
+  }
+
+  /* Appends the name, size and modification time of every file of the packed grammar */
+  private void appendGrammarFiles(StringBuilder key) {
+    File[] files = new File(grammarDir).listFiles((dir, name) ->
+        !name.startsWith(SORTED_ORDER_PREFIX));
+    if (files == null)
+      return;
+    Arrays.sort(files);
+    for (File file : files) {
+      if (file.isFile())
+        key.append('\n').append(file.getName()).append(' ').append(file.length()).append(' ')
+            .append(file.lastModified());
+    }
+  }
+
+  /* Appends the exact value of every weight, in a fixed order */
+  private static void appendWeights(StringBuilder key, FeatureVector weights) {
+    if (weights == null)
+      return;
+    for (int i = 0; i < weights.getDenseSize(); i++)
+      key.append('\n').append(i < DENSE_FEATURE_NAMES.size() ? DENSE_FEATURE_NAMES.get(i) : i)
+          .append('=').append(Float.floatToIntBits(weights.getDense(i)));
+
+    List<String> names = new ArrayList<>(weights.keySet());
+    sort(names);
+    for (String name : names)
+      key.append('\n').append(name).append('=').append(Float.floatToIntBits(weights.getSparse(name)));
+  }
+
   /**
    * PackedRoot represents the root of the packed grammar trie.
    * Tries for different source-side firstwords are organized in
@@ -250,9 +532,9 @@ public class PackedGrammar extends AbstractGrammar {
       for (PackedSlice packedSlice : slices) {
 
         // number of tries stored in this packedSlice
-        final int num_children = packedSlice.source[0];
+        final int num_children = packedSlice.numChildren(0);
         for (int i = 0; i < num_children; i++) {
-          final int id = packedSlice.source[2 * i + 1];
+          final int id = packedSlice.childSymbol(0, i);
 
           /* aggregate tries with same root id
            * obtain a Trie node, already at the correct address in the packedSlice.
@@ -333,12 +615,21 @@ public class PackedGrammar extends AbstractGrammar {
   public final class PackedSlice {
     private final String name;
 
-    private final int[] source;
-    private final IntBuffer target;
+    /*
+     * The source trie and the target trie stay memory-mapped. Their addresses are counted in ints
+     * and are stored as longs from version 5 on, so a slice can be larger than 2 GB.
+     */
+    private final MappedIntArray source;
+    private final MappedIntArray target;
     private final ByteBuffer features;
     private final ByteBuffer alignments;
 
-    private final int[] targetLookup;
+    private final long[] targetLookup;
+
+    /* The number of ints taken up by an address, a link to a child, and a rule */
+    private final int addressSize;
+    private final int childSize;
+    private final int ruleSize;
     private int featureSize;
     private float[] estimated;
     private float[] precomputable;
@@ -346,9 +637,25 @@ public class PackedGrammar extends AbstractGrammar {
     private final static int BUFFER_HEADER_POSITION = 8;
 
     /**
-     * Provides a cache of packedTrie nodes to be used in getTrie.
+     * Provides a cache of packedTrie nodes to be used in getTrie. Its size is bounded by
+     * {@link JoshuaConfiguration#cachedTrieSize}; past that, nodes are created afresh on every
+     * access. This is safe because a node's state (its sorted rule order) is kept in sortedRules.
+     */
+    private final ConcurrentHashMap<Long, PackedTrie> tries;
+
+    /*
+     * The number of nodes in the trie cache. Kept apart because ConcurrentHashMap.size() sums all
+     * of its counter cells, which is too slow for every cache miss.
+     */
+    private final AtomicInteger cachedTries = new AtomicInteger();
+
+    /**
+     * The sorted order of the rules of each node that has been sorted, keyed by the node's
+     * position in the source trie. Each value holds the indices of the node's rules, best rule
+     * first. The source trie itself is never modified, so rules created before a node was sorted
+     * stay valid.
      */
-    private HashMap<Integer, PackedTrie> tries;
+    private final ConcurrentHashMap<Long, int[]> sortedRules;
 
     public PackedSlice(String prefix) throws IOException {
       name = prefix;
@@ -359,11 +666,13 @@ public class PackedGrammar extends AbstractGrammar {
       File feature_file = new File(prefix + ".features");
       File alignment_file = new File(prefix + ".alignments");
 
-      source = fullyLoadFileToArray(source_file);
-      // First int specifies the size of this file, load from 1st int on
-      targetLookup = fullyLoadFileToArray(target_lookup_file, 1);
+      addressSize = (version >= 5) ? 2 : 1;
+      childSize = 1 + addressSize;
+      ruleSize = 2 + addressSize;
 
-      target = associateMemoryMappedFile(target_file).asIntBuffer();
+      source = new MappedIntArray(source_file);
+      target = new MappedIntArray(target_file);
+      targetLookup = readTargetLookup(target_lookup_file);
       features = associateMemoryMappedFile(feature_file);
       initializeFeatureStructures();
 
@@ -373,7 +682,8 @@ public class PackedGrammar extends AbstractGrammar {
         alignments = null;
       }
 
-      tries = new HashMap<>();
+      tries = new ConcurrentHashMap<>();
+      sortedRules = new ConcurrentHashMap<>();
     }
 
     /**
@@ -389,33 +699,158 @@ public class PackedGrammar extends AbstractGrammar {
       featureSize = features.getInt(4);
     }
 
+    /**
+     * The sorted order of a slice as read from disk, not yet published.
+     */
+    private final class SortedOrder {
+      private final float[] estimated;
+      private final float[] precomputable;
+      private final Map<Long, int[]> rules;
+
+      private SortedOrder(float[] estimated, float[] precomputable, Map<Long, int[]> rules) {
+        this.estimated = estimated;
+        this.precomputable = precomputable;
+        this.rules = rules;
+      }
+    }
+
+    /**
+     * Writes the estimated costs of the rules and the sorted order of every sorted node.
+     */
+    private void writeSortedOrder(DataOutputStream out) throws IOException {
+      out.writeLong(source.size());
+      out.writeInt(estimated.length);
+      for (int i = 0; i < estimated.length; i++) {
+        out.writeFloat(estimated[i]);
+        out.writeFloat(precomputable[i]);
+      }
+
+      List<Long> positions = new ArrayList<>(sortedRules.keySet());
+      sort(positions);
+      out.writeInt(positions.size());
+      for (long position : positions) {
+        int[] order = sortedRules.get(position);
+        out.writeLong(position);
+        out.writeInt(order.length);
+        for (int rule : order)
+          out.writeInt(rule);
+      }
+    }
+
+    /**
+     * Reads what {@link #writeSortedOrder(DataOutputStream)} wrote, checking that it fits this
+     * slice.
+     */
+    private SortedOrder readSortedOrder(DataInputStream in) throws IOException {
+      if (in.readLong() != source.size() || in.readInt() != estimated.length)
+        throw new IOException("it was saved for a different grammar");
+
+      float[] estimated = new float[this.estimated.length];
+      float[] precomputable = new float[this.precomputable.length];
+      for (int i = 0; i < estimated.length; i++) {
+        estimated[i] = in.readFloat();
+        precomputable[i] = in.readFloat();
+      }
+
+      int num_nodes = in.readInt();
+      Map<Long, int[]> rules = new HashMap<>(2 * num_nodes);
+      for (int n = 0; n < num_nodes; n++) {
+        long position = in.readLong();
+        if (position < 0 || position >= source.size())
+          throw new IOException("it was saved for a different grammar");
+        long rulesPosition = rulesPosition(position);
+        if (rulesPosition < 0 || rulesPosition >= source.size())
+          throw new IOException("it was saved for a different grammar");
+
+        // The order must be a permutation of exactly the node's rules
+        int num_rules = in.readInt();
+        if (num_rules != numRules(position))
+          throw new IOException("it was saved for a different grammar");
+        int[] order = new int[num_rules];
+        boolean[] seen = new boolean[order.length];
+        for (int i = 0; i < order.length; i++) {
+          order[i] = in.readInt();
+          if (order[i] < 0 || order[i] >= order.length || seen[order[i]])
+            throw new IOException("it was saved for a different grammar");
+          seen[order[i]] = true;
+        }
+        rules.put(position, order);
+      }
+      return new SortedOrder(estimated, precomputable, rules);
+    }
+
+    /**
+     * Makes the sorted order visible to the trie nodes. The costs are stored before the order is
+     * published, as in {@link PackedTrie#sortRules(List)}.
+     */
+    private void publish(SortedOrder order) {
+      System.arraycopy(order.estimated, 0, estimated, 0, estimated.length);
+      System.arraycopy(order.precomputable, 0, precomputable, 0, precomputable.length);
+      for (Map.Entry<Long, int[]> entry : order.rules.entrySet())
+        sortedRules.putIfAbsent(entry.getKey(), entry.getValue());
+    }
+
     private int getIntFromByteBuffer(int position, ByteBuffer buffer) {
       return buffer.getInt(BUFFER_HEADER_POSITION + (4 * position));
     }
 
-    private int[] fullyLoadFileToArray(File file) throws IOException {
-      return fullyLoadFileToArray(file, 0);
+    /**
+     * Reads the table of where each level of the target trie ends. The first int in the file is
+     * the number of levels; the addresses follow.
+     */
+    private long[] readTargetLookup(File file) throws IOException {
+      MappedIntArray lookup = new MappedIntArray(file);
+      long[] levels = new long[lookup.get(0)];
+      for (int i = 0; i < levels.length; i++)
+        levels[i] = readAddress(lookup, 1 + (long) addressSize * i);
+      return levels;
     }
 
-    /**
-     * This function will use a bulk loading method to fully populate a target
-     * array from file.
-     *
-     * @param file
-     *          File that will be read from disk.
-     * @param startIndex
-     *          an offset into the read file.
-     * @return an int array of size length(file) - offset containing ints in the
-     *         file.
-     * @throws IOException
+    private long readAddress(MappedIntArray array, long index) {
+      return (addressSize == 2) ? array.getLong(index) : array.get(index);
+    }
+
+    /*
+     * A source trie node is laid out as: the number of children; a (symbol, address) link to each
+     * child, in descending order of symbol; the number of rules; and a (lhs, target address,
+     * feature block) entry for each rule.
      */
-    private int[] fullyLoadFileToArray(File file, int startIndex) throws IOException {
-      IntBuffer buffer = associateMemoryMappedFile(file).asIntBuffer();
-      int size = (int) (file.length() - (4 * startIndex))/4;
-      int[] result = new int[size];
-      buffer.position(startIndex);
-      buffer.get(result, 0, size);
-      return result;
+
+    private int numChildren(long position) {
+      return source.get(position);
+    }
+
+    private int childSymbol(long position, int child) {
+      return source.get(position + 1 + (long) childSize * child);
+    }
+
+    private long childAddress(long position, int child) {
+      return readAddress(source, position + 2 + (long) childSize * child);
+    }
+
+    /* The position of the number of rules of a node */
+    private long rulesPosition(long position) {
+      return position + 1 + (long) childSize * numChildren(position);
+    }
+
+    private int numRules(long position) {
+      return source.get(rulesPosition(position));
+    }
+
+    private long ruleAddress(long position, int rule) {
+      return rulesPosition(position) + 1 + (long) ruleSize * rule;
+    }
+
+    private int ruleLhs(long address) {
+      return source.get(address);
+    }
+
+    private long ruleTarget(long address) {
+      return readAddress(source, address + 1);
+    }
+
+    private int ruleBlock(long address) {
+      return source.get(address + 1 + addressSize);
     }
 
     private ByteBuffer associateMemoryMappedFile(File file) throws IOException {
@@ -426,39 +861,54 @@ public class PackedGrammar extends AbstractGrammar {
       }
     }
 
-    private int[] getTarget(int pointer) {
+    /**
+     * Reads a target side by following the upward-pointing target trie from the given node. Each
+     * node is laid out as the address of its parent (-1 at the root), followed by its symbol.
+     */
+    private int[] getTarget(long pointer) {
       // Figure out level.
       int tgt_length = 1;
-      while (tgt_length < (targetLookup.length + 1) && targetLookup[tgt_length] <= pointer)
+      while (tgt_length < targetLookup.length && targetLookup[tgt_length] <= pointer)
         tgt_length++;
       int[] tgt = new int[tgt_length];
       int index = 0;
-      int parent;
+      long parent;
       do {
-        parent = target.get(pointer);
+        parent = readAddress(target, pointer);
         if (parent != -1)
-          tgt[index++] = target.get(pointer + 1);
+          tgt[index++] = target.get(pointer + addressSize);
         pointer = parent;
       } while (pointer != -1);
       return tgt;
     }
 
-    private synchronized PackedTrie getTrie(final int node_address) {
+    private PackedTrie getTrie(final long node_address) {
       PackedTrie t = tries.get(node_address);
-      if (t == null) {
-        t = new PackedTrie(node_address);
-        tries.put(node_address, t);
-      }
+      if (t == null)
+        t = cacheTrie(new PackedTrie(node_address));
       return t;
     }
 
-    private synchronized PackedTrie getTrie(int node_address, int[] parent_src, int parent_arity,
+    private PackedTrie getTrie(long node_address, int[] parent_src, int parent_arity,
         int symbol) {
       PackedTrie t = tries.get(node_address);
-      if (t == null) {
-        t = new PackedTrie(node_address, parent_src, parent_arity, symbol);
-        tries.put(node_address, t);
-      }
+      if (t == null)
+        t = cacheTrie(new PackedTrie(node_address, parent_src, parent_arity, symbol));
+      return t;
+    }
+
+    /**
+     * Adds a newly created node to the cache, unless the cache is full. If another thread cached
+     * the same node first, that thread's node is returned instead. Threads that race past the
+     * size check may overshoot the bound by a few nodes.
+     */
+    private PackedTrie cacheTrie(PackedTrie t) {
+      if (cachedTries.get() >= config.cachedTrieSize)
+        return t;
+      PackedTrie existing = tries.putIfAbsent(t.position, t);
+      if (existing != null)
+        return existing;
+      cachedTries.incrementAndGet();
       return t;
     }
 
@@ -477,21 +927,15 @@ public class PackedGrammar extends AbstractGrammar {
       featurePosition += EncoderConfiguration.ID_SIZE;
       final FeatureVector featureVector = new FeatureVector();
       FloatEncoder encoder;
-      String featureName;
 
       for (int i = 0; i < numFeatures; i++) {
         final int innerId = encoding.readId(features, featurePosition);
-        final int outerId = encoding.outerId(innerId);
         encoder = encoding.encoder(innerId);
-        // TODO (fhieber): why on earth are dense feature ids (ints) encoded in the vocabulary?
-        featureName = Vocabulary.word(outerId);
         final float value = encoder.read(features, featurePosition);
-        try {
-          int index = Integer.parseInt(featureName);
-          featureVector.increment(index, -value);
-        } catch (NumberFormatException e) {
-          featureVector.increment(featureName, value);
-        }
+        if (denseFeatureIndex[innerId] != -1)
+          featureVector.increment(denseFeatureIndex[innerId], -value);
+        else
+          featureVector.incrementSparseById(sparseFeatureIds[innerId], value);
         featurePosition += EncoderConfiguration.ID_SIZE + encoder.size();
       }
 
@@ -499,30 +943,64 @@ public class PackedGrammar extends AbstractGrammar {
     }
 
     /**
-     * We need to synchronize this method as there is a many to one ratio between
-     * PackedRule/PhrasePair and this class (PackedSlice). This means during concurrent first
-     * getAlignments calls to PackedRule objects they could alter each other's positions within the
-     * buffer before calling read on the buffer.
+     * Computes the precomputable cost of a rule (see {@link Rule#setPrecomputableCost}) directly
+     * from the features buffer, without building its FeatureVector. The dense terms are summed in
+     * index order, as Rule does.
+     *
+     * @param block_id the rule's feature block
+     * @param weights the weights of the grammar's features
+     * @param denseValues scratch space with one zeroed entry per dense weight; left zeroed
+     * @return the inner product of the rule's features and the weights
+     */
+    private float computePrecomputableCost(int block_id, FeatureWeights weights,
+        float[] denseValues) {
+      int featurePosition = getIntFromByteBuffer(block_id, features);
+      final int numFeatures = encoding.readId(features, featurePosition);
+      featurePosition += EncoderConfiguration.ID_SIZE;
+
+      float sparseCost = 0.0f;
+      for (int i = 0; i < numFeatures; i++) {
+        final int innerId = encoding.readId(features, featurePosition);
+        final FloatEncoder encoder = encoding.encoder(innerId);
+        final float value = encoder.read(features, featurePosition);
+        final int index = denseFeatureIndex[innerId];
+        if (index == -1)
+          sparseCost += value * weights.sparse[innerId];
+        else if (index < denseValues.length)
+          denseValues[index] -= value;
+        featurePosition += EncoderConfiguration.ID_SIZE + encoder.size();
+      }
+
+      float cost = 0.0f;
+      for (int i = 0; i < denseValues.length; i++) {
+        cost += weights.dense[i] * denseValues[i];
+        denseValues[i] = 0.0f;
+      }
+      return cost + sparseCost;
+    }
+
+    /**
+     * There is a many to one ratio between PackedRule/PhrasePair and this class (PackedSlice), so
+     * concurrent first getAlignments calls to PackedRule objects must not share the buffer's
+     * position. We therefore only use absolute reads, which need no synchronization.
      */
-    private synchronized byte[] getAlignmentArray(int block_id) {
+    private byte[] getAlignmentArray(int block_id) {
       if (alignments == null)
         throw new RuntimeException("No alignments available.");
       int alignment_position = getIntFromByteBuffer(block_id, alignments);
       int num_points = alignments.get(alignment_position);
       byte[] alignment = new byte[num_points * 2];
 
-      alignments.position(alignment_position + 1);
-      try {
-        alignments.get(alignment, 0, num_points * 2);
-      } catch (BufferUnderflowException bue) {
+      if (alignment_position + 1 + alignment.length > alignments.limit()) {
         LOG.warn("Had an exception when accessing alignment mapped byte buffer");
         LOG.warn("Attempting to access alignments at position: {}",  alignment_position + 1);
         LOG.warn("And to read this many bytes: {}",  num_points * 2);
         LOG.warn("Buffer capacity is : {}", alignments.capacity());
-        LOG.warn("Buffer position is : {}", alignments.position());
         LOG.warn("Buffer limit is : {}", alignments.limit());
-        throw bue;
+        throw new BufferUnderflowException();
       }
+      for (int i = 0; i < alignment.length; i++)
+        alignment[i] = alignments.get(alignment_position + 1 + i);
       return alignment;
     }
 
@@ -536,7 +1014,7 @@ public class PackedGrammar extends AbstractGrammar {
     }
 
     /**
-     * A trie node within the grammar slice. Identified by its position within the source array,
+     * A trie node within the grammar slice. Identified by its position within the source trie,
      * and, as a supplement, the source string leading from the trie root to the node.
      *
      * @author jg
@@ -544,20 +1022,21 @@ public class PackedGrammar extends AbstractGrammar {
      */
     public class PackedTrie implements Trie, RuleCollection {
 
-      private final int position;
+      private final long position;
 
-      private boolean sorted = false;
+      /* The indices of the rules in sorted order, read through from sortedRules once known */
+      private volatile int[] sortedOrder = null;
 
       private final int[] src;
       private int arity;
 
-      private PackedTrie(int position) {
+      private PackedTrie(long position) {
         this.position = position;
         src = new int[0];
         arity = 0;
       }
 
-      private PackedTrie(int position, int[] parent_src, int parent_arity, int symbol) {
+      private PackedTrie(long position, int[] parent_src, int parent_arity, int symbol) {
         this.position = position;
         src = new int[parent_src.length + 1];
         System.arraycopy(parent_src, 0, src, 0, parent_src.length);
@@ -569,19 +1048,18 @@ public class PackedGrammar extends AbstractGrammar {
 
       @Override
       public final Trie match(int token_id) {
-        int num_children = source[position];
+        int num_children = numChildren(position);
         if (num_children == 0)
           return null;
-        if (num_children == 1 && token_id == source[position + 1])
-          return getTrie(source[position + 2], src, arity, token_id);
+        if (num_children == 1 && token_id == childSymbol(position, 0))
+          return getTrie(childAddress(position, 0), src, arity, token_id);
         int top = 0;
         int bottom = num_children - 1;
         while (true) {
           int candidate = (top + bottom) / 2;
-          int candidate_position = position + 1 + 2 * candidate;
-          int read_token = source[candidate_position];
+          int read_token = childSymbol(position, candidate);
           if (read_token == token_id) {
-            return getTrie(source[candidate_position + 1], src, arity, token_id);
+            return getTrie(childAddress(position, candidate), src, arity, token_id);
           } else if (top == bottom) {
             return null;
           } else if (read_token > token_id) {
@@ -597,29 +1075,27 @@ public class PackedGrammar extends AbstractGrammar {
       @Override
       public HashMap<Integer, ? extends Trie> getChildren() {
         HashMap<Integer, Trie> children = new HashMap<>();
-        int num_children = source[position];
+        int num_children = numChildren(position);
         for (int i = 0; i < num_children; i++) {
-          int symbol = source[position + 1 + 2 * i];
-          int address = source[position + 2 + 2 * i];
-          children.put(symbol, getTrie(address, src, arity, symbol));
+          int symbol = childSymbol(position, i);
+          children.put(symbol, getTrie(childAddress(position, i), src, arity, symbol));
         }
         return children;
       }
 
       @Override
       public boolean hasExtensions() {
-        return (source[position] != 0);
+        return (numChildren(position) != 0);
       }
 
       @Override
       public ArrayList<? extends Trie> getExtensions() {
-        int num_children = source[position];
+        int num_children = numChildren(position);
         ArrayList<PackedTrie> tries = new ArrayList<>(num_children);
 
         for (int i = 0; i < num_children; i++) {
-          int symbol = source[position + 1 + 2 * i];
-          int address = source[position + 2 + 2 * i];
-          tries.add(getTrie(address, src, arity, symbol));
+          int symbol = childSymbol(position, i);
+          tries.add(getTrie(childAddress(position, i), src, arity, symbol));
         }
 
         return tries;
@@ -627,8 +1103,7 @@ public class PackedGrammar extends AbstractGrammar {
 
       @Override
       public boolean hasRules() {
-        int num_children = source[position];
-        return (source[position + 1 + 2 * num_children] != 0);
+        return (numRules(position) != 0);
       }
 
       @Override
@@ -643,71 +1118,99 @@ public class PackedGrammar extends AbstractGrammar {
           return rules;
         }
 
-        int num_children = source[position];
-        int rule_position = position + 2 * (num_children + 1);
-        int num_rules = source[rule_position - 1];
+        int num_rules = numRules(position);
+        long first_rule = ruleAddress(position, 0);
 
+        int[] order = getSortedOrder();
         rules = new ArrayList<>(num_rules);
         for (int i = 0; i < num_rules; i++) {
-          rules.add(new PackedRule(rule_position + 3 * i));
+          int rule = (order != null) ? order[i] : i;
+          rules.add(new PackedRule(first_rule + (long) ruleSize * rule));
         }
 
         cached_rules.put(this, rules);
+        if (order == null && isSorted()) {
+          // The node was sorted while we were reading it; don't leave the unsorted list behind
+          cached_rules.invalidate(this);
+        }
         return rules;
       }
 
       /**
-       * We determine if the Trie is sorted by checking if the estimated cost of the first rule in
-       * the trie has been set.
+       * We determine if the Trie is sorted by checking whether the sorted order of its rules has
+       * been published.
        */
       @Override
       public boolean isSorted() {
-        return sorted;
+        return getSortedOrder() != null;
       }
 
-      private synchronized void sortRules(List<FeatureFunction> models) {
-        int num_children = source[position];
-        int rule_position = position + 2 * (num_children + 1);
-        int num_rules = source[rule_position - 1];
-        if (num_rules == 0) {
-          this.sorted = true;
-          return;
+      private int[] getSortedOrder() {
+        int[] order = sortedOrder;
+        if (order == null) {
+          order = sortedRules.get(position);
+          if (order != null)
+            sortedOrder = order;
         }
+        return order;
+      }
+
+      /**
+       * Sorts the rules by their estimated cost. No lock is taken: threads that find the node
+       * unsorted at the same time each compute the (identical) order, and the first one to publish
+       * it in sortedRules wins. The estimated costs are stored before the order is published, so
+       * anyone who sees the order also sees the costs.
+       */
+      private int[] sortRules(List<FeatureFunction> models) {
+        int num_rules = numRules(position);
+
         Integer[] rules = new Integer[num_rules];
+        int[] blocks = new int[num_rules];
+
+        FeatureWeights weights = getFeatureWeights(models);
+        float[] denseValues = (weights != null) ? new float[weights.dense.length] : null;
 
-        int target_address;
-        int block_id;
         for (int i = 0; i < num_rules; ++i) {
-          target_address = source[rule_position + 1 + 3 * i];
-          rules[i] = rule_position + 2 + 3 * i;
-          block_id = source[rules[i]];
-
-          Rule rule = new Rule(source[rule_position + 3 * i], src,
-              getTarget(target_address), loadFeatureVector(block_id), arity, owner);
-          estimated[block_id] = rule.estimateRuleCost(models);
-          precomputable[block_id] = rule.getPrecomputableCost();
+          rules[i] = i;
+          long address = ruleAddress(position, i);
+          blocks[i] = ruleBlock(address);
+
+          /*
+           * The PhraseModel finds the precomputable cost already in place, so the rule's
+           * FeatureVector is only read if some other feature function asks for it.
+           */
+          if (weights != null)
+            precomputable[blocks[i]] = computePrecomputableCost(blocks[i], weights, denseValues);
+
+          float cost = 0.0f;
+          if (models != null) {
+            Rule rule = new PackedRule(address);
+            for (FeatureFunction model : models)
+              cost += model.estimateCost(rule);
+          }
+          estimated[blocks[i]] = cost;
         }
 
         Arrays.sort(rules, (a, b) -> {
-          float a_cost = estimated[source[a]];
-          float b_cost = estimated[source[b]];
+          float a_cost = estimated[blocks[a]];
+          float b_cost = estimated[blocks[b]];
           if (a_cost == b_cost)
             return 0;
           return (a_cost > b_cost ? -1 : 1);
         });
 
-        int[] sorted = new int[3 * num_rules];
-        int j = 0;
-        for (Integer address : rules) {
-          sorted[j++] = source[address - 2];
-          sorted[j++] = source[address - 1];
-          sorted[j++] = source[address];
-        }
-        System.arraycopy(sorted, 0, source, rule_position + 0, sorted.length);
+        int[] sorted = new int[num_rules];
+        for (int i = 0; i < num_rules; i++)
+          sorted[i] = rules[i];
 
-        // Replace rules in cache with their sorted values on next getRules()
-        cached_rules.invalidate(this);
-        this.sorted = true;
+        int[] published = sortedRules.putIfAbsent(position, sorted);
+        if (published == null) {
+          published = sorted;
+          // Replace rules in cache with their sorted values on next getRules()
+          cached_rules.invalidate(this);
+        }
+        sortedOrder = published;
+        return published;
       }
 
       @Override
@@ -717,6 +1220,27 @@ public class PackedGrammar extends AbstractGrammar {
         return getRules();
       }
 
+      /**
+       * Nodes are identified by their slice and position, so that a node that was dropped from
+       * (or never made it into) the trie cache still finds its cached rules.
+       */
+      @Override
+      public boolean equals(Object other) {
+        if (!(other instanceof PackedTrie))
+          return false;
+        PackedTrie that = (PackedTrie) other;
+        return position == that.position && getSlice() == that.getSlice();
+      }
+
+      @Override
+      public int hashCode() {
+        return 31 * System.identityHashCode(getSlice()) + Long.hashCode(position);
+      }
+
+      private PackedSlice getSlice() {
+        return PackedSlice.this;
+      }
+
       @Override
       public int[] getSourceSide() {
         return src;
@@ -737,20 +1261,26 @@ public class PackedGrammar extends AbstractGrammar {
         return new PackedChildIterator(position, false);
       }
 
+      /**
+       * Iterates over the symbols of a node's children. Children are stored in descending order of
+       * their symbols, so terminals (positive ids) come first and nonterminals (negative ids) last.
+       */
       public final class PackedChildIterator implements Iterator<Integer> {
 
+        private final long position;
         private int current;
         private final boolean terminal;
         private boolean done;
         private int last;
 
-        PackedChildIterator(int position, boolean terminal) {
+        PackedChildIterator(long position, boolean terminal) {
+          this.position = position;
           this.terminal = terminal;
-          int num_children = source[position];
+          int num_children = numChildren(position);
           done = (num_children == 0);
           if (!done) {
-            current = (terminal ? position + 1 : position - 1 + 2 * num_children);
-            last = (terminal ? position - 1 + 2 * num_children : position + 1);
+            current = (terminal ? 0 : num_children - 1);
+            last = (terminal ? num_children - 1 : 0);
           }
         }
 
@@ -758,22 +1288,23 @@ public class PackedGrammar extends AbstractGrammar {
         public boolean hasNext() {
           if (done)
             return false;
-          int next = (terminal ? current + 2 : current - 2);
+          int next = (terminal ? current + 1 : current - 1);
           if (next == last)
             return false;
-          return (terminal ? source[next] > 0 : source[next] < 0);
+          return (terminal ? childSymbol(position, next) > 0 : childSymbol(position, next) < 0);
         }
 
         @Override
         public Integer next() {
           if (done)
             throw new RuntimeException("No more symbols!");
-          int symbol = source[current];
+          int symbol = childSymbol(position, current);
           if (current == last)
             done = true;
           if (!done) {
-            current = (terminal ? current + 2 : current - 2);
-            done = (terminal ? source[current] < 0 : source[current] > 0);
+            current = (terminal ? current + 1 : current - 1);
+            done = (terminal ? childSymbol(position, current) < 0
+                : childSymbol(position, current) > 0);
           }
           return symbol;
         }
@@ -799,7 +1330,7 @@ public class PackedGrammar extends AbstractGrammar {
         private final Supplier<int[]> englishSupplier;
         private final Supplier<byte[]> alignmentSupplier;
 
-        public PackedPhrasePair(int address) {
+        public PackedPhrasePair(long address) {
           super(address);
           englishSupplier = initializeEnglishSupplier();
           alignmentSupplier = initializeAlignmentSupplier();
@@ -821,7 +1352,7 @@ public class PackedGrammar extends AbstractGrammar {
 
         private Supplier<int[]> initializeEnglishSupplier(){
           return Suppliers.memoize(() ->{
-            int[] phrase = getTarget(source[address + 1]);
+            int[] phrase = getTarget(ruleTarget(address));
             int[] tgt = new int[phrase.length + 1];
             tgt[0] = -1;
             for (int i = 0; i < phrase.length; i++)
@@ -832,7 +1363,7 @@ public class PackedGrammar extends AbstractGrammar {
 
         private Supplier<byte[]> initializeAlignmentSupplier(){
           return Suppliers.memoize(() ->{
-            byte[] raw_alignment = getAlignmentArray(source[address + 2]);
+            byte[] raw_alignment = getAlignmentArray(ruleBlock(address));
             byte[] points = new byte[raw_alignment.length + 2];
             points[0] = points[1] = 0;
             for (int i = 0; i < raw_alignment.length; i++)
@@ -882,12 +1413,12 @@ public class PackedGrammar extends AbstractGrammar {
       }
 
       public class PackedRule extends Rule {
-        protected final int address;
+        protected final long address;
         private final Supplier<int[]> englishSupplier;
         private final Supplier<FeatureVector> featureVectorSupplier;
         private final Supplier<byte[]> alignmentsSupplier;
 
-        public PackedRule(int address) {
+        public PackedRule(long address) {
           this.address = address;
           this.englishSupplier = intializeEnglishSupplier();
           this.featureVectorSupplier = initializeFeatureVectorSupplier();
@@ -896,13 +1427,13 @@ public class PackedGrammar extends AbstractGrammar {
 
         private Supplier<int[]> intializeEnglishSupplier(){
           return Suppliers.memoize(() ->{
-            return getTarget(source[address + 1]);
+            return getTarget(ruleTarget(address));
           });
         }
 
         private Supplier<FeatureVector> initializeFeatureVectorSupplier(){
           return Suppliers.memoize(() ->{
-            return loadFeatureVector(source[address + 2]);
+            return loadFeatureVector(ruleBlock(address));
          });
         }
 
@@ -912,7 +1443,7 @@ public class PackedGrammar extends AbstractGrammar {
             if (alignments == null){
               return null;
             }
-            return getAlignmentArray(source[address + 2]);
+            return getAlignmentArray(ruleBlock(address));
           });
         }
 
@@ -940,7 +1471,7 @@ public class PackedGrammar extends AbstractGrammar {
 
         @Override
         public int getLHS() {
-          return source[address];
+          return ruleLhs(address);
         }
 
         @Override
@@ -978,22 +1509,22 @@ public class PackedGrammar extends AbstractGrammar {
 
         @Override
         public float getEstimatedCost() {
-          return estimated[source[address + 2]];
+          return estimated[ruleBlock(address)];
         }
 
 //        @Override
 //        public void setPrecomputableCost(float cost) {
-//          precomputable[source[address + 2]] = cost;
+//          precomputable[ruleBlock(address)] = cost;
 //        }
 
         @Override
         public float getPrecomputableCost() {
-          return precomputable[source[address + 2]];
+          return precomputable[ruleBlock(address)];
         }
 
         @Override
         public float estimateRuleCost(List<FeatureFunction> models) {
-          return estimated[source[address + 2]];
+          return estimated[ruleBlock(address)];
         }
 
         @Override
@@ -1036,8 +1567,6 @@ public class PackedGrammar extends AbstractGrammar {
    * @throws IOException
    */
   private void readConfig(String config) throws IOException {
-    int version = 2;
-
     for (String line: new LineReader(config)) {
       String[] tokens = line.split(" = ");
       if (tokens[0].equals("max-source-len"))
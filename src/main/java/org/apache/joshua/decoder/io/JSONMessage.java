@@ -75,6 +75,8 @@ public class JSONMessage {
     String viterbi = translation.getStructuredTranslations().get(0).getFormattedTranslationString();
     
     TranslationItem item = addTranslation(viterbi);
+    if (translation.isDegraded())
+      item.degraded = true;
 
     for (StructuredTranslation hyp: translation.getStructuredTranslations()) {
       String text = hyp.getTranslationString();
@@ -121,6 +123,9 @@ public class JSONMessage {
   public class TranslationItem {
     public final String translatedText;
     public final List<NBestItem> raw_nbest;
+
+    /* Set (only) if the search ran out of time; see Translation.isDegraded() */
+    public Boolean degraded = null;
     
     public TranslationItem(String value) {
       this.translatedText = value;
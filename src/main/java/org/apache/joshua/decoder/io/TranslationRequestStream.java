@@ -24,6 +24,7 @@ import java.io.Reader;
 
 import com.google.gson.stream.JsonReader;
 
+import org.apache.joshua.decoder.DecoderScheduler;
 import org.apache.joshua.decoder.JoshuaConfiguration;
 import org.apache.joshua.decoder.JoshuaConfiguration.INPUT_TYPE;
 import org.apache.joshua.decoder.segment_file.Sentence;
@@ -57,6 +58,9 @@ public class TranslationRequestStream {
   /* Whether the request has been killed by a broken client connection. */
   private volatile boolean isShutDown = false;
 
+  /* How many sentences this request may decode per turn when competing with other requests */
+  private int priority = DecoderScheduler.DEFAULT_PRIORITY;
+
   public TranslationRequestStream(BufferedReader reader, JoshuaConfiguration joshuaConfiguration) {
     this.joshuaConfiguration = joshuaConfiguration;
     
@@ -174,4 +178,19 @@ public class TranslationRequestStream {
   public boolean isShutDown() {
     return isShutDown;
   }
+
+  /**
+   * Sets the scheduling priority of this request. When several requests are being decoded at the
+   * same time, a request with priority p gets to start up to p sentences for each turn of the
+   * others (see {@link DecoderScheduler}).
+   *
+   * @param priority the priority (at least 1)
+   */
+  public void setPriority(int priority) {
+    this.priority = Math.max(1, priority);
+  }
+
+  public int getPriority() {
+    return priority;
+  }
 }
@@ -23,6 +23,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.JoshuaConfiguration;
@@ -58,6 +59,21 @@ public class PhraseTable implements Grammar {
    */
   public PhraseTable(String grammarFile, String owner, String type, JoshuaConfiguration config) 
       throws IOException {
+    this(grammarFile, owner, type, config, 1);
+  }
+
+  /**
+   * As above, but loads a text phrase table on several threads.
+   * 
+   * @param grammarFile file path parent directory
+   * @param owner used to set phrase owners
+   * @param type the grammar specification keyword (e.g., "thrax" or "moses")
+   * @param config a populated {@link org.apache.joshua.decoder.JoshuaConfiguration}
+   * @param loadingThreads the number of threads to parse a text phrase table with
+   * @throws IOException if there is an error reading the grammar file
+   */
+  public PhraseTable(String grammarFile, String owner, String type, JoshuaConfiguration config,
+      int loadingThreads) throws IOException {
     this.config = config;
     int spanLimit = 0;
     
@@ -70,7 +86,8 @@ public class PhraseTable implements Grammar {
       }
 
     } else {
-      this.backend = new MemoryBasedBatchGrammar(type, grammarFile, owner, "[X]", spanLimit, config);
+      this.backend = new MemoryBasedBatchGrammar(type, grammarFile, owner, "[X]", spanLimit, config,
+          loadingThreads);
     }
   }
   
@@ -158,6 +175,11 @@ public class PhraseTable implements Grammar {
     backend.sortGrammar(models);    
   }
 
+  @Override
+  public void sortGrammar(List<FeatureFunction> models, ForkJoinPool pool) {
+    backend.sortGrammar(models, pool);
+  }
+
   @Override
   public boolean isSorted() {
     return backend.isSorted();
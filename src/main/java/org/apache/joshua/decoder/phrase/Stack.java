@@ -176,7 +176,16 @@ public class Stack extends ArrayList<Hypothesis> {
    * candidate.
    */
   public void search() {
-    int to_pop = config.pop_limit;
+    search(config.pop_limit);
+  }
+
+  /**
+   * Cube pruning with the given pop limit instead of the configured one.
+   *
+   * @param popLimit the maximum number of candidates to pop
+   */
+  public void search(int popLimit) {
+    int to_pop = popLimit;
     
     if (LOG.isDebugEnabled()) {
       LOG.debug("Stack::search(): pop: {} size: {}", to_pop, candidates.size());
@@ -39,8 +39,11 @@ import static org.apache.joshua.decoder.ff.tm.OwnerMap.UNKNOWN_OWNER;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.SearchBudget;
+import org.apache.joshua.decoder.SearchPool;
 import org.apache.joshua.decoder.chart_parser.ComputeNodeResult;
 import org.apache.joshua.decoder.ff.FeatureFunction;
 import org.apache.joshua.decoder.ff.tm.AbstractGrammar;
@@ -70,6 +73,12 @@ public class Stacks {
 
   /* Contains all the phrase tables */
   private final PhraseChart chart;
+
+  /* The time this sentence may spend in search, started when the stacks are created */
+  private final SearchBudget budget;
+
+  /* Set once the budget is spent; from then on, hypotheses are only extended monotonically */
+  private volatile boolean monotone = false;
   
   /**
    * Entry point. Initialize everything. Create pass-through (OOV) phrase table and glue phrase
@@ -86,6 +95,7 @@ public class Stacks {
     this.sentence = sentence;
     this.featureFunctions = featureFunctions;
     this.config = config;
+    this.budget = new SearchBudget(config);
     
     int num_phrase_tables = 0;
     for (Grammar grammar : grammars)
@@ -117,6 +127,7 @@ public class Stacks {
     long startTime = System.currentTimeMillis();
     
     Future future = new Future(chart);
+    ForkJoinPool pool = SearchPool.get(config, featureFunctions);
     stacks = new ArrayList<>();
     
     // <s> counts as the first word. Pushing null lets us count from one.
@@ -131,9 +142,30 @@ public class Stacks {
     
     // Decode with increasing numbers of source words. 
     for (int source_words = 2; source_words <= sentence.length(); ++source_words) {
+      if (! monotone && budget.isExpired()) {
+        /* Out of time. Each remaining stack is built by translating the first uncovered word(s)
+         * with a pop limit of 1, which quickly completes the best hypotheses found so far with a
+         * monotone (glue) translation of the rest of the sentence.
+         */
+        LOG.warn("Input {}: Out of time after {} ms with {} words covered; finishing monotonically",
+            sentence.id(), budget.elapsedMillis(), source_words - 1);
+        budget.markDegraded();
+        monotone = true;
+      }
+
       Stack targetStack = new Stack(sentence, config);
       stacks.add(targetStack);
 
+      /* Each from stack groups together lots of different coverage vectors that all cover the
+       * same number of words. We have the number of covered words from from_stack, and the length
+       * of the phrases we are going to add from (source_words - from_stack). We now iterate over
+       * all coverage vectors, finding the set of phrases that can extend each of them, given
+       * the two constraints: the phrase length, and the current coverage vector. These will all
+       * be grouped under the same target stack.
+       */
+      List<Stack> tailStacks = new ArrayList<>();
+      List<Coverage> tailCoverages = new ArrayList<>();
+      List<Integer> phraseLengths = new ArrayList<>();
       // Iterate over stacks to continue from.
       for (int phrase_length = 1; phrase_length <= Math.min(source_words - 1, chart.MaxSourcePhraseLength());
           phrase_length++) {
@@ -142,60 +174,33 @@ public class Stacks {
 
         LOG.debug("WORDS {} MAX {} (STACK {} phrase_length {})", source_words,
             chart.MaxSourcePhraseLength(), from_stack, phrase_length);
-        
-        /* Each from stack groups together lots of different coverage vectors that all cover the
-         * same number of words. We have the number of covered words from from_stack, and the length
-         * of the phrases we are going to add from (source_words - from_stack). We now iterate over
-         * all coverage vectors, finding the set of phrases that can extend each of them, given
-         * the two constraints: the phrase length, and the current coverage vector. These will all
-         * be grouped under the same target stack.
-         */
+
         for (Coverage coverage: tailStack.getCoverages()) {
-          ArrayList<Hypothesis> hypotheses = tailStack.get(coverage); 
-          
-          // the index of the starting point of the first possible phrase
-          int begin = coverage.firstZero();
-          
-          // the absolute position of the ending spot of the last possible phrase
-          int last_end = Math.min(coverage.firstZero() + config.reordering_limit, chart.SentenceLength());
-          int last_begin = (last_end > phrase_length) ? (last_end - phrase_length) : 0;
-
-          for (begin = coverage.firstZero(); begin <= last_begin; begin++) {
-            if (!coverage.compatible(begin, begin + phrase_length) ||
-                ! permissible(coverage, begin, begin + phrase_length)) {
-              continue;
-            }
-
-            // Don't append </s> until the end
-            if (begin == sentence.length() - 1 && source_words != sentence.length()) 
-              continue;            
-
-            /* We have found a permissible phrase start point and length for the current coverage
-             * vector. Find all the phrases over that span.
-             */
-            PhraseNodes phrases = chart.getRange(begin, begin + phrase_length);
-            if (phrases == null)
-              continue;
-
-            LOG.debug("Applying {} target phrases over [{}, {}]",
-                phrases.size(), begin, begin + phrase_length);
-            
-            // TODO: could also compute some number of features here (e.g., non-LM ones)
-            // float score_delta = context.GetScorer().transition(ant, phrases, begin, begin + phrase_length);
-            
-            // Future costs: remove span to be filled.
-            float future_delta = future.Change(coverage, begin, begin + phrase_length);
-            
-            /* This associates with each span a set of hypotheses that can be extended by
-             * phrases from that span. The hypotheses are wrapped in HypoState objects, which
-             * augment the hypothesis score with a future cost.
-             */
-            Candidate cand = new Candidate(featureFunctions, sentence, hypotheses, phrases, future_delta, new int[] {0, 0});
-            targetStack.addCandidate(cand);
-          }
+          tailStacks.add(tailStack);
+          tailCoverages.add(coverage);
+          phraseLengths.add(phrase_length);
         }
       }
 
+      if (pool != null) {
+        /* Candidates are scored as they are created, which is most of the work of building a
+         * stack. Coverage vectors are independent, so they are extended concurrently; the
+         * candidates are then added in the sequential order, so that the cube-pruning search
+         * below (which is inherently sequential under a global pop limit) sees the same input.
+         */
+        @SuppressWarnings("unchecked")
+        List<Candidate>[] extensions = new List[tailCoverages.size()];
+        final int words = source_words;
+        SearchPool.forEach(pool, extensions.length, x -> extensions[x] = extend(tailStacks.get(x),
+            tailCoverages.get(x), phraseLengths.get(x), words, future));
+        for (List<Candidate> candidates: extensions)
+          candidates.forEach(targetStack::addCandidate);
+      } else {
+        for (int x = 0; x < tailCoverages.size(); x++)
+          extend(tailStacks.get(x), tailCoverages.get(x), phraseLengths.get(x), source_words, future)
+              .forEach(targetStack::addCandidate);
+      }
+
       /* At this point, every vertex contains a list of all existing hypotheses that the target
        * phrases in that vertex could extend. Now we need to create the search object, which
        * implements cube pruning. There are up to O(n^2) cubes, n the size of the current stack,
@@ -206,7 +211,7 @@ public class Stacks {
       
 //      System.err.println(String.format("\nBuilding cube-pruning chart for %d words", source_words));
 
-      targetStack.search();
+      targetStack.search(budget.popLimit());
     }
     
     LOG.info("Input {}: Search took {} seconds", sentence.id(),
@@ -214,7 +219,69 @@ public class Stacks {
     
     return createGoalNode();
   }
+
+  /**
+   * @return true if the search was cut short or pruned harder than configured to meet the
+   *         translation_thread_timeout deadline
+   */
+  public boolean isDegraded() {
+    return budget.isDegraded();
+  }
     
+  /**
+   * Builds the candidates that extend the hypotheses with the given coverage vector in tailStack
+   * with a permissible phrase of phrase_length words.
+   */
+  private List<Candidate> extend(Stack tailStack, Coverage coverage, int phrase_length,
+      int source_words, Future future) {
+    List<Candidate> candidates = new ArrayList<>();
+    ArrayList<Hypothesis> hypotheses = tailStack.get(coverage);
+
+    // the index of the starting point of the first possible phrase
+    int begin = coverage.firstZero();
+
+    // the absolute position of the ending spot of the last possible phrase
+    int last_end = Math.min(coverage.firstZero() + config.reordering_limit, chart.SentenceLength());
+    int last_begin = (last_end > phrase_length) ? (last_end - phrase_length) : 0;
+    if (monotone)
+      last_begin = Math.min(last_begin, begin);
+
+    for (begin = coverage.firstZero(); begin <= last_begin; begin++) {
+      if (!coverage.compatible(begin, begin + phrase_length) ||
+          ! permissible(coverage, begin, begin + phrase_length)) {
+        continue;
+      }
+
+      // Don't append </s> until the end
+      if (begin == sentence.length() - 1 && source_words != sentence.length()) 
+        continue;            
+
+      /* We have found a permissible phrase start point and length for the current coverage
+       * vector. Find all the phrases over that span.
+       */
+      PhraseNodes phrases = chart.getRange(begin, begin + phrase_length);
+      if (phrases == null)
+        continue;
+
+      LOG.debug("Applying {} target phrases over [{}, {}]",
+          phrases.size(), begin, begin + phrase_length);
+      
+      // TODO: could also compute some number of features here (e.g., non-LM ones)
+      // float score_delta = context.GetScorer().transition(ant, phrases, begin, begin + phrase_length);
+      
+      // Future costs: remove span to be filled.
+      float future_delta = future.Change(coverage, begin, begin + phrase_length);
+      
+      /* This associates with each span a set of hypotheses that can be extended by
+       * phrases from that span. The hypotheses are wrapped in HypoState objects, which
+       * augment the hypothesis score with a future cost.
+       */
+      candidates.add(new Candidate(featureFunctions, sentence, hypotheses, phrases, future_delta,
+          new int[] {0, 0}));
+    }
+    return candidates;
+  }
+
   /**
    * Enforces reordering constraints. Our version of Moses' ReorderingConstraint::Check() and
    * SearchCubePruning::CheckDistortion(). 
@@ -31,7 +31,6 @@ import java.util.regex.Pattern;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.JoshuaConfiguration;
-import org.apache.joshua.decoder.LanguageModelStateManager;
 import org.apache.joshua.decoder.ff.tm.Grammar;
 import org.apache.joshua.lattice.Arc;
 import org.apache.joshua.lattice.Lattice;
@@ -78,8 +77,6 @@ public class Sentence {
   
   public JoshuaConfiguration config = null;
 
-  private LanguageModelStateManager stateManager = new LanguageModelStateManager();
-
   /**
    * Constructor. Receives a string representing the input sentence. This string may be a
    * string-encoded lattice or a plain text string for decoding.
@@ -450,8 +447,4 @@ public class Sentence {
   public Node<Token> getNode(int i) {
     return getLattice().getNode(i);
   }
-
-  public LanguageModelStateManager getStateManager() {
-    return stateManager;
-  }
 }
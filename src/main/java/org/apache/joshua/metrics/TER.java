@@ -18,37 +18,58 @@
  */
 package org.apache.joshua.metrics;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Translation edit rate. The statistics are computed in-process by {@link TERCalculator}, which
+ * follows tercom-0.7.25, and candidates are scored in parallel across the scoring threads.
+ */
+public class TER extends EvaluationMetric {
 
-import org.apache.joshua.util.StreamGobbler;
+  private static final Logger LOG = LoggerFactory.getLogger(TER.class);
+
+  /* The number of candidates read at a time by createSuffStatsFile */
+  private static final int BATCH_SIZE = 10000;
+
+  /* How long idle scoring threads are kept before they exit */
+  private static final long IDLE_SECONDS = 60;
+
+  /* The scoring threads, shared by all TER instances since MERT and PRO create many of them */
+  private static ThreadPoolExecutor scoringPool;
+
+  /* Whether the user has been told that the tercom jar is ignored */
+  private static final AtomicBoolean warnedAboutJar = new AtomicBoolean();
 
-public class TER extends EvaluationMetric {
   private boolean caseSensitive;
   private boolean withPunctuation;
   private int beamWidth;
   private int maxShiftDist;
-  private String tercomJarFileName;
   private int numScoringThreads;
 
+  private final TERCalculator calculator;
+  private final ExecutorService pool;
+
   public TER(String[] Metric_options) {
     // M_o[0]: case sensitivity, case/nocase
     // M_o[1]: with-punctuation, punc/nopunc
     // M_o[2]: beam width, positive integer
     // M_o[3]: maximum shift distance, positive integer
-    // M_o[4]: filename of tercom jar file
-    // M_o[5]: number of threads to use for TER scoring (= number of tercom processes launched)
+    // M_o[4]: filename of tercom jar file (no longer used, since TER is computed in-process; the
+    //         option is kept so that existing configurations still parse, and "-" skips the
+    //         warning about it)
+    // M_o[5]: number of threads to use for TER scoring
 
     // for 0-3, default values in tercom-0.7.25 are: nocase, punc, 20, 50
 
@@ -88,17 +109,9 @@ public class TER extends EvaluationMetric {
       throw new RuntimeException("Maximum shift distance must be positive");
     }
 
-    tercomJarFileName = Metric_options[4];
-
-    if (tercomJarFileName == null || tercomJarFileName.equals("")) {
-      throw new RuntimeException("Problem processing tercom's jar filename");
-    } else {
-      File checker = new File(tercomJarFileName);
-      if (!checker.exists()) {
-        String msg = "Could not find tercom jar file " + tercomJarFileName
-            + "(Please make sure you use the full path in the filename)";
-        throw new RuntimeException(msg);
-      }
+    if (!Metric_options[4].equals("-") && warnedAboutJar.compareAndSet(false, true)) {
+      LOG.warn("Ignoring tercom jar {}: TER is now computed in-process, scores may differ slightly"
+          + " from those of the jar", Metric_options[4]);
     }
 
     numScoringThreads = Integer.parseInt(Metric_options[5]);
@@ -106,10 +119,8 @@ public class TER extends EvaluationMetric {
       throw new RuntimeException("Number of TER scoring threads must be positive");
     }
 
-
-    TercomRunner.set_TercomParams(caseSensitive, withPunctuation, beamWidth, maxShiftDist,
-        tercomJarFileName);
-
+    calculator = new TERCalculator(caseSensitive, withPunctuation, beamWidth, maxShiftDist);
+    pool = (numScoringThreads > 1) ? scoringPool(numScoringThreads) : null;
 
     initialize(); // set the data members of the metric
   }
@@ -129,10 +140,7 @@ public class TER extends EvaluationMetric {
   }
 
   public int[] suffStats(String cand_str, int i) {
-    // this method should never be used when the metric is TER,
-    // because TER.java overrides createSuffStatsFile below,
-    // which is the only method that calls suffStats(String,int).
-    return null;
+    return calculator.suffStats(cand_str, refSentences[i]);
   }
 
   public int[][] suffStats(String[] cand_strings, int[] cand_indices) {
@@ -144,294 +152,68 @@ public class TER extends EvaluationMetric {
       return null;
     }
 
-    int[][] stats = new int[candCount][suffStatsCount];
-
-    try {
-
-      // 1) Create input files for tercom
-
-      // 1a) Create hypothesis file
-      FileOutputStream outStream = new FileOutputStream("hyp.txt.TER", false); // false: don't
-                                                                               // append
-      OutputStreamWriter outStreamWriter = new OutputStreamWriter(outStream, "utf8");
-      BufferedWriter outFile = new BufferedWriter(outStreamWriter);
+    int[][] stats = new int[candCount][];
 
+    if (pool == null || candCount == 1) {
       for (int d = 0; d < candCount; ++d) {
-        writeLine(cand_strings[d] + " (ID" + d + ")", outFile);
-      }
-
-      outFile.close();
-
-      // 1b) Create reference file
-      outStream = new FileOutputStream("ref.txt.TER", false); // false: don't append
-      outStreamWriter = new OutputStreamWriter(outStream, "utf8");
-      outFile = new BufferedWriter(outStreamWriter);
-
-      for (int d = 0; d < candCount; ++d) {
-        for (int r = 0; r < refsPerSen; ++r) {
-          writeLine(refSentences[cand_indices[d]][r] + " (ID" + d + ")", outFile);
-        }
-      }
-
-      outFile.close();
-
-      // 2) Launch tercom as an external process
-
-      runTercom("ref.txt.TER", "hyp.txt.TER", "TER_out", 500);
-
-      // 3) Read SS from output file produced by tercom.7.25.jar
-
-      BufferedReader inFile = new BufferedReader(new FileReader("TER_out.ter"));
-      String line;
-
-      line = inFile.readLine(); // skip hyp line
-      line = inFile.readLine(); // skip ref line
-
-      for (int d = 0; d < candCount; ++d) {
-        line = inFile.readLine(); // read info
-        String[] strA = line.split("\\s+");
-
-        stats[d][0] = (int) Double.parseDouble(strA[1]);
-        stats[d][1] = (int) Double.parseDouble(strA[2]);
-      }
-
-      inFile.close();
-      
-      // 4) Delete TER files
-
-      File fd;
-      fd = new File("hyp.txt.TER");
-      if (fd.exists()) fd.delete();
-      fd = new File("ref.txt.TER");
-      if (fd.exists()) fd.delete();
-      fd = new File("TER_out.ter");
-      if (fd.exists()) fd.delete();
-
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
-
-    return stats;
-  }
-
-  public void createSuffStatsFile(String cand_strings_fileName, String cand_indices_fileName,
-      String outputFileName, int maxBatchSize) {
-
-    try {
-      int batchCount = 0;
-
-      FileInputStream inStream_cands = new FileInputStream(cand_strings_fileName);
-      BufferedReader inFile_cands =
-          new BufferedReader(new InputStreamReader(inStream_cands, "utf8"));
-
-      FileInputStream inStream_indices = new FileInputStream(cand_indices_fileName);
-      BufferedReader inFile_indices =
-          new BufferedReader(new InputStreamReader(inStream_indices, "utf8"));
-
-      while (true) {
-        ++batchCount;
-        int readCount =
-            createTercomHypFile(inFile_cands, tmpDirPrefix + "hyp.txt.TER.batch" + batchCount,
-                10000);
-        createTercomRefFile(inFile_indices, tmpDirPrefix + "ref.txt.TER.batch" + batchCount, 10000);
-
-        if (readCount == 0) {
-          --batchCount;
-          break;
-        } else if (readCount < 10000) {
-          break;
-        }
-      }
-
-      // score the batchCount batches of candidates, in parallel, across numThreads threads
-      ExecutorService pool = Executors.newFixedThreadPool(numScoringThreads);
-      Semaphore blocker = new Semaphore(0);
-
-      for (int b = 1; b <= batchCount; ++b) {
-        pool.execute(new TercomRunner(blocker, tmpDirPrefix + "ref.txt.TER.batch" + b, tmpDirPrefix
-            + "hyp.txt.TER.batch" + b, tmpDirPrefix + "TER_out.batch" + b, 500));
-        // Each thread scores the candidates, creating a tercom output file,
-        // and then deletes the .hyp. and .ref. files, which are not needed
-        // for other batches.
+        stats[d] = suffStats(cand_strings[d], cand_indices[d]);
       }
-
-      pool.shutdown();
-
-      try {
-        blocker.acquire(batchCount);
-      } catch (java.lang.InterruptedException e) {
-        throw new RuntimeException(e);
-      }
-
-      PrintWriter outFile = new PrintWriter(outputFileName);
-      for (int b = 1; b <= batchCount; ++b) {
-        copySS(tmpDirPrefix + "TER_out.batch" + b + ".ter", outFile);
-        File fd;
-        fd = new File(tmpDirPrefix + "TER_out.batch" + b + ".ter");
-        if (fd.exists()) fd.delete();
-        // .hyp. and .ref. already deleted by individual threads
-      }
-      outFile.close();
-
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+      return stats;
     }
 
-  }
-
-  public int createTercomHypFile(BufferedReader inFile_cands, String hypFileName, int numCands) {
-    // returns # lines read
-
-    int readCount = 0;
-
-    try {
-      FileOutputStream outStream = new FileOutputStream(hypFileName, false); // false: don't append
-      OutputStreamWriter outStreamWriter = new OutputStreamWriter(outStream, "utf8");
-      BufferedWriter outFile = new BufferedWriter(outStreamWriter);
-
-      String line_cand;
-
-      if (numCands > 0) {
-        for (int d = 0; d < numCands; ++d) {
-          line_cand = inFile_cands.readLine();
-          if (line_cand != null) {
-            ++readCount;
-            writeLine(line_cand + " (ID" + d + ")", outFile);
-          } else {
-            break;
-          }
-        }
-      } else {
-        line_cand = inFile_cands.readLine();
-        int d = -1;
-        while (line_cand != null) {
-          ++readCount;
-          ++d;
-          writeLine(line_cand + " (ID" + d + ")", outFile);
-          line_cand = inFile_cands.readLine();
+    // Hand out small chunks so that threads that get easy sentences pick up more of them
+    int chunkSize = Math.max(1, candCount / (4 * numScoringThreads));
+    List<Future<?>> chunks = new ArrayList<>();
+    for (int from = 0; from < candCount; from += chunkSize) {
+      final int first = from;
+      final int last = Math.min(from + chunkSize, candCount);
+      chunks.add(pool.submit(() -> {
+        for (int d = first; d < last; ++d) {
+          stats[d] = suffStats(cand_strings[d], cand_indices[d]);
         }
-      }
-
-      outFile.close();
-
-    } catch (IOException e) {
-      throw new RuntimeException("IOException in TER.createTercomHypFile(...): " + e.getMessage(), e);
+      }));
     }
 
-    return readCount;
-
-  }
-
-  public int createTercomRefFile(BufferedReader inFile_indices, String refFileName, int numIndices) {
-    // returns # lines read
-
-    int readCount = 0;
-
     try {
-      FileOutputStream outStream = new FileOutputStream(refFileName, false); // false: don't append
-      OutputStreamWriter outStreamWriter = new OutputStreamWriter(outStream, "utf8");
-      BufferedWriter outFile = new BufferedWriter(outStreamWriter);
-
-      String line_index;
-
-      if (numIndices > 0) {
-        for (int d = 0; d < numIndices; ++d) {
-          line_index = inFile_indices.readLine();
-          if (line_index != null) {
-            ++readCount;
-            int index = Integer.parseInt(line_index);
-            for (int r = 0; r < refsPerSen; ++r) {
-              writeLine(refSentences[index][r] + " (ID" + d + ")", outFile);
-            }
-          } else {
-            break;
-          }
-        }
-      } else {
-        line_index = inFile_indices.readLine();
-        int d = -1;
-        while (line_index != null) {
-          ++readCount;
-          ++d;
-          int index = Integer.parseInt(line_index);
-          for (int r = 0; r < refsPerSen; ++r) {
-            writeLine(refSentences[index][r] + " (ID" + d + ")", outFile);
-          }
-          line_index = inFile_indices.readLine();
-        }
+      for (Future<?> chunk : chunks) {
+        chunk.get();
       }
-
-      outFile.close();
-
-    } catch (IOException e) {
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
       throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
     }
 
-    return readCount;
-
+    return stats;
   }
 
-  public int runTercom(String refFileName, String hypFileName, String outFileNamePrefix, int memSize) {
-    int exitValue;
-
-    try {
-
-      String cmd_str =
-          "java -Xmx" + memSize + "m -Dfile.encoding=utf8 -jar " + tercomJarFileName + " -r "
-              + refFileName + " -h " + hypFileName + " -o ter -n " + outFileNamePrefix;
-      cmd_str += " -b " + beamWidth;
-      cmd_str += " -d " + maxShiftDist;
-      if (caseSensitive) {
-        cmd_str += " -s";
-      }
-      if (!withPunctuation) {
-        cmd_str += " -P";
-      }
-      /*
-       * From tercom's README: -s case sensitivity, optional, default is insensitive -P no
-       * punctuations, default is with punctuations.
-       */
-
-      Runtime rt = Runtime.getRuntime();
-      Process p = rt.exec(cmd_str);
-
-      StreamGobbler errorGobbler = new StreamGobbler(p.getErrorStream(), 0);
-      StreamGobbler outputGobbler = new StreamGobbler(p.getInputStream(), 0);
-
-      errorGobbler.start();
-      outputGobbler.start();
-
-      exitValue = p.waitFor();
-
-    } catch (IOException | InterruptedException e) {
-      throw new RuntimeException(e);
-    }
-
-    return exitValue;
-
+  public void createSuffStatsFile(String cand_strings_fileName, String cand_indices_fileName,
+      String outputFileName, int maxBatchSize) {
+    // the caller's batch size is usually one n-best list; larger batches keep all threads busy
+    super.createSuffStatsFile(cand_strings_fileName, cand_indices_fileName, outputFileName,
+        Math.max(maxBatchSize, BATCH_SIZE));
   }
 
-  public void copySS(String inputFileName, PrintWriter outFile) {
-    try {
-      BufferedReader inFile = new BufferedReader(new FileReader(inputFileName));
-      String line;
-
-      line = inFile.readLine(); // skip hyp line
-      line = inFile.readLine(); // skip ref line
-
-      line = inFile.readLine(); // read info for first line
-
-      while (line != null) {
-        String[] strA = line.split("\\s+");
-        outFile
-            .println((int) Double.parseDouble(strA[1]) + " " + (int) Double.parseDouble(strA[2]));
-        line = inFile.readLine(); // read info for next line
-      }
-      
-      inFile.close();
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+  /**
+   * Returns the scoring threads shared by all TER instances, growing them to numThreads if an
+   * earlier instance asked for fewer. Idle threads exit, so nothing lingers once scoring ends.
+   */
+  private static synchronized ExecutorService scoringPool(int numThreads) {
+    if (scoringPool == null) {
+      AtomicInteger threadCount = new AtomicInteger();
+      scoringPool = new ThreadPoolExecutor(numThreads, numThreads, IDLE_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "TER-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+          });
+      scoringPool.allowCoreThreadTimeOut(true);
+    } else if (scoringPool.getMaximumPoolSize() < numThreads) {
+      scoringPool.setMaximumPoolSize(numThreads);
+      scoringPool.setCorePoolSize(numThreads);
     }
+    return scoringPool;
   }
 
   public double score(int[] stats) {
@@ -457,10 +239,4 @@ public class TER extends EvaluationMetric {
     }
   }
 
-  private void writeLine(String line, BufferedWriter writer) throws IOException {
-    writer.write(line, 0, line.length());
-    writer.newLine();
-    writer.flush();
-  }
-
 }
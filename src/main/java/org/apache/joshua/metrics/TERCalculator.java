@@ -0,0 +1,493 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Computes translation edit rate (TER) statistics the way tercom-0.7.25 does, so that the
+ * {@link TER} metric can score candidates in-process instead of launching tercom.
+ *
+ * The edit count is the minimum number of insertions, deletions, substitutions and phrase shifts
+ * (all of cost 1) needed to turn the hypothesis into the reference. As in tercom, shifts are
+ * chosen greedily: at each step the shift that reduces the edit distance the most is applied,
+ * and the search stops when no shift helps. The edit distance itself is computed with tercom's
+ * beam-pruned dynamic program.
+ *
+ * Instances hold no mutable state and may be shared between threads.
+ */
+public class TERCalculator {
+
+  /* The longest phrase (in words) that may be shifted, as in tercom */
+  public static final int MAX_SHIFT_SIZE = 10;
+
+  private static final int INF = Integer.MAX_VALUE / 2;
+
+  private final boolean caseSensitive;
+  private final boolean withPunctuation;
+  private final int beamWidth;
+  private final int maxShiftDist;
+
+  /**
+   * @param caseSensitive whether words that differ only in case are different (tercom's -s)
+   * @param withPunctuation whether to keep punctuation (the opposite of tercom's -P)
+   * @param beamWidth the beam width of the edit distance search (tercom's -b)
+   * @param maxShiftDist the maximum distance a phrase may be shifted (tercom's -d)
+   */
+  public TERCalculator(boolean caseSensitive, boolean withPunctuation, int beamWidth,
+      int maxShiftDist) {
+    this.caseSensitive = caseSensitive;
+    this.withPunctuation = withPunctuation;
+    this.beamWidth = beamWidth;
+    this.maxShiftDist = maxShiftDist;
+  }
+
+  /**
+   * Computes the sufficient statistics of {@link TER} for a single hypothesis: the number of
+   * edits against the closest reference, and the average reference length (truncated, as when
+   * reading them from tercom's output).
+   *
+   * @param hyp the hypothesis
+   * @param refs the references
+   * @return an array holding the number of edits and the average reference length
+   */
+  public int[] suffStats(String hyp, String[] refs) {
+    String[] hypWords = tokenize(hyp);
+
+    int bestEdits = -1;
+    double totalWords = 0;
+    for (String ref : refs) {
+      String[] refWords = tokenize(ref);
+      int edits = numEdits(hypWords, refWords);
+      if (bestEdits < 0 || edits < bestEdits)
+        bestEdits = edits;
+      totalWords += refWords.length;
+    }
+
+    return new int[] { Math.max(bestEdits, 0), (int) (totalWords / refs.length) };
+  }
+
+  /**
+   * Normalizes and splits a sentence as tercom does without its -N option: lowercasing unless
+   * case sensitive, and removing punctuation if requested.
+   *
+   * @param sentence a sentence
+   * @return its words
+   */
+  public String[] tokenize(String sentence) {
+    String s = sentence;
+    if (!caseSensitive)
+      s = s.toLowerCase();
+    if (!withPunctuation)
+      s = s.replaceAll("[\\.,\\?:;!\"\\(\\)]", "");
+    s = s.trim();
+    return s.isEmpty() ? new String[0] : s.split("\\s+");
+  }
+
+  /**
+   * @param hyp the hypothesis words
+   * @param ref the reference words
+   * @return the number of edits, including shifts, needed to turn hyp into ref
+   */
+  public int numEdits(String[] hyp, String[] ref) {
+    if (ref.length == 0)
+      return hyp.length;
+
+    Aligner aligner = new Aligner(hyp.length, ref.length);
+    Map<List<String>, Set<Integer>> rloc = buildWordMatches(hyp, ref);
+
+    Alignment current = aligner.minEditDist(hyp, ref);
+    int shifts = 0;
+    while (true) {
+      Alignment shifted = calcBestShift(aligner, current, ref, rloc);
+      if (shifted == null)
+        break;
+      shifts++;
+      current = shifted;
+    }
+
+    return current.edits + shifts;
+  }
+
+  /**
+   * An edit-distance alignment of a (possibly shifted) hypothesis to the reference.
+   */
+  private static class Alignment {
+    /* The hypothesis words, after any shifts */
+    final String[] words;
+    /* The edit distance */
+    final int edits;
+    /* ' ' for a match, 'S'ubstitution, 'I'nsertion of a hyp word, 'D'eletion of a ref word */
+    final char[] path;
+
+    Alignment(String[] words, int edits, char[] path) {
+      this.words = words;
+      this.edits = edits;
+      this.path = path;
+    }
+  }
+
+  /**
+   * A candidate shift of the hypothesis words [start, end] to after position newloc.
+   */
+  private static class Shift {
+    final int start;
+    final int end;
+    final int newloc;
+
+    Shift(int start, int end, int newloc) {
+      this.start = start;
+      this.end = end;
+      this.newloc = newloc;
+    }
+  }
+
+  /**
+   * Maps every reference phrase whose words all occur in the hypothesis to the positions in the
+   * reference where it starts.
+   */
+  private static Map<List<String>, Set<Integer>> buildWordMatches(String[] hyp, String[] ref) {
+    Set<String> hypWords = new HashSet<>(Arrays.asList(hyp));
+    boolean[] cor = new boolean[ref.length];
+    for (int i = 0; i < ref.length; i++)
+      cor[i] = hypWords.contains(ref[i]);
+
+    List<String> refList = Arrays.asList(ref);
+    Map<List<String>, Set<Integer>> rloc = new HashMap<>();
+    for (int start = 0; start < ref.length; start++) {
+      if (!cor[start])
+        continue;
+      for (int end = start; end < ref.length && end - start <= MAX_SHIFT_SIZE && cor[end]; end++)
+        rloc.computeIfAbsent(refList.subList(start, end + 1), k -> new TreeSet<>()).add(start);
+    }
+    return rloc;
+  }
+
+  /**
+   * Tries every candidate shift of the current hypothesis, longest phrases first, and returns the
+   * alignment after the one that helps the most, or null if no shift reduces the edit count.
+   */
+  private Alignment calcBestShift(Aligner aligner, Alignment current, String[] ref,
+      Map<List<String>, Set<Integer>> rloc) {
+    String[] cur = current.words;
+    boolean[] herr = new boolean[cur.length];
+    boolean[] rerr = new boolean[ref.length];
+    int[] ralign = new int[ref.length];
+    findAlignErr(current, herr, rerr, ralign);
+
+    List<List<Shift>> possShifts = gatherAllPossShifts(cur, ref, rloc, herr, rerr, ralign);
+
+    int curErr = current.edits;
+    int bestShiftCost = 0;
+    Alignment best = current;
+    boolean anyGain = false;
+
+    for (int i = possShifts.size() - 1; i >= 0; i--) {
+      // Shifting i + 1 words can fix at most 2 * (i + 1) errors
+      int maxFix = 2 * (1 + i);
+      int curFix = curErr - (bestShiftCost + best.edits);
+      if (curFix > maxFix || (bestShiftCost != 0 && curFix == maxFix))
+        break;
+
+      for (Shift shift : possShifts.get(i)) {
+        curFix = curErr - (bestShiftCost + best.edits);
+        if (curFix > maxFix || (bestShiftCost != 0 && curFix == maxFix))
+          break;
+
+        Alignment shifted = aligner.minEditDist(performShift(cur, shift), ref);
+        int gain = (best.edits + bestShiftCost) - (shifted.edits + 1);
+        if (gain > 0 || (bestShiftCost == 0 && gain == 0)) {
+          anyGain = true;
+          bestShiftCost = 1;
+          best = shifted;
+        }
+      }
+    }
+
+    return anyGain ? best : null;
+  }
+
+  /**
+   * Marks the hypothesis and reference words that are not matched by the alignment, and records
+   * for each reference word the position of the hypothesis word it is aligned to.
+   */
+  private static void findAlignErr(Alignment alignment, boolean[] herr, boolean[] rerr,
+      int[] ralign) {
+    int hpos = -1;
+    int rpos = -1;
+    for (char sym : alignment.path) {
+      switch (sym) {
+      case ' ':
+      case 'S':
+        hpos++;
+        rpos++;
+        herr[hpos] = (sym == 'S');
+        rerr[rpos] = (sym == 'S');
+        ralign[rpos] = hpos;
+        break;
+      case 'I':
+        hpos++;
+        herr[hpos] = true;
+        break;
+      case 'D':
+        rpos++;
+        rerr[rpos] = true;
+        ralign[rpos] = hpos;
+        break;
+      default:
+        throw new RuntimeException("Invalid TER alignment symbol '" + sym + "'");
+      }
+    }
+  }
+
+  /**
+   * Collects the shifts worth trying, grouped by the length of the shifted phrase: phrases that
+   * occur in the reference, contain an error, and can be moved (not too far) to a place where the
+   * reference has an error.
+   */
+  private List<List<Shift>> gatherAllPossShifts(String[] hyp, String[] ref,
+      Map<List<String>, Set<Integer>> rloc, boolean[] herr, boolean[] rerr, int[] ralign) {
+    List<List<Shift>> allShifts = new ArrayList<>(MAX_SHIFT_SIZE + 1);
+    if (maxShiftDist <= 0)
+      return allShifts;
+    for (int i = 0; i <= MAX_SHIFT_SIZE; i++)
+      allShifts.add(new ArrayList<>());
+
+    List<String> hypList = Arrays.asList(hyp);
+    for (int start = 0; start < hyp.length; start++) {
+      Set<Integer> firstWordLocs = rloc.get(hypList.subList(start, start + 1));
+      if (firstWordLocs == null)
+        continue;
+
+      boolean ok = false;
+      for (int moveto : firstWordLocs) {
+        if (start != ralign[moveto] && ralign[moveto] - start <= maxShiftDist
+            && start - ralign[moveto] - 1 <= maxShiftDist) {
+          ok = true;
+          break;
+        }
+      }
+      if (!ok)
+        continue;
+
+      for (int end = start; ok && end < hyp.length && end < start + MAX_SHIFT_SIZE; end++) {
+        Set<Integer> movetoLocs = rloc.get(hypList.subList(start, end + 1));
+        ok = false;
+        if (movetoLocs == null)
+          break;
+
+        boolean anyHerr = false;
+        for (int i = 0; i <= end - start && !anyHerr; i++)
+          anyHerr = herr[start + i];
+        if (!anyHerr) {
+          // Nothing to fix yet, but a longer phrase might be
+          ok = true;
+          continue;
+        }
+
+        for (int moveto : movetoLocs) {
+          if (ralign[moveto] == start || (ralign[moveto] >= start && ralign[moveto] <= end)
+              || ralign[moveto] - start > maxShiftDist || start - ralign[moveto] > maxShiftDist)
+            continue;
+          ok = true;
+
+          // Only move to where the reference has an error
+          boolean anyRerr = false;
+          for (int i = 0; i <= end - start && !anyRerr; i++)
+            anyRerr = rerr[moveto + i];
+          if (!anyRerr)
+            continue;
+
+          for (int roff = -1; roff <= end - start; roff++) {
+            if (roff == -1 && moveto == 0) {
+              allShifts.get(end - start).add(new Shift(start, end, -1));
+            } else if (moveto + roff >= 0 && start != ralign[moveto + roff]
+                && (roff == 0 || ralign[moveto + roff] != ralign[moveto])) {
+              allShifts.get(end - start).add(new Shift(start, end, ralign[moveto + roff]));
+            }
+          }
+        }
+      }
+    }
+
+    return allShifts;
+  }
+
+  /**
+   * Moves the words [start, end] so that they follow the word at newloc (or come first, if newloc
+   * is -1).
+   */
+  private static String[] performShift(String[] words, Shift shift) {
+    int start = shift.start;
+    int end = shift.end;
+    int newloc = shift.newloc;
+
+    String[] shifted = new String[words.length];
+    int c = 0;
+    if (newloc == -1) {
+      for (int i = start; i <= end; i++)
+        shifted[c++] = words[i];
+      for (int i = 0; i <= start - 1; i++)
+        shifted[c++] = words[i];
+      for (int i = end + 1; i < words.length; i++)
+        shifted[c++] = words[i];
+    } else if (newloc < start) {
+      for (int i = 0; i <= newloc; i++)
+        shifted[c++] = words[i];
+      for (int i = start; i <= end; i++)
+        shifted[c++] = words[i];
+      for (int i = newloc + 1; i <= start - 1; i++)
+        shifted[c++] = words[i];
+      for (int i = end + 1; i < words.length; i++)
+        shifted[c++] = words[i];
+    } else if (newloc > end) {
+      for (int i = 0; i <= start - 1; i++)
+        shifted[c++] = words[i];
+      for (int i = end + 1; i <= newloc; i++)
+        shifted[c++] = words[i];
+      for (int i = start; i <= end; i++)
+        shifted[c++] = words[i];
+      for (int i = newloc + 1; i < words.length; i++)
+        shifted[c++] = words[i];
+    } else {
+      // Moving inside itself
+      for (int i = 0; i <= start - 1; i++)
+        shifted[c++] = words[i];
+      for (int i = end + 1; i < words.length && i <= end + (newloc - start); i++)
+        shifted[c++] = words[i];
+      for (int i = start; i <= end; i++)
+        shifted[c++] = words[i];
+      for (int i = end + (newloc - start) + 1; i < words.length; i++)
+        shifted[c++] = words[i];
+    }
+    return shifted;
+  }
+
+  /**
+   * The edit-distance tables for one hypothesis/reference pair, reused across the shifts tried.
+   * Shifting does not change the hypothesis length, so the tables never need to grow.
+   */
+  private class Aligner {
+    /* cost[i][j]: the cheapest way to align ref[0, i) with hyp[0, j), or -1 if not reached */
+    private final int[][] cost;
+    private final char[][] back;
+
+    Aligner(int hypLength, int refLength) {
+      this.cost = new int[refLength + 1][hypLength + 1];
+      this.back = new char[refLength + 1][hypLength + 1];
+    }
+
+    /**
+     * Computes the edit distance column by column over the hypothesis, skipping cells that are
+     * more than the beam width worse than the best cell of the previous column.
+     */
+    Alignment minEditDist(String[] hyp, String[] ref) {
+      for (int[] row : cost)
+        Arrays.fill(row, -1);
+      cost[0][0] = 0;
+
+      int currentBest = INF;
+      int currentFirstGood = 0;
+      int curLastGood = 0;
+
+      for (int j = 0; j <= hyp.length; j++) {
+        int lastBest = currentBest;
+        currentBest = INF;
+        int firstGood = Math.max(currentFirstGood, 0);
+        currentFirstGood = -1;
+        int lastGood = curLastGood;
+        curLastGood = -1;
+
+        for (int i = firstGood; i <= ref.length; i++) {
+          if (i > lastGood)
+            break;
+          if (cost[i][j] < 0)
+            continue;
+          int score = cost[i][j];
+          if (j < hyp.length && score > lastBest + beamWidth)
+            continue;
+
+          if (currentFirstGood == -1)
+            currentFirstGood = i;
+
+          if (i < ref.length && j < hyp.length) {
+            boolean match = ref[i].equals(hyp[j]);
+            int diag = score + (match ? 0 : 1);
+            if (cost[i + 1][j + 1] < 0 || diag < cost[i + 1][j + 1]) {
+              cost[i + 1][j + 1] = diag;
+              back[i + 1][j + 1] = match ? ' ' : 'S';
+            }
+            if (diag < currentBest)
+              currentBest = diag;
+          }
+
+          curLastGood = i + 1;
+
+          if (j < hyp.length) {
+            int icost = score + 1;
+            if (cost[i][j + 1] < 0 || cost[i][j + 1] > icost) {
+              cost[i][j + 1] = icost;
+              back[i][j + 1] = 'I';
+            }
+          }
+
+          if (i < ref.length) {
+            int dcost = score + 1;
+            if (cost[i + 1][j] < 0 || cost[i + 1][j] > dcost) {
+              cost[i + 1][j] = dcost;
+              back[i + 1][j] = 'D';
+              if (i >= lastGood)
+                lastGood = i + 1;
+            }
+          }
+        }
+      }
+
+      // Trace back the path
+      char[] path = new char[ref.length + hyp.length];
+      int length = 0;
+      int i = ref.length;
+      int j = hyp.length;
+      while (i > 0 || j > 0) {
+        char sym = back[i][j];
+        path[length++] = sym;
+        if (sym == ' ' || sym == 'S') {
+          i--;
+          j--;
+        } else if (sym == 'I') {
+          j--;
+        } else {
+          i--;
+        }
+      }
+      char[] forward = new char[length];
+      for (int k = 0; k < length; k++)
+        forward[k] = path[length - 1 - k];
+
+      return new Alignment(hyp, cost[ref.length][hyp.length], forward);
+    }
+  }
+}
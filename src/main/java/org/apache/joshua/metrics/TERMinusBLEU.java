@@ -37,8 +37,8 @@ public class TERMinusBLEU extends EvaluationMetric {
     // M_o[1]: with-punctuation, punc/nopunc
     // M_o[2]: beam width, positive integer
     // M_o[3]: maximum shift distance, positive integer
-    // M_o[4]: filename of tercom jar file
-    // M_o[5]: number of threads to use for TER scoring (= number of tercom processes launched)
+    // M_o[4]: filename of tercom jar file (no longer used, see TER)
+    // M_o[5]: number of threads to use for TER scoring
     // M_o[6]: maximum gram length, positive integer
     // M_o[7]: effective length calculation method, closest/shortest/average
 
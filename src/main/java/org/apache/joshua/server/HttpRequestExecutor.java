@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The executor handed to the HTTP server. It runs at most <code>threads</code> requests at a time
+ * and queues at most <code>queueSize</code> more. Requests that arrive when the queue is full are
+ * not dropped on the floor (the JDK HTTP server would leak the connection if execute() threw);
+ * instead, they are handed to a single lightweight thread that is flagged as overloaded, so that
+ * the handler can answer them immediately with HTTP 503. That thread's queue is bounded too: once
+ * it is full, the HTTP server's own thread answers the rejected request, which keeps it from
+ * accepting new connections until the flood of 503s has been worked off.
+ *
+ * The executor also records the time at which each request was admitted, so that handlers can
+ * enforce a deadline that includes the time spent waiting in the queue.
+ */
+public class HttpRequestExecutor implements Executor {
+
+  /* Set on the shedding thread while it is running a rejected request */
+  private static final ThreadLocal<Boolean> OVERLOADED = ThreadLocal.withInitial(() -> false);
+
+  /* The System.nanoTime() at which the currently-running request was handed to us */
+  private static final ThreadLocal<Long> ADMITTED = new ThreadLocal<>();
+
+  /* The number of rejected requests that can wait to be answered with 503 */
+  private static final int SHED_QUEUE_SIZE = 128;
+
+  private final ThreadPoolExecutor workers;
+  private final ThreadPoolExecutor shedder;
+
+  /**
+   * @param threads the number of requests that are handled concurrently
+   * @param queueSize the number of requests that can wait for a free thread
+   */
+  public HttpRequestExecutor(int threads, int queueSize) {
+    this(threads, queueSize, SHED_QUEUE_SIZE);
+  }
+
+  HttpRequestExecutor(int threads, int queueSize, int shedQueueSize) {
+    this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+        new ThreadFactoryBuilder().setNameFormat("HttpRequest-%d").setDaemon(true).build());
+    this.shedder = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(Math.max(1, shedQueueSize)),
+        new ThreadFactoryBuilder().setNameFormat("HttpRequestShedder").setDaemon(true).build(),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  @Override
+  public void execute(Runnable request) {
+    final long admitted = System.nanoTime();
+    try {
+      workers.execute(() -> {
+        ADMITTED.set(admitted);
+        try {
+          request.run();
+        } finally {
+          ADMITTED.remove();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      shedder.execute(() -> {
+        OVERLOADED.set(true);
+        try {
+          request.run();
+        } finally {
+          OVERLOADED.set(false);
+        }
+      });
+    }
+  }
+
+  /**
+   * @return true if the calling thread is running a request that could not be admitted
+   */
+  public static boolean isOverloaded() {
+    return OVERLOADED.get();
+  }
+
+  /**
+   * @return the System.nanoTime() at which the request on the calling thread was admitted, or the
+   *         current time if the calling thread is not one of ours
+   */
+  public static long admittedAt() {
+    Long admitted = ADMITTED.get();
+    return (admitted != null) ? admitted : System.nanoTime();
+  }
+
+  /**
+   * @return the number of requests waiting for a free thread
+   */
+  public int getQueueLength() {
+    return workers.getQueue().size();
+  }
+
+  public void shutdown() {
+    workers.shutdown();
+    shedder.shutdown();
+  }
+}
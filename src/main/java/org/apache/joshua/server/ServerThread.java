@@ -20,6 +20,7 @@ package org.apache.joshua.server;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.StringReader;
@@ -31,12 +32,19 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.DecoderScheduler;
 import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.LmPool;
 import org.apache.joshua.decoder.Translation;
 import org.apache.joshua.decoder.TranslationResponseStream;
 import org.apache.joshua.decoder.ff.tm.Rule;
@@ -56,6 +64,10 @@ public class ServerThread extends Thread implements HttpHandler {
 
   private static final Logger LOG = LoggerFactory.getLogger(ServerThread.class);
   private static final Charset FILE_ENCODING = Charset.forName("UTF-8");
+
+  /* The metadata commands that change the weights or the custom grammar */
+  private static final Set<String> MODEL_UPDATES =
+      new HashSet<>(Arrays.asList("set_weights", "add_rule", "remove_rule"));
   
   private final JoshuaConfiguration joshuaConfiguration;
   private Socket socket = null;
@@ -88,9 +100,8 @@ public class ServerThread extends Thread implements HttpHandler {
 
       TranslationRequestStream request = new TranslationRequestStream(reader, joshuaConfiguration);
 
+      TranslationResponseStream translationResponseStream = decoder.decodeAll(request);
       try {
-        TranslationResponseStream translationResponseStream = decoder.decodeAll(request);
-        
         OutputStream out = socket.getOutputStream();
         
         for (Translation translation: translationResponseStream) {
@@ -99,6 +110,7 @@ public class ServerThread extends Thread implements HttpHandler {
         
       } catch (SocketException e) {
         LOG.error(" Socket interrupted", e);
+        translationResponseStream.cancel();
         request.shutdown();
       } finally {
         reader.close();
@@ -134,28 +146,24 @@ public class ServerThread extends Thread implements HttpHandler {
     return result;
   } 
 
-  private class HttpWriter extends OutputStream {
-
-    private HttpExchange client = null;
-    private OutputStream out = null;
-    
-    public HttpWriter(HttpExchange client) {
-      this.client = client;
-      client.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
-    }
-    
-    @Override
-    public void write(byte[] response) throws IOException {
-      client.sendResponseHeaders(200, response.length);
-      out = client.getResponseBody();
+  /**
+   * Writes a complete response with a fixed Content-Length and closes the exchange. Sending the
+   * length up front (instead of chunking) and always closing the exchange is what allows the HTTP
+   * server to keep the connection alive for the client's next request.
+   */
+  private void sendResponse(HttpExchange client, int code, byte[] response) throws IOException {
+    client.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+    client.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+    client.sendResponseHeaders(code, response.length);
+    try (OutputStream out = client.getResponseBody()) {
       out.write(response);
-      out.close();
     }
+  }
 
-    @Override
-    public void write(int b) throws IOException {
-      out.write(b);
-    }
+  private void sendError(HttpExchange client, int code, String error) throws IOException {
+    if (code == 503)
+      client.getResponseHeaders().add("Retry-After", "1");
+    sendResponse(client, code, String.format("{\"error\": \"%s\"}", error).getBytes(FILE_ENCODING));
   }
 
   /**
@@ -170,42 +178,122 @@ public class ServerThread extends Thread implements HttpHandler {
    * 
    * handle() will use q = {a, b} and meta = {d}
    * 
+   * An optional "priority=N" sets the request's share of the decoder's worker threads relative to
+   * other requests being decoded at the same time (see {@link DecoderScheduler}).
+   * 
+   * This method is called concurrently by the threads of the {@link HttpRequestExecutor}. Requests
+   * that could not be admitted to its queue are answered with 503 (Service Unavailable), and
+   * requests that exceed server_request_timeout (measured from admission) with 504 (Gateway
+   * Timeout).
+   * 
    * @param client the client connection
    */
   @Override
-  public synchronized void handle(HttpExchange client) throws IOException {
+  public void handle(HttpExchange client) throws IOException {
+    if (HttpRequestExecutor.isOverloaded()) {
+      // Answer without reading the body, so a slow or large upload cannot hold up the other 503s;
+      // closing the exchange drains at most a little of it and otherwise drops the connection
+      LOG.warn("Rejecting request from {}: server is overloaded", client.getRemoteAddress());
+      try {
+        client.getResponseHeaders().add("Connection", "close");
+        sendError(client, 503, "server overloaded");
+      } finally {
+        client.close();
+      }
+      return;
+    }
 
-    HashMap<String, ArrayList<String>> params = queryToMap(client.getRequestURI().getRawQuery());
-    ArrayList<String> queryList = params.get("q");
-    ArrayList<String> metaList = params.get("meta");
-    String meta = (metaList != null && ! metaList.isEmpty()) ? metaList.get(metaList.size() - 1) : null;
-    
-    /* Join together multiple sentence queries as distinct sentences. */
-    BufferedReader reader = new BufferedReader(new StringReader(String.join("\n", queryList)));
-    TranslationRequestStream request = new TranslationRequestStream(reader, joshuaConfiguration);
-    
-    TranslationResponseStream translationResponseStream = decoder.decodeAll(request);
-    JSONMessage message = new JSONMessage();
-    if (meta != null && ! meta.isEmpty())
-      handleMetadata(meta, message);
-
-    for (Translation translation: translationResponseStream) {
-      LOG.info("TRANSLATION: '{}' with {} k-best items, score {}", 
-          translation, translation.getStructuredTranslations().size());
-      message.addTranslation(translation);
+    try (InputStream body = client.getRequestBody()) {
+      // Drain anything the client sent so the connection can be reused
+      while (body.read() != -1);
     }
 
-    OutputStream out = new HttpWriter(client);
-    out.write(message.toString().getBytes());
-    if (LOG.isDebugEnabled())
-      LOG.debug(message.toString());
-    out.close();
-    
-    reader.close();
+    try {
+      String query = client.getRequestURI().getRawQuery();
+      if (query == null) {
+        sendError(client, 400, "no query string");
+        return;
+      }
+
+      HashMap<String, ArrayList<String>> params = queryToMap(query);
+      ArrayList<String> queryList = params.get("q");
+      ArrayList<String> metaList = params.get("meta");
+      String meta = (metaList != null && ! metaList.isEmpty()) ? metaList.get(metaList.size() - 1) : null;
+      ArrayList<String> priorityList = params.get("priority");
+      int priority = DecoderScheduler.DEFAULT_PRIORITY;
+      if (priorityList != null && ! priorityList.isEmpty()) {
+        try {
+          priority = Integer.parseInt(priorityList.get(priorityList.size() - 1));
+        } catch (NumberFormatException e) {
+          sendError(client, 400, "invalid priority");
+          return;
+        }
+      }
+
+      JSONMessage message = new JSONMessage();
+      if (meta != null && ! meta.isEmpty())
+        handleMetadata(meta, message);
+
+      if (queryList != null) {
+        try {
+          translate(queryList, priority, message, HttpRequestExecutor.admittedAt());
+        } catch (TimeoutException e) {
+          LOG.warn("Request from {} timed out: {}", client.getRemoteAddress(), e.getMessage());
+          sendError(client, 504, "request timed out");
+          return;
+        }
+      }
+
+      sendResponse(client, 200, message.toString().getBytes(FILE_ENCODING));
+      if (LOG.isDebugEnabled())
+        LOG.debug(message.toString());
+
+    } finally {
+      client.close();
+    }
+  }
+
+  /**
+   * Translates the sentences in queryList at the given scheduling priority, adding them to the
+   * message. If a request timeout is
+   * configured, this gives up once it has passed (counting from when the request was admitted),
+   * and tells the request to stop handing out sentences.
+   */
+  private void translate(ArrayList<String> queryList, int priority, JSONMessage message,
+      long admitted) throws IOException, TimeoutException {
+    /* Join together multiple sentence queries as distinct sentences. */
+    try (BufferedReader reader = new BufferedReader(new StringReader(String.join("\n", queryList)))) {
+      TranslationRequestStream request = new TranslationRequestStream(reader, joshuaConfiguration);
+      request.setPriority(priority);
+      long timeout = joshuaConfiguration.server_request_timeout;
+      long deadline = admitted + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+      TranslationResponseStream translationResponseStream = decoder.decodeAll(request);
+      try {
+        for (;;) {
+          Translation translation = (timeout > 0)
+              ? translationResponseStream.next(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+              : translationResponseStream.next();
+          if (translation == null)
+            break;
+
+          LOG.info("TRANSLATION: '{}' with {} k-best items", 
+              translation, translation.getStructuredTranslations().size());
+          message.addTranslation(translation);
+        }
+      } catch (TimeoutException e) {
+        translationResponseStream.cancel();
+        request.shutdown();
+        throw e;
+      }
+    }
   }
   
   /**
    * Processes metadata commands received in the HTTP request. Some commands result in sending data back.
+   * Commands that change the weights or the custom grammar hold the decoder's write lock, so they
+   * wait for the sentences being decoded and are never seen half done; the others hold its read
+   * lock.
    *
    * @param meta the metadata request
    * @param message the JSON message template that will be filled out.
@@ -217,6 +305,19 @@ public class ServerThread extends Thread implements HttpHandler {
     
     LOG.info("META: {}", type);
 
+    Lock lock = MODEL_UPDATES.contains(type)
+        ? decoder.getModelLock().writeLock()
+        : decoder.getModelLock().readLock();
+    lock.lock();
+    try {
+      runMetadataCommand(type, tokens, args, meta, message);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void runMetadataCommand(String type, String[] tokens, String args, String meta,
+      JSONMessage message) {
     switch (type) {
     case "get_weight":
       String weight = tokens[1];
@@ -244,6 +345,13 @@ public class ServerThread extends Thread implements HttpHandler {
 
       break;
     }
+    case "get_lm_pools": {
+      // Native memory held by the KenLM state pools of the decoding threads
+      message.addMetaData(String.format("lm_pools live=%d bytes=%d", LmPool.getLivePools(),
+          LmPool.getLiveBytes()));
+
+      break;
+    }
     case "add_rule": {
     
       String argTokens[] = args.split(" \\|\\|\\| ");
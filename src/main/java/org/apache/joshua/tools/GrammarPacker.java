@@ -28,11 +28,19 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.ff.tm.Rule;
@@ -70,16 +78,25 @@ public class GrammarPacker {
    * the need for special handling of phrase grammars (except for having to add a LHS), and lets
    * phrase grammars be used in both hierarchical and phrase-based decoding without conversion.
    *
+   * - 5 (October 2026). Addresses in the source and target tries, and in the target lookup table,
+   * are written as longs, so that the tries of a single slice can be larger than 2 GB. The
+   * decoder memory-maps them instead of copying them onto the heap.
+   *
    */
-  public static final int VERSION = 4;
+  public static final int VERSION = 5;
 
-  // Size limit for slice in bytes.
+  // Size limit for the feature and alignment data of a slice in bytes.
   private static final int DATA_SIZE_LIMIT = (int) (Integer.MAX_VALUE * 0.8);
   // Estimated average number of feature entries for one rule.
   private static final int DATA_SIZE_ESTIMATE = 20;
 
   private static final String SOURCE_WORDS_SEPARATOR = " ||| ";
 
+  // Number of rules handed to an encoding thread at once.
+  private static final int BATCH_SIZE = 10000;
+  // Number of rules sorted in memory at once by each thread if the grammar needs sorting.
+  private static final int SORT_CHUNK_SIZE = 500000;
+
   // Output directory name.
   private final String output;
 
@@ -110,11 +127,23 @@ public class GrammarPacker {
 
   private int max_source_len;
 
+  // Number of threads sorting, parsing and encoding rules, and writing slices.
+  private final int threads;
+
   public GrammarPacker(String grammar_filename, String config_filename, String output_filename,
       String alignments_filename, String featuredump_filename, boolean grammar_alignments,
       int approximateMaximumSliceSize)
       throws IOException {
+    this(grammar_filename, config_filename, output_filename, alignments_filename,
+        featuredump_filename, grammar_alignments, approximateMaximumSliceSize, 1);
+  }
+
+  public GrammarPacker(String grammar_filename, String config_filename, String output_filename,
+      String alignments_filename, String featuredump_filename, boolean grammar_alignments,
+      int approximateMaximumSliceSize, int threads)
+      throws IOException {
     this.labeled = true;
+    this.threads = Math.max(1, threads);
     this.grammar = grammar_filename;
     this.output = output_filename;
     this.dump = featuredump_filename;
@@ -140,6 +169,7 @@ public class GrammarPacker {
       LOG.info("No config specified. Attempting auto-detection of feature types.");
     }
     LOG.info("Approximate maximum slice size (in # of rules) set to {}", approximateMaximumSliceSize);
+    LOG.info("Packing with {} threads", this.threads);
 
     File working_dir = new File(output);
     working_dir.mkdir();
@@ -171,17 +201,49 @@ public class GrammarPacker {
   }
 
   /**
-   * Executes the packing.
+   * Executes the packing. The grammar is sorted first if its source sides are not in order.
    *
    * @throws IOException if there is an error reading the grammar
    */
   public void pack() throws IOException {
+    AtomicInteger threadCount = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "GrammarPacker-" + threadCount.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    File sorted = null;
+    try {
+      boolean hiero = isHieroFormat(grammar);
+      int sourceField = hiero ? 1 : 0;
+      String input = grammar;
+      if (!GrammarSorter.isSorted(grammar, sourceField)) {
+        if (alignments != null)
+          throw new RuntimeException("Grammar " + grammar
+              + " is not sorted, so its rules can't be matched to the alignments in " + alignments);
+        LOG.info("Sorting: {}", grammar);
+        sorted = new GrammarSorter(sourceField, new File(output), SORT_CHUNK_SIZE, pool, threads)
+            .sort(grammar);
+        input = sorted.getPath();
+      }
+      pack(input, hiero, pool);
+    } finally {
+      pool.shutdownNow();
+      if (sorted != null)
+        sorted.delete();
+    }
+  }
+
+  private void pack(String input, boolean hiero, ExecutorService pool) throws IOException {
     LOG.info("Beginning exploration pass.");
 
-    // Explore pass. Learn vocabulary and feature value histograms.
-    LOG.info("Exploring: {}", grammar);
+    // Explore pass. Learn vocabulary and feature value histograms. This stays sequential so
+    // that vocabulary ids are assigned in the same order regardless of the number of threads.
+    LOG.info("Exploring: {}", input);
 
-    HieroFormatReader grammarReader = getGrammarReader();
+    HieroFormatReader grammarReader = hiero ? new HieroFormatReader(input)
+        : new MosesFormatReader(input);
     explore(grammarReader);
 
     LOG.info("Exploration pass complete. Freezing vocabulary and finalizing encoders.");
@@ -217,11 +279,16 @@ public class GrammarPacker {
 
     LOG.info("Beginning packing pass.");
     // Actual binarization pass. Slice and pack source, target and data.
-    grammarReader = getGrammarReader();
     LineReader alignment_reader = null;
     if (packAlignments && !grammarAlignments)
       alignment_reader = new LineReader(alignments);
-    binarize(grammarReader, alignment_reader);
+    try (LineReader grammar_lines = new LineReader(input)) {
+      binarize(grammar_lines, hiero ? new HieroFormatReader() : new MosesFormatReader(),
+          alignment_reader, pool);
+    } finally {
+      if (alignment_reader != null)
+        alignment_reader.close();
+    }
     LOG.info("Packing complete.");
 
     LOG.info("Packed grammar in: {}", output);
@@ -229,19 +296,15 @@ public class GrammarPacker {
   }
 
   /**
-   * Returns a reader that turns whatever file format is found into Hiero grammar rules.
+   * Determines whether a grammar is in Hiero format, or else is a Moses phrase table.
    *
-   * @return a Hiero format reader
+   * @return true if the rules of the grammar start with a left-hand side
    * @throws IOException
    */
-  private HieroFormatReader getGrammarReader() throws IOException {
+  private static boolean isHieroFormat(String grammar) throws IOException {
     try (LineReader reader = new LineReader(grammar)) {
       String line = reader.next();
-      if (line.startsWith("[")) {
-        return new HieroFormatReader(grammar);
-      } else {
-        return new MosesFormatReader(grammar);
-      }
+      return line.startsWith("[");
     }
   }
 
@@ -293,7 +356,27 @@ public class GrammarPacker {
     return source_words[0] + SOURCE_WORDS_SEPARATOR + ((source_words.length > 1) ? source_words[1] : "");
   }
 
-  private void binarize(HieroFormatReader grammarReader, LineReader alignment_reader) throws IOException {
+  /**
+   * A rule that has been parsed and whose features and alignments have been encoded, ready to be
+   * added to a slice.
+   */
+  private static final class EncodedRule {
+    int lhs;
+    int[] source;
+    int[] target;
+    byte[] features;
+    byte[] alignments;
+    String firstTwoSourceWords;
+  }
+
+  /**
+   * Second pass over the grammar. Rules are parsed and their features encoded in batches on the
+   * thread pool, and added to the slices in grammar order on the calling thread; a finished slice
+   * is written out on the pool while the next one is filled. The output does not depend on the
+   * number of threads.
+   */
+  private void binarize(LineReader grammar_lines, HieroFormatReader parser,
+      LineReader alignment_reader, ExecutorService pool) throws IOException {
     int counter = 0;
     int slice_counter = 0;
     int num_slices = 0;
@@ -310,61 +393,133 @@ public class GrammarPacker {
     if (packAlignments)
       alignment_buffer = new AlignmentBuffer();
 
-    TreeMap<Integer, Float> features = new TreeMap<>();
-    for (Rule rule: grammarReader) {
-      counter++;
-      slice_counter++;
+    IntEncoder idEncoder = types.getIdEncoder();
+    // Batches being encoded, in grammar order. Enough are kept in flight to keep every thread busy.
+    Deque<Future<EncodedRule[]>> batches = new ArrayDeque<>();
+    // The slice being written out. At most two slices are held in memory at once.
+    Future<?> flushing = null;
+    int lines_read = 0;
+
+    try {
+      while (grammar_lines.hasNext() || !batches.isEmpty()) {
+        while (grammar_lines.hasNext() && batches.size() < 2 * threads) {
+          String[] lines = new String[BATCH_SIZE];
+          String[] alignment_lines = (alignment_reader != null) ? new String[BATCH_SIZE] : null;
+          int size = 0;
+          while (size < BATCH_SIZE && grammar_lines.hasNext()) {
+            lines[size] = grammar_lines.next();
+            lines_read++;
+            if (alignment_reader != null) {
+              if (!alignment_reader.hasNext()) {
+                LOG.error("No more alignments starting in line {}", lines_read);
+                throw new RuntimeException("No more alignments starting in line " + lines_read);
+              }
+              alignment_lines[size] = alignment_reader.next().trim();
+            }
+            size++;
+          }
+          final int batch_size = size;
+          batches.add(pool.submit(
+              () -> encode(parser, idEncoder, lines, alignment_lines, batch_size)));
+        }
 
-      String lhs_word = Vocabulary.word(rule.getLHS());
-      String[] source_words = rule.getFrenchWords().split("\\s+");
-      String[] target_words = rule.getEnglishWords().split("\\s+");
-      String[] feature_entries = rule.getFeatureString().split("\\s+");
+        for (EncodedRule rule : await(batches.poll())) {
+          counter++;
+          slice_counter++;
+
+          // Reached slice limit size, indicate that we're closing up.
+          if (!ready_to_flush
+              && (slice_counter > approximateMaximumSliceSize
+                  || feature_buffer.overflowing()
+                  || (packAlignments && alignment_buffer.overflowing()))) {
+            ready_to_flush = true;
+            // store the first two source words when slice size limit was reached
+            prev_first_two_source_words = rule.firstTwoSourceWords;
+          }
+          // ready to flush
+          if (ready_to_flush) {
+            final String first_two_source_words = rule.firstTwoSourceWords;
+            // the grammar can only be partitioned at the level of first two source word changes.
+            // Thus, we can only flush if the current first two source words differ from the ones
+            // when the slice size limit was reached.
+            if (!first_two_source_words.equals(prev_first_two_source_words)) {
+              LOG.warn("ready to flush and first two words have changed ({} vs. {})",
+                  prev_first_two_source_words, first_two_source_words);
+              LOG.info("flushing {} rules to slice.", slice_counter);
+              if (flushing != null)
+                await(flushing);
+              flushing = submitFlush(pool, source_trie, target_trie, feature_buffer,
+                  alignment_buffer, num_slices);
+              source_trie = new PackingTrie<>();
+              target_trie = new PackingTrie<>();
+              feature_buffer = new FeatureBuffer();
+              if (packAlignments)
+                alignment_buffer = new AlignmentBuffer();
+
+              num_slices++;
+              slice_counter = 0;
+              ready_to_flush = false;
+            }
+          }
 
-      // Reached slice limit size, indicate that we're closing up.
-      if (!ready_to_flush
-          && (slice_counter > approximateMaximumSliceSize
-              || feature_buffer.overflowing()
-              || (packAlignments && alignment_buffer.overflowing()))) {
-        ready_to_flush = true;
-        // store the first two source words when slice size limit was reached
-        prev_first_two_source_words = getFirstTwoSourceWords(source_words);
-      }
-      // ready to flush
-      if (ready_to_flush) {
-        final String first_two_source_words = getFirstTwoSourceWords(source_words);
-        // the grammar can only be partitioned at the level of first two source word changes.
-        // Thus, we can only flush if the current first two source words differ from the ones
-        // when the slice size limit was reached.
-        if (!first_two_source_words.equals(prev_first_two_source_words)) {
-          LOG.warn("ready to flush and first two words have changed ({} vs. {})",
-              prev_first_two_source_words, first_two_source_words);
-          LOG.info("flushing {} rules to slice.", slice_counter);
-          flush(source_trie, target_trie, feature_buffer, alignment_buffer, num_slices);
-          source_trie.clear();
-          target_trie.clear();
-          feature_buffer.clear();
+          int alignment_index = -1;
           if (packAlignments)
-            alignment_buffer.clear();
+            alignment_index = alignment_buffer.add(rule.alignments);
+
+          int features_index = feature_buffer.add(rule.features);
+
+          // Sanity check on the data block index.
+          if (packAlignments && features_index != alignment_index) {
+            LOG.error("Block index mismatch between features ({}) and alignments ({}).",
+                features_index, alignment_index);
+            throw new RuntimeException("Data block index mismatch.");
+          }
+
+          // Process source side.
+          SourceValue sv = new SourceValue(rule.lhs, features_index);
+          source_trie.add(rule.source, sv);
 
-          num_slices++;
-          slice_counter = 0;
-          ready_to_flush = false;
+          // Process target side.
+          TargetValue tv = new TargetValue(sv);
+          target_trie.add(rule.target, tv);
         }
       }
+      if (flushing != null)
+        await(flushing);
+      // flush last slice
+      flush(source_trie, target_trie, feature_buffer, alignment_buffer, num_slices);
+    } finally {
+      for (Future<EncodedRule[]> batch : batches)
+        batch.cancel(true);
+      if (flushing != null)
+        flushing.cancel(true);
+    }
+    LOG.info("Packed {} rules into {} slices.", counter, num_slices + 1);
+  }
+
+  /**
+   * Parses a batch of rules and encodes their features and alignments. Runs on the thread pool.
+   */
+  private EncodedRule[] encode(HieroFormatReader parser, IntEncoder idEncoder, String[] lines,
+      String[] alignment_lines, int size) {
+    EncodedRule[] rules = new EncodedRule[size];
+    ByteBuffer scratch = ByteBuffer.allocate(1024);
+    TreeMap<Integer, Float> features = new TreeMap<>();
+
+    for (int r = 0; r < size; r++) {
+      Rule rule = parser.parseLine(lines[r]);
+      EncodedRule encoded = new EncodedRule();
+
+      String[] source_words = rule.getFrenchWords().split("\\s+");
+      String[] target_words = rule.getEnglishWords().split("\\s+");
+      String[] feature_entries = rule.getFeatureString().split("\\s+");
+
+      encoded.lhs = rule.getLHS();
+      encoded.firstTwoSourceWords = getFirstTwoSourceWords(source_words);
 
-      int alignment_index = -1;
       // If present, process alignments.
       if (packAlignments) {
-        String alignment_line;
-        if (grammarAlignments) {
-          alignment_line = rule.getAlignmentString();
-        } else {
-          if (!alignment_reader.hasNext()) {
-            LOG.error("No more alignments starting in line {}", counter);
-            throw new RuntimeException("No more alignments starting in line " + counter);
-          }
-          alignment_line = alignment_reader.next().trim();
-        }
+        String alignment_line = grammarAlignments ? rule.getAlignmentString() : alignment_lines[r];
         String[] alignment_entries = alignment_line.split("\\s");
         byte[] alignments = new byte[alignment_entries.length * 2];
         if (alignment_line.length() > 0) {
@@ -374,12 +529,11 @@ public class GrammarPacker {
             alignments[2 * i + 1] = Byte.parseByte(parts[1]);
           }
         }
-        alignment_index = alignment_buffer.add(alignments);
+        encoded.alignments = alignments;
       }
 
       // Process features.
-      // Implicitly sort via TreeMap, write to data buffer, remember position
-      // to pass on to the source trie node.
+      // Implicitly sort via TreeMap and encode them the way FeatureBuffer stores them.
       features.clear();
       int feature_count = 0;
       for (String feature_entry : feature_entries) {
@@ -398,40 +552,68 @@ public class GrammarPacker {
         if (feature_value != 0)
           features.put(encoderConfig.innerId(feature_id), feature_value);
       }
-      int features_index = feature_buffer.add(features);
-
-      // Sanity check on the data block index.
-      if (packAlignments && features_index != alignment_index) {
-        LOG.error("Block index mismatch between features ({}) and alignments ({}).",
-            features_index, alignment_index);
-        throw new RuntimeException("Data block index mismatch.");
+      // Over-estimate the room needed, as FeatureBuffer does.
+      int size_estimate = (4 + EncoderConfiguration.ID_SIZE) * features.size()
+          + EncoderConfiguration.ID_SIZE;
+      if (scratch.capacity() < size_estimate)
+        scratch = ByteBuffer.allocate(2 * size_estimate);
+      scratch.clear();
+      idEncoder.write(scratch, features.size());
+      for (Integer k : features.descendingKeySet()) {
+        float v = features.get(k);
+        idEncoder.write(scratch, k);
+        encoderConfig.encoder(k).write(scratch, v);
       }
+      encoded.features = Arrays.copyOf(scratch.array(), scratch.position());
 
       // Process source side.
-      SourceValue sv = new SourceValue(Vocabulary.id(lhs_word), features_index);
-      int[] source = new int[source_words.length];
+      encoded.source = new int[source_words.length];
       for (int i = 0; i < source_words.length; i++) {
         if (FormatUtils.isNonterminal(source_words[i]))
-          source[i] = Vocabulary.id(FormatUtils.stripNonTerminalIndex(source_words[i]));
+          encoded.source[i] = Vocabulary.id(FormatUtils.stripNonTerminalIndex(source_words[i]));
         else
-          source[i] = Vocabulary.id(source_words[i]);
+          encoded.source[i] = Vocabulary.id(source_words[i]);
       }
-      source_trie.add(source, sv);
 
       // Process target side.
-      TargetValue tv = new TargetValue(sv);
-      int[] target = new int[target_words.length];
+      encoded.target = new int[target_words.length];
       for (int i = 0; i < target_words.length; i++) {
         if (FormatUtils.isNonterminal(target_words[i])) {
-          target[target_words.length - (i + 1)] = -FormatUtils.getNonterminalIndex(target_words[i]);
+          encoded.target[target_words.length - (i + 1)] =
+              -FormatUtils.getNonterminalIndex(target_words[i]);
         } else {
-          target[target_words.length - (i + 1)] = Vocabulary.id(target_words[i]);
+          encoded.target[target_words.length - (i + 1)] = Vocabulary.id(target_words[i]);
         }
       }
-      target_trie.add(target, tv);
+
+      rules[r] = encoded;
+    }
+    return rules;
+  }
+
+  private Future<?> submitFlush(ExecutorService pool, PackingTrie<SourceValue> source_trie,
+      PackingTrie<TargetValue> target_trie, FeatureBuffer feature_buffer,
+      AlignmentBuffer alignment_buffer, int id) {
+    return pool.submit(() -> {
+      flush(source_trie, target_trie, feature_buffer, alignment_buffer, id);
+      return null;
+    });
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while packing", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new RuntimeException(cause);
     }
-    // flush last slice and clear buffers
-    flush(source_trie, target_trie, feature_buffer, alignment_buffer, num_slices);
   }
 
   /**
@@ -463,11 +645,11 @@ public class GrammarPacker {
     Queue<PackingTrie<TargetValue>> target_queue;
     Queue<PackingTrie<SourceValue>> source_queue;
 
-    // The number of bytes both written into the source stream and
+    // The number of ints both written into the source stream and
     // buffered in the source queue.
-    int source_position;
-    // The number of bytes written into the target stream.
-    int target_position;
+    long source_position;
+    // The number of ints written into the target stream.
+    long target_position;
 
     // Add trie root into queue, set target position to 0 and set cumulated
     // size to size of trie root.
@@ -478,7 +660,7 @@ public class GrammarPacker {
     // Target lookup table for trie levels.
     int current_level_size = 1;
     int next_level_size = 0;
-    ArrayList<Integer> target_lookup = new ArrayList<>();
+    ArrayList<Long> target_lookup = new ArrayList<>();
 
     // Packing loop for upwards-pointing target trie.
     while (!target_queue.isEmpty()) {
@@ -491,9 +673,9 @@ public class GrammarPacker {
         tv.parent.target = node.address;
       // Write link to parent.
       if (node.parent != null)
-        target_stream.writeInt(node.parent.address);
+        target_stream.writeLong(node.parent.address);
       else
-        target_stream.writeInt(-1);
+        target_stream.writeLong(-1);
       target_stream.writeInt(node.symbol);
       // Enqueue children.
       for (int k : node.children.descendingKeySet()) {
@@ -511,8 +693,8 @@ public class GrammarPacker {
       }
     }
     target_lookup_stream.writeInt(target_lookup.size());
-    for (int i : target_lookup)
-      target_lookup_stream.writeInt(i);
+    for (long i : target_lookup)
+      target_lookup_stream.writeLong(i);
     target_lookup_stream.close();
 
     // Setting up for source and data writing.
@@ -543,7 +725,7 @@ public class GrammarPacker {
         source_position += child.size(true, false);
         // Write the link.
         source_stream.writeInt(k);
-        source_stream.writeInt(child.address);
+        source_stream.writeLong(child.address);
       }
       // Write number of data items.
       source_stream.writeInt(node.values.size());
@@ -559,7 +741,7 @@ public class GrammarPacker {
           }
         }
         source_stream.writeInt(sv.lhs);
-        source_stream.writeInt(sv.target);
+        source_stream.writeLong(sv.target);
         source_stream.writeInt(feature_block_index);
       }
     }
@@ -595,7 +777,7 @@ public class GrammarPacker {
     final TreeMap<Integer, PackingTrie<D>> children;
     final List<D> values;
 
-    int address;
+    long address;
 
     PackingTrie() {
       address = -1;
@@ -639,16 +821,16 @@ public class GrammarPacker {
      * @param downwards Are we packing into a downwards-pointing trie?
      * @param skeletal Are we packing into a skeletal trie?
      *
-     * @return Number of bytes the trie node would occupy.
+     * @return Number of ints the trie node would occupy.
      */
     int size(boolean downwards, boolean skeletal) {
       int size = 0;
       if (downwards) {
-        // Number of children and links to children.
-        size = 1 + 2 * children.size();
+        // Number of children and (symbol, long address) links to children.
+        size = 1 + 3 * children.size();
       } else {
-        // Link to parent.
-        size += 2;
+        // Long link to parent and symbol.
+        size += 3;
       }
       // Non-skeletal packing: number of data items.
       if (!skeletal)
@@ -673,7 +855,7 @@ public class GrammarPacker {
   class SourceValue implements PackingTrieValue {
     int lhs;
     int data;
-    int target;
+    long target;
 
     public SourceValue() {
     }
@@ -683,13 +865,14 @@ public class GrammarPacker {
       this.data = data;
     }
 
-    void setTarget(int target) {
+    void setTarget(long target) {
       this.target = target;
     }
 
     @Override
     public int size() {
-      return 3;
+      // lhs, long target address and data block
+      return 4;
     }
   }
 
@@ -867,6 +1050,28 @@ public class GrammarPacker {
       // Return block index.
       return memoryLookup.size() - 1;
     }
+
+    /**
+     * Add a block of features that has already been encoded.
+     *
+     * @param features the encoded features of one rule, as written by {@link #add(TreeMap)}.
+     * @return The index of the resulting data block.
+     */
+    int add(byte[] features) {
+      int data_position = buffer.position();
+      while (buffer.capacity() - buffer.position() <= features.length
+          && buffer.capacity() < Integer.MAX_VALUE)
+        reallocate();
+
+      buffer.put(features);
+      // Store position the block was written to.
+      memoryLookup.add(data_position);
+      // Update total size (in bytes).
+      totalSize = buffer.position();
+
+      // Return block index.
+      return memoryLookup.size() - 1;
+    }
   }
 
   class AlignmentBuffer extends PackingBuffer<byte[]> {
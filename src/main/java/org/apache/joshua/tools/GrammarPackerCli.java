@@ -55,10 +55,13 @@ public class GrammarPackerCli {
   private final List<String> featuredump_filenames = new ArrayList<>();
   
   @Option(name = "--ga", usage = "whether alignments are present in the grammar")
-  private final boolean grammar_alignments = false;
+  private boolean grammar_alignments = false;
   
   @Option(name = "--slice_size", aliases = {"-s"}, required = false, usage = "approximate slice size in # of rules (default=1000000)")
-  private final int slice_size = 1000000;
+  private int slice_size = 1000000;
+
+  @Option(name = "--threads", aliases = {"-t"}, required = false, usage = "number of threads used for sorting and packing (default=number of processors)")
+  private int threads = Runtime.getRuntime().availableProcessors();
   
   
   private void run() throws IOException {
@@ -110,7 +113,8 @@ public class GrammarPackerCli {
           alignment_filename,
           featuredump_filename,
           grammar_alignments,
-          slice_size);
+          slice_size,
+          threads);
       packers.add(packer);
     }
     
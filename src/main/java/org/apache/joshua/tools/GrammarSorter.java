@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.joshua.util.io.LineReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorts a grammar file that does not fit in memory, for the {@link GrammarPacker}.
+ *
+ * The grammar is read in chunks, which are sorted on a pool of threads and written to temporary
+ * files; the files are then merged. Rules are ordered by source side, then target side, then the
+ * whole line, comparing bytes. For Hiero-format grammars this is the order produced by the
+ * grammar-packer.pl script, i.e., by <code>LC_ALL=C sort -t'\t' -k2,2 -k3,3</code> after replacing
+ * the field separators with tabs. Moses-format phrase tables have no left-hand side, so their
+ * source side is the first field.
+ */
+public class GrammarSorter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(GrammarSorter.class);
+
+  private static final String FIELD_SEPARATOR = " ||| ";
+
+  private final int sourceField;
+  private final File tmpDir;
+  private final int linesPerChunk;
+  private final ExecutorService pool;
+  private final int maxPendingChunks;
+
+  /**
+   * @param sourceField the index of the source side among the fields of a rule
+   * @param tmpDir the directory for the sorted chunks and the result
+   * @param linesPerChunk the number of rules sorted in memory at once
+   * @param pool the threads that sort the chunks
+   * @param threads the number of threads in the pool; as many chunks are held in memory at once
+   */
+  public GrammarSorter(int sourceField, File tmpDir, int linesPerChunk, ExecutorService pool,
+      int threads) {
+    this.sourceField = sourceField;
+    this.tmpDir = tmpDir;
+    this.linesPerChunk = linesPerChunk;
+    this.pool = pool;
+    this.maxPendingChunks = Math.max(1, threads);
+  }
+
+  /**
+   * Determines whether the grammar can be packed as it is, i.e., whether its source sides are in
+   * order. Rules with the same source side may come in any order.
+   *
+   * @param grammar the grammar file
+   * @param sourceField the index of the source side among the fields of a rule
+   * @return true if the source sides are sorted
+   * @throws IOException if the grammar cannot be read
+   */
+  public static boolean isSorted(String grammar, int sourceField) throws IOException {
+    try (LineReader reader = new LineReader(grammar, false)) {
+      String previous = null;
+      for (String line : reader) {
+        String source = field(line, sourceField);
+        if (previous != null && compareCodePoints(previous, source) > 0)
+          return false;
+        previous = source;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sorts the grammar into a new file in the temporary directory. The caller deletes it.
+   *
+   * @param grammar the grammar file
+   * @return the sorted grammar
+   * @throws IOException if the grammar cannot be read or the result cannot be written
+   */
+  public File sort(String grammar) throws IOException {
+    List<File> chunks = new ArrayList<>();
+    Deque<Future<File>> pending = new ArrayDeque<>();
+    try {
+      try (LineReader reader = new LineReader(grammar, false)) {
+        List<String> lines = new ArrayList<>(linesPerChunk);
+        for (String line : reader) {
+          lines.add(line);
+          if (lines.size() == linesPerChunk) {
+            // Bound the number of chunks held in memory
+            if (pending.size() == maxPendingChunks)
+              chunks.add(await(pending.poll()));
+            pending.add(submitChunk(lines));
+            lines = new ArrayList<>(linesPerChunk);
+          }
+        }
+        if (!lines.isEmpty())
+          pending.add(submitChunk(lines));
+      }
+      while (!pending.isEmpty())
+        chunks.add(await(pending.poll()));
+
+      LOG.info("Merging {} sorted chunks of {}", chunks.size(), grammar);
+      File sorted = File.createTempFile("grammar.", ".sorted", tmpDir);
+      merge(chunks, sorted);
+      return sorted;
+    } finally {
+      for (Future<File> chunk : pending)
+        chunk.cancel(true);
+      for (File chunk : chunks)
+        chunk.delete();
+    }
+  }
+
+  private Future<File> submitChunk(List<String> lines) {
+    return pool.submit(() -> {
+      Collections.sort(lines, this::compare);
+      File chunk = File.createTempFile("grammar.", ".chunk", tmpDir);
+      try (BufferedWriter out = Files.newBufferedWriter(chunk.toPath(), StandardCharsets.UTF_8)) {
+        for (String line : lines) {
+          out.write(line);
+          out.write('\n');
+        }
+      }
+      return chunk;
+    });
+  }
+
+  /**
+   * Orders rules by source side, target side and then the whole line. Comparing code points gives
+   * the same result as comparing the UTF-8 bytes.
+   */
+  int compare(String a, String b) {
+    int c = compareCodePoints(field(a, sourceField), field(b, sourceField));
+    if (c == 0)
+      c = compareCodePoints(field(a, sourceField + 1), field(b, sourceField + 1));
+    if (c == 0)
+      c = compareCodePoints(a.replace(FIELD_SEPARATOR, "\t"), b.replace(FIELD_SEPARATOR, "\t"));
+    return c;
+  }
+
+  /**
+   * Merges sorted files into one.
+   */
+  private void merge(List<File> chunks, File sorted) throws IOException {
+    List<BufferedReader> readers = new ArrayList<>(chunks.size());
+    try (BufferedWriter out = Files.newBufferedWriter(sorted.toPath(), StandardCharsets.UTF_8)) {
+      PriorityQueue<Head> heads = new PriorityQueue<>(Math.max(1, chunks.size()));
+      for (File chunk : chunks) {
+        BufferedReader reader = Files.newBufferedReader(chunk.toPath(), StandardCharsets.UTF_8);
+        readers.add(reader);
+        String line = reader.readLine();
+        if (line != null)
+          heads.add(new Head(line, reader));
+      }
+
+      while (!heads.isEmpty()) {
+        Head head = heads.poll();
+        out.write(head.line);
+        out.write('\n');
+        String line = head.reader.readLine();
+        if (line != null)
+          heads.add(new Head(line, head.reader));
+      }
+    } finally {
+      for (BufferedReader reader : readers)
+        reader.close();
+    }
+  }
+
+  /* The next line of a sorted chunk */
+  private final class Head implements Comparable<Head> {
+    private final String line;
+    private final BufferedReader reader;
+
+    private Head(String line, BufferedReader reader) {
+      this.line = line;
+      this.reader = reader;
+    }
+
+    @Override
+    public int compareTo(Head other) {
+      return compare(line, other.line);
+    }
+  }
+
+  private static File await(Future<File> chunk) throws IOException {
+    try {
+      return chunk.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while sorting the grammar", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns the given " ||| "-separated field of a line, or the empty string if there is no such
+   * field.
+   */
+  static String field(String line, int index) {
+    int start = 0;
+    for (int i = 0; i < index; i++) {
+      int separator = line.indexOf(FIELD_SEPARATOR, start);
+      if (separator == -1)
+        return "";
+      start = separator + FIELD_SEPARATOR.length();
+    }
+    int end = line.indexOf(FIELD_SEPARATOR, start);
+    return (end == -1) ? line.substring(start) : line.substring(start, end);
+  }
+
+  private static int compareCodePoints(String a, String b) {
+    int i = 0;
+    int j = 0;
+    while (i < a.length() && j < b.length()) {
+      int ca = a.codePointAt(i);
+      int cb = b.codePointAt(j);
+      if (ca != cb)
+        return (ca < cb) ? -1 : 1;
+      i += Character.charCount(ca);
+      j += Character.charCount(cb);
+    }
+    return Boolean.compare(i < a.length(), j < b.length());
+  }
+}
@@ -35,8 +35,10 @@ import java.util.Map;
  * 
  * @author Chris Callison-Burch
  * @since 14 April 2005
- * 
+ * @deprecated reads modify the access order, so this class cannot be shared between decoding
+ *             threads; use {@link ConcurrentCache} or {@link ConcurrentLongCache} instead
  */
+@Deprecated
 public class Cache<K, V> extends LinkedHashMap<K, V> {
 
   private static final long serialVersionUID = 6073387072740892061L;
@@ -0,0 +1,293 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache that can be shared by all decoding threads. It replaces {@link Cache}, which is
+ * an access-ordered LinkedHashMap and therefore unsafe to use from several threads even for
+ * reads.
+ * <p>
+ * Lookups go straight to a {@link ConcurrentHashMap} and never lock; a hit only sets the entry's
+ * reference bit. Eviction uses the CLOCK approximation of LRU: the entries are split into shards
+ * by key, each with its own ring and lock. When a shard is full, its hand sweeps the ring, giving
+ * referenced entries a second chance (clearing their bit) and evicting the first entry that has
+ * not been used since the hand last passed it.
+ * <p>
+ * The method names follow Guava's {@link com.google.common.cache.Cache}. Keys and values may not
+ * be null. For int or long keys, {@link ConcurrentLongCache} avoids boxing.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class ConcurrentCache<K, V> {
+
+  private final ConcurrentHashMap<K, Entry<K, V>> map;
+  private final Shard<K, V>[] shards;
+  private final int shardMask;
+  private final long maximumSize;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Creates a cache with enough shards for the number of processors.
+   *
+   * @param maximumSize the (approximate) maximum number of entries
+   */
+  public ConcurrentCache(long maximumSize) {
+    this(maximumSize, 4 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param maximumSize the (approximate) maximum number of entries; the shards share it evenly,
+   *          so the cache may hold up to one entry per shard more
+   * @param concurrencyLevel the number of shards (rounded up to a power of two, and down to the
+   *          maximum size)
+   */
+  @SuppressWarnings("unchecked")
+  public ConcurrentCache(long maximumSize, int concurrencyLevel) {
+    if (maximumSize <= 0)
+      throw new IllegalArgumentException("maximumSize must be positive");
+
+    int numShards = (concurrencyLevel <= 1) ? 1 : Integer.highestOneBit((concurrencyLevel - 1) << 1);
+    while (numShards > 1 && numShards > maximumSize)
+      numShards >>>= 1;
+
+    this.maximumSize = maximumSize;
+    this.shardMask = numShards - 1;
+    this.shards = new Shard[numShards];
+    int shardCapacity = (int) Math.min(Integer.MAX_VALUE - 8, (maximumSize + numShards - 1) / numShards);
+    for (int i = 0; i < numShards; i++)
+      shards[i] = new Shard<>(shardCapacity);
+
+    this.map = new ConcurrentHashMap<>((int) Math.min(maximumSize, 1 << 16), 0.75f, numShards);
+  }
+
+  /**
+   * @param key the key
+   * @return the cached value, or null if the key is not in the cache
+   */
+  public V getIfPresent(K key) {
+    Entry<K, V> entry = map.get(key);
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+
+    hits.increment();
+    // Skip the write if the bit is already set, to keep the cache line shared between readers
+    if (!entry.referenced)
+      entry.referenced = true;
+    return entry.value;
+  }
+
+  /**
+   * Caches a value, replacing any previous value for the key. If the key's shard is full, the
+   * CLOCK hand evicts an entry to make room.
+   *
+   * @param key the key
+   * @param value the value
+   */
+  public void put(K key, V value) {
+    if (value == null)
+      throw new NullPointerException("null values cannot be cached");
+
+    Entry<K, V> entry = map.get(key);
+    if (entry != null) {
+      entry.value = value;
+      entry.referenced = true;
+      return;
+    }
+
+    Shard<K, V> shard = shardFor(key);
+    synchronized (shard) {
+      entry = new Entry<>(key, value);
+      Entry<K, V> existing = map.putIfAbsent(key, entry);
+      if (existing != null) {
+        existing.value = value;
+        existing.referenced = true;
+        return;
+      }
+
+      Entry<K, V> victim = shard.add(entry);
+      if (victim != null) {
+        map.remove(victim.key, victim);
+        evictions.increment();
+      }
+    }
+  }
+
+  /**
+   * Removes a key from the cache.
+   *
+   * @param key the key
+   */
+  public void invalidate(K key) {
+    Shard<K, V> shard = shardFor(key);
+    synchronized (shard) {
+      Entry<K, V> entry = map.remove(key);
+      if (entry != null)
+        shard.remove(entry);
+    }
+  }
+
+  /**
+   * Removes all entries. The statistics are kept.
+   */
+  public void invalidateAll() {
+    for (Shard<K, V> shard : shards) {
+      synchronized (shard) {
+        // Entries only enter the map together with their ring, under the same lock
+        for (int i = 0; i < shard.size; i++)
+          map.remove(shard.ring[i].key, shard.ring[i]);
+        shard.clear();
+      }
+    }
+  }
+
+  /**
+   * @return the number of entries in the cache
+   */
+  public long size() {
+    return map.size();
+  }
+
+  public long getMaximumSize() {
+    return maximumSize;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * @return the number of entries removed to make room for new ones
+   */
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return the fraction of lookups that found a value, or 1 if there have been none
+   */
+  public double getHitRate() {
+    long hitCount = hits.sum();
+    long total = hitCount + misses.sum();
+    return (total == 0) ? 1.0 : (double) hitCount / total;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("size %d/%d, hits %d, misses %d (hit rate %.3f), evictions %d", size(),
+        maximumSize, getHitCount(), getMissCount(), getHitRate(), getEvictionCount());
+  }
+
+  private Shard<K, V> shardFor(K key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    h *= 0x9E3779B9;
+    return shards[(h >>> 16) & shardMask];
+  }
+
+  private static final class Entry<K, V> {
+    final K key;
+    volatile V value;
+    volatile boolean referenced = false;
+    /* The entry's position in its shard's ring (guarded by the shard lock) */
+    int slot;
+
+    Entry(K key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  /**
+   * The CLOCK ring of one shard. All methods are called with the shard's lock held. The ring grows
+   * by doubling until it reaches the shard's capacity, so a large maximum size costs nothing up
+   * front.
+   */
+  private static final class Shard<K, V> {
+    private final int capacity;
+    private Entry<K, V>[] ring;
+    private int size = 0;
+    private int hand = 0;
+
+    @SuppressWarnings("unchecked")
+    Shard(int capacity) {
+      this.capacity = capacity;
+      this.ring = new Entry[Math.min(capacity, 16)];
+    }
+
+    /**
+     * Adds an entry to the ring.
+     *
+     * @return the entry that was evicted to make room for it, or null
+     */
+    Entry<K, V> add(Entry<K, V> entry) {
+      if (size < capacity) {
+        if (size == ring.length)
+          ring = Arrays.copyOf(ring, (int) Math.min(capacity, 2L * ring.length));
+        entry.slot = size;
+        ring[size++] = entry;
+        return null;
+      }
+
+      // Full: at most one sweep clears every reference bit, so this terminates
+      while (true) {
+        Entry<K, V> current = ring[hand];
+        if (current.referenced) {
+          current.referenced = false;
+          hand = (hand + 1) % capacity;
+        } else {
+          entry.slot = hand;
+          ring[hand] = entry;
+          hand = (hand + 1) % capacity;
+          return current;
+        }
+      }
+    }
+
+    /* Removes an entry by moving the last one into its slot */
+    void remove(Entry<K, V> entry) {
+      Entry<K, V> last = ring[--size];
+      ring[entry.slot] = last;
+      last.slot = entry.slot;
+      ring[size] = null;
+      if (hand >= size)
+        hand = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    void clear() {
+      ring = new Entry[Math.min(capacity, 16)];
+      size = 0;
+      hand = 0;
+    }
+  }
+}
@@ -0,0 +1,335 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A variant of {@link ConcurrentCache} for primitive long (and, by widening, int) keys, such as
+ * n-gram or vocabulary ids, that stores them without boxing.
+ * <p>
+ * Each shard is an open-addressing hash table with linear probing, whose slots double as the
+ * CLOCK ring: when the shard is full, the hand sweeps the table, clearing reference bits, and
+ * evicts the first entry it finds unreferenced. Unlike {@link ConcurrentCache}, lookups take the
+ * shard's lock, which is held only for a few array accesses.
+ *
+ * @param <V> the type of the values
+ */
+public class ConcurrentLongCache<V> {
+
+  private final Shard[] shards;
+  private final int shardShift;
+  private final long maximumSize;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Creates a cache with enough shards for the number of processors.
+   *
+   * @param maximumSize the (approximate) maximum number of entries
+   */
+  public ConcurrentLongCache(long maximumSize) {
+    this(maximumSize, 4 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param maximumSize the (approximate) maximum number of entries; the shards share it evenly,
+   *          so the cache may hold up to one entry per shard more
+   * @param concurrencyLevel the number of shards (rounded up to a power of two, and down to the
+   *          maximum size)
+   */
+  public ConcurrentLongCache(long maximumSize, int concurrencyLevel) {
+    if (maximumSize <= 0)
+      throw new IllegalArgumentException("maximumSize must be positive");
+
+    int numShards = (concurrencyLevel <= 1) ? 1 : Integer.highestOneBit((concurrencyLevel - 1) << 1);
+    while (numShards > 1 && numShards > maximumSize)
+      numShards >>>= 1;
+
+    this.maximumSize = maximumSize;
+    this.shardShift = 64 - Integer.numberOfTrailingZeros(numShards);
+    this.shards = new Shard[numShards];
+    // Keep the tables (twice the capacity) within the maximum array size
+    int shardCapacity = (int) Math.min(1 << 29, (maximumSize + numShards - 1) / numShards);
+    for (int i = 0; i < numShards; i++)
+      shards[i] = new Shard(shardCapacity);
+  }
+
+  /**
+   * @param key the key
+   * @return the cached value, or null if the key is not in the cache
+   */
+  @SuppressWarnings("unchecked")
+  public V getIfPresent(long key) {
+    long hash = mix(key);
+    Object value = shardFor(hash).get(key, hash);
+    if (value == null)
+      misses.increment();
+    else
+      hits.increment();
+    return (V) value;
+  }
+
+  /**
+   * Caches a value, replacing any previous value for the key.
+   *
+   * @param key the key
+   * @param value the value
+   */
+  public void put(long key, V value) {
+    if (value == null)
+      throw new NullPointerException("null values cannot be cached");
+
+    long hash = mix(key);
+    if (shardFor(hash).put(key, hash, value))
+      evictions.increment();
+  }
+
+  /**
+   * Removes a key from the cache.
+   *
+   * @param key the key
+   */
+  public void invalidate(long key) {
+    long hash = mix(key);
+    shardFor(hash).remove(key, hash);
+  }
+
+  /**
+   * Removes all entries. The statistics are kept.
+   */
+  public void invalidateAll() {
+    for (Shard shard : shards)
+      shard.clear();
+  }
+
+  /**
+   * @return the number of entries in the cache
+   */
+  public long size() {
+    long size = 0;
+    for (Shard shard : shards)
+      size += shard.size();
+    return size;
+  }
+
+  public long getMaximumSize() {
+    return maximumSize;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * @return the number of entries removed to make room for new ones
+   */
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return the fraction of lookups that found a value, or 1 if there have been none
+   */
+  public double getHitRate() {
+    long hitCount = hits.sum();
+    long total = hitCount + misses.sum();
+    return (total == 0) ? 1.0 : (double) hitCount / total;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("size %d/%d, hits %d, misses %d (hit rate %.3f), evictions %d", size(),
+        maximumSize, getHitCount(), getMissCount(), getHitRate(), getEvictionCount());
+  }
+
+  private Shard shardFor(long hash) {
+    // The high bits pick the shard, the low bits the slot within it
+    return (shardShift == 64) ? shards[0] : shards[(int) (hash >>> shardShift)];
+  }
+
+  /* The finalizer of MurmurHash3, so that sequential ids spread over shards and slots */
+  private static long mix(long key) {
+    long h = key;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * One shard: an open-addressing table kept at most half full, growing by doubling until it can
+   * hold the shard's capacity. A slot is empty iff its value is null.
+   */
+  private static final class Shard {
+    private final int capacity;
+    private long[] keys;
+    private Object[] values;
+    private boolean[] referenced;
+    private int mask;
+    private int count = 0;
+    private int hand = 0;
+
+    Shard(int capacity) {
+      this.capacity = capacity;
+      allocate(16);
+    }
+
+    synchronized Object get(long key, long hash) {
+      for (int i = (int) hash & mask; values[i] != null; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          referenced[i] = true;
+          return values[i];
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return true if an entry was evicted to make room
+     */
+    synchronized boolean put(long key, long hash, Object value) {
+      int i = (int) hash & mask;
+      for (; values[i] != null; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          values[i] = value;
+          referenced[i] = true;
+          return false;
+        }
+      }
+
+      boolean evicted = false;
+      if (count == capacity) {
+        evict();
+        evicted = true;
+      } else if (2 * (count + 1) > values.length) {
+        grow();
+      } else {
+        insertAt(i, key, value);
+        return false;
+      }
+
+      // The table changed, so find the free slot again
+      for (i = (int) hash & mask; values[i] != null; i = (i + 1) & mask)
+        ;
+      insertAt(i, key, value);
+      return evicted;
+    }
+
+    synchronized void remove(long key, long hash) {
+      for (int i = (int) hash & mask; values[i] != null; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          deleteAt(i);
+          return;
+        }
+      }
+    }
+
+    synchronized void clear() {
+      allocate(16);
+      count = 0;
+      hand = 0;
+    }
+
+    synchronized int size() {
+      return count;
+    }
+
+    private void insertAt(int i, long key, Object value) {
+      keys[i] = key;
+      values[i] = value;
+      referenced[i] = false;
+      count++;
+    }
+
+    /* Sweeps the hand until it finds an unreferenced entry, and removes it */
+    private void evict() {
+      while (true) {
+        int i = hand;
+        hand = (hand + 1) & mask;
+        if (values[i] == null)
+          continue;
+        if (referenced[i]) {
+          referenced[i] = false;
+        } else {
+          deleteAt(i);
+          return;
+        }
+      }
+    }
+
+    /*
+     * Removes slot i by shifting later entries of the probe run back, so that no tombstones are
+     * needed.
+     */
+    private void deleteAt(int i) {
+      int j = i;
+      while (true) {
+        j = (j + 1) & mask;
+        if (values[j] == null)
+          break;
+        int home = (int) mix(keys[j]) & mask;
+        // The entry at j can move to i unless its home lies cyclically in (i, j]
+        boolean stays = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+        if (!stays) {
+          keys[i] = keys[j];
+          values[i] = values[j];
+          referenced[i] = referenced[j];
+          i = j;
+        }
+      }
+      values[i] = null;
+      referenced[i] = false;
+      count--;
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      Object[] oldValues = values;
+      boolean[] oldReferenced = referenced;
+      allocate(2 * oldValues.length);
+      for (int x = 0; x < oldValues.length; x++) {
+        if (oldValues[x] != null) {
+          int i = (int) mix(oldKeys[x]) & mask;
+          while (values[i] != null)
+            i = (i + 1) & mask;
+          keys[i] = oldKeys[x];
+          values[i] = oldValues[x];
+          referenced[i] = oldReferenced[x];
+        }
+      }
+      hand = 0;
+    }
+
+    private void allocate(int length) {
+      keys = new long[length];
+      values = new Object[length];
+      referenced = new boolean[length];
+      mask = length - 1;
+    }
+  }
+}
@@ -52,8 +52,11 @@ public class EncoderConfiguration {
     return numDenseFeatures;
   }
   
+  /**
+   * @return the number of features, i.e., one more than the largest inner id
+   */
   public int getNumFeatures() {
-    return encoders.length;
+    return innerToOuter.length;
   }
   
   public void load(String file_name) throws IOException {
@@ -130,4 +130,55 @@ public class VocabularyTest {
     assertEquals(id2, Vocabulary.id(NON_TERMINAL));
     assertEquals(id3, Vocabulary.id(WORD2));
   }
+
+  @Test
+  public void givenWrittenVocabulary_whenExtended_thenItStillContainsTheFile() throws IOException {
+    File vocabFile = File.createTempFile( "vocab", "tmp");
+    vocabFile.deleteOnExit();
+
+    Vocabulary.id(WORD1);
+    Vocabulary.id(NON_TERMINAL);
+    Vocabulary.write(vocabFile.getAbsolutePath());
+    assertTrue(Vocabulary.contains(vocabFile));
+
+    Vocabulary.id(WORD2);
+    assertTrue(Vocabulary.contains(vocabFile));
+    assertEquals(4, Vocabulary.size());
+
+    Vocabulary.clear();
+    Vocabulary.id(NON_TERMINAL);
+    Vocabulary.id(WORD1);
+    assertFalse(Vocabulary.contains(vocabFile));
+    assertEquals(3, Vocabulary.size());
+  }
+
+  @Test
+  public void givenFrozenVocabulary_whenLookingUp_thenOldAndNewWordsAreFound() {
+    int id1 = Vocabulary.id(WORD1);
+    int id2 = Vocabulary.id(NON_TERMINAL);
+
+    Vocabulary.freeze();
+
+    assertTrue(Vocabulary.isFrozen());
+    assertEquals(id1, Vocabulary.id(WORD1));
+    assertEquals(id2, Vocabulary.id(NON_TERMINAL));
+    assertEquals(NON_TERMINAL, Vocabulary.word(id2));
+
+    int id3 = Vocabulary.id(WORD2);
+    assertEquals(4, Vocabulary.size());
+    assertEquals(WORD2, Vocabulary.word(id3));
+    assertEquals(id3, Vocabulary.id(WORD2));
+
+    Vocabulary.clear();
+    assertFalse(Vocabulary.isFrozen());
+    assertEquals(1, Vocabulary.size());
+  }
+
+  @Test
+  public void givenManyWords_whenAdding_thenArrayGrowsAndIdsAreStable() {
+    for (int i = 0; i < 5000; i++)
+      assertEquals(i + 1, Vocabulary.id("w" + i));
+    for (int i = 0; i < 5000; i++)
+      assertEquals("w" + i, Vocabulary.word(i + 1));
+  }
 }
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import static java.util.Arrays.asList;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class DecoderSchedulerTest {
+
+  @Test
+  public void givenTwoRequests_whenScheduling_thenTurnsAlternate() throws Exception {
+    assertEquals(runSchedule(1), asList("a0", "a1", "b1", "a2", "a3"));
+  }
+
+  @Test
+  public void givenHigherPriority_whenScheduling_thenRequestGetsLongerTurns() throws Exception {
+    assertEquals(runSchedule(2), asList("a0", "a1", "a2", "b1", "a3"));
+  }
+
+  /**
+   * Blocks the only worker with a task from request a, queues three more tasks from a and one
+   * from b, then records the order in which they run.
+   */
+  private List<String> runSchedule(int priorityA) throws InterruptedException {
+    DecoderScheduler scheduler = new DecoderScheduler(1);
+    DecoderScheduler.RequestQueue a = scheduler.newRequestQueue(priorityA);
+    DecoderScheduler.RequestQueue b = scheduler.newRequestQueue(DecoderScheduler.DEFAULT_PRIORITY);
+
+    List<String> order = new CopyOnWriteArrayList<>();
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(5);
+
+    a.submit(() -> {
+      started.countDown();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      order.add("a0");
+      done.countDown();
+    });
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    for (String name : asList("a1", "a2", "a3"))
+      a.submit(() -> { order.add(name); done.countDown(); });
+    b.submit(() -> { order.add("b1"); done.countDown(); });
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    scheduler.shutdown();
+    return order;
+  }
+}
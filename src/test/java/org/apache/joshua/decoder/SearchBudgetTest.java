@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.Test;
+
+public class SearchBudgetTest {
+
+  private final AtomicLong now = new AtomicLong(0);
+
+  @Test
+  public void givenFirstHalfOfBudget_whenAskingForPopLimit_thenConfiguredLimitIsUsed() {
+    SearchBudget budget = new SearchBudget(1000, 100, now::get);
+    advance(499);
+
+    assertEquals(budget.popLimit(), 100);
+    assertFalse(budget.isExpired());
+    assertFalse(budget.isDegraded());
+  }
+
+  @Test
+  public void givenSecondHalfOfBudget_whenAskingForPopLimit_thenLimitShrinksWithRemainingTime() {
+    SearchBudget budget = new SearchBudget(1000, 100, now::get);
+
+    advance(750);
+    assertEquals(budget.popLimit(), 50);
+    advance(150);
+    assertEquals(budget.popLimit(), 20);
+    assertTrue(budget.isDegraded());
+    assertFalse(budget.isExpired());
+  }
+
+  @Test
+  public void givenSpentBudget_whenAskingForPopLimit_thenLimitIsOneAndBudgetIsExpired() {
+    SearchBudget budget = new SearchBudget(1000, 100, now::get);
+    advance(1500);
+
+    assertEquals(budget.popLimit(), 1);
+    assertTrue(budget.isExpired());
+  }
+
+  @Test
+  public void givenNoTimeout_whenTimePasses_thenBudgetNeverExpires() {
+    SearchBudget budget = new SearchBudget(0, 100, now::get);
+    advance(1_000_000);
+
+    assertEquals(budget.popLimit(), 100);
+    assertFalse(budget.isExpired());
+    assertFalse(budget.isDegraded());
+  }
+
+  @Test
+  public void givenUnlimitedPopLimit_whenBudgetRunsLow_thenLimitIsTightened() {
+    SearchBudget budget = new SearchBudget(1000, 0, now::get);
+
+    assertEquals(budget.popLimit(), 0);
+    advance(900);
+    assertEquals(budget.popLimit(), SearchBudget.UNLIMITED_POP_LIMIT / 5);
+  }
+
+  @Test
+  public void givenTimeoutOption_whenConfigured_thenItIsReadAsSeconds() {
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    config.processCommandLineOptions(new String[] { "-translation-thread-timeout", "30" });
+    SearchBudget budget = new SearchBudget(config, now::get);
+
+    advance(29_000);
+    assertFalse(budget.isExpired());
+    advance(1_000);
+    assertTrue(budget.isExpired());
+
+    config.processCommandLineOptions(new String[] { "-translation-thread-timeout", "0.25" });
+    budget = new SearchBudget(config, now::get);
+    advance(249);
+    assertFalse(budget.isExpired());
+    advance(1);
+    assertTrue(budget.isExpired());
+  }
+
+  private void advance(long millis) {
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.testng.annotations.Test;
+
+public class SearchPoolTest {
+
+  @Test
+  public void givenRange_whenForEach_thenEveryIndexIsVisitedOnce() {
+    AtomicIntegerArray visits = new AtomicIntegerArray(37);
+    SearchPool.forEach(SearchPool.get(4), visits.length(), visits::incrementAndGet);
+
+    for (int i = 0; i < visits.length(); i++)
+      assertEquals(visits.get(i), 1);
+  }
+
+  @Test
+  public void givenConfig_whenGettingPool_thenOnlyMultipleThreadsGetAPool() {
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    assertNull(SearchPool.get(config, new ArrayList<FeatureFunction>()));
+
+    config.chart_threads = 3;
+    assertNotNull(SearchPool.get(config, new ArrayList<FeatureFunction>()));
+    assertSame(SearchPool.get(config, new ArrayList<FeatureFunction>()), SearchPool.get(3));
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.joshua.decoder.io.TranslationRequestStream;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Throwables;
+
+public class TranslationResponseStreamTest {
+
+  private final JoshuaConfiguration joshuaConfiguration = new JoshuaConfiguration();
+  private final List<Sentence> sentences = new ArrayList<>();
+
+  @Test
+  public void givenOutOfOrderTranslations_whenIterating_thenTheyAreReturnedInOrder() {
+    TranslationRequestStream request = readAll(4);
+    TranslationResponseStream results = new TranslationResponseStream(request, 4);
+
+    for (int id : new int[] { 2, 0, 3, 1 })
+      results.record(translation(id));
+    results.finish();
+
+    for (int id = 0; id < 4; id++) {
+      assertTrue(results.hasNext());
+      assertEquals(results.next().id(), id);
+    }
+    assertFalse(results.hasNext());
+  }
+
+  @Test
+  public void givenFullWindow_whenAwaitingCapacity_thenReaderBlocksUntilNextIsTaken()
+      throws Exception {
+    TranslationRequestStream request = readAll(3);
+    TranslationResponseStream results = new TranslationResponseStream(request, 2);
+    results.record(translation(1));
+    results.record(translation(0));
+
+    AtomicBoolean admitted = new AtomicBoolean(false);
+    CountDownLatch done = new CountDownLatch(1);
+    Thread reader = new Thread(() -> {
+      admitted.set(results.awaitCapacity(2));
+      done.countDown();
+    });
+    reader.start();
+
+    assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(results.next().id(), 0);
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(admitted.get());
+  }
+
+  @Test
+  public void givenCancelledStream_whenAwaitingCapacity_thenReaderIsReleased() throws Exception {
+    TranslationResponseStream results = new TranslationResponseStream(readAll(2), 1);
+    results.record(translation(0));
+
+    AtomicBoolean admitted = new AtomicBoolean(true);
+    CountDownLatch done = new CountDownLatch(1);
+    Thread reader = new Thread(() -> {
+      admitted.set(results.awaitCapacity(1));
+      done.countDown();
+    });
+    reader.start();
+
+    results.cancel();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertFalse(admitted.get());
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void givenTranslationBeyondWindow_whenRecording_thenExceptionIsThrown() {
+    new TranslationResponseStream(readAll(3), 2).record(translation(2));
+  }
+
+  @Test
+  public void givenTranslationRecordedLater_whenWaitingWithTimeout_thenItIsReturned()
+      throws Exception {
+    TranslationResponseStream results = new TranslationResponseStream(readAll(1), 1);
+    Translation first = translation(0);
+    new Thread(() -> results.record(first)).start();
+
+    assertSame(results.next(5, TimeUnit.SECONDS), first);
+  }
+
+  @Test
+  public void givenRequestThatFailsWhileReading_whenDecoding_thenConsumerSeesTheFailure()
+      throws Exception {
+    TranslationRequestStream request = new TranslationRequestStream(
+        new BufferedReader(new StringReader("")), joshuaConfiguration) {
+      @Override
+      public synchronized Sentence next() {
+        throw new IllegalArgumentException("unparseable input");
+      }
+    };
+    Decoder decoder = Decoder.getUninitalizedDecoder(joshuaConfiguration);
+    TranslationResponseStream results = decoder.decodeAll(request);
+
+    try {
+      results.next(5, TimeUnit.SECONDS);
+      fail("the failure to read the request was not propagated");
+    } catch (RuntimeException e) {
+      assertTrue(Throwables.getRootCause(e) instanceof IllegalArgumentException);
+    } finally {
+      decoder.cleanUp();
+    }
+  }
+
+  /**
+   * Returns a request whose sentences have all been read, as the decoder's reader thread would.
+   */
+  private TranslationRequestStream readAll(int size) {
+    StringBuilder input = new StringBuilder();
+    for (int i = 0; i < size; i++)
+      input.append("sentence ").append(i).append('\n');
+    TranslationRequestStream request = new TranslationRequestStream(
+        new BufferedReader(new StringReader(input.toString())), joshuaConfiguration);
+    sentences.clear();
+    for (Sentence sentence = request.next(); sentence != null; sentence = request.next())
+      sentences.add(sentence);
+    return request;
+  }
+
+  /**
+   * Returns a failed (empty) translation of the given sentence, which is cheap to build.
+   */
+  private Translation translation(int id) {
+    return new Translation(sentences.get(id), null, null, joshuaConfiguration);
+  }
+}
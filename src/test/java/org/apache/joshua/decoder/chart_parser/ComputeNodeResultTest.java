@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.chart_parser;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.WordPenalty;
+import org.apache.joshua.decoder.ff.tm.Rule;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ComputeNodeResultTest {
+
+  private List<FeatureFunction> features;
+
+  @BeforeMethod
+  public void setUp() {
+    FeatureVector.DENSE_FEATURE_NAMES.clear();
+    FeatureVector weights = new FeatureVector();
+    weights.set("WordPenalty", 2.0f);
+
+    FeatureFunction penalty = new WordPenalty(weights, new String[0], new JoshuaConfiguration());
+    FeatureVector.DENSE_FEATURE_NAMES.addAll(penalty.reportDenseFeatures(0));
+    weights.set(0, weights.getSparse("WordPenalty"));
+
+    features = new ArrayList<>();
+    features.add(penalty);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FeatureVector.DENSE_FEATURE_NAMES.clear();
+  }
+
+  @Test
+  public void givenReusedAccumulators_whenScoringSeveralEdges_thenScoresDoNotLeakBetweenEdges() {
+    int lhs = Vocabulary.id("[X]");
+    Rule twoWords = new Rule(lhs, new int[] { Vocabulary.id("a") },
+        new int[] { Vocabulary.id("b"), Vocabulary.id("c") }, "", 0);
+    Rule oneWord = new Rule(lhs, new int[] { Vocabulary.id("a") },
+        new int[] { Vocabulary.id("b") }, "", 0);
+
+    float omega = -(float) Math.log10(Math.E);
+    for (int n = 0; n < 3; n++) {
+      ComputeNodeResult first = new ComputeNodeResult(features, twoWords, null, 0, 1, null, null);
+      ComputeNodeResult second = new ComputeNodeResult(features, oneWord, null, 0, 1, null, null);
+
+      assertEquals(first.getTransitionCost(), 2.0f * 2 * omega, 1e-6);
+      assertEquals(second.getTransitionCost(), 2.0f * omega, 1e-6);
+      assertTrue(second.getDPStates().isEmpty());
+    }
+  }
+}
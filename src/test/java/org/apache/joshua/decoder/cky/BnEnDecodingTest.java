@@ -21,11 +21,15 @@ package org.apache.joshua.decoder.cky;
 import static org.apache.joshua.decoder.cky.TestUtil.decodeList;
 import static org.apache.joshua.decoder.cky.TestUtil.loadStringsFromFile;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
 
 import java.util.List;
 
 import org.apache.joshua.decoder.Decoder;
 import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.Translation;
+import org.apache.joshua.decoder.segment_file.Sentence;
 import org.apache.joshua.util.io.KenLmTestUtil;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
@@ -71,6 +75,45 @@ public class BnEnDecodingTest {
 		assertEquals(decodedStrings, goldStrings);
 	}
 
+	@Test
+	public void givenChartThreads_whenPhraseDecodingWithBerkeleyLM_thenOutputIsUnchanged() throws Exception {
+		// Given
+		List<String> inputStrings = loadStringsFromFile("src/test/resources/bn-en/hiero/input.bn");
+
+		// When
+		joshuaConfig = new JoshuaConfiguration();
+		joshuaConfig.readConfigFile("src/test/resources/bn-en/hiero/joshua-berkeleylm.config");
+		joshuaConfig.chart_threads = 4;
+		decoder = new Decoder(joshuaConfig, "");
+		List<String> decodedStrings = decodeList(inputStrings, decoder, joshuaConfig);
+
+		// Then
+		List<String> goldStrings = loadStringsFromFile("src/test/resources/bn-en/hiero/output-berkeleylm.gold");
+		assertEquals(decodedStrings, goldStrings);
+	}
+
+	@Test
+	public void givenTinyTimeout_whenPhraseDecodingWithBerkeleyLM_thenDegradedTranslationsCoverTheInput() throws Exception {
+		// Given
+		List<String> inputStrings = loadStringsFromFile("src/test/resources/bn-en/hiero/input.bn");
+
+		// When
+		joshuaConfig = new JoshuaConfiguration();
+		joshuaConfig.readConfigFile("src/test/resources/bn-en/hiero/joshua-berkeleylm.config");
+		joshuaConfig.translation_thread_timeout = 0.001;
+		decoder = new Decoder(joshuaConfig, "");
+		int degraded = 0;
+		for (String input : inputStrings) {
+			Translation translation = decoder.decode(new Sentence(input, 0, joshuaConfig));
+			if (translation.isDegraded())
+				degraded++;
+
+			// Then
+			assertFalse(translation.toString().trim().isEmpty());
+		}
+		assertTrue(degraded > 0);
+	}
+
 	@Test
 	public void givenBnEnInput_whenPhraseDecodingWithClassLM_thenScoreAndTranslationCorrect() throws Exception {
 		// Given
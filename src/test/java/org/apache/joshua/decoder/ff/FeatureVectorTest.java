@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FeatureVectorTest {
+
+  @BeforeMethod
+  public void setUp() {
+    FeatureVector.DENSE_FEATURE_NAMES.clear();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FeatureVector.DENSE_FEATURE_NAMES.clear();
+  }
+
+  @Test
+  public void givenFeatureString_whenParsing_thenDenseAndSparseFeaturesAreSeparated() {
+    FeatureVector features = new FeatureVector("0.5 2 tm_pt_3=4 Sparse=1.5", "tm_pt_");
+
+    assertEquals(features.getDenseSize(), 4);
+    assertEquals(features.getDense(0), -0.5f);
+    assertEquals(features.getDense(1), -2.0f);
+    assertEquals(features.getDense(2), 0.0f);
+    assertEquals(features.getDense(3), 4.0f);
+    assertEquals(features.getSparse("Sparse"), 1.5f);
+    assertTrue(features.hasValue("Sparse"));
+    assertFalse(features.hasValue("NotThere"));
+    assertEquals(features.size(), 5);
+  }
+
+  @Test
+  public void givenManySparseFeatures_whenIncrementing_thenAllValuesAreKept() {
+    FeatureVector features = new FeatureVector();
+    for (int i = 0; i < 1000; i++)
+      features.increment("f" + i, i);
+    for (int i = 0; i < 1000; i++)
+      features.increment("f" + i, 1.0f);
+
+    assertEquals(features.size(), 1000);
+    for (int i = 0; i < 1000; i++)
+      assertEquals(features.getSparse("f" + i), i + 1.0f);
+  }
+
+  @Test
+  public void givenTwoVectors_whenAddingAndSubtracting_thenValuesAreCombined() {
+    FeatureVector a = new FeatureVector();
+    a.set(1, 2.0f);
+    a.set("x", 1.0f);
+    FeatureVector b = new FeatureVector();
+    b.set(0, 1.0f);
+    b.set("x", 3.0f);
+    b.set("y", -1.0f);
+
+    a.add(b);
+    assertEquals(a.getDense(0), 1.0f);
+    assertEquals(a.getDense(1), 2.0f);
+    assertEquals(a.getSparse("x"), 4.0f);
+    assertEquals(a.getSparse("y"), -1.0f);
+
+    a.subtract(b);
+    assertEquals(a.getDense(0), 0.0f);
+    assertEquals(a.getSparse("x"), 1.0f);
+    assertEquals(a.getSparse("y"), 0.0f);
+    assertTrue(a.hasValue("y"));
+  }
+
+  @Test
+  public void givenClone_whenModifyingOriginal_thenCloneIsUnchanged() {
+    FeatureVector a = new FeatureVector();
+    a.set(0, 1.0f);
+    a.set("x", 1.0f);
+    FeatureVector b = a.clone();
+
+    a.set(0, 5.0f);
+    a.increment("x", 5.0f);
+    a.increment("z", 5.0f);
+
+    assertEquals(b.getDense(0), 1.0f);
+    assertEquals(b.getSparse("x"), 1.0f);
+    assertFalse(b.hasValue("z"));
+  }
+
+  @Test
+  public void givenWeights_whenLookingUpByHash_thenCurrentSparseValuesAreFound() {
+    FeatureVector weights = new FeatureVector();
+    weights.set("a", 1.0f);
+    weights.set("b", 2.0f);
+    assertEquals(weights.getSparseByHash(HashedFeature.hash("a")), 1.0f);
+    assertEquals(weights.getSparseByHash(HashedFeature.hash("c")), 0.0f);
+
+    weights.set("a", 3.0f);
+    weights.increment("c", 4.0f);
+    assertEquals(weights.getSparseByHash(HashedFeature.hash("a")), 3.0f);
+    assertEquals(weights.getSparseByHash(HashedFeature.hash("b")), 2.0f);
+    assertEquals(weights.getSparseByHash(HashedFeature.hash("c")), 4.0f);
+  }
+
+  @Test
+  public void givenRegisteredDenseFeatures_whenComputingInnerProduct_thenDenseAndSparseAreUsed() {
+    FeatureVector weights = new FeatureVector();
+    weights.set("dense_a", 2.0f);
+    weights.set("dense_b", 3.0f);
+    weights.set("sparse", 0.5f);
+
+    FeatureVector.DENSE_FEATURE_NAMES.add("dense_a");
+    FeatureVector.DENSE_FEATURE_NAMES.add("dense_b");
+    weights.set(0, weights.getSparse("dense_a"));
+    weights.set(1, weights.getSparse("dense_b"));
+
+    assertEquals(weights.getWeight("dense_b"), 3.0f);
+    assertEquals(weights.getWeight("sparse"), 0.5f);
+
+    weights.set("dense_b", 4.0f);
+    assertEquals(weights.getDense(1), 4.0f);
+
+    FeatureVector features = new FeatureVector();
+    features.set(0, 1.0f);
+    features.set(1, 1.0f);
+    features.set("sparse", 2.0f);
+    assertEquals(features.innerProduct(weights), 2.0f + 4.0f + 1.0f);
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff;
+
+import static org.testng.Assert.assertEquals;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.FeatureFunction.ScoreAccumulator;
+import org.apache.joshua.decoder.ff.tm.Rule;
+import org.apache.joshua.decoder.ff.tm.format.HieroFormatReader;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class HashedFeatureTest {
+
+  private JoshuaConfiguration config;
+  private FeatureVector weights;
+  private Rule rule;
+
+  @BeforeMethod
+  public void setUp() {
+    Vocabulary.clear();
+    config = new JoshuaConfiguration();
+    weights = new FeatureVector();
+    rule = new HieroFormatReader().parseLine("[X] ||| el gato ||| the cat ||| 1 ||| 0-0 1-1");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Vocabulary.clear();
+  }
+
+  @Test
+  public void givenNameInPieces_whenHashing_thenHashEqualsThatOfTheWholeName() {
+    long hash = HashedFeature.extend(HashedFeature.EMPTY, "T:");
+    hash = HashedFeature.extend(hash, rule.getFrench(), "~");
+
+    assertEquals(hash, HashedFeature.hash("T:el~gato"));
+  }
+
+  @Test
+  public void givenRuleWeight_whenScoringRuleFF_thenHashedFeatureGetsTheWeight() {
+    // GIVEN
+    weights.set("[X]->el~gato->the~cat", 2.0f);
+    RuleFF feature = new RuleFF(weights, new String[0], config);
+
+    // WHEN
+    ScoreAccumulator score = feature.new ScoreAccumulator();
+    feature.compute(rule, null, 0, 2, null, null, score);
+    FeatureVector features = feature.computeFeatures(rule, null, 0, 2, null, null);
+
+    // THEN
+    assertEquals(score.getScore(), 2.0f);
+    assertEquals(features.getSparse("[X]->el~gato->the~cat"), 1.0f);
+    assertEquals(features.size(), 1);
+  }
+
+  @Test
+  public void givenAlignmentWeights_whenScoringLexicalFeatures_thenHashedFeaturesGetTheWeights() {
+    // GIVEN
+    weights.set("T:el~the", 0.5f);
+    weights.set("T:gato~cat", 0.25f);
+    weights.set("T:el~cat", 8.0f);
+    LexicalFeatures feature = new LexicalFeatures(weights, new String[] { "-alignments" }, config);
+
+    // WHEN
+    ScoreAccumulator score = feature.new ScoreAccumulator();
+    feature.compute(rule, null, 0, 2, null, null, score);
+    FeatureVector features = feature.computeFeatures(rule, null, 0, 2, null, null);
+
+    // THEN
+    assertEquals(score.getScore(), 0.75f);
+    assertEquals(features.getSparse("T:el~the"), 1.0f);
+    assertEquals(features.getSparse("T:gato~cat"), 1.0f);
+    assertEquals(features.size(), 2);
+  }
+}
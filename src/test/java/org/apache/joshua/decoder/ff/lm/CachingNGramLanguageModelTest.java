@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+public class CachingNGramLanguageModelTest {
+
+  /**
+   * A fake model whose probability identifies the n-gram and the order it was asked for, and that
+   * counts how often it was queried.
+   */
+  private static class CountingModel implements NGramLanguageModel {
+    int queries = 0;
+
+    @Override
+    public int getOrder() {
+      return 3;
+    }
+
+    @Override
+    public boolean registerWord(String token, int id) {
+      return false;
+    }
+
+    @Override
+    public float sentenceLogProbability(int[] sentence, int order, int startIndex) {
+      return 0.0f;
+    }
+
+    @Override
+    public float ngramLogProbability(int[] ngram, int order) {
+      queries++;
+      return -(Arrays.hashCode(ngram) % 1000) - order / 10.0f;
+    }
+
+    @Override
+    public float ngramLogProbability(int[] ngram) {
+      return ngramLogProbability(ngram, 0);
+    }
+
+    @Override
+    public boolean isOov(int id) {
+      return false;
+    }
+  }
+
+  @Test
+  public void givenRepeatedNgram_whenQuerying_thenBackendIsAskedOnce() {
+    CountingModel model = new CountingModel();
+    CachingNGramLanguageModel cache = new CachingNGramLanguageModel(model, 16);
+    int[] ngram = {5, 6, 7};
+
+    float prob = cache.ngramLogProbability(ngram, 3);
+    assertEquals(cache.ngramLogProbability(new int[] {5, 6, 7}, 3), prob);
+    assertEquals(cache.ngramLogProbability(ngram, 2), model.ngramLogProbability(ngram, 2));
+
+    assertEquals(model.queries, 3);
+    assertEquals(cache.getHits(), 1);
+    assertEquals(cache.getMisses(), 2);
+  }
+
+  @Test
+  public void givenMoreNgramsThanSlots_whenQuerying_thenEvictedEntriesAreRecomputed() {
+    CountingModel model = new CountingModel();
+    CountingModel reference = new CountingModel();
+    CachingNGramLanguageModel cache = new CachingNGramLanguageModel(model, 4);
+
+    for (int round = 0; round < 2; round++)
+      for (int i = 0; i < 100; i++) {
+        int[] ngram = {i, i + 1, i + 2};
+        assertEquals(cache.ngramLogProbability(ngram, 3), reference.ngramLogProbability(ngram, 3));
+      }
+    assertEquals(cache.getHits() + cache.getMisses(), 200);
+  }
+
+  @Test
+  public void givenBatch_whenScoring_thenSumMatchesBackend() {
+    CountingModel model = new CountingModel();
+    CachingNGramLanguageModel cache = new CachingNGramLanguageModel(new CountingModel(), 64);
+    int[] batch = {1, 2, 3, 2, 3, 4, 1, 2, 3};
+
+    float expected = model.ngramLogProbabilities(batch, 3, 3);
+    assertEquals(cache.ngramLogProbabilities(batch, 3, 3), expected);
+    assertEquals(cache.getHits(), 1);
+    assertEquals(cache.getMisses(), 2);
+  }
+}
@@ -93,4 +93,17 @@ public class LanguageModelFFTest {
     float cost = ff.estimateFutureCost(null, currentState, null);
     assertEquals(cost, score * WEIGHT, 0.0f);
   }
+
+  @Test
+  public void givenBatchOfNgrams_whenScoring_thenSumOfIndividualNgramsIsReturned() {
+    int startSymbolId = Vocabulary.id(Vocabulary.START_SYM);
+    int[] first = {startSymbolId, 3};
+    int[] second = {3, startSymbolId};
+    int[] batch = {startSymbolId, 3, 3, startSymbolId};
+
+    float expected = ff.getLM().ngramLogProbability(first, 2)
+        + ff.getLM().ngramLogProbability(second, 2);
+    assertEquals(ff.getLM().ngramLogProbabilities(batch, 2, 2), expected, 0.0f);
+    assertEquals(ff.getLM().ngramLogProbabilities(batch, 0, 2), 0.0f, 0.0f);
+  }
 }
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm.mapped_lm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.lm.ArpaFile;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class MappedLMTest {
+
+  private static final float DELTA = 1e-6f;
+
+  private File arpa;
+  private File binary;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    Vocabulary.clear();
+    arpa = File.createTempFile("mappedlm", ".arpa");
+    binary = File.createTempFile("mappedlm", ".bin");
+    try (PrintStream out = new PrintStream(arpa, "UTF-8")) {
+      out.println("\\data\\");
+      out.println("ngram 1=8");
+      out.println("ngram 2=4");
+      out.println("ngram 3=2");
+      out.println();
+      out.println("\\1-grams:");
+      out.println("-1.992672\ta\t-0.1195484");
+      out.println("-2.713723\tbecause\t-0.4665429");
+      out.println("-4.678545\tboycott\t-0.0902521");
+      out.println("-1.609573\tof\t-0.1991907");
+      out.println("-3.875917\tparliament\t-0.1274891");
+      out.println("-9.753210\tpotato");
+      out.println("-4.678545\tresumption\t-0.07945678");
+      out.println("-1.712444\tthe\t-0.1606644");
+      out.println();
+      out.println("\\2-grams:");
+      out.println("-0.3552987\tbecause of\t-0.03083654");
+      out.println("-1.403534\tof a");
+      out.println("-0.7507797\tof the\t-0.05237135");
+      out.println("-3.936147\tthe resumption");
+      out.println();
+      // A pruned model: "of parliament" is missing
+      out.println("\\3-grams:");
+      out.println("-0.6309999\tbecause of the");
+      out.println("-0.5\tbecause of parliament");
+      out.println();
+      out.println("\\end\\");
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Vocabulary.clear();
+    arpa.delete();
+    binary.delete();
+  }
+
+  @Test
+  public void givenArpaModel_whenQuerying_thenBackoffProbabilitiesAreReturned() throws IOException {
+    // GIVEN
+    new MappedLMBuilder(new ArpaFile(arpa.getPath())).write(binary.getPath());
+    MappedLM lm = new MappedLM(3, binary.getPath());
+    Vocabulary.registerLanguageModel(lm);
+
+    // THEN
+    assertEquals(lm.getModelOrder(), 3);
+    assertEquals(score(lm, "because of"), -0.3552987f, DELTA);
+    assertEquals(score(lm, "because of the"), -0.6309999f, DELTA);
+    // Backs off from "of boycott" to "boycott"
+    assertEquals(score(lm, "of boycott"), -0.1991907f + -4.678545f, DELTA);
+    // Backs off from "because of a" to "of a"
+    assertEquals(score(lm, "because of a"), -0.03083654f + -1.403534f, DELTA);
+    // Found although its suffix "of parliament" is missing
+    assertEquals(score(lm, "because of parliament"), -0.5f, DELTA);
+    // A context the model doesn't have has no backoff weight
+    assertEquals(score(lm, "potato because of"), -0.3552987f, DELTA);
+    assertEquals(score(lm, "the zebra"), MappedLM.UNKNOWN_LOG_PROB, DELTA);
+    assertTrue(lm.isOov(Vocabulary.id("zebra")));
+    assertFalse(lm.isOov(Vocabulary.id("potato")));
+  }
+
+  @Test
+  public void givenNotMappedLMFile_whenLoading_thenTheErrorNamesTheBuilder() {
+    try {
+      new MappedLM(3, arpa.getPath());
+      throw new AssertionError("Loaded an ARPA file");
+    } catch (RuntimeException e) {
+      assertTrue(e.getMessage().contains(MappedLMBuilder.class.getName()));
+    }
+  }
+
+  @Test
+  public void givenMappedLM_whenDecoding_thenScoreMatchesOtherBackends() throws IOException {
+    // GIVEN
+    new MappedLMBuilder(new ArpaFile("src/test/resources/berkeley_lm/lm")).write(binary.getPath());
+    Vocabulary.clear();
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    config.processCommandLineOptions("-v 0 -output-format %f".split(" "));
+    config.features.add("LanguageModel -lm_type mappedlm -lm_order 2 -lm_file " + binary.getPath());
+    Decoder decoder = new Decoder(config, null);
+
+    // WHEN
+    String translation = decoder.decode(new Sentence("the chat-rooms", 0, config)).toString();
+    decoder.cleanUp();
+
+    // THEN
+    assertEquals(translation, "tm_glue_0=2.000 lm_0=-7.153\n");
+  }
+
+  /**
+   * @return the log probability of the last word of the n-gram given the others
+   */
+  private static float score(MappedLM lm, String ngram) {
+    String[] words = ngram.split(" ");
+    int[] ids = new int[words.length];
+    for (int i = 0; i < words.length; i++)
+      ids[i] = Vocabulary.id(words[i]);
+    return lm.ngramLogProbability(ids, lm.getOrder());
+  }
+}
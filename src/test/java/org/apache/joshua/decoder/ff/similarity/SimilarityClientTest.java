@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.similarity;
+
+import static java.util.Arrays.asList;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class SimilarityClientTest {
+
+  @Test
+  public void givenManyPairs_whenAsking_thenPairsAreBatched() throws Exception {
+    try (StubSimilarityServer server = new StubSimilarityServer();
+        SimilarityClient client = new SimilarityClient("localhost", server.getPort(), 2, 4, 1000, 5000)) {
+      List<String> sources = new ArrayList<>();
+      List<String> targets = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        sources.add("a b " + i);
+        targets.add("a c " + i);
+      }
+
+      float[] scores = client.getSimilarities(sources, targets);
+
+      for (int i = 0; i < 10; i++)
+        assertEquals(scores[i], StubSimilarityServer.dice(sources.get(i), targets.get(i)));
+      assertEquals(server.getPairCount(), 10);
+      assertEquals(server.getRequestCount(), 3);
+    }
+  }
+
+  @Test
+  public void givenRepeatedPairs_whenAsking_thenEachPairIsSentOnce() throws Exception {
+    try (StubSimilarityServer server = new StubSimilarityServer();
+        SimilarityClient client = new SimilarityClient("localhost", server.getPort(), 1, 64, 1000, 5000)) {
+      float[] scores = client.getSimilarities(asList("x y", "x z", "x y"), asList("x z", "x y", "x z"));
+      client.getSimilarities(asList("x y"), asList("x z"));
+
+      assertEquals(scores[0], 0.5f);
+      assertEquals(scores[1], 0.5f);
+      assertEquals(scores[2], 0.5f);
+      assertEquals(server.getPairCount(), 1);
+      assertEquals(client.getSharedPairCount(), 2);
+      assertTrue(client.getCache().getHitCount() > 0);
+    }
+  }
+
+  @Test
+  public void givenManyThreads_whenAsking_thenAllScoresAreCorrect() throws Exception {
+    try (StubSimilarityServer server = new StubSimilarityServer();
+        SimilarityClient client = new SimilarityClient("localhost", server.getPort(), 2, 16, 100, 5000)) {
+      List<Thread> threads = new ArrayList<>();
+      List<Throwable> errors = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        final int seed = t;
+        threads.add(new Thread(() -> {
+          try {
+            for (int n = 0; n < 100; n++) {
+              List<String> sources = new ArrayList<>();
+              List<String> targets = new ArrayList<>();
+              for (int p = 0; p < 5; p++) {
+                sources.add("w" + ((seed + n + p) % 13) + " w" + (n % 7));
+                targets.add("w" + (p % 3) + " w" + ((seed * n) % 11));
+              }
+              float[] scores = client.getSimilarities(sources, targets);
+              for (int p = 0; p < 5; p++)
+                assertEquals(scores[p], StubSimilarityServer.dice(sources.get(p), targets.get(p)));
+            }
+          } catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }));
+      }
+      for (Thread thread : threads)
+        thread.start();
+      for (Thread thread : threads)
+        thread.join();
+
+      assertTrue(errors.isEmpty(), errors.toString());
+    }
+  }
+
+  @Test
+  public void givenClosedServer_whenAsking_thenIOExceptionIsThrown() throws Exception {
+    StubSimilarityServer server = new StubSimilarityServer();
+    try (SimilarityClient client = new SimilarityClient("localhost", server.getPort(), 1, 64, 1000, 5000)) {
+      client.getSimilarities(asList("a"), asList("b"));
+      server.close();
+      // Give the reader time to see the connection close
+      Thread.sleep(100);
+
+      try {
+        client.getSimilarities(asList("c"), asList("d"));
+        fail("expected an IOException");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+}
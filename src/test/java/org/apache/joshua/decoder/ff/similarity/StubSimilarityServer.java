@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.similarity;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * An in-JVM stand-in for the phrase similarity server used by {@link EdgePhraseSimilarityFF},
+ * for tests. It speaks the same line protocol (see {@link SimilarityClient}) on a
+ * local port and scores each pair with a given function, by default the Dice coefficient of the
+ * two phrases' word sets.
+ */
+public class StubSimilarityServer implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(StubSimilarityServer.class);
+
+  private final ServerSocket serverSocket;
+  private final BiFunction<String, String, Float> similarity;
+  private final List<Socket> clients = new CopyOnWriteArrayList<>();
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder pairs = new LongAdder();
+
+  /**
+   * Starts a server on a free local port that scores pairs by word overlap.
+   *
+   * @throws IOException if the port cannot be opened
+   */
+  public StubSimilarityServer() throws IOException {
+    this(StubSimilarityServer::dice);
+  }
+
+  /**
+   * Starts a server on a free local port.
+   *
+   * @param similarity the score of a pair of phrases
+   * @throws IOException if the port cannot be opened
+   */
+  public StubSimilarityServer(BiFunction<String, String, Float> similarity) throws IOException {
+    this.similarity = similarity;
+    this.serverSocket = new ServerSocket(0);
+
+    Thread acceptor = new Thread(this::accept, "StubSimilarityServer");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * @return the number of requests (lines) received
+   */
+  public long getRequestCount() {
+    return requests.sum();
+  }
+
+  /**
+   * @return the number of phrase pairs received
+   */
+  public long getPairCount() {
+    return pairs.sum();
+  }
+
+  /**
+   * The Dice coefficient of the sets of words in the two phrases.
+   *
+   * @param a a phrase
+   * @param b another phrase
+   * @return a score between 0 and 1
+   */
+  public static float dice(String a, String b) {
+    Set<String> wordsA = new HashSet<>(Arrays.asList(a.split(" ")));
+    Set<String> wordsB = new HashSet<>(Arrays.asList(b.split(" ")));
+    int size = wordsA.size() + wordsB.size();
+    wordsA.retainAll(wordsB);
+    return (size == 0) ? 0.0f : 2.0f * wordsA.size() / size;
+  }
+
+  private void accept() {
+    try {
+      while (true) {
+        Socket client = serverSocket.accept();
+        clients.add(client);
+        Thread handler = new Thread(() -> serve(client), "StubSimilarityServer-client");
+        handler.setDaemon(true);
+        handler.start();
+      }
+    } catch (SocketException e) {
+      // closed
+    } catch (IOException e) {
+      LOG.error(e.getMessage(), e);
+    }
+  }
+
+  private void serve(Socket client) {
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), UTF_8));
+        Writer out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), UTF_8))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] fields = line.split("\t");
+        if (!fields[0].equals("xb") || fields.length % 2 == 0) {
+          LOG.warn("Bad request: {}", line);
+          out.write("\n");
+        } else {
+          requests.increment();
+          StringBuilder reply = new StringBuilder();
+          for (int i = 1; i < fields.length; i += 2) {
+            pairs.increment();
+            if (i > 1)
+              reply.append(' ');
+            reply.append(similarity.apply(fields[i], fields[i + 1]));
+          }
+          out.write(reply.append('\n').toString());
+        }
+        // Only flush once the client has nothing more queued, so pipelined requests are batched
+        if (!in.ready())
+          out.flush();
+      }
+    } catch (IOException e) {
+      // The client went away
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    for (Socket client : clients)
+      client.close();
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.tm.hash_based;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.tm.Rule;
+import org.apache.joshua.decoder.ff.tm.Trie;
+import org.apache.joshua.decoder.ff.tm.format.HieroFormatReader;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class MemoryBasedBatchGrammarTest {
+
+  private static final String PHRASE_TABLE = "src/test/resources/phrase_decoder/rules.1.gz";
+
+  private JoshuaConfiguration config;
+
+  @BeforeMethod
+  public void setUp() {
+    Vocabulary.clear();
+    config = new JoshuaConfiguration();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Vocabulary.clear();
+  }
+
+  @Test
+  public void givenSeveralThreads_whenLoading_thenGrammarAndWordIdsMatchSingleThreadedLoading()
+      throws IOException {
+    // GIVEN
+    MemoryBasedBatchGrammar expected = load(1);
+    List<String> expectedRules = listRules(expected);
+    List<String> expectedWords = listWords();
+
+    // WHEN
+    Vocabulary.clear();
+    MemoryBasedBatchGrammar grammar = load(3);
+
+    // THEN
+    assertEquals(grammar.getNumRules(), expected.getNumRules());
+    assertEquals(listWords(), expectedWords);
+    assertEquals(listRules(grammar), expectedRules);
+  }
+
+  @Test
+  public void givenRuleWithNewWords_whenParsingWithoutAddingThem_thenTheyAreNotedInAdditionOrder() {
+    // GIVEN
+    String line = "[X] ||| [X,1] le chat ||| the cat [X,1] ||| 1";
+    HieroFormatReader reader = new HieroFormatReader();
+    Vocabulary.id("le");
+    int known = Vocabulary.size();
+
+    // WHEN
+    Set<String> newWords = new LinkedHashSet<>();
+    Rule rule = reader.parseFields(reader.splitFields(line), newWords);
+
+    // THEN nothing is added, and the noted words are those parseLine adds, in the same order
+    assertNull(rule);
+    assertEquals(Vocabulary.size(), known);
+    reader.parseLine(line);
+    assertEquals(new ArrayList<>(newWords), listWords().subList(known, Vocabulary.size()));
+  }
+
+  @Test
+  public void givenFrozenGrammar_whenMatchingAndAddingRules_thenTrieBehavesAsBefore() {
+    // GIVEN
+    MemoryBasedBatchGrammar grammar = new MemoryBasedBatchGrammar("pt", config, 20);
+    grammar.addRule(parse("[X] ||| [X,1] of [X,2] ||| [X,2] [X,1] ||| 1"));
+    grammar.addRule(parse("[X] ||| the cat ||| le chat ||| 1"));
+    grammar.addRule(parse("[X] ||| the dog ||| le chien ||| 1"));
+    grammar.addRule(parse("[X] ||| the ||| le ||| 1"));
+
+    // WHEN
+    grammar.freeze();
+    grammar.addRule(parse("[X] ||| the bird ||| l' oiseau ||| 1"));
+    grammar.addRule(parse("[X] ||| a ||| un ||| 1"));
+
+    // THEN
+    MemoryBasedTrie root = (MemoryBasedTrie) grammar.getTrieRoot();
+    assertTrue(root.isCompact());
+    assertEquals(match(root, "the").getRuleCollection().getRules().size(), 1);
+    for (String word : new String[] { "cat", "dog", "bird" })
+      assertEquals(match(match(root, "the"), word).getRuleCollection().getRules().size(), 1);
+    assertNull(match(match(root, "the"), "a"));
+    assertEquals(match(root, "a").getRuleCollection().getRules().size(), 1);
+
+    List<Integer> nonterminals = new ArrayList<>();
+    for (Iterator<Integer> it = root.getNonterminalExtensionIterator(); it.hasNext(); )
+      nonterminals.add(it.next());
+    assertEquals(nonterminals.size(), 1);
+    assertEquals(match(root, Vocabulary.word(nonterminals.get(0))).getExtensions().size(), 1);
+
+    int terminals = 0;
+    for (Iterator<Integer> it = root.getTerminalExtensionIterator(); it.hasNext(); it.next())
+      terminals++;
+    assertEquals(terminals, 2);
+    assertEquals(root.getChildren().size(), 3);
+  }
+
+  private static Rule parse(String line) {
+    return new HieroFormatReader().parseLine(line);
+  }
+
+  private static Trie match(Trie node, String word) {
+    return node.match(Vocabulary.id(word));
+  }
+
+  private MemoryBasedBatchGrammar load(int threads) throws IOException {
+    return new MemoryBasedBatchGrammar("moses", PHRASE_TABLE, "pt", "[X]", 0, config, threads);
+  }
+
+  private static List<String> listWords() {
+    List<String> words = new ArrayList<>();
+    for (int id = 0; id < Vocabulary.size(); id++)
+      words.add(Vocabulary.word(id));
+    return words;
+  }
+
+  /* The rules in trie order, with the order of rules within each node */
+  private static List<String> listRules(MemoryBasedBatchGrammar grammar) {
+    List<String> rules = new ArrayList<>();
+    ArrayDeque<Trie> nodes = new ArrayDeque<>();
+    nodes.add(grammar.getTrieRoot());
+    while (!nodes.isEmpty()) {
+      Trie node = nodes.poll();
+      if (node.hasRules())
+        for (Rule rule : node.getRuleCollection().getRules())
+          rules.add(rule.textFormat());
+      if (node.hasExtensions())
+        nodes.addAll(node.getExtensions());
+    }
+    return rules;
+  }
+}
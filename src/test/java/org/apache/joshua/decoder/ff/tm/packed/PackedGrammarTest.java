@@ -0,0 +1,313 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.tm.packed;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.PhraseModel;
+import org.apache.joshua.decoder.ff.tm.Rule;
+import org.apache.joshua.decoder.ff.tm.Trie;
+import org.apache.joshua.tools.GrammarPacker;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PackedGrammarTest {
+
+  private static final String GRAMMAR = "src/test/resources/wa_grammar.packed";
+
+  private JoshuaConfiguration config;
+  private File grammarDir;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    Vocabulary.clear();
+    config = new JoshuaConfiguration();
+    config.sorted_order_cache = true;
+    grammarDir = Files.createTempDirectory("packed").toFile();
+    for (File file : new File(GRAMMAR).listFiles())
+      Files.copy(file.toPath(), new File(grammarDir, file.getName()).toPath());
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Vocabulary.clear();
+    deleteRecursively(grammarDir);
+  }
+
+  @Test
+  public void givenSortedGrammar_whenReloaded_thenSavedOrderIsUsed() throws IOException {
+    // GIVEN
+    PackedGrammar grammar = newGrammar();
+    List<FeatureFunction> models = newModels(grammar, 1.0f);
+    grammar.sortGrammar(models, ForkJoinPool.commonPool());
+    List<String> expected = listRules(grammar, models);
+    assertEquals(sortedOrderFiles().size(), 1);
+
+    // WHEN
+    PackedGrammar reloaded = newGrammar();
+    boolean loaded = reloaded.loadSortedOrder(newModels(reloaded, 1.0f));
+
+    // THEN
+    assertTrue(loaded);
+    assertTrue(reloaded.isSorted());
+    assertEquals(listRules(reloaded, models), expected);
+  }
+
+  @Test
+  public void givenSortedGrammar_whenWeightsChange_thenBothOrdersAreKept() throws IOException {
+    // GIVEN
+    PackedGrammar grammar = newGrammar();
+    grammar.sortGrammar(newModels(grammar, 1.0f));
+    List<String> before = sortedOrderFiles();
+
+    // WHEN
+    PackedGrammar reloaded = newGrammar();
+    List<FeatureFunction> models = newModels(reloaded, -1.0f);
+    assertFalse(reloaded.loadSortedOrder(models));
+    reloaded.sortGrammar(models);
+
+    // THEN
+    List<String> after = sortedOrderFiles();
+    assertEquals(after.size(), 2);
+    assertTrue(after.containsAll(before));
+  }
+
+  @Test
+  public void givenManyWeights_whenSorting_thenOnlyTheMostRecentOrdersAreKept() throws IOException {
+    for (int i = 1; i <= PackedGrammar.MAX_SORTED_ORDERS + 2; i++) {
+      PackedGrammar grammar = newGrammar();
+      grammar.sortGrammar(newModels(grammar, i));
+    }
+
+    assertEquals(sortedOrderFiles().size(), PackedGrammar.MAX_SORTED_ORDERS);
+  }
+
+  @Test
+  public void givenOrderThatIsNotAPermutation_whenLoading_thenItIsIgnored() throws IOException {
+    // GIVEN a node with two rules, whose saved order lists the same rule twice
+    File text = new File(grammarDir, "two_rules");
+    Files.write(text.toPath(), Arrays.asList(
+        "[X] ||| K ||| k1 ||| 1 1 1 1 1 1 OOV=1 ||| 0-0",
+        "[X] ||| K ||| k2 ||| 2 2 2 2 2 2 OOV=1 ||| 0-0"));
+    String packed = new File(grammarDir, "two_rules.packed").getPath();
+    new GrammarPacker(text.getPath(), null, packed, null, null, true, 1000).pack();
+    Vocabulary.clear();
+    PackedGrammar grammar = new PackedGrammar(packed, 20, "pt", "thrax", config);
+    List<FeatureFunction> models = newModels(grammar, 1.0f);
+    grammar.sortGrammar(models);
+    File saved = new File(packed).listFiles(
+        (dir, name) -> name.startsWith(PackedGrammar.SORTED_ORDER_PREFIX))[0];
+    rewriteOrders(saved, 0);
+
+    // WHEN
+    PackedGrammar reloaded = new PackedGrammar(packed, 20, "pt", "thrax", config);
+
+    // THEN
+    assertFalse(reloaded.loadSortedOrder(newModels(reloaded, 1.0f)));
+    assertFalse(reloaded.isSorted());
+  }
+
+  @Test
+  public void givenRepackedGrammar_whenLoading_thenOrderOfTheOldPackingIsIgnored()
+      throws IOException {
+    // GIVEN a sorted grammar that is then repacked in place with different feature values,
+    // leaving its saved orders behind
+    File text = new File(grammarDir, "two_rules");
+    String packed = new File(grammarDir, "two_rules.packed").getPath();
+    Files.write(text.toPath(), Arrays.asList(
+        "[X] ||| K ||| k1 ||| 1 1 1 1 1 1 OOV=1 ||| 0-0",
+        "[X] ||| K ||| k2 ||| 2 2 2 2 2 2 OOV=1 ||| 0-0"));
+    new GrammarPacker(text.getPath(), null, packed, null, null, true, 1000).pack();
+    Vocabulary.clear();
+    PackedGrammar grammar = new PackedGrammar(packed, 20, "pt", "thrax", config);
+    grammar.sortGrammar(newModels(grammar, 1.0f));
+    for (File file : new File(packed).listFiles(
+        (dir, name) -> !name.startsWith(PackedGrammar.SORTED_ORDER_PREFIX)))
+      file.delete();
+
+    Files.write(text.toPath(), Arrays.asList(
+        "[X] ||| K ||| k1 ||| 4 4 4 4 4 4 OOV=1 ||| 0-0",
+        "[X] ||| K ||| k2 ||| 3 3 3 3 3 3 OOV=1 ||| 0-0"));
+    new GrammarPacker(text.getPath(), null, packed, null, null, true, 1000).pack();
+    Vocabulary.clear();
+
+    // WHEN
+    PackedGrammar repacked = new PackedGrammar(packed, 20, "pt", "thrax", config);
+
+    // THEN
+    assertFalse(repacked.loadSortedOrder(newModels(repacked, 1.0f)));
+  }
+
+  /**
+   * Overwrites every rule index of a single-slice sorted order file with the given index.
+   */
+  private static void rewriteOrders(File file, int index) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    buffer.getInt(); // version
+    buffer.getInt(); // slices
+    buffer.getLong(); // source size
+    int blocks = buffer.getInt();
+    buffer.position(buffer.position() + 8 * blocks);
+    int nodes = buffer.getInt();
+    for (int n = 0; n < nodes; n++) {
+      buffer.getLong(); // position
+      int rules = buffer.getInt();
+      for (int i = 0; i < rules; i++)
+        buffer.putInt(index);
+    }
+    Files.write(file.toPath(), buffer.array());
+  }
+
+  @Test
+  public void givenCurrentPackerVersion_whenLoading_thenRulesMatchTheOlderPacking() throws IOException {
+    // GIVEN
+    String packed = new File(grammarDir, "v" + GrammarPacker.VERSION).getPath();
+    new GrammarPacker("src/test/resources/wa_grammar", null, packed, null, null, true, 1000)
+        .pack();
+    Vocabulary.clear();
+
+    // WHEN
+    PackedGrammar current = new PackedGrammar(packed, 20, "pt", "thrax", config);
+    List<String> currentRules = listRules(current, new ArrayList<>());
+    Collections.sort(currentRules);
+    Vocabulary.clear();
+    PackedGrammar older = newGrammar();
+    List<String> olderRules = listRules(older, new ArrayList<>());
+    Collections.sort(olderRules);
+
+    // THEN
+    assertEquals(currentRules.size(), 3);
+    assertEquals(currentRules, olderRules);
+  }
+
+  @Test
+  public void givenPhraseModel_whenSorting_thenCostsMatchThoseOfTheRulesFeatures()
+      throws IOException {
+    // GIVEN
+    PackedGrammar grammar = newGrammar();
+    List<FeatureFunction> models = newModels(grammar, 1.0f);
+
+    // WHEN
+    grammar.sortGrammar(models);
+
+    // THEN
+    List<Rule> rules = new ArrayList<>();
+    collectSortedRules(grammar.getTrieRoot(), models, rules);
+    assertEquals(rules.size(), 3);
+    for (Rule rule : rules) {
+      Rule expected = new Rule(rule.getLHS(), rule.getFrench(), rule.getEnglish(),
+          rule.getFeatureVector(), rule.getArity(), rule.getOwner());
+      assertEquals(rule.getEstimatedCost(), expected.estimateRuleCost(models));
+      assertEquals(rule.getPrecomputableCost(), expected.getPrecomputableCost());
+    }
+  }
+
+  @Test
+  public void givenDisabledCache_whenSorting_thenNothingIsSaved() throws IOException {
+    config.sorted_order_cache = false;
+    PackedGrammar grammar = newGrammar();
+    grammar.sortGrammar(newModels(grammar, 1.0f), ForkJoinPool.commonPool());
+
+    assertTrue(grammar.isSorted());
+    assertTrue(sortedOrderFiles().isEmpty());
+  }
+
+  private PackedGrammar newGrammar() throws IOException {
+    return new PackedGrammar(grammarDir.getPath(), 20, "pt", "thrax", config);
+  }
+
+  /**
+   * A phrase model whose dense weights alternate in sign, scaled by the given factor.
+   */
+  private List<FeatureFunction> newModels(PackedGrammar grammar, float scale) {
+    FeatureVector weights = new FeatureVector();
+    for (int i = 0; i < grammar.getNumDenseFeatures(); i++)
+      weights.set("tm_pt_" + i, (i % 2 == 0 ? scale : -scale) * (i + 1));
+
+    List<FeatureFunction> models = new ArrayList<>();
+    models.add(new PhraseModel(weights, new String[] { "tm", "-owner", "pt" }, config, grammar));
+    return models;
+  }
+
+  /* Lists every node's rules in order, with their estimated costs */
+  private static List<String> listRules(PackedGrammar grammar, List<FeatureFunction> models) {
+    List<String> rules = new ArrayList<>();
+    collectRules(grammar.getTrieRoot(), models, rules);
+    return rules;
+  }
+
+  private static void collectRules(Trie node, List<FeatureFunction> models, List<String> rules) {
+    if (node.hasRules()) {
+      for (Rule rule : node.getRuleCollection().getSortedRules(models))
+        rules.add(rule.getFrenchWords() + " ||| " + rule.getEnglishWords() + " ||| "
+            + rule.getFeatureVector() + " ||| " + Arrays.toString(rule.getAlignment()) + " ||| "
+            + rule.getEstimatedCost());
+    }
+    if (node.hasExtensions()) {
+      for (Trie child : node.getExtensions())
+        collectRules(child, models, rules);
+    }
+  }
+
+  private static void collectSortedRules(Trie node, List<FeatureFunction> models,
+      List<Rule> rules) {
+    if (node.hasRules())
+      rules.addAll(node.getRuleCollection().getSortedRules(models));
+    if (node.hasExtensions()) {
+      for (Trie child : node.getExtensions())
+        collectSortedRules(child, models, rules);
+    }
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File f : files)
+        deleteRecursively(f);
+    }
+    file.delete();
+  }
+
+  private List<String> sortedOrderFiles() {
+    List<String> names = new ArrayList<>();
+    for (File file : grammarDir.listFiles()) {
+      if (file.getName().startsWith(PackedGrammar.SORTED_ORDER_PREFIX))
+        names.add(file.getName());
+    }
+    Collections.sort(names);
+    return names;
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.metrics;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+public class TERTest {
+
+  private static final String REF =
+      "saudi arabia denied this week information published in the american new york times";
+  private static final String HYP =
+      "this week the saudis denied information published in the new york times";
+
+  /*
+   * A small corpus of hypothesis/reference pairs with shifts and punctuation, and the edits and
+   * reference length tercom 0.7.25 reports for each under its four case/punctuation settings:
+   * nocase+punc (its default), nocase+nopunc (-P), case+punc (-s) and case+nopunc. Note that
+   * tercom does not tokenize, so punctuation stays attached to words unless it is removed.
+   */
+  private static final Object[][] TERCOM_CORPUS = {
+      { "d e f g h a b c", "a b c d e f g h",
+          new int[][] { { 1, 8 }, { 1, 8 }, { 1, 8 }, { 1, 8 } } },
+      { "dddd eeee ffff", "aaaa bbbb cccc",
+          new int[][] { { 3, 3 }, { 3, 3 }, { 3, 3 }, { 3, 3 } } },
+      { "Yesterday, he went home.", "He went home yesterday.",
+          new int[][] { { 3, 4 }, { 1, 4 }, { 4, 4 }, { 3, 4 } } },
+      { "yesterday , he went home .", "he went home yesterday .",
+          new int[][] { { 2, 5 }, { 1, 4 }, { 2, 5 }, { 1, 4 } } },
+      { "on tuesday the president said taxes will rise",
+          "the president said on tuesday that taxes will rise",
+          new int[][] { { 2, 9 }, { 2, 9 }, { 2, 9 }, { 2, 9 } } },
+      { HYP, REF, new int[][] { { 4, 13 }, { 4, 13 }, { 4, 13 }, { 4, 13 } } },
+      { "the cat , sat on the mat .", "The cat sat on the mat.",
+          new int[][] { { 3, 6 }, { 0, 6 }, { 4, 6 }, { 1, 6 } } },
+      { "\"Hello!\" (she said)", "she said : hello",
+          new int[][] { { 4, 4 }, { 1, 3 }, { 4, 4 }, { 2, 3 } } },
+      { "a b c d e f g h i j k l", "k l a b c d e f g h i j",
+          new int[][] { { 1, 12 }, { 1, 12 }, { 1, 12 }, { 1, 12 } } } };
+
+  @Test
+  public void givenMovedPhrase_whenScoring_thenShiftCountsAsOneEdit() {
+    TERCalculator calculator = new TERCalculator(false, true, 20, 50);
+
+    // shift "this week", substitute "saudi arabia" -> "the saudis", delete "american"
+    assertEquals(calculator.suffStats(HYP, new String[] { REF }), new int[] { 4, 13 });
+    assertEquals(calculator.suffStats("a b c", new String[] { "a b c" }), new int[] { 0, 3 });
+    assertEquals(calculator.suffStats("", new String[] { "a b c" }), new int[] { 3, 3 });
+    assertEquals(calculator.suffStats("a b c", new String[] { "" }), new int[] { 3, 0 });
+  }
+
+  @Test
+  public void givenCaseAndPunctuationOptions_whenScoring_thenTheyAreNormalizedLikeTercom() {
+    String[] refs = { "the cat" };
+    assertEquals(new TERCalculator(false, false, 20, 50).suffStats("The Cat .", refs),
+        new int[] { 0, 2 });
+    assertEquals(new TERCalculator(true, true, 20, 50).suffStats("The Cat .", refs),
+        new int[] { 3, 2 });
+  }
+
+  @Test
+  public void givenTercomCorpus_whenScoring_thenStatsMatchTercom() {
+    boolean[][] settings = { { false, true }, { false, false }, { true, true }, { true, false } };
+    for (Object[] segment : TERCOM_CORPUS) {
+      int[][] expected = (int[][]) segment[2];
+      for (int s = 0; s < settings.length; s++) {
+        TERCalculator calculator = new TERCalculator(settings[s][0], settings[s][1], 20, 50);
+        String[] refs = { (String) segment[1] };
+        assertEquals(calculator.suffStats((String) segment[0], refs), expected[s],
+            segment[0] + " (setting " + s + ")");
+      }
+    }
+
+    // With -d 2 the rotations and the moved adverbial are too far away to be shifted
+    TERCalculator nearShifts = new TERCalculator(false, true, 20, 2);
+    assertEquals(nearShifts.suffStats("d e f g h a b c", new String[] { "a b c d e f g h" }),
+        new int[] { 6, 8 });
+    assertEquals(nearShifts.suffStats("a b c d e f g h i j k l",
+        new String[] { "k l a b c d e f g h i j" }), new int[] { 4, 12 });
+    assertEquals(nearShifts.suffStats("on tuesday the president said taxes will rise",
+        new String[] { "the president said on tuesday that taxes will rise" }), new int[] { 5, 9 });
+  }
+
+  @Test
+  public void givenSeveralReferences_whenScoring_thenClosestEditsAndAverageLengthAreUsed() {
+    TERCalculator calculator = new TERCalculator(false, true, 20, 50);
+    assertEquals(calculator.suffStats("a b c", new String[] { "x y", "a b c d" }),
+        new int[] { 1, 3 });
+  }
+
+  @Test
+  public void givenSeveralThreads_whenScoringCandidates_thenStatsMatchSingleThreadedScoring() {
+    String[] refWords = REF.split(" ");
+    String[][] refs = new String[50][1];
+    String[] cands = new String[200];
+    int[] indices = new int[cands.length];
+    for (int i = 0; i < refs.length; i++) {
+      refs[i][0] = String.join(" ", Arrays.copyOfRange(refWords, i % 5, refWords.length));
+    }
+    for (int d = 0; d < cands.length; d++) {
+      cands[d] = (d % 2 == 0) ? HYP : HYP.substring(d % HYP.length());
+      indices[d] = d % refs.length;
+    }
+
+    EvaluationMetric.set_numSentences(refs.length);
+    EvaluationMetric.set_refsPerSen(1);
+    EvaluationMetric.set_refSentences(refs);
+
+    int[][] parallel = new TER(new String[] { "nocase", "punc", "20", "50", "-", "3" })
+        .suffStats(cands, indices);
+    TER sequential = new TER(new String[] { "nocase", "punc", "20", "50", "-", "1" });
+    for (int d = 0; d < cands.length; d++) {
+      assertEquals(parallel[d], sequential.suffStats(cands[d], indices[d]));
+    }
+  }
+}
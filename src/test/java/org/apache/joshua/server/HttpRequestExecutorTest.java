@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.server;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.annotations.Test;
+
+public class HttpRequestExecutorTest {
+
+  @Test
+  public void givenFullQueue_whenExecuting_thenRequestIsFlaggedAsOverloaded() throws Exception {
+    // GIVEN
+    HttpRequestExecutor executor = new HttpRequestExecutor(1, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch started = new CountDownLatch(1);
+    AtomicBoolean firstOverloaded = new AtomicBoolean(true);
+
+    executor.execute(() -> {
+      firstOverloaded.set(HttpRequestExecutor.isOverloaded());
+      started.countDown();
+      await(release);
+    });
+    started.await(5, TimeUnit.SECONDS);
+    executor.execute(() -> await(release));
+    assertEquals(executor.getQueueLength(), 1);
+
+    // WHEN
+    CountDownLatch rejected = new CountDownLatch(1);
+    AtomicBoolean overloaded = new AtomicBoolean(false);
+    executor.execute(() -> {
+      overloaded.set(HttpRequestExecutor.isOverloaded());
+      rejected.countDown();
+    });
+
+    // THEN
+    assertTrue(rejected.await(5, TimeUnit.SECONDS));
+    assertTrue(overloaded.get());
+    assertFalse(firstOverloaded.get());
+    release.countDown();
+    executor.shutdown();
+  }
+
+  @Test
+  public void givenFullShedQueue_whenExecuting_thenCallerAnswersTheRequest() throws Exception {
+    // GIVEN a busy worker, a full queue, a busy shedding thread and a full shedding queue
+    HttpRequestExecutor executor = new HttpRequestExecutor(1, 1, 1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch shedding = new CountDownLatch(1);
+    executor.execute(() -> await(release));
+    executor.execute(() -> await(release));
+    executor.execute(() -> {
+      shedding.countDown();
+      await(release);
+    });
+    assertTrue(shedding.await(5, TimeUnit.SECONDS));
+    executor.execute(() -> await(release));
+
+    // WHEN
+    Thread caller = Thread.currentThread();
+    AtomicBoolean ranOnCaller = new AtomicBoolean(false);
+    AtomicBoolean overloaded = new AtomicBoolean(false);
+    executor.execute(() -> {
+      ranOnCaller.set(Thread.currentThread() == caller);
+      overloaded.set(HttpRequestExecutor.isOverloaded());
+    });
+
+    // THEN
+    assertTrue(ranOnCaller.get());
+    assertTrue(overloaded.get());
+    assertFalse(HttpRequestExecutor.isOverloaded());
+    release.countDown();
+    executor.shutdown();
+  }
+
+  @Test
+  public void givenAdmittedRequest_thenAdmissionTimeIsBeforeRun() throws Exception {
+    HttpRequestExecutor executor = new HttpRequestExecutor(1, 1);
+    long before = System.nanoTime();
+    CountDownLatch done = new CountDownLatch(1);
+    long[] admitted = new long[1];
+
+    executor.execute(() -> {
+      admitted[0] = HttpRequestExecutor.admittedAt();
+      done.countDown();
+    });
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(admitted[0] >= before);
+    assertTrue(admitted[0] <= System.nanoTime());
+    executor.shutdown();
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -109,6 +109,31 @@ public class KenLmTest {
     assertThat(result.prob, is(-3.7906885f));
   }
 
+  @Test
+  public void givenUsedPool_whenReset_thenStatesAreNumberedAfreshAndPoolIsCounted() {
+    // GIVEN
+    KenLmTestUtil.Guard(() -> kenLm = new KenLM(LANGUAGE_MODEL_PATH));
+
+    registerLanguageModel(kenLm);
+    long[] first = { Vocabulary.id("Wayne"), Vocabulary.id("Gretzky") };
+    long[] second = { Vocabulary.id("Gretzky") };
+    int livePools = LmPool.getLivePools();
+
+    try (LmPool pool = kenLm.createLMPool()) {
+      assertEquals(livePools + 1, LmPool.getLivePools());
+      assertTrue(pool.getBytes() > 0);
+      assertThat(kenLm.probRule(first, pool).state.getState(), is(1L));
+      assertThat(kenLm.probRule(second, pool).state.getState(), is(2L));
+
+      // WHEN
+      pool.reset();
+
+      // THEN
+      assertThat(kenLm.probRule(second, pool).state.getState(), is(1L));
+    }
+    assertEquals(livePools, LmPool.getLivePools());
+  }
+
   @Test
   public void givenKenLm_whenIsKnownWord_thenReturnValuesAreCorrect() {
     KenLmTestUtil.Guard(() -> kenLm = new KenLM(LANGUAGE_MODEL_PATH));
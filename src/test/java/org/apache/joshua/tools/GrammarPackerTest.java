@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.tools;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.util.io.LineReader;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class GrammarPackerTest {
+
+  private static final String GRAMMAR = "src/test/resources/bn-en/packed/grammar.gz";
+
+  private File dir;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    Vocabulary.clear();
+    dir = Files.createTempDirectory("packer").toFile();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Vocabulary.clear();
+    deleteRecursively(dir);
+  }
+
+  @Test
+  public void givenUnsortedGrammar_whenPackingWithThreads_thenOutputMatchesSequentialPacking()
+      throws IOException {
+    // GIVEN
+    List<String> rules = readRules(3000);
+    GrammarSorter sorter = new GrammarSorter(1, dir, rules.size(), null, 1);
+    List<String> sorted = new ArrayList<>(rules);
+    Collections.sort(sorted, sorter::compare);
+    Collections.reverse(rules);
+    File unsorted = writeRules("unsorted", rules);
+    assertFalse(GrammarSorter.isSorted(unsorted.getPath(), 1));
+
+    // WHEN
+    File expected = pack(writeRules("sorted", sorted), "expected", 1);
+    File actual = pack(unsorted, "actual", 3);
+
+    // THEN
+    assertTrue(new File(expected, "slice_00001.source").exists());
+    assertEquals(actual.list().length, expected.list().length);
+    for (String name : expected.list())
+      assertEquals(Files.readAllBytes(new File(actual, name).toPath()),
+          Files.readAllBytes(new File(expected, name).toPath()), name);
+  }
+
+  @Test
+  public void givenSmallChunks_whenSorting_thenResultMatchesSortingInMemory() throws Exception {
+    // GIVEN
+    List<String> rules = readRules(1000);
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    GrammarSorter sorter = new GrammarSorter(1, dir, 64, pool, 2);
+
+    // WHEN
+    File sorted = sorter.sort(writeRules("unsorted", rules).getPath());
+    pool.shutdown();
+
+    // THEN
+    Collections.sort(rules, sorter::compare);
+    assertEquals(Files.readAllLines(sorted.toPath(), StandardCharsets.UTF_8), rules);
+    assertTrue(GrammarSorter.isSorted(sorted.getPath(), 1));
+    // Only the input and the result are left
+    assertEquals(dir.list().length, 2);
+  }
+
+  @Test
+  public void givenRulesWithSameSourceAndTarget_whenSorting_thenWholeLineBreaksTheTie() {
+    GrammarSorter sorter = new GrammarSorter(1, dir, 10, null, 1);
+
+    // As with sort -t'\t', the tab that replaces a separator sorts before any other character
+    assertTrue(sorter.compare("[X] ||| a ||| b ||| 0.5 ||| 0-0", "[X] ||| a ||| b ||| 0.5 1") < 0);
+    assertTrue(sorter.compare("[X] ||| a b ||| c ||| 1", "[X] ||| a ||| d ||| 1") > 0);
+    assertTrue(sorter.compare("[X] ||| a ||| c ||| 1", "[X] ||| a ||| b c ||| 1") > 0);
+  }
+
+  private File pack(File grammar, String name, int threads) throws IOException {
+    File output = new File(dir, name);
+    new GrammarPacker(grammar.getPath(), null, output.getPath(), null, null, false, 500, threads)
+        .pack();
+    return output;
+  }
+
+  /**
+   * Reads every 40th rule of the test grammar, so that the rules have many different source sides.
+   */
+  private List<String> readRules(int count) throws IOException {
+    List<String> rules = new ArrayList<>();
+    try (LineReader reader = new LineReader(GRAMMAR)) {
+      for (int i = 0; reader.hasNext() && rules.size() < count; i++) {
+        String rule = reader.next();
+        if (i % 40 == 0)
+          rules.add(rule);
+      }
+    }
+    return rules;
+  }
+
+  private File writeRules(String name, List<String> rules) throws IOException {
+    File file = new File(dir, name);
+    Files.write(file.toPath(), rules, StandardCharsets.UTF_8);
+    return file;
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null)
+      for (File child : children)
+        deleteRecursively(child);
+    file.delete();
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class ConcurrentCacheTest {
+
+  @Test
+  public void givenFullCache_whenAddingEntry_thenReferencedEntryGetsSecondChance() {
+    ConcurrentCache<String, Integer> cache = new ConcurrentCache<>(5, 1);
+    for (String key : new String[] { "a", "b", "c", "d", "e" })
+      cache.put(key, (int) key.charAt(0));
+
+    cache.getIfPresent("a");
+    cache.put("f", 6);
+
+    assertEquals(cache.size(), 5);
+    assertEquals(cache.getIfPresent("a"), Integer.valueOf('a'));
+    assertNull(cache.getIfPresent("b"));
+    assertEquals(cache.getIfPresent("f"), Integer.valueOf(6));
+    assertEquals(cache.getEvictionCount(), 1);
+  }
+
+  @Test
+  public void givenLookups_whenCounting_thenHitRateIsReported() {
+    ConcurrentCache<String, Integer> cache = new ConcurrentCache<>(10);
+    cache.put("a", 1);
+    cache.getIfPresent("a");
+    cache.getIfPresent("a");
+    cache.getIfPresent("a");
+    cache.getIfPresent("z");
+
+    assertEquals(cache.getHitCount(), 3);
+    assertEquals(cache.getMissCount(), 1);
+    assertEquals(cache.getHitRate(), 0.75, 1e-9);
+  }
+
+  @Test
+  public void givenInvalidatedKeys_whenAddingMore_thenTheirSlotsAreReused() {
+    ConcurrentCache<Integer, Integer> cache = new ConcurrentCache<>(4, 1);
+    for (int i = 0; i < 4; i++)
+      cache.put(i, i);
+    cache.invalidate(1);
+    cache.put(4, 4);
+
+    assertNull(cache.getIfPresent(1));
+    assertEquals(cache.size(), 4);
+    assertEquals(cache.getEvictionCount(), 0);
+
+    cache.invalidateAll();
+    assertEquals(cache.size(), 0);
+    assertNull(cache.getIfPresent(0));
+  }
+
+  @Test
+  public void givenManyThreads_whenPuttingAndGetting_thenSizeIsBoundedAndValuesAreCorrect()
+      throws Exception {
+    ConcurrentCache<Integer, Integer> cache = new ConcurrentCache<>(1000, 8);
+    List<Thread> threads = new ArrayList<>();
+    List<Throwable> errors = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final int offset = t;
+      threads.add(new Thread(() -> {
+        try {
+          for (int i = 0; i < 50000; i++) {
+            int key = (i * 7 + offset) % 5000;
+            Integer value = cache.getIfPresent(key);
+            if (value != null && value != -key)
+              throw new AssertionError("wrong value for " + key);
+            cache.put(key, -key);
+          }
+        } catch (Throwable e) {
+          synchronized (errors) {
+            errors.add(e);
+          }
+        }
+      }));
+    }
+    for (Thread thread : threads)
+      thread.start();
+    for (Thread thread : threads)
+      thread.join();
+
+    assertTrue(errors.isEmpty(), errors.toString());
+    assertTrue(cache.size() <= 1000, "size " + cache.size());
+    assertTrue(cache.getEvictionCount() > 0);
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class ConcurrentLongCacheTest {
+
+  @Test
+  public void givenFullCache_whenAddingEntry_thenReferencedEntryGetsSecondChance() {
+    ConcurrentLongCache<String> cache = new ConcurrentLongCache<>(3, 1);
+    cache.put(1L, "one");
+    cache.put(2L, "two");
+    cache.put(3L, "three");
+
+    // Reference everything but 2, which must then be the victim wherever the hand starts
+    cache.getIfPresent(1L);
+    cache.getIfPresent(3L);
+    cache.put(4L, "four");
+
+    assertEquals(cache.size(), 3);
+    assertNull(cache.getIfPresent(2L));
+    assertEquals(cache.getIfPresent(1L), "one");
+    assertEquals(cache.getIfPresent(3L), "three");
+    assertEquals(cache.getIfPresent(4L), "four");
+    assertEquals(cache.getEvictionCount(), 1);
+  }
+
+  @Test
+  public void givenManyKeys_whenFillingAndRemoving_thenLookupsStayCorrect() {
+    ConcurrentLongCache<Long> cache = new ConcurrentLongCache<>(100000, 4);
+    for (long key = 0; key < 20000; key++)
+      cache.put(key * 31, key);
+    for (long key = 0; key < 20000; key += 2)
+      cache.invalidate(key * 31);
+
+    assertEquals(cache.size(), 10000);
+    for (long key = 0; key < 20000; key++) {
+      if (key % 2 == 0)
+        assertNull(cache.getIfPresent(key * 31));
+      else
+        assertEquals(cache.getIfPresent(key * 31), Long.valueOf(key));
+    }
+    assertEquals(cache.getEvictionCount(), 0);
+  }
+
+  @Test
+  public void givenIntKeys_whenOverCapacity_thenSizeIsBounded() {
+    ConcurrentLongCache<Integer> cache = new ConcurrentLongCache<>(64, 4);
+    for (int key = 0; key < 10000; key++) {
+      cache.put(key, key);
+      assertEquals(cache.getIfPresent(key), Integer.valueOf(key));
+    }
+
+    assertTrue(cache.size() <= 64, "size " + cache.size());
+    assertEquals(cache.getEvictionCount(), 10000 - cache.size());
+    assertEquals(cache.getHitRate(), 1.0, 1e-9);
+  }
+}